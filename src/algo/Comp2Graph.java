@@ -54,16 +54,16 @@ public class Comp2Graph implements Runnable {
     private void buildComponent() {
         logger.debug("Building graph component...");
         if (all_kmers != null) {
-            for (long kmer: comp.kmers) {
+            for (long kmer: comp.kmers.array()) {
                 comp_kmers.put(kmer, all_kmers.getWithZero(kmer));
             }
         } else {
-            for (long kmer: comp.kmers) {
+            for (long kmer: comp.kmers.array()) {
                 comp_kmers.put(kmer, (short)1);
             }
         }
 
-        for (long kmer: comp.kmers) {
+        for (long kmer: comp.kmers.array()) {
             subgraph.put(normalizeDna(KmerUtils.kmer2String(kmer, k)), comp_kmers.getWithZero(kmer));
         }
     }
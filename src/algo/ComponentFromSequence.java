@@ -1,7 +1,6 @@
 package algo;
 
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import structures.SequenceComponent;
 
 import java.util.List;
@@ -22,10 +21,13 @@ public class ComponentFromSequence implements Runnable {
 
     @Override
     public void run() {
-        SequenceComponent comp = new SequenceComponent();
-        for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-            comp.add(kmer.toLong());
-        }
+        final SequenceComponent comp = new SequenceComponent();
+        KmerScanner.scan(dna, k, new KmerScanner.KmerConsumer() {
+            @Override
+            public void accept(long kmer, int pos) {
+                comp.add(kmer);
+            }
+        });
         components.add(comp);
     }
 }
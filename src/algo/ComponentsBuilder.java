@@ -247,7 +247,7 @@ public class ComponentsBuilder {
                         if (comp.size > b2) {
                             alreadyBigComp = true;
                             comp.nextHM = new BigLong2ShortHashMap(4, 13);
-                            for (long kk : comp.kmers) {
+                            for (long kk : comp.kmers.array()) {
                                 value = (short) -hm.get(kk);
                                 assert value > 0;
                                 if (value >= curFreqThreshold+1) {
@@ -21,7 +21,7 @@ import java.util.*;
 public class ComponentsBuilderAroundPivot {
 
     public static List<ConnectedComponent> splitStrategy(BigLong2ShortHashMap hm,
-                                                         int k, BigLong2ShortHashMap pivot,
+                                                         int k, Long2ShortHashMapInterface pivot,
                                                          String statFP, Logger logger) throws FileNotFoundException {
 
         ComponentsBuilderAroundPivot builder = new ComponentsBuilderAroundPivot(k, statFP, logger);
@@ -42,7 +42,7 @@ public class ComponentsBuilderAroundPivot {
         this.logger = logger;
     }
 
-    private void run(BigLong2ShortHashMap hm, BigLong2ShortHashMap pivot) throws FileNotFoundException {
+    private void run(BigLong2ShortHashMap hm, Long2ShortHashMapInterface pivot) throws FileNotFoundException {
         Timer t = new Timer();
 
         // current component is formed of k-mers with frequency >= 1
@@ -87,7 +87,7 @@ public class ComponentsBuilderAroundPivot {
      * Assuming running in one thread for current hm!
      */
     private static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm,
-                                                              int k, BigLong2ShortHashMap pivot) {
+                                                              int k, Long2ShortHashMapInterface pivot) {
         List<ConnectedComponent> ans = new ArrayList<ConnectedComponent>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size()/2));
         LongArrayFIFOQueue parent = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size()/2));
@@ -111,7 +111,7 @@ public class ComponentsBuilderAroundPivot {
      */
     private static ConnectedComponent bfs(Long2ShortHashMapInterface hm, long startKmer,
                                           LongArrayFIFOQueue queue,
-                                          LongArrayFIFOQueue parent, int k, BigLong2ShortHashMap pivot) {
+                                          LongArrayFIFOQueue parent, int k, Long2ShortHashMapInterface pivot) {
         ConnectedComponent comp = new ConnectedComponent();
 
         queue.clear();
@@ -358,7 +358,7 @@ public class ComponentsBuilderAroundPivot {
 
 
     private static int dfs(long startKmer, long parentKmer, Long2ShortHashMapInterface hm,
-                               BigLong2ShortHashMap pivot, int k, List<Long> kmersOnPath) {
+                               Long2ShortHashMapInterface pivot, int k, List<Long> kmersOnPath) {
         long kmer = startKmer;
         long prev = parentKmer;
         int n_pivot = 0;
@@ -21,7 +21,7 @@ import java.util.*;
 public class DeepComponentsBuilderAroundPivot {
 
     public static List<ConnectedComponent> splitStrategy(BigLong2ShortHashMap hm,
-                                                         int k, int depth, BigLong2ShortHashMap pivot,
+                                                         int k, int depth, Long2ShortHashMapInterface pivot,
                                                          String statFP, Logger logger) throws FileNotFoundException {
 
         DeepComponentsBuilderAroundPivot builder = new DeepComponentsBuilderAroundPivot(k, depth, statFP, logger);
@@ -44,7 +44,7 @@ public class DeepComponentsBuilderAroundPivot {
         this.logger = logger;
     }
 
-    private void run(BigLong2ShortHashMap hm, BigLong2ShortHashMap pivot) throws FileNotFoundException {
+    private void run(BigLong2ShortHashMap hm, Long2ShortHashMapInterface pivot) throws FileNotFoundException {
         Timer t = new Timer();
 
         // current component is formed of k-mers with frequency >= 1
@@ -89,7 +89,7 @@ public class DeepComponentsBuilderAroundPivot {
      * Assuming running in one thread for current hm!
      */
     private static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm,
-                                                              int k, int depth, BigLong2ShortHashMap pivot) {
+                                                              int k, int depth, Long2ShortHashMapInterface pivot) {
         List<ConnectedComponent> ans = new ArrayList<ConnectedComponent>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size() / 2));
         LongArrayFIFOQueue parent = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size() / 2));
@@ -113,7 +113,7 @@ public class DeepComponentsBuilderAroundPivot {
      */
     private static ConnectedComponent bfs(Long2ShortHashMapInterface hm, long startKmer,
                                           LongArrayFIFOQueue queue,
-                                          LongArrayFIFOQueue parent, int k, int depth, BigLong2ShortHashMap pivot) {
+                                          LongArrayFIFOQueue parent, int k, int depth, Long2ShortHashMapInterface pivot) {
         ConnectedComponent comp = new ConnectedComponent();
 
         queue.clear();
@@ -396,7 +396,7 @@ public class DeepComponentsBuilderAroundPivot {
      * @return amount of pivot k-mers on best selected path
      */
     private static int dfs(long startKmer, long parentKmer, Long2ShortHashMapInterface hm,
-                           BigLong2ShortHashMap pivot, int k, HashSet<Long> kmersOnPath,
+                           Long2ShortHashMapInterface pivot, int k, HashSet<Long> kmersOnPath,
                            List<Long> bestPath, int pivotKmersOnPath, int depthAvailable, int globalBest) {
         if (depthAvailable == 0) {
             return pivotKmersOnPath;
@@ -0,0 +1,67 @@
+package algo;
+
+import ru.ifmo.genetics.dna.Dna;
+
+/**
+ * Allocation-free extraction of canonical k-mers from a sequence.<br></br>
+ * Forward and reverse-complement 2-bit encodings are kept as rolling longs, the canonical k-mer is the minimum
+ * of them (the same value as ShortKmer.toLong() gives), so nothing is allocated per k-mer or per sequence.<br></br>
+ * Unknown nucleotides (negative codes, e.g. 'N' in ReadsChunkDispatcher) restart the scan after them.
+ */
+public class KmerScanner {
+
+    public interface KmerConsumer {
+        /**
+         * @param kmer canonical k-mer
+         * @param pos position of the first nucleotide of the k-mer in the sequence
+         */
+        void accept(long kmer, int pos);
+    }
+
+
+    /**
+     * Scans nucleotide codes (see DnaTools.fromChar) from nucs[0..len-1].
+     * @return number of k-mers passed to the consumer
+     */
+    public static int scan(byte[] nucs, int len, int k, KmerConsumer consumer) {
+        long mask = (1L << (2 * k)) - 1;
+        int rcShift = 2 * k - 2;
+        long fw = 0, rc = 0;
+        int filled = 0, count = 0;
+        for (int i = 0; i < len; i++) {
+            byte nuc = nucs[i];
+            if (nuc < 0) {
+                filled = 0;
+                continue;
+            }
+            fw = ((fw << 2) | nuc) & mask;
+            rc = (rc >>> 2) | ((3L - nuc) << rcShift);
+            if (++filled >= k) {
+                consumer.accept(Math.min(fw, rc), i - k + 1);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Scans all k-mers of the dna, the same ones as ShortKmer.kmersOf(dna, k) iterates.
+     * @return number of k-mers passed to the consumer
+     */
+    public static int scan(Dna dna, int k, KmerConsumer consumer) {
+        long mask = (1L << (2 * k)) - 1;
+        int rcShift = 2 * k - 2;
+        long fw = 0, rc = 0;
+        int len = dna.length(), count = 0;
+        for (int i = 0; i < len; i++) {
+            byte nuc = dna.nucAt(i);
+            fw = ((fw << 2) | nuc) & mask;
+            rc = (rc >>> 2) | ((3L - nuc) << rcShift);
+            if (i >= k - 1) {
+                consumer.accept(Math.min(fw, rc), i - k + 1);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -5,7 +5,6 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.io.sources.Source;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
-import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.iterators.ProgressableIterator;
 import ru.ifmo.genetics.utils.tool.Tool;
 
@@ -13,57 +12,169 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+/**
+ * Reads the stream by work ranges in a separate read-ahead thread.<br></br>
+ * Work ranges are taken from a bounded pool of reusable buffers, so disk reading overlaps with
+ * processing, and no new buffers are allocated after the pool is filled.<br></br>
+ * Every range taken by getWorkRange() must be returned to the pool by recycle().
+ */
 public class BytesDispatcher {
     final Logger logger = Logger.getLogger("bytes-dispatcher");
 
+    /**
+     * Default number of buffers ahead of the workers.
+     */
+    public static final int READ_AHEAD_BUFFERS = 2;
+
+    public static class WorkRange {
+        public final byte[] bytes;
+        public int len;
+
+        WorkRange(int size) {
+            bytes = new byte[size];
+        }
+    }
+
+    private static final WorkRange END = new WorkRange(0);
+
+
     final InputStream is;
     public final int workRangeSize;
-    long bytesRead = 0;
+    volatile long bytesRead = 0;
 
     final BigLong2ShortHashMap hm; // for debug output
 
+    private final int buffersNumber;
+    private int buffersCreated = 0;
+    private final BlockingQueue<WorkRange> free;
+    private final BlockingQueue<WorkRange> filled;
+    private volatile IOException readException = null;
+    private final Thread readAheadThread;
+
     public BytesDispatcher(InputStream is, int workRangeSize, BigLong2ShortHashMap hmForMonitoring) {
+        this(is, workRangeSize, 1 + READ_AHEAD_BUFFERS, hmForMonitoring);
+    }
+
+    /**
+     * @param buffersNumber maximal number of work ranges in memory, usually number of workers + READ_AHEAD_BUFFERS
+     */
+    public BytesDispatcher(InputStream is, int workRangeSize, int buffersNumber, BigLong2ShortHashMap hmForMonitoring) {
         this.is = is;
         this.workRangeSize = workRangeSize;
 //        Tool.debug(logger, "Using " + workRangeSize + " bytes as workRangeSize");
         hm = hmForMonitoring;
-    }
-
 
+        this.buffersNumber = buffersNumber;
+        free = new ArrayBlockingQueue<WorkRange>(buffersNumber);
+        filled = new ArrayBlockingQueue<WorkRange>(buffersNumber + 1);
 
-    public byte[] getNewEmptyWorkRange() {
-        return new byte[workRangeSize];
+        readAheadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "bytes-read-ahead");
+        readAheadThread.setDaemon(true);
+        readAheadThread.start();
     }
 
-    public synchronized int readWorkRange(byte[] range) {
+
+
+    private void readAhead() {
         try {
-            int read = 0;
-            while (read < range.length) {
-                int r = is.read(range, read, range.length - read);
-                if (r == -1) {
+            while (true) {
+                WorkRange range = getEmptyWorkRange();
+                range.len = readWorkRange(range.bytes);
+                if (range.len <= 0) {
+                    free.add(range);
                     break;
                 }
-                read += r;
+                filled.put(range);
             }
+        } catch (IOException e) {
+            readException = e;
+        } catch (InterruptedException e) {
+            readException = new IOException("Read-ahead thread was interrupted", e);
+        } finally {
+            filled.add(END);
+        }
+    }
 
-            bytesRead += read;
-            /*
-            if ((bytesRead & ((1 << 29) - 1)) == 0) { // 512 Mb
-                Tool.debug(logger, "Processed " + (bytesRead >> 20) + " Mb of data:");
-                if (hm != null) {
-                    Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
-                            "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[1].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[2].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
-                }
-                Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
+    private WorkRange getEmptyWorkRange() throws InterruptedException {
+        WorkRange range = free.poll();
+        if (range == null) {
+            if (buffersCreated < buffersNumber) {
+                buffersCreated++;
+                return new WorkRange(workRangeSize);
             }
-            */
-            return read;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            range = free.take();
         }
+        return range;
+    }
+
+    int readWorkRange(byte[] range) throws IOException {
+        int read = 0;
+        while (read < range.length) {
+            int r = is.read(range, read, range.length - read);
+            if (r == -1) {
+                break;
+            }
+            read += r;
+        }
+
+        bytesRead += read;
+        LoadingMetrics.addBytes(read);
+        if ((bytesRead - read) >> 29 != bytesRead >> 29) {     // every 512 Mb
+            Tool.debug(logger, "Processed " + (bytesRead >> 20) + " Mb of data:");
+            if (hm != null) {
+                Tool.debug(logger, LoadingMetrics.mapState(hm));
+            }
+            Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
+        }
+        return read;
+    }
+
+
+    /**
+     * Blocks until the next filled work range is available.
+     * @return filled work range, or null if the stream has ended.
+     */
+    public WorkRange getWorkRange() {
+        WorkRange range = filled.poll();
+        try {
+            if (range == null) {
+                long waitStart = System.nanoTime();
+                range = filled.take();
+                LoadingMetrics.addIoWait(System.nanoTime() - waitStart);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for data", e);
+        }
+        if (range == END) {
+            filled.add(END);    // for other workers
+            if (readException != null) {
+                throw new RuntimeException(readException);
+            }
+            return null;
+        }
+        return range;
+    }
+
+    /**
+     * Returns processed work range to the buffers pool.
+     */
+    public void recycle(WorkRange range) {
+        free.add(range);
+    }
+
+    /**
+     * Stops the read-ahead thread (if it is still running) and closes the stream.
+     */
+    public void close() throws IOException {
+        readAheadThread.interrupt();
+        is.close();
     }
 }
@@ -1,42 +1,100 @@
 package io;
 
-import java.util.concurrent.CountDownLatch;
+import java.nio.ByteBuffer;
 
-public abstract class BytesWorker implements Runnable {
+public abstract class BytesWorker implements LoaderEngine.Worker {
 
     private BytesDispatcher dispatcher = null;
-    private CountDownLatch latch = null;
+    private MappedBytesDispatcher mappedDispatcher = null;
+    private CompressedKmersDispatcher compressedDispatcher = null;
+    private final CompressedKmersDispatcher.Buffers buffers = new CompressedKmersDispatcher.Buffers();
 
     boolean interrupted = false;
 
 
     void setDispatcher(BytesDispatcher dispatcher) {
         this.dispatcher = dispatcher;
+        this.mappedDispatcher = null;
+        this.compressedDispatcher = null;
     }
-    void setLatch(CountDownLatch latch) {
-        this.latch = latch;
+    void setDispatcher(MappedBytesDispatcher mappedDispatcher) {
+        this.mappedDispatcher = mappedDispatcher;
+        this.dispatcher = null;
+        this.compressedDispatcher = null;
+    }
+    void setDispatcher(CompressedKmersDispatcher compressedDispatcher) {
+        this.compressedDispatcher = compressedDispatcher;
+        this.dispatcher = null;
+        this.mappedDispatcher = null;
     }
 
 
 
     public abstract void process(byte[] range, int len);
 
+    /**
+     * Processes work range from the memory-mapped file, range is read from position 0 to limit.
+     */
+    public abstract void process(ByteBuffer range);
+
+    /**
+     * Size of one record in work ranges, compressed files are decoded to records of this size.
+     */
+    abstract int recordSize();
+
+    /**
+     * Processes the next work range of the current file.
+     * @return false if there are no more work ranges in the file
+     */
     @Override
-    public void run() {
-        if (dispatcher == null || latch == null) {
+    public boolean processNextRange() {
+        if (dispatcher == null && mappedDispatcher == null && compressedDispatcher == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            byte[] range = dispatcher.getNewEmptyWorkRange();
-            int r = dispatcher.readWorkRange(range);
-            if (r <= 0) {
-                break;
+        if (interrupted) {
+            return false;
+        }
+        if (compressedDispatcher != null) {
+            ByteBuffer range = compressedDispatcher.getWorkRange(recordSize(), buffers);
+            if (range == null) {
+                return false;
+            }
+            process(range);
+        } else if (mappedDispatcher != null) {
+            ByteBuffer range = mappedDispatcher.getWorkRange();
+            if (range == null) {
+                return false;
+            }
+            process(range);
+        } else {
+            BytesDispatcher.WorkRange range = dispatcher.getWorkRange();
+            if (range == null) {
+                return false;
+            }
+            try {
+                process(range.bytes, range.len);
+            } finally {
+                dispatcher.recycle(range);
             }
-            process(range, r);
         }
-        latch.countDown();
+        return true;
     }
 
+    /**
+     * Called before the first work range of the file with the given index in the list of loaded files.
+     */
+    @Override
+    public void startFile(int fileIndex) {
+    }
+
+    /**
+     * Called when there is no more work in all files.
+     */
+    @Override
+    public void flushBuffers() {
+    }
+
+    @Override
     public void interrupt() {
         interrupted = true;
     }
@@ -0,0 +1,60 @@
+package io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes blocks of the compressed k-mers file among workers.<br></br>
+ * Every worker reads and decodes its block itself, so decoding is done in parallel without any lock.
+ */
+public class CompressedKmersDispatcher {
+
+    final CompressedKmersFile file;
+
+    private final AtomicInteger nextBlock = new AtomicInteger(0);
+    final AtomicLong bytesRead = new AtomicLong(0);
+
+
+    public CompressedKmersDispatcher(CompressedKmersFile file) {
+        this.file = file;
+    }
+
+
+    /**
+     * Decodes the next block to records of the given size (the same layout as in plain k-mers files).
+     *
+     * @param buffers worker's reusable buffers: compressed data and decoded records, updated if reallocated
+     * @return decoded records from position 0 to limit, or null if all blocks have been dispatched
+     */
+    public ByteBuffer getWorkRange(int recordSize, Buffers buffers) {
+        int block = nextBlock.getAndIncrement();
+        if (block >= file.blocksNumber()) {
+            return null;
+        }
+        try {
+            buffers.data = file.readBlock(block, buffers.data);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't read block " + block + " of " + file.file, e);
+        }
+        bytesRead.addAndGet(file.compressedBlockSize(block));
+        LoadingMetrics.addBytes(file.compressedBlockSize(block));
+        buffers.records = file.decodeBlock(block, recordSize, buffers.data, buffers.records);
+        return buffers.records;
+    }
+
+    public long bytesRead() {
+        return bytesRead.get();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+
+    public static class Buffers {
+        byte[] data;
+        ByteBuffer records;
+    }
+}
@@ -0,0 +1,367 @@
+package io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Compressed block-indexed k-mers file.<br></br>
+ * <br></br>
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header:  magic (8 bytes), k (int), count width in bytes (int), records in block (int),
+ *            records number (long), blocks number (int), index offset (long)
+ *   blocks:  for every record - varint delta from the previous key in the block
+ *            (the first key of the block is kept in the index), zigzag varint count
+ *   index:   for every block - first key (long), block offset (long)
+ * </pre>
+ * Keys are sorted in increasing order (as signed longs), so such file can be used everywhere
+ * a sorted k-mers file is expected. Every block can be decoded independently,
+ * which allows parallel loading and seeking to a key range.
+ */
+public class CompressedKmersFile implements Closeable {
+
+    static final long MAGIC = 0x4d464b4d45525a31L;   // "MFKMERZ1"
+    static final int HEADER_SIZE = 8 + 4 + 4 + 4 + 8 + 4 + 8;
+    public static final int DEFAULT_BLOCK_RECORDS = 1 << 16;
+
+    public final File file;
+    public final int k;
+    public final int countWidth;
+    public final int blockRecords;
+    public final long recordsNumber;
+
+    final long[] firstKeys;
+    final long[] offsets;       // blocksNumber + 1 values, the last one is index offset
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+
+    public CompressedKmersFile(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readLong() != MAGIC) {
+                throw new IOException("File " + file + " is not a compressed k-mers file");
+            }
+            k = raf.readInt();
+            countWidth = raf.readInt();
+            blockRecords = raf.readInt();
+            recordsNumber = raf.readLong();
+            int blocksNumber = raf.readInt();
+            long indexOffset = raf.readLong();
+
+            firstKeys = new long[blocksNumber];
+            offsets = new long[blocksNumber + 1];
+            byte[] index = new byte[blocksNumber * 16];
+            raf.seek(indexOffset);
+            raf.readFully(index);
+            ByteBuffer bb = ByteBuffer.wrap(index);
+            for (int i = 0; i < blocksNumber; i++) {
+                firstKeys[i] = bb.getLong();
+                offsets[i] = bb.getLong();
+            }
+            offsets[blocksNumber] = indexOffset;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        channel = raf.getChannel();
+    }
+
+    public static boolean isCompressed(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    public int blocksNumber() {
+        return firstKeys.length;
+    }
+
+    public int blockSize(int block) {
+        return (block < firstKeys.length - 1) ? blockRecords
+                : (int) (recordsNumber - (long) block * blockRecords);
+    }
+
+    public long compressedBlockSize(int block) {
+        return offsets[block + 1] - offsets[block];
+    }
+
+    /**
+     * @return the first block which can contain keys greater or equal to the given one
+     */
+    public int findBlock(long key) {
+        int pos = Arrays.binarySearch(firstKeys, key);
+        if (pos >= 0) {
+            return pos;
+        }
+        return Math.max(0, -pos - 2);
+    }
+
+
+    /**
+     * Reads compressed block data. Positional reads are used, so it can be called from several threads.
+     */
+    byte[] readBlock(int block, byte[] reuse) throws IOException {
+        int len = (int) compressedBlockSize(block);
+        byte[] data = (reuse != null && reuse.length >= len) ? reuse : new byte[len];
+        ByteBuffer bb = ByteBuffer.wrap(data, 0, len);
+        long pos = offsets[block];
+        while (bb.hasRemaining()) {
+            int r = channel.read(bb, pos + bb.position());
+            if (r < 0) {
+                throw new EOFException("Unexpected end of file " + file);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Decodes block to fixed-width records (key as long, count as short or long depending on recordSize),
+     * the same layout as in plain k-mers files. Counts which don't fit into short are bounded by Short.MAX_VALUE.
+     *
+     * @return buffer with decoded records from position 0 to limit, maybe reuse
+     */
+    ByteBuffer decodeBlock(int block, int recordSize, byte[] data, ByteBuffer reuse) {
+        int n = blockSize(block);
+        int len = n * recordSize;
+        ByteBuffer out = (reuse != null && reuse.capacity() >= len) ? reuse : ByteBuffer.allocate(len);
+        out.clear();
+
+        BlockDecoder decoder = new BlockDecoder(data, firstKeys[block]);
+        for (int i = 0; i < n; i++) {
+            decoder.next();
+            out.putLong(decoder.key);
+            if (recordSize == KmersLoadWorker.KMER_RECORD_SIZE) {
+                out.putShort((short) Math.min(decoder.count, Short.MAX_VALUE));
+            } else {
+                out.putLong(decoder.count);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+
+    static class BlockDecoder {
+        final byte[] data;
+        int pos = 0;
+        long key, count;
+
+        BlockDecoder(byte[] data, long firstKey) {
+            this.data = data;
+            this.key = firstKey;
+        }
+
+        void next() {
+            key += readVarLong();   // 0 for the first record, its key is in the index
+            long z = readVarLong();
+            count = (z >>> 1) ^ -(z & 1);
+        }
+
+        private long readVarLong() {
+            long res = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                res |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return res;
+        }
+    }
+
+
+    /**
+     * Sequential reader of the records, starting from the first key greater or equal to fromKey.
+     */
+    public Reader reader(long fromKey) throws IOException {
+        Reader reader = new Reader(findBlock(fromKey));
+        while (reader.hasNext() && reader.peekKey() < fromKey) {
+            reader.next();
+        }
+        return reader;
+    }
+
+    public Reader reader() {
+        return new Reader(0);
+    }
+
+    public class Reader {
+        int block;
+        int leftInBlock = 0;
+        byte[] data = null;
+        BlockDecoder decoder;
+        long key, count;
+
+        private boolean peeked = false;
+
+        Reader(int block) {
+            this.block = block - 1;
+        }
+
+        public boolean hasNext() throws IOException {
+            if (peeked) {
+                return true;
+            }
+            while (leftInBlock == 0) {
+                block++;
+                if (block >= blocksNumber()) {
+                    return false;
+                }
+                data = readBlock(block, data);
+                decoder = new BlockDecoder(data, firstKeys[block]);
+                leftInBlock = blockSize(block);
+            }
+            decoder.next();
+            leftInBlock--;
+            peeked = true;
+            return true;
+        }
+
+        long peekKey() throws IOException {
+            hasNext();
+            return decoder.key;
+        }
+
+        /**
+         * Advances to the next record.
+         * @return false if there are no more records
+         */
+        public boolean next() throws IOException {
+            if (!hasNext()) {
+                return false;
+            }
+            peeked = false;
+            key = decoder.key;
+            count = decoder.count;
+            return true;
+        }
+
+        public long key() {
+            return key;
+        }
+
+        public long count() {
+            return count;
+        }
+    }
+
+
+    /**
+     * Writes records to a compressed k-mers file, keys should be passed in strictly increasing order.
+     */
+    public static class Writer implements Closeable {
+        final File file;
+        final int k;
+        final int countWidth;
+        final int blockRecords;
+
+        final DataOutputStream out;
+        long offset = HEADER_SIZE;
+        long recordsNumber = 0;
+        long lastKey;
+
+        long[] firstKeys = new long[16];
+        long[] offsets = new long[16];
+        int blocksNumber = 0;
+
+        final byte[] varBuf = new byte[10];
+
+
+        public Writer(File file, int k, int countWidth) throws IOException {
+            this(file, k, countWidth, DEFAULT_BLOCK_RECORDS);
+        }
+
+        public Writer(File file, int k, int countWidth, int blockRecords) throws IOException {
+            this.file = file;
+            this.k = k;
+            this.countWidth = countWidth;
+            this.blockRecords = blockRecords;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 24));   // 16 Mb buffer
+            writeHeader(out, 0, 0, 0);
+        }
+
+        private void writeHeader(DataOutput out, long recordsNumber, int blocksNumber, long indexOffset)
+                throws IOException {
+            out.writeLong(MAGIC);
+            out.writeInt(k);
+            out.writeInt(countWidth);
+            out.writeInt(blockRecords);
+            out.writeLong(recordsNumber);
+            out.writeInt(blocksNumber);
+            out.writeLong(indexOffset);
+        }
+
+        /**
+         * Counts greater than Short.MAX_VALUE are bounded by it if the count width is 2 bytes.
+         */
+        public void write(long key, long count) throws IOException {
+            if (recordsNumber > 0 && key <= lastKey) {
+                throw new IOException("K-mers should be written in increasing order: " + key + " after " + lastKey);
+            }
+            if (countWidth == 2) {
+                count = Math.min(count, Short.MAX_VALUE);
+            }
+            if (recordsNumber % blockRecords == 0) {
+                if (blocksNumber == firstKeys.length) {
+                    firstKeys = Arrays.copyOf(firstKeys, blocksNumber * 2);
+                    offsets = Arrays.copyOf(offsets, blocksNumber * 2);
+                }
+                firstKeys[blocksNumber] = key;
+                offsets[blocksNumber] = offset;
+                blocksNumber++;
+                writeVarLong(0);
+            } else {
+                writeVarLong(key - lastKey);
+            }
+            writeVarLong((count << 1) ^ (count >> 63));
+            lastKey = key;
+            recordsNumber++;
+        }
+
+        private void writeVarLong(long v) throws IOException {
+            int len = 0;
+            while ((v & ~0x7fL) != 0) {
+                varBuf[len++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            varBuf[len++] = (byte) v;
+            out.write(varBuf, 0, len);
+            offset += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long indexOffset = offset;
+            for (int i = 0; i < blocksNumber; i++) {
+                out.writeLong(firstKeys[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                writeHeader(raf, recordsNumber, blocksNumber, indexOffset);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
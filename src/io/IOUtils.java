@@ -1,13 +1,16 @@
 package io;
 
+import algo.KmerScanner;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.NumUtils;
@@ -15,20 +18,41 @@ import ru.ifmo.genetics.utils.pairs.ImmutablePair;
 import ru.ifmo.genetics.utils.pairs.Pair;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Tool;
+import structures.ComponentsIndex;
+import structures.ConcurrentBloomFilter;
+import structures.map.BatchLong2LongHashMap;
+import structures.map.BatchLong2ShortHashMap;
 import structures.map.BigLong2BitLongaHashMap;
 import structures.map.BigLong2BitSetHashMap;
 import structures.map.BigLong2BitShortaHashMap;
+import structures.map.ConcurrentLong2LongHashMap;
+import structures.map.ConcurrentLong2ShortHashMap;
+import structures.map.EliasFanoLong2ShortMap;
+import structures.map.MapSnapshot;
+import structures.map.OffHeapLong2BitLongaHashMap;
+import structures.map.OffHeapLong2BitShortaHashMap;
+import structures.map.OffHeapLong2LongHashMap;
+import structures.map.OffHeapLong2ShortHashMap;
+import structures.map.TieredLong2LongHashMap;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class IOUtils {
 
     static final int READS_WORK_RANGE_SIZE = 1 << 15;   // 32 K reads
     static final int KMERS_WORK_RANGE_SIZE = 16777200;   // ~16 Mb of data
 
+    /**
+     * Default number of threads printing k-mers maps, small maps are printed in parallel (see ParallelKmersPrinter).
+     * If 1, maps are printed by one thread through entryIterator.
+     */
+    static final int DEFAULT_PRINTING_THREADS = Runtime.getRuntime().availableProcessors();
+
 
 
     public static String withP(long cur, long all) {
@@ -44,6 +68,31 @@ public class IOUtils {
 
     public static long printKmers(BigLong2ShortHashMap hm, int threshold,
                                   File outFile, File stFile) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, false);
+    }
+
+    /**
+     * @param sorted if true, k-mers are printed in increasing order (as signed longs),
+     *               so that the file can be joined with others by SortedKmersMerger.
+     *               Requires additional 8 bytes of memory per printed k-mer.
+     */
+    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
+                                  File outFile, File stFile, boolean sorted) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, sorted, DEFAULT_PRINTING_THREADS);
+    }
+
+    /**
+     * @param printingThreads number of threads printing small maps in parallel (see ParallelKmersPrinter),
+     *                        if 1, the map is printed by one thread through entryIterator
+     */
+    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
+                                  File outFile, File stFile, boolean sorted, int printingThreads) throws IOException {
+        if (sorted) {
+            return printSortedKmers(hm, threshold, outFile, stFile);
+        }
+        if (printingThreads > 1 && hm.maps.length > 1) {
+            return printKmersInParallel(hm, threshold, outFile, stFile, printingThreads);
+        }
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
 
@@ -70,8 +119,204 @@ public class IOUtils {
         return good;
     }
 
+    private static long printKmersInParallel(final BigLong2ShortHashMap hm, final int threshold,
+                                             File outFile, File stFile, int printingThreads) throws IOException {
+        final long[][] hist = new long[printingThreads][1 << 16];
+        long good = ParallelKmersPrinter.print(hm.maps.length, new ParallelKmersPrinter.ShardPrinter() {
+            @Override
+            public long count(int shard, int thread) {
+                long[] h = hist[thread];
+                long good = 0;
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    short value = it.next().getValue();
+                    h[value & 0xffff]++;
+                    if (value > threshold) {
+                        good++;
+                    }
+                }
+                return good;
+            }
+
+            @Override
+            public void write(int shard, DataOutputStream out) throws IOException {
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        out.writeLong(entry.getKey());
+                        out.writeShort(entry.getValue());
+                    }
+                }
+            }
+        }, KmersLoadWorker.KMER_RECORD_SIZE, outFile, hist.length);
+
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        for (int v = 0; v < (1 << 16); v++) {
+            long count = 0;
+            for (long[] h : hist) {
+                count += h[v];
+            }
+            if (count > 0) {
+                stats.set((short) v, count);
+            }
+        }
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return good;
+    }
+
+    private static long printSortedKmers(BigLong2ShortHashMap hm, int threshold,
+                                         File outFile, File stFile) throws IOException {
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        long[] keys = sortedKeys(hm, threshold, stats);
+
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+        for (long key : keys) {
+            stream.writeLong(key);
+            stream.writeShort(hm.get(key));
+        }
+
+        stream.close();
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return keys.length;
+    }
+
+    /**
+     * Prints k-mers with frequency greater than threshold to the compressed block-indexed file
+     * (see CompressedKmersFile). Such files are read by all k-mers loaders as well as plain ones.
+     */
+    public static long printCompressedKmers(BigLong2ShortHashMap hm, int threshold, int k,
+                                            File outFile, File stFile) throws IOException {
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        long[] keys = sortedKeys(hm, threshold, stats);
+
+        CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(outFile, k, 2);
+        for (long key : keys) {
+            writer.write(key, hm.get(key));
+        }
+
+        writer.close();
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return keys.length;
+    }
+
+    public static long printCompressedKmers(BigLong2LongHashMap hm, int threshold, int k,
+                                            File outFile, File stFile) throws IOException {
+        return printCompressedKmers(hm, threshold, k, outFile, stFile, false);
+    }
+
+    /**
+     * @param bounded if true, frequencies are printed as shorts bounded by Short.MAX_VALUE
+     *                (as for BigLong2ShortHashMap), the statistics has exact frequencies anyway
+     */
+    public static long printCompressedKmers(BigLong2LongHashMap hm, int threshold, int k,
+                                            File outFile, File stFile, boolean bounded) throws IOException {
+        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<>();
+        long[] keys = sortedKeys(hm, threshold, stats);
+
+        CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(outFile, k, bounded ? 2 : 8);
+        for (long key : keys) {
+            long value = hm.get(key);
+            writer.write(key, bounded ? Math.min(value, Short.MAX_VALUE) : value);
+        }
+
+        writer.close();
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return keys.length;
+    }
+
+    /**
+     * @return sorted keys with value greater than threshold, all values are added to stats
+     */
+    private static long[] sortedKeys(BigLong2ShortHashMap hm, int threshold,
+                                     QuickQuantitativeStatistics<Short> stats) throws IOException {
+        long good = 0;
+
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            short value = it.next().getValue();
+            stats.add(value);
+            if (value > threshold) {
+                good++;
+            }
+        }
+        long[] keys = allocateKeys(good);
+        int i = 0;
+        it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            if (entry.getValue() > threshold) {
+                keys[i++] = entry.getKey();
+            }
+        }
+        Arrays.parallelSort(keys);
+        return keys;
+    }
+
+    /**
+     * @return sorted keys with value greater than threshold, all values are added to stats
+     */
+    private static long[] sortedKeys(BigLong2LongHashMap hm, int threshold,
+                                     QuickQuantitativeStatistics<Long> stats) throws IOException {
+        long good = 0;
+
+        Iterator<MutableLongLongEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            long value = it.next().getValue();
+            stats.add(value);
+            if (value > threshold) {
+                good++;
+            }
+        }
+        long[] keys = allocateKeys(good);
+        int i = 0;
+        it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongLongEntry entry = it.next();
+            if (entry.getValue() > threshold) {
+                keys[i++] = entry.getKey();
+            }
+        }
+        Arrays.parallelSort(keys);
+        return keys;
+    }
+
+    private static long[] allocateKeys(long n) throws IOException {
+        if (n > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many k-mers to sort in memory: " + NumUtils.groupDigits(n));
+        }
+        return new long[(int) n];
+    }
+
     public static long printKmers(BigLong2LongHashMap hm, int threshold,
                                   File outFile, File stFile) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, false, false);
+    }
+
+    /**
+     * @param sorted if true, k-mers are printed in increasing order (as signed longs),
+     *               see printKmers(BigLong2ShortHashMap, int, File, File, boolean)
+     * @param bounded if true, frequencies are printed as shorts bounded by Short.MAX_VALUE, i.e. in the format
+     *                of printKmers(BigLong2ShortHashMap, ...), the statistics has exact frequencies anyway
+     */
+    public static long printKmers(BigLong2LongHashMap hm, int threshold,
+                                  File outFile, File stFile, boolean sorted, boolean bounded) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, sorted, bounded, DEFAULT_PRINTING_THREADS);
+    }
+
+    /**
+     * @param printingThreads number of threads printing small maps in parallel (see ParallelKmersPrinter),
+     *                        if 1, the map is printed by one thread through entryIterator
+     */
+    public static long printKmers(BigLong2LongHashMap hm, int threshold, File outFile, File stFile,
+                                  boolean sorted, boolean bounded, int printingThreads) throws IOException {
+        if (sorted) {
+            return printSortedKmers(hm, threshold, outFile, stFile, bounded);
+        }
+        if (printingThreads > 1 && hm.maps.length > 1) {
+            return printKmersInParallel(hm, threshold, outFile, stFile, bounded, printingThreads);
+        }
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
 
@@ -88,7 +333,7 @@ public class IOUtils {
 
             if (value > threshold) {
                 stream.writeLong(key);
-                stream.writeLong(value);
+                writeFrequency(stream, value, bounded);
                 good++;
             }
         }
@@ -98,8 +343,94 @@ public class IOUtils {
         return good;
     }
 
-    public static long filterAndPrintKmers(BigLong2ShortHashMap hm, BigLong2ShortHashMap filter_hm,
+    private static void writeFrequency(DataOutputStream out, long value, boolean bounded) throws IOException {
+        if (bounded) {
+            out.writeShort((short) Math.min(value, Short.MAX_VALUE));
+        } else {
+            out.writeLong(value);
+        }
+    }
+
+    private static long printSortedKmers(BigLong2LongHashMap hm, int threshold,
+                                         File outFile, File stFile, boolean bounded) throws IOException {
+        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<>();
+        long[] keys = sortedKeys(hm, threshold, stats);
+
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+        for (long key : keys) {
+            stream.writeLong(key);
+            writeFrequency(stream, hm.get(key), bounded);
+        }
+
+        stream.close();
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return keys.length;
+    }
+
+    private static long printKmersInParallel(final BigLong2LongHashMap hm, final int threshold, File outFile,
+                                             File stFile, final boolean bounded, int printingThreads)
+            throws IOException {
+        // frequencies are not bounded, so per-thread histograms are small maps
+        final Long2LongHashMap[] hist = new Long2LongHashMap[printingThreads];
+        for (int i = 0; i < hist.length; i++) {
+            hist[i] = new Long2LongHashMap(10, Long2LongHashMap.DEFAULT_MAX_LOAD_FACTOR);
+        }
+        long good = ParallelKmersPrinter.print(hm.maps.length, new ParallelKmersPrinter.ShardPrinter() {
+            @Override
+            public long count(int shard, int thread) {
+                Long2LongHashMap h = hist[thread];
+                long good = 0;
+                Iterator<MutableLongLongEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    long value = it.next().getValue();
+                    h.addAndBound(value, 1);
+                    if (value > threshold) {
+                        good++;
+                    }
+                }
+                return good;
+            }
+
+            @Override
+            public void write(int shard, DataOutputStream out) throws IOException {
+                Iterator<MutableLongLongEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongLongEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        out.writeLong(entry.getKey());
+                        writeFrequency(out, entry.getValue(), bounded);
+                    }
+                }
+            }
+        }, bounded ? KmersLoadWorker.KMER_RECORD_SIZE : LongKmersLoadWorker.KMER_RECORD_SIZE, outFile, hist.length);
+
+        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<>();
+        for (Long2LongHashMap h : hist) {
+            Iterator<MutableLongLongEntry> it = h.entryIterator();
+            while (it.hasNext()) {
+                MutableLongLongEntry entry = it.next();
+                stats.set(entry.getKey(), stats.get(entry.getKey()) + entry.getValue());
+            }
+        }
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return good;
+    }
+
+    public static long filterAndPrintKmers(BigLong2ShortHashMap hm, Long2ShortHashMapInterface filter_hm,
                                            int threshold, int filter_threshold, File out) throws IOException {
+        return filterAndPrintKmers(hm, filter_hm, threshold, filter_threshold, out, DEFAULT_PRINTING_THREADS);
+    }
+
+    /**
+     * @param printingThreads number of threads printing small maps in parallel (see ParallelKmersPrinter)
+     */
+    public static long filterAndPrintKmers(BigLong2ShortHashMap hm, Long2ShortHashMapInterface filter_hm,
+                                           int threshold, int filter_threshold, File out,
+                                           int printingThreads) throws IOException {
+        if (printingThreads > 1 && hm.maps.length > 1) {
+            return filterAndPrintKmersInParallel(hm, filter_hm, threshold, filter_threshold, out, printingThreads);
+        }
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(out), 1 << 24));   // 16 Mb buffer
 
@@ -122,11 +453,60 @@ public class IOUtils {
         return good;
     }
 
+    private static long filterAndPrintKmersInParallel(final BigLong2ShortHashMap hm,
+                                                      final Long2ShortHashMapInterface filter_hm,
+                                                      final int threshold, final int filter_threshold,
+                                                      File out, int printingThreads) throws IOException {
+        return ParallelKmersPrinter.print(hm.maps.length, new ParallelKmersPrinter.ShardPrinter() {
+            @Override
+            public long count(int shard, int thread) {
+                long good = 0;
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold && filter_hm.getWithZero(entry.getKey()) > filter_threshold) {
+                        good++;
+                    }
+                }
+                return good;
+            }
+
+            @Override
+            public void write(int shard, DataOutputStream stream) throws IOException {
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold && filter_hm.getWithZero(entry.getKey()) > filter_threshold) {
+                        stream.writeLong(entry.getKey());
+                        stream.writeShort(entry.getValue());
+                    }
+                }
+            }
+        }, KmersLoadWorker.KMER_RECORD_SIZE, out, printingThreads);
+    }
+
     public static long MultipleFiltersAndPrintKmers(BigLong2ShortHashMap hm,
                                                     BigLong2ShortHashMap cd_filter_hm,
                                                     BigLong2ShortHashMap uc_filter_hm,
                                                     BigLong2ShortHashMap nonibd_filter_hm,
                                                     int threshold, File out, File stFile) throws IOException {
+        return MultipleFiltersAndPrintKmers(hm, cd_filter_hm, uc_filter_hm, nonibd_filter_hm,
+                threshold, out, stFile, DEFAULT_PRINTING_THREADS);
+    }
+
+    /**
+     * @param printingThreads number of threads printing small maps in parallel (see ParallelKmersPrinter)
+     */
+    public static long MultipleFiltersAndPrintKmers(BigLong2ShortHashMap hm,
+                                                    BigLong2ShortHashMap cd_filter_hm,
+                                                    BigLong2ShortHashMap uc_filter_hm,
+                                                    BigLong2ShortHashMap nonibd_filter_hm,
+                                                    int threshold, File out, File stFile,
+                                                    int printingThreads) throws IOException {
+        if (printingThreads > 1 && hm.maps.length > 1) {
+            return MultipleFiltersAndPrintKmersInParallel(hm, cd_filter_hm, uc_filter_hm, nonibd_filter_hm,
+                    threshold, out, stFile, printingThreads);
+        }
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(out), 1 << 24));   // 16 Mb buffer
 
@@ -160,6 +540,69 @@ public class IOUtils {
         return good;
     }
 
+    private static long MultipleFiltersAndPrintKmersInParallel(final BigLong2ShortHashMap hm,
+                                                               final BigLong2ShortHashMap cd_filter_hm,
+                                                               final BigLong2ShortHashMap uc_filter_hm,
+                                                               final BigLong2ShortHashMap nonibd_filter_hm,
+                                                               final int threshold, File out, File stFile,
+                                                               int printingThreads) throws IOException {
+        // per-thread statistics of triples packed to long
+        final Long2LongHashMap[] hist = new Long2LongHashMap[printingThreads];
+        for (int i = 0; i < hist.length; i++) {
+            hist[i] = new Long2LongHashMap(10, Long2LongHashMap.DEFAULT_MAX_LOAD_FACTOR);
+        }
+        long good = ParallelKmersPrinter.print(hm.maps.length, new ParallelKmersPrinter.ShardPrinter() {
+            @Override
+            public long count(int shard, int thread) {
+                long good = 0;
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        long key = entry.getKey();
+                        short cd = cd_filter_hm.getWithZero(key);
+                        short uc = uc_filter_hm.getWithZero(key);
+                        short nonibd = nonibd_filter_hm.getWithZero(key);
+
+                        hist[thread].addAndBound(((long) (cd & 0xffff) << 32) | ((long) (uc & 0xffff) << 16) | (nonibd & 0xffff), 1);
+                        if (cd > 0 || uc > 0 || nonibd > 0) {
+                            good++;
+                        }
+                    }
+                }
+                return good;
+            }
+
+            @Override
+            public void write(int shard, DataOutputStream stream) throws IOException {
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    long key = entry.getKey();
+                    if (entry.getValue() > threshold && (cd_filter_hm.getWithZero(key) > 0
+                            || uc_filter_hm.getWithZero(key) > 0 || nonibd_filter_hm.getWithZero(key) > 0)) {
+                        stream.writeLong(key);
+                        stream.writeShort(entry.getValue());
+                    }
+                }
+            }
+        }, KmersLoadWorker.KMER_RECORD_SIZE, out, hist.length);
+
+        QuickQuantitativeStatistics<Triple> stats = new QuickQuantitativeStatistics<Triple>();
+        for (Long2LongHashMap h : hist) {
+            Iterator<MutableLongLongEntry> it = h.entryIterator();
+            while (it.hasNext()) {
+                MutableLongLongEntry entry = it.next();
+                long t = entry.getKey();
+                Triple triple = new Triple((short) (t >>> 32), (short) (t >>> 16), (short) t);
+                stats.set(triple, stats.get(triple) + entry.getValue());
+            }
+        }
+        stats.printToFile(stFile, "# cd k-mer samples\t" +
+                "uc k-mer samples\tnonIBD k-mer samples\tnumber of such k-mers");
+        return good;
+    }
+
     private static class Triple implements Comparable<Triple> {
         private final short cd;
         private final short uc;
@@ -235,26 +678,53 @@ public class IOUtils {
     // ---------------------------- for loading kmers ----------------------------------
 
     static class Kmers2HMWorker extends KmersLoadWorker {
-        Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold) {
+        Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold, boolean preAggregateCounts) {
             this.hm = hm;
             this.freqThreshold = freqThreshold;
+            this.buffer = preAggregateCounts ? new KmersCountsBuffer(hm) : null;
         }
 
         final BigLong2ShortHashMap hm;
         final int freqThreshold;
+        final KmersCountsBuffer buffer;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
 
+        @Override
+        public void process(byte[] range, int len) {
+            long before = kmersAdded;
+            super.process(range, len);
+            LoadingMetrics.addKmers(kmersAdded - before);
+        }
+
+        @Override
+        public void process(ByteBuffer range) {
+            long before = kmersAdded;
+            super.process(range);
+            LoadingMetrics.addKmers(kmersAdded - before);
+        }
+
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.addAndBound(kmer, freq);
+                if (buffer != null) {
+                    buffer.addAndBound(kmer, freq);
+                } else {
+                    hm.addAndBound(kmer, freq);
+                }
                 kmersAdded++;
                 freqSumAdded += freq;
             }
         }
+
+        @Override
+        public void flushBuffers() {
+            if (buffer != null) {
+                buffer.flush();
+            }
+        }
     }
 
     static class LongKmers2HMWorker extends LongKmersLoadWorker {
@@ -297,6 +767,11 @@ public class IOUtils {
             bitIndex = index;
         }
 
+        @Override
+        public void startFile(int fileIndex) {
+            bitIndex = fileIndex;
+        }
+
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
@@ -326,6 +801,11 @@ public class IOUtils {
             bitIndex = index;
         }
 
+        @Override
+        public void startFile(int fileIndex) {
+            bitIndex = fileIndex;
+        }
+
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
@@ -354,6 +834,11 @@ public class IOUtils {
             bitIndex = index;
         }
 
+        @Override
+        public void startFile(int fileIndex) {
+            bitIndex = fileIndex;
+        }
+
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
@@ -366,18 +851,84 @@ public class IOUtils {
         }
     }
 
+    static MapCapacity planShortMap(long expectedKeys, LoaderOptions options, int availableProcessors, Logger logger) {
+        if (options.offHeapMaps) {
+            return MapCapacity.planOffHeap(expectedKeys, MapCapacity.SHORT_MAP_SLOT_BYTES, options.offHeapDir,
+                    availableProcessors, logger);
+        }
+        return MapCapacity.plan(expectedKeys,
+                options.lockFreeMaps ? MapCapacity.CONCURRENT_SHORT_MAP_SLOT_BYTES : MapCapacity.SHORT_MAP_SLOT_BYTES,
+                0, availableProcessors, logger);
+    }
+
+    static BigLong2ShortHashMap newShortMap(MapCapacity capacity, LoaderOptions options, boolean debugInfo,
+                                            Logger logger) {
+        if (options.offHeapMaps) {
+            BigLong2ShortHashMap hm = OffHeapLong2ShortHashMap.newBigMap(
+                    capacity.logSmallMapNumber, capacity.logSmallCapacity, options.offHeapDir);
+            if (debugInfo) {
+                Tool.debug(logger, "Created " + NumUtils.groupDigits(hm.maps.length) + " small OffHeapLong2ShortHashMaps");
+            }
+            return hm;
+        }
+        if (!options.lockFreeMaps) {
+            BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(
+                    capacity.logSmallMapNumber, capacity.logSmallCapacity);
+            if (debugInfo) {
+                Tool.debug(logger, "Created " + NumUtils.groupDigits(hm.maps.length) + " small BatchLong2ShortHashMaps");
+            }
+            return hm;
+        }
+        BigLong2ShortHashMap hm = ConcurrentLong2ShortHashMap.newBigMap(capacity.logSmallMapNumber, capacity.logSmallCapacity);
+        if (debugInfo) {
+            Tool.debug(logger, "Created " + NumUtils.groupDigits(hm.maps.length) + " small ConcurrentLong2ShortHashMaps");
+        }
+        return hm;
+    }
+
+    /**
+     * Frees the memory of off-heap small maps (see LoaderOptions.offHeapMaps), on-heap small maps are left for GC.
+     * The map can't be used after that.
+     */
+    public static void closeMap(BigLong2ShortHashMap hm) {
+        for (Long2ShortHashMap map : hm.maps) {
+            if (map instanceof OffHeapLong2ShortHashMap) {
+                ((OffHeapLong2ShortHashMap) map).close();
+            }
+        }
+    }
+
+    /**
+     * Frees the memory of off-heap small maps (see LoaderOptions.offHeapMaps), on-heap small maps are left for GC.
+     * The map can't be used after that.
+     */
+    public static void closeMap(BigLong2LongHashMap hm) {
+        for (Long2LongHashMap map : hm.maps) {
+            if (map instanceof OffHeapLong2LongHashMap) {
+                ((OffHeapLong2LongHashMap) map).close();
+            }
+        }
+    }
+
     public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadKmers(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, LoaderOptions options,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
 
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        long records = MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, freqThreshold);
+        MapCapacity capacity = planShortMap(records, options, availableProcessors, logger);
+        BigLong2ShortHashMap hm = newShortMap(capacity, options, false, logger);
 
         Kmers2HMWorker[] workers = new Kmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new Kmers2HMWorker(hm, freqThreshold);
+            workers[i] = new Kmers2HMWorker(hm, freqThreshold, options.preAggregateCounts);
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hm, options, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -402,16 +953,23 @@ public class IOUtils {
 
     public static Pair<BigLong2ShortHashMap, Long> loadKmersFreq(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadKmersFreq(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static Pair<BigLong2ShortHashMap, Long> loadKmersFreq(File[] files, int freqThreshold, LoaderOptions options,
+                                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
 
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        long records = MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, freqThreshold);
+        MapCapacity capacity = planShortMap(records, options, availableProcessors, logger);
+        BigLong2ShortHashMap hm = newShortMap(capacity, options, false, logger);
 
         Kmers2HMWorker[] workers = new Kmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new Kmers2HMWorker(hm, freqThreshold);
+            workers[i] = new Kmers2HMWorker(hm, freqThreshold, options.preAggregateCounts);
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hm, options, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -435,18 +993,91 @@ public class IOUtils {
     }
 
 
+    /**
+     * Loads k-mers to EliasFanoLong2ShortMap, the compact map for k-mers which are only queried,
+     * values are counted as loadKmers does. If withValues is false, the map is a set.
+     * Files sorted by k-mer (see SortedKmersMerger) are merged to the map in two streaming passes,
+     * other files are loaded to the hash map by loadKmers, which is converted then: small maps are sorted
+     * and freed one by one, but the hash map is built completely, so only sorted files save loading memory.
+     */
+    public static EliasFanoLong2ShortMap loadStaticKmers(File[] files, int freqThreshold, boolean withValues,
+                                                         int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadStaticKmers(files, freqThreshold, withValues, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static EliasFanoLong2ShortMap loadStaticKmers(File[] files, int freqThreshold, boolean withValues,
+                                                         LoaderOptions options, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        EliasFanoLong2ShortMap map = null;
+        try {
+            map = mergeStaticKmers(files, freqThreshold, withValues);
+        } catch (SortedKmersMerger.NotSortedException e) {
+            Tool.warn(logger, "k-mers files aren't sorted, loading them to the hash map first, " +
+                    "it takes more memory than merging sorted files (see --sorted option of kmer-counter)");
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't read k-mers files", e);
+        }
+        if (map == null) {
+            BigLong2ShortHashMap hm = loadKmers(files, freqThreshold, options, availableProcessors, logger);
+            map = EliasFanoLong2ShortMap.build(hm, withValues, true);
+        }
+
+        Tool.debug(logger, "k-mers map size = " + NumUtils.groupDigits(map.size()) + ", " +
+                String.format("%.1f", map.memoryBytes() / Math.max(1.0, map.size())) + " bytes per k-mer");
+        return map;
+    }
+
+    private static EliasFanoLong2ShortMap mergeStaticKmers(File[] files, int freqThreshold, boolean withValues)
+            throws IOException {
+        long size = 0, min = 0, max = 0;
+        try (SortedKmersMerger merger = new SortedKmersMerger(files)) {
+            while (merger.next()) {
+                if (merger.count(0, files.length, freqThreshold) > 0) {
+                    if (size == 0) {
+                        min = merger.key();
+                    }
+                    max = merger.key();
+                    size++;
+                }
+            }
+        }
+
+        EliasFanoLong2ShortMap.Builder builder = new EliasFanoLong2ShortMap.Builder(size, min, max, withValues);
+        try (SortedKmersMerger merger = new SortedKmersMerger(files)) {
+            while (merger.next()) {
+                if (merger.count(0, files.length, freqThreshold) > 0) {
+                    builder.add(merger.key(), merger.sum(0, files.length, freqThreshold));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+
     public static BigLong2BitSetHashMap loadBitSetKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadBitSetKmers(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
 
+    public static BigLong2BitSetHashMap loadBitSetKmers(File[] files, int freqThreshold, LoaderOptions options,
+                                                        int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+
+        // every key gets a row of (files / 64 + 1) longs in the presence matrix
+        MapCapacity capacity = MapCapacity.plan(
+                MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, freqThreshold),
+                MapCapacity.ROW_MAP_SLOT_BYTES, 8 * ((files.length >> 6) + 1), availableProcessors, logger);
         BigLong2BitSetHashMap hm = new BigLong2BitSetHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, false, files.length);
+                capacity.logSmallMapNumber, capacity.logSmallCapacity, false, files.length, true);
 
         BitSetKmers2HMWorker[] workers = new BitSetKmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new BitSetKmers2HMWorker(hm, freqThreshold);
         }
 
-        runBitSet(files, workers, null, logger);
+        LoadingMetrics.monitor(hm);
+        run(files, workers, null, options, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -472,16 +1103,32 @@ public class IOUtils {
 
     public static BigLong2BitLongaHashMap loadBitLongaKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadBitLongaKmers(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static BigLong2BitLongaHashMap loadBitLongaKmers(File[] files, int freqThreshold, LoaderOptions options,
+                                                            int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
 
-        BigLong2BitLongaHashMap hm = new BigLong2BitLongaHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, false, files.length);
+        // values are kept in place, every slot has (files / 64 + 1) longs
+        long records = MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, freqThreshold);
+        int slotBytes = 8 + 8 * ((files.length >> 6) + 1);
+        MapCapacity capacity = options.offHeapMaps
+                ? MapCapacity.planOffHeap(records, slotBytes, options.offHeapDir, availableProcessors, logger)
+                : MapCapacity.plan(records, slotBytes, 0, availableProcessors, logger);
+        BigLong2BitLongaHashMap hm = options.offHeapMaps
+                ? OffHeapLong2BitLongaHashMap.newBigMap(
+                        capacity.logSmallMapNumber, capacity.logSmallCapacity, files.length, options.offHeapDir)
+                : new BigLong2BitLongaHashMap(
+                        capacity.logSmallMapNumber, capacity.logSmallCapacity, false, files.length, true);
 
         BitLongaKmers2HMWorker[] workers = new BitLongaKmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new BitLongaKmers2HMWorker(hm, freqThreshold);
         }
 
-        runBitLonga(files, workers, null, logger);
+        LoadingMetrics.monitor(hm);
+        run(files, workers, null, options, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -506,16 +1153,33 @@ public class IOUtils {
 
     public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadBitShortaKmers(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold, LoaderOptions options,
+                                                              int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
 
-        BigLong2BitShortaHashMap hm = new BigLong2BitShortaHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, false, files.length);
+        // every key gets an array of (files / 16 + 1) shorts, or off-heap slot of them
+        long records = MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, freqThreshold);
+        MapCapacity capacity = options.offHeapMaps
+                ? MapCapacity.planOffHeap(records, 8 + 2 * ((files.length >> 4) + 1), options.offHeapDir,
+                        availableProcessors, logger)
+                : MapCapacity.plan(records, MapCapacity.ARRAY_MAP_SLOT_BYTES, 16 + 2 * ((files.length >> 4) + 1),
+                        availableProcessors, logger);
+        BigLong2BitShortaHashMap hm = options.offHeapMaps
+                ? OffHeapLong2BitShortaHashMap.newBigMap(
+                        capacity.logSmallMapNumber, capacity.logSmallCapacity, files.length, options.offHeapDir)
+                : new BigLong2BitShortaHashMap(
+                        capacity.logSmallMapNumber, capacity.logSmallCapacity, false, files.length);
 
         BitShortaKmers2HMWorker[] workers = new BitShortaKmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new BitShortaKmers2HMWorker(hm, freqThreshold);
         }
 
-        runBitShorta(files, workers, null, logger);
+        LoadingMetrics.monitor(hm);
+        run(files, workers, null, options, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -539,10 +1203,88 @@ public class IOUtils {
     }
 
 
+    /**
+     * Loads k-mers as loadBitShortaKmers does, reusing the map snapshot (see MapSnapshot), if it has been written
+     * for the same files and freqThreshold, otherwise the map is built and the snapshot is written.
+     * The snapshot is mapped to memory, if offHeapMaps option is set, and is read to the heap otherwise.
+     * If snapshot is null, the map is just built.
+     */
+    public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold, int availableProcessors,
+                                                              File snapshot, Logger logger)
+            throws ExecutionFailedException {
+        return loadBitShortaKmers(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, snapshot, logger);
+    }
+
+    public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold, LoaderOptions options,
+                                                              int availableProcessors, File snapshot, Logger logger)
+            throws ExecutionFailedException {
+        if (snapshot == null) {
+            return loadBitShortaKmers(files, freqThreshold, options, availableProcessors, logger);
+        }
+
+        long source = kmersSource(files, freqThreshold);
+        if (snapshot.exists()) {
+            try {
+                if (MapSnapshot.source(snapshot) == source) {
+                    BigLong2BitShortaHashMap hm = MapSnapshot.readBitShorta(snapshot, options.offHeapMaps);
+                    Tool.debug(logger, "k-mers HM is read from snapshot " + snapshot +
+                            ", size = " + NumUtils.groupDigits(hm.size()));
+                    return hm;
+                }
+                Tool.info(logger, "Snapshot " + snapshot + " has been written for other k-mers files, rebuilding it");
+            } catch (IOException e) {
+                Tool.warn(logger, "Can't read snapshot " + snapshot + ", rebuilding it: " + e.getMessage());
+            }
+        }
+
+        BigLong2BitShortaHashMap hm = loadBitShortaKmers(files, freqThreshold, options, availableProcessors, logger);
+        try {
+            MapSnapshot.write(hm, files.length, source, snapshot);
+            Tool.debug(logger, "k-mers HM snapshot is written to " + snapshot);
+        } catch (IOException e) {
+            Tool.warn(logger, "Can't write snapshot " + snapshot + ": " + e.getMessage());
+        }
+        return hm;
+    }
+
+    /**
+     * Fingerprint of k-mers files (paths, lengths and modification times in the order given) and threshold,
+     * it identifies the data a map snapshot has been built from.
+     */
+    static long kmersSource(File[] files, int freqThreshold) {
+        long source = freqThreshold;
+        for (File f : files) {
+            source = source * 1000003 + f.getAbsolutePath().hashCode();
+            source = source * 1000003 + f.length();
+            source = source * 1000003 + f.lastModified();
+        }
+        return source;
+    }
+
+
     public static BigLong2LongHashMap loadLongKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadLongKmers(files, freqThreshold, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static BigLong2LongHashMap loadLongKmers(File[] files, int freqThreshold, LoaderOptions options,
+                                                    int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
 
-        BigLong2LongHashMap hm = new BigLong2LongHashMap((int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        long records = MapCapacity.kmersRecords(files, LongKmersLoadWorker.KMER_RECORD_SIZE, freqThreshold);
+        MapCapacity capacity = options.offHeapMaps
+                ? MapCapacity.planOffHeap(records, MapCapacity.LONG_MAP_SLOT_BYTES, options.offHeapDir,
+                        availableProcessors, logger)
+                : MapCapacity.plan(records, MapCapacity.LONG_MAP_SLOT_BYTES, 0, availableProcessors, logger);
+        BigLong2LongHashMap hm;
+        if (options.offHeapMaps) {
+            hm = OffHeapLong2LongHashMap.newBigMap(
+                    capacity.logSmallMapNumber, capacity.logSmallCapacity, options.offHeapDir);
+        } else if (options.lockFreeMaps) {
+            hm = ConcurrentLong2LongHashMap.newBigMap(capacity.logSmallMapNumber, capacity.logSmallCapacity);
+        } else {
+            hm = BatchLong2LongHashMap.newBigMap(capacity.logSmallMapNumber, capacity.logSmallCapacity);
+        }
 
 
         LongKmers2HMWorker[] workers = new LongKmers2HMWorker[availableProcessors];
@@ -550,7 +1292,8 @@ public class IOUtils {
             workers[i] = new LongKmers2HMWorker(hm, freqThreshold);
         }
 
-        run(files, workers, null, logger);
+        LoadingMetrics.monitor(hm);
+        run(files, workers, null, options, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -575,180 +1318,177 @@ public class IOUtils {
 
 
     static class KmersPresenceWorker extends KmersLoadWorker {
-        KmersPresenceWorker(BigLong2LongHashMap hm) {
-            this.hm = hm;
+        KmersPresenceWorker(ComponentsIndex index, AtomicLongArray counts) {
+            this.index = index;
+            this.counts = counts;
         }
-        final BigLong2LongHashMap hm;
+        final ComponentsIndex index;
+        final AtomicLongArray counts;
         @Override
         public void processKmer(long kmer, short freq) {
-            if (hm.contains(kmer)) {
-                hm.addAndBound(kmer, freq);
+            long slot = index.find(kmer);
+            if (slot != -1) {
+                counts.addAndGet((int) slot, freq);
             }
         }
     }
 
-    public static void calculatePresenceForKmers(File[] files, BigLong2LongHashMap hm, int availableProcessors, Logger logger)
+    /**
+     * Adds frequencies of k-mers of the components to counts by their slots in the components index.
+     */
+    public static void calculatePresenceForKmers(File[] files, ComponentsIndex index, AtomicLongArray counts,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        calculatePresenceForKmers(files, index, counts, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static void calculatePresenceForKmers(File[] files, ComponentsIndex index, AtomicLongArray counts,
+                                                 LoaderOptions options, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
         BytesWorker[] workers = new BytesWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new KmersPresenceWorker(hm);
+            workers[i] = new KmersPresenceWorker(index, counts);
         }
-        run(files, workers, null, logger);
+        run(files, workers, null, options, logger);
     }
 
 
-    public static void run(File[] files, BytesWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
-            throws ExecutionFailedException {
-        try {
-            for (File file : files) {
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    new Thread(workers[i]).start();
-                }
+    /**
+     * Loads k-mers files by the workers of the loader engine, the next file is started
+     * while the previous one is being finished.
+     */
+    public static void run(File[] files, BytesWorker[] workers, final BigLong2ShortHashMap hmForMonitoring,
+                           Logger logger) throws ExecutionFailedException {
+        run(files, workers, hmForMonitoring, LoaderOptions.DEFAULT, logger);
+    }
 
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
+    public static void run(File[] files, BytesWorker[] workers, final BigLong2ShortHashMap hmForMonitoring,
+                           final LoaderOptions options, Logger logger) throws ExecutionFailedException {
+        final int workersNumber = workers.length;
+        if (hmForMonitoring != null) {
+            LoadingMetrics.monitor(hmForMonitoring);
+        }
+        try {
+            LoaderEngine.run(files, workers, new LoaderEngine.SourceFactory<BytesWorker>() {
+                @Override
+                public LoaderEngine.Source<BytesWorker> open(File file) throws IOException {
+                    return openKmersFile(file, workersNumber, hmForMonitoring, options);
                 }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
+            }, logger);
         } catch (IOException e) {
             throw new ExecutionFailedException("Can't load k-mers file", e);
         }
     }
 
 
-    public static void runBitSet(File[] files, BitSetKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
-            throws ExecutionFailedException {
-        try {
-            int bitIndex=-1;
-            for (File file : files) {
-                bitIndex++;
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    workers[i].setBitIndex(bitIndex);
-                    new Thread(workers[i]).start();
+    /**
+     * Opens one k-mers file with the dispatcher fitting its format.
+     * Standard input and named pipes (see StreamingInput) are read through BytesDispatcher in one pass.
+     */
+    static LoaderEngine.Source<BytesWorker> openKmersFile(File file, int workersNumber,
+                                                          BigLong2ShortHashMap hmForMonitoring,
+                                                          LoaderOptions options) throws IOException {
+        boolean stream = StreamingInput.isStream(file);
+        if (!stream && CompressedKmersFile.isCompressed(file)) {
+            final CompressedKmersDispatcher dispatcher = new CompressedKmersDispatcher(new CompressedKmersFile(file));
+            return new LoaderEngine.Source<BytesWorker>() {
+                @Override
+                public void attach(BytesWorker worker) {
+                    worker.setDispatcher(dispatcher);
                 }
 
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
+                @Override
+                public void close(Logger logger) throws IOException {
+                    dispatcher.close();
+                    Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead()) + " of data processed");
+                }
+            };
+        }
+        if (!stream && options.mapKmersFiles && file.isFile()) {
+            final MappedBytesDispatcher dispatcher = new MappedBytesDispatcher(file, KMERS_WORK_RANGE_SIZE);
+            return new LoaderEngine.Source<BytesWorker>() {
+                @Override
+                public void attach(BytesWorker worker) {
+                    worker.setDispatcher(dispatcher);
+                }
+
+                @Override
+                public void close(Logger logger) throws IOException {
+                    dispatcher.close();
+                    Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead()) + " of data processed");
                 }
+            };
+        }
+        final BytesDispatcher dispatcher = new BytesDispatcher(StreamingInput.open(file), KMERS_WORK_RANGE_SIZE,
+                workersNumber + BytesDispatcher.READ_AHEAD_BUFFERS, hmForMonitoring);
+        return new LoaderEngine.Source<BytesWorker>() {
+            @Override
+            public void attach(BytesWorker worker) {
+                worker.setDispatcher(dispatcher);
+            }
+
+            @Override
+            public void close(Logger logger) throws IOException {
+                dispatcher.close();
                 Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
             }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
-        }
+        };
     }
 
 
-    public static void runBitLonga(File[] files, BitLongaKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+    /**
+     * The bit index of the k-mer is the index of its file in the list, workers get it from the loader engine.
+     */
+    public static void runBitSet(File[] files, BitSetKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException {
-        try {
-            int bitIndex=-1;
-            for (File file : files) {
-                bitIndex++;
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    workers[i].setBitIndex(bitIndex);
-                    new Thread(workers[i]).start();
-                }
+        run(files, workers, hmForMonitoring, logger);
+    }
 
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
-                }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
-        }
+
+    public static void runBitLonga(File[] files, BitLongaKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+            throws ExecutionFailedException {
+        run(files, workers, hmForMonitoring, logger);
     }
 
     public static void runBitShorta(File[] files, BitShortaKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException {
-        try {
-            int bitIndex=-1;
-            for (File file : files) {
-                bitIndex++;
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    workers[i].setBitIndex(bitIndex);
-                    new Thread(workers[i]).start();
-                }
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
-                }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
-        }
+        run(files, workers, hmForMonitoring, logger);
     }
 
 
     // ---------------------------- for loading reads ----------------------------------
 
-    static class ReadsLoadWorker extends ReadsWorker {
+    static class ReadsLoadWorker extends ReadsWorker implements KmerScanner.KmerConsumer {
         ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen) {
+            this(hm, k, minDnaLen, null, true);
+        }
+
+        ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen, ConcurrentBloomFilter filter,
+                        boolean preAggregateCounts) {
             this.hm = hm;
+            this.longHm = null;
             this.k = k;
             this.minDnaLen = minDnaLen;
+            this.filter = filter;
+            this.buffer = (preAggregateCounts && filter == null) ? new KmersCountsBuffer(hm) : null;
         }
 
-        final BigLong2ShortHashMap hm;
+        ReadsLoadWorker(BigLong2LongHashMap longHm, int k, int minDnaLen, ConcurrentBloomFilter filter,
+                        boolean preAggregateCounts) {
+            this.hm = null;
+            this.longHm = longHm;
+            this.k = k;
+            this.minDnaLen = minDnaLen;
+            this.filter = filter;
+            this.buffer = (preAggregateCounts && filter == null) ? new KmersCountsBuffer(longHm) : null;
+        }
+
+        final BigLong2ShortHashMap hm;      // one of hm and longHm is the target, the other is null
+        final BigLong2LongHashMap longHm;
         final int k;
         final int minDnaLen;
+        final ConcurrentBloomFilter filter;
+        final KmersCountsBuffer buffer;
         int totalSeq = 0, goodSeq = 0;
         long totalLen = 0, goodLen = 0;
 
@@ -759,28 +1499,87 @@ public class IOUtils {
                 totalLen += dna.length();
 
                 if (dna.length() >= minDnaLen) {
-                    for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        hm.addAndBound(kmer.toLong(), (short) 1);
-                    }
+                    LoadingMetrics.addKmers(KmerScanner.scan(dna, k, this));
                     goodSeq++;
                     goodLen += dna.length();
                 }
             }
         }
+
+        @Override
+        public void processSequence(byte[] nucs, int len) {
+            totalSeq++;
+            totalLen += len;
+
+            if (len >= minDnaLen) {
+                LoadingMetrics.addKmers(KmerScanner.scan(nucs, len, k, this));
+                goodSeq++;
+                goodLen += len;
+            }
+        }
+
+        @Override
+        public void accept(long kmer, int pos) {
+            if (filter != null) {
+                // k-mer is added to the map on the second sighting only, the first one is counted then
+                if (filter.add(kmer) && addAndBound(kmer) == 0) {
+                    addAndBound(kmer);
+                }
+            } else if (buffer != null) {
+                buffer.addAndBound(kmer, 1);
+            } else {
+                addAndBound(kmer);
+            }
+        }
+
+        /**
+         * @return previous count of the k-mer
+         */
+        private long addAndBound(long kmer) {
+            return (hm != null) ? hm.addAndBound(kmer, (short) 1) : longHm.addAndBound(kmer, 1);
+        }
+
+        @Override
+        public void flushBuffers() {
+            if (buffer != null) {
+                buffer.flush();
+            }
+        }
+    }
+
+    public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        return loadReads(files, k, minSeqLen, null, availableProcessors, logger);
+    }
+
+    /**
+     * @param singletonsFilter if not null, k-mers seen only once are not added to the map
+     *                         (they are kept in the filter), other k-mers are counted as usual
+     *                         except false positives of the filter which are counted one more time
+     */
+    public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
+                                                 ConcurrentBloomFilter singletonsFilter,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        return loadReads(files, k, minSeqLen, singletonsFilter, LoaderOptions.DEFAULT, availableProcessors, logger);
     }
 
     public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
+                                                 ConcurrentBloomFilter singletonsFilter, LoaderOptions options,
                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        // with the filter, the number of k-mers seen more than once is unknown, the map grows as needed
+        MapCapacity capacity = planShortMap((singletonsFilter == null) ? MapCapacity.readsKmers(files, k) : -1,
+                options, availableProcessors, logger);
+        BigLong2ShortHashMap hm = newShortMap(capacity, options, true, logger);
 
         ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen);
+            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen, singletonsFilter, options.preAggregateCounts);
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hm, options, logger);
 
         // calculating statistics...
         int totalSeq = 0, goodSeq = 0;
@@ -803,65 +1602,207 @@ public class IOUtils {
     }
 
 
-    static class ReadsPresenceWorker extends ReadsWorker {
-        ReadsPresenceWorker(BigLong2LongHashMap hm, int k) {
-            this.hm = hm;
+    /**
+     * Counts k-mers in reads as loadReads does, but to the map of TieredLong2LongHashMap small maps:
+     * counts aren't bounded by Short.MAX_VALUE, and a slot takes 9 bytes instead of 10 while its count is small.
+     * The map is always lock-free and on the Java heap, lockFreeMaps and offHeapMaps options aren't applied to it.
+     */
+    public static BigLong2LongHashMap loadTieredReads(File[] files, int k, int minSeqLen,
+                                                      ConcurrentBloomFilter singletonsFilter,
+                                                      int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        return loadTieredReads(files, k, minSeqLen, singletonsFilter, LoaderOptions.DEFAULT,
+                availableProcessors, logger);
+    }
+
+    public static BigLong2LongHashMap loadTieredReads(File[] files, int k, int minSeqLen,
+                                                      ConcurrentBloomFilter singletonsFilter, LoaderOptions options,
+                                                      int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        MapCapacity capacity = MapCapacity.plan((singletonsFilter == null) ? MapCapacity.readsKmers(files, k) : -1,
+                MapCapacity.TIERED_MAP_SLOT_BYTES, 0, availableProcessors, logger);
+        BigLong2LongHashMap hm = TieredLong2LongHashMap.newBigMap(capacity.logSmallMapNumber, capacity.logSmallCapacity);
+        Tool.debug(logger, "Created " + NumUtils.groupDigits(hm.maps.length) + " small TieredLong2LongHashMaps");
+
+        ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen, singletonsFilter, options.preAggregateCounts);
+        }
+
+        LoadingMetrics.monitor(hm);
+        run(files, workers, null, options, logger);
+
+        int totalSeq = 0, goodSeq = 0;
+        for (ReadsLoadWorker worker : workers) {
+            totalSeq += worker.totalSeq;
+            goodSeq += worker.goodSeq;
+        }
+        long overflowed = 0;
+        for (Long2LongHashMap map : hm.maps) {
+            overflowed += ((TieredLong2LongHashMap) map).overflowSize();
+        }
+        Tool.debug(logger,
+                "Good/Total sequences count = " + NumUtils.groupDigits(goodSeq) + "/" + NumUtils.groupDigits(totalSeq)
+                        + " (" + String.format("%.1f", goodSeq * 100.0 / totalSeq) + "%)");
+        Tool.debug(logger, "k-mers HM size = " + NumUtils.groupDigits(hm.size()) + ", " +
+                NumUtils.groupDigits(overflowed) + " of them with counts above " + TieredLong2LongHashMap.INLINE_MAX);
+
+        return hm;
+    }
+
+
+    static class ReadsPresenceWorker extends ReadsWorker implements KmerScanner.KmerConsumer {
+        ReadsPresenceWorker(ComponentsIndex index, AtomicLongArray counts, int k) {
+            this.index = index;
+            this.counts = counts;
             this.k = k;
         }
 
-        final BigLong2LongHashMap hm;
+        final ComponentsIndex index;
+        final AtomicLongArray counts;
         final int k;
 
         @Override
         public void process(List<Dna> reads) {
             for (Dna dna : reads) {
-                for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                    if (hm.contains(kmer.toLong())) {
-                        hm.addAndBound(kmer.toLong(), 1);
-                    }
-                }
+                KmerScanner.scan(dna, k, this);
+            }
+        }
+
+        @Override
+        public void processSequence(byte[] nucs, int len) {
+            KmerScanner.scan(nucs, len, k, this);
+        }
+
+        @Override
+        public void accept(long kmer, int pos) {
+            long slot = index.find(kmer);
+            if (slot != -1) {
+                counts.incrementAndGet((int) slot);
             }
         }
     }
 
-    public static void calculatePresenceForReads(File[] files, int k, BigLong2LongHashMap hm, int availableProcessors, Logger logger)
+    /**
+     * @return approximate number of nucleotides in reads files estimated by their sizes,
+     *         streams (see StreamingInput) have unknown size and aren't counted
+     */
+    public static long estimateReadsLength(File[] files) {
+        long nucs = 0;
+        for (File file : files) {
+            if (StreamingInput.isStream(file)) {
+                continue;
+            }
+            long len = file.length();
+            String format;
+            try {
+                format = ReadersUtils.detectFileFormat(file);
+            } catch (IOException e) {
+                format = "";
+            }
+            if (format.endsWith(".gz") || format.endsWith(".bz2")) {
+                len *= 4;
+            }
+            nucs += format.startsWith("fastq") ? len / 2 : len;
+        }
+        return nucs;
+    }
+
+    /**
+     * Counts occurrences of k-mers of the components in reads to counts by their slots in the components index.
+     */
+    public static void calculatePresenceForReads(File[] files, int k, ComponentsIndex index, AtomicLongArray counts,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        calculatePresenceForReads(files, k, index, counts, LoaderOptions.DEFAULT, availableProcessors, logger);
+    }
+
+    public static void calculatePresenceForReads(File[] files, int k, ComponentsIndex index, AtomicLongArray counts,
+                                                 LoaderOptions options, int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
         ReadsWorker[] workers = new ReadsWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsPresenceWorker(hm, k);
+            workers[i] = new ReadsPresenceWorker(index, counts, k);
         }
-        run(files, workers, null, logger);
+        run(files, workers, null, options, logger);
     }
 
 
 
-    public static void run(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+    /**
+     * Loads reads files by the workers of the loader engine, the next file is started
+     * while the previous one is being finished.
+     */
+    public static void run(File[] files, ReadsWorker[] workers, final BigLong2ShortHashMap hmForMonitoring,
+                           final Logger logger) throws ExecutionFailedException, IOException {
+        run(files, workers, hmForMonitoring, LoaderOptions.DEFAULT, logger);
+    }
+
+    public static void run(File[] files, ReadsWorker[] workers, final BigLong2ShortHashMap hmForMonitoring,
+                           final LoaderOptions options, final Logger logger)
             throws ExecutionFailedException, IOException {
-        for (File file : files) {
-            Tool.info(logger, "Loading file " + file.getName() + "...");
+        final int workersNumber = workers.length;
+        if (hmForMonitoring != null) {
+            LoadingMetrics.monitor(hmForMonitoring);
+        }
+        LoaderEngine.run(files, workers, new LoaderEngine.SourceFactory<ReadsWorker>() {
+            @Override
+            public LoaderEngine.Source<ReadsWorker> open(File file) throws IOException {
+                return openReadsFile(file, workersNumber, hmForMonitoring, options, logger);
+            }
+        }, logger);
+    }
 
-            NamedSource<Dna> reader = ReadersUtils.readDnaLazy(file);
+    /**
+     * Opens one reads file, it is parsed in chunks if possible.
+     */
+    static LoaderEngine.Source<ReadsWorker> openReadsFile(File file, int workersNumber,
+                                                          BigLong2ShortHashMap hmForMonitoring,
+                                                          LoaderOptions options, Logger logger) throws IOException {
+        ReadsChunkDispatcher chunkDispatcher = null;
+        if (StreamingInput.isStream(file)) {
+            StreamingInput.ReadsStream stream = StreamingInput.openReads(file, workersNumber);
+            Tool.debug(logger, "Reading " + (stream.fastq ? "FASTQ" : "FASTA") + " reads from the stream");
+            chunkDispatcher = new ReadsChunkDispatcher(file, stream.in, stream.fastq, stream.zeroQualityChar,
+                    2 * workersNumber + 2, hmForMonitoring);
+        } else if (options.parseReadsInChunks && ReadsChunkDispatcher.canParse(file)) {
+            chunkDispatcher = new ReadsChunkDispatcher(file, hmForMonitoring);
+        } else if (options.parseReadsInChunks && ReadsChunkDispatcher.canParseCompressed(file)) {
+            if (ParallelGZIPInputStream.isBGZF(file)) {
+                Tool.debug(logger, "BGZF file, inflating blocks in " + workersNumber + " threads");
+            }
+            InputStream decompressed = new ParallelGZIPInputStream(file, workersNumber);
+            chunkDispatcher = new ReadsChunkDispatcher(file, decompressed, 2 * workersNumber + 2, hmForMonitoring);
+        }
+        if (chunkDispatcher != null) {
+            final ReadsChunkDispatcher dispatcher = chunkDispatcher;
+            return new LoaderEngine.Source<ReadsWorker>() {
+                @Override
+                public void attach(ReadsWorker worker) {
+                    worker.setDispatcher(dispatcher);
+                }
 
-            ReadsDispatcher dispatcher = new ReadsDispatcher(reader, READS_WORK_RANGE_SIZE, hmForMonitoring);
-            CountDownLatch latch = new CountDownLatch(workers.length);
+                @Override
+                public void close(Logger logger) throws IOException {
+                    dispatcher.close();
+                    Tool.info(logger, NumUtils.groupDigits(dispatcher.reads()) + " reads added");
+                }
+            };
+        }
 
-            for (int i = 0; i < workers.length; ++i) {
-                workers[i].setDispatcher(dispatcher);
-                workers[i].setLatch(latch);
-                new Thread(workers[i]).start();
+        NamedSource<Dna> reader = ReadersUtils.readDnaLazy(file);
+        final ReadsDispatcher dispatcher = new ReadsDispatcher(reader, READS_WORK_RANGE_SIZE, hmForMonitoring);
+        return new LoaderEngine.Source<ReadsWorker>() {
+            @Override
+            public void attach(ReadsWorker worker) {
+                worker.setDispatcher(dispatcher);
             }
 
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                Tool.warn(logger, "Main thread interrupted");
-                for (ReadsWorker worker : workers) {
-                    worker.interrupt();
-                }
-                throw new ExecutionFailedException("Thread was interrupted", e);
+            @Override
+            public void close(Logger logger) {
+                Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added");
             }
-            Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added");
-        }
+        };
     }
 
 }
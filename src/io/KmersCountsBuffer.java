@@ -0,0 +1,148 @@
+package io;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import structures.map.BatchLockable;
+
+import java.util.Arrays;
+
+/**
+ * Thread-local pre-aggregation of k-mer counts before adding them to the shared BigLong2ShortHashMap
+ * or BigLong2LongHashMap.<br></br>
+ * <br></br>
+ *
+ * K-mers are bucketed by the target small map (with the same murmurHash3 & mask routing as the map uses),
+ * duplicates are summed in a small open-addressing table of the bucket. A filled bucket is flushed
+ * to its small map as a batch under a single acquisition of the map's write lock (see BatchLockable),
+ * so batches from different threads don't compete for the lock k-mer by k-mer. Lock-free small maps
+ * are updated without any lock, other small maps take their lock for every k-mer as before.
+ * Counts are summed exactly, they are bounded by Short.MAX_VALUE when added to BigLong2ShortHashMap only.<br></br>
+ * Call flush() when the worker is done, otherwise the last counts stay in the buffer.
+ */
+class KmersCountsBuffer {
+
+    static final int TOTAL_CAPACITY = 1 << 18;      // slots in all buckets, 3 Mb per worker
+    static final int MIN_BUCKET_CAPACITY = 1 << 6;
+    static final int MAX_BUCKET_CAPACITY = 1 << 12;
+
+    final BigLong2ShortHashMap hm;          // one of hm and longHm is the target, the other is null
+    final BigLong2LongHashMap longHm;
+    final int mask;
+    final int bucketCapacity;
+    final int bucketMaxFill;
+
+    final long[][] keys;        // allocated lazily, key 0 marks a free cell
+    final int[][] values;
+    final int[] sizes;
+
+
+    KmersCountsBuffer(BigLong2ShortHashMap hm) {
+        this(hm, null, hm.maps.length);
+    }
+
+    KmersCountsBuffer(BigLong2LongHashMap longHm) {
+        this(null, longHm, longHm.maps.length);
+    }
+
+    private KmersCountsBuffer(BigLong2ShortHashMap hm, BigLong2LongHashMap longHm, int n) {
+        this.hm = hm;
+        this.longHm = longHm;
+        mask = n - 1;
+        bucketCapacity = Math.max(MIN_BUCKET_CAPACITY, Math.min(MAX_BUCKET_CAPACITY, TOTAL_CAPACITY / n));
+        bucketMaxFill = bucketCapacity * 3 / 4;
+        keys = new long[n][];
+        values = new int[n][];
+        sizes = new int[n];
+    }
+
+
+    void addAndBound(long key, int value) {
+        if (key == 0) {
+            addToMap(key, value);           // key 0 is the free cell marker, it is rare enough
+            return;
+        }
+        int b = HashCommon.murmurHash3((int) key) & mask;
+        long[] k = keys[b];
+        if (k == null) {
+            k = keys[b] = new long[bucketCapacity];
+            values[b] = new int[bucketCapacity];
+        }
+        int[] v = values[b];
+
+        int pos = (int) HashCommon.murmurHash3(key) & (bucketCapacity - 1);
+        while (k[pos] != 0 && k[pos] != key) {
+            pos = (pos + 1) & (bucketCapacity - 1);
+        }
+        if (k[pos] == 0) {
+            k[pos] = key;
+            v[pos] = value;
+            if (++sizes[b] >= bucketMaxFill) {
+                flush(b);
+            }
+        } else if (v[pos] > Integer.MAX_VALUE - value) {
+            addToMap(key, v[pos]);          // the sum doesn't fit into int
+            v[pos] = value;
+        } else {
+            v[pos] += value;
+        }
+    }
+
+    private void addToMap(long key, int value) {
+        if (hm != null) {
+            hm.addAndBound(key, (short) Math.min(value, Short.MAX_VALUE));
+        } else {
+            longHm.addAndBound(key, value);
+        }
+    }
+
+    private void flush(int b) {
+        long[] k = keys[b];
+        int[] v = values[b];
+        Object map = (hm != null) ? hm.maps[b] : longHm.maps[b];
+        if (map instanceof BatchLockable) {
+            BatchLockable lockable = (BatchLockable) map;
+            lockable.lockBatch();
+            try {
+                add(b, k, v);       // every insert re-enters the held lock
+            } finally {
+                lockable.unlockBatch();
+            }
+        } else {
+            add(b, k, v);
+        }
+        Arrays.fill(k, 0);
+        sizes[b] = 0;
+    }
+
+    private void add(int b, long[] k, int[] v) {
+        if (hm != null) {
+            Long2ShortHashMap map = hm.maps[b];
+            for (int i = 0; i < bucketCapacity; i++) {
+                if (k[i] != 0) {
+                    map.addAndBound(k[i], (short) Math.min(v[i], Short.MAX_VALUE));
+                }
+            }
+        } else {
+            Long2LongHashMap map = longHm.maps[b];
+            for (int i = 0; i < bucketCapacity; i++) {
+                if (k[i] != 0) {
+                    map.addAndBound(k[i], v[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds all buffered counts to the map.
+     */
+    void flush() {
+        for (int b = 0; b < sizes.length; b++) {
+            if (sizes[b] > 0) {
+                flush(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Long-lived engine loading a list of files by a fixed set of workers.<br></br>
+ * <br></br>
+ *
+ * Worker tasks run in the shared pool of daemon threads, so threads are not started for every file.
+ * Every worker walks through the files on its own: when the current file has no more work ranges,
+ * the worker goes to the next file (opening it, if nobody has done it yet), so the tail of file i
+ * is processed together with the head of file i+1. Before the first work range of the file the worker is
+ * told the file index (see Worker.startFile), that is how per-file data (e.g. bit indices) goes with the work.
+ * The last worker leaving the file closes it and reports its statistics.
+ * If a worker fails, the others are stopped and all files left opened are closed.
+ */
+class LoaderEngine {
+
+    interface Worker {
+        void startFile(int fileIndex);
+
+        /**
+         * @return false if there are no more work ranges in the current file
+         */
+        boolean processNextRange();
+
+        /**
+         * Called when there is no more work in all files.
+         */
+        void flushBuffers();
+
+        void interrupt();
+    }
+
+    /**
+     * Opened file, the dispatcher shared by all workers.
+     */
+    interface Source<W extends Worker> {
+        void attach(W worker);
+
+        /**
+         * Closes the file and reports what has been loaded from it.
+         */
+        void close(Logger logger) throws IOException;
+    }
+
+    interface SourceFactory<W extends Worker> {
+        Source<W> open(File file) throws IOException;
+    }
+
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        final AtomicInteger threads = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "loader-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+
+    static <W extends Worker> void run(final File[] files, final W[] workers, final SourceFactory<W> factory,
+                                       final Logger logger) throws ExecutionFailedException, IOException {
+        final Sources<W> sources = new Sources<W>(files, workers.length, factory, logger);
+        final Running running = new Running();
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final W worker : workers) {
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (!running.enter()) {     // loading has been stopped before the start
+                        return null;
+                    }
+                    try {
+                        for (int f = 0; f < files.length; f++) {
+                            Source<W> source = sources.get(f);
+                            if (source == null) {   // opening has failed in another worker or loading is stopped
+                                return null;
+                            }
+
+                            source.attach(worker);
+                            worker.startFile(f);
+                            while (!Thread.currentThread().isInterrupted() && worker.processNextRange()) {
+                            }
+                            if (Thread.currentThread().isInterrupted()) {
+                                return null;
+                            }
+                            sources.leave(f);
+                        }
+                        worker.flushBuffers();
+                        return null;
+                    } finally {
+                        running.exit();
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Tool.warn(logger, "Main thread interrupted");
+            stop(workers, running);
+            sources.closeAll();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            stop(workers, running);
+            try {
+                running.await();        // workers stop after their current ranges
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            sources.closeAll();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ExecutionFailedException("Loader worker failed", e.getCause());
+        }
+    }
+
+    private static void stop(Worker[] workers, Running running) {
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        running.stop();
+    }
+
+
+    /**
+     * Threads running worker tasks. Stopping interrupts them, tasks not started yet don't run at all.
+     */
+    private static class Running {
+        final Set<Thread> threads = new HashSet<Thread>();
+        boolean stopped = false;
+
+        /**
+         * @return false if loading has been stopped
+         */
+        synchronized boolean enter() {
+            if (stopped) {
+                return false;
+            }
+            threads.add(Thread.currentThread());
+            return true;
+        }
+
+        synchronized void exit() {
+            threads.remove(Thread.currentThread());
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (!threads.isEmpty()) {
+                wait();
+            }
+        }
+    }
+
+
+    /**
+     * Opened files: a file is opened by the first worker coming to it, others wait for the opening
+     * without holding any lock, the last worker leaving the file closes it.
+     */
+    private static class Sources<W extends Worker> {
+        final File[] files;
+        final SourceFactory<W> factory;
+        final Logger logger;
+
+        final AtomicReferenceArray<FutureTask<Source<W>>> openings;
+        final AtomicIntegerArray workersLeft;
+        final AtomicIntegerArray closed;
+
+        Sources(File[] files, int workers, SourceFactory<W> factory, Logger logger) {
+            this.files = files;
+            this.factory = factory;
+            this.logger = logger;
+            openings = new AtomicReferenceArray<FutureTask<Source<W>>>(files.length);
+            workersLeft = new AtomicIntegerArray(files.length);
+            closed = new AtomicIntegerArray(files.length);
+            for (int f = 0; f < files.length; f++) {
+                workersLeft.set(f, workers);
+            }
+        }
+
+        /**
+         * Opens the file or waits until another worker opens it.
+         * @return null if opening has failed in another worker or the waiting was interrupted
+         */
+        Source<W> get(int f) throws IOException {
+            boolean mine = false;
+            if (openings.get(f) == null) {
+                final File file = files[f];
+                FutureTask<Source<W>> opening = new FutureTask<Source<W>>(new Callable<Source<W>>() {
+                    @Override
+                    public Source<W> call() throws IOException {
+                        Tool.info(logger, "Loading file " + file.getName() + "...");
+                        return factory.open(file);
+                    }
+                });
+                if (openings.compareAndSet(f, null, opening)) {
+                    opening.run();
+                    mine = true;
+                }
+            }
+
+            try {
+                return openings.get(f).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                if (!mine) {
+                    return null;
+                }
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("Can't open file " + files[f], e.getCause());
+            }
+        }
+
+        void leave(int f) throws IOException {
+            if (workersLeft.decrementAndGet(f) == 0) {
+                close(f);
+            }
+        }
+
+        private void close(int f) throws IOException {
+            FutureTask<Source<W>> opening = openings.get(f);
+            if (opening == null || !opening.isDone() || !closed.compareAndSet(f, 0, 1)) {
+                return;
+            }
+            Source<W> source;
+            try {
+                source = opening.get();
+            } catch (InterruptedException | ExecutionException e) {
+                return;     // not opened
+            }
+            source.close(logger);
+        }
+
+        /**
+         * Closes files left opened by failed or stopped workers.
+         */
+        void closeAll() {
+            for (int f = 0; f < files.length; f++) {
+                try {
+                    close(f);
+                } catch (IOException e) {
+                    Tool.warn(logger, "Can't close file " + files[f] + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
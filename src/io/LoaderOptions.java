@@ -0,0 +1,91 @@
+package io;
+
+import java.io.File;
+
+/**
+ * Options of k-mers and reads loaders in IOUtils, they are passed by tools to the loading methods.
+ * Options are immutable, with*() methods return changed copies.
+ */
+public class LoaderOptions {
+
+    public static final LoaderOptions DEFAULT = new LoaderOptions(true, true, true, false, false, null);
+
+    /**
+     * If true, regular k-mers files are memory-mapped and decoded in place by the workers
+     * (see MappedBytesDispatcher), otherwise they are copied through BytesDispatcher.
+     */
+    public final boolean mapKmersFiles;
+
+    /**
+     * If true, plain FASTQ and FASTA files are parsed by all workers in parallel (see ReadsChunkDispatcher),
+     * otherwise reads are taken one by one from ReadersUtils.readDnaLazy through ReadsDispatcher.
+     * Gzipped FASTQ and FASTA files are decompressed in separate threads (see ParallelGZIPInputStream)
+     * and parsed in chunks as well. Standard input and named pipes (see StreamingInput) are always parsed in chunks.
+     */
+    public final boolean parseReadsInChunks;
+
+    /**
+     * If true, reads and k-mers load workers pre-aggregate counts in thread-local buffers
+     * and add them to the shared map in batches (see KmersCountsBuffer).
+     */
+    public final boolean preAggregateCounts;
+
+    /**
+     * If true, counting maps filled by loaders consist of lock-free small maps (see ConcurrentLong2ShortHashMap
+     * and ConcurrentLong2LongHashMap), otherwise small maps take the write lock for every insert
+     * (or once for a batch of pre-aggregated counts, see BatchLockable).
+     * Lock-free short maps take 12 bytes per slot instead of 10, so the option is off by default,
+     * it pays off only when many threads count into one map (as kmer-counter with --lock-free-maps).
+     * Bit maps (loadBitSetKmers and others) always take the write lock: they keep a separate array per k-mer
+     * and set() returns a copy of the previous one, which can't be swapped by CAS without boxing every value.
+     */
+    public final boolean lockFreeMaps;
+
+    /**
+     * If true, counting and bit maps filled by loaders keep keys and values off the Java heap
+     * (see OffHeapLong2ShortHashMap and OffHeapMemory): in memory-mapped files in offHeapDir,
+     * or in direct memory, if offHeapDir is null. Such maps aren't scanned by GC and their small maps
+     * aren't limited by 2^30 slots, the memory is freed by IOUtils.closeMap (or by close() of bit maps).
+     * Off-heap counting maps take the write lock for every insert, lockFreeMaps isn't applied to them.
+     */
+    public final boolean offHeapMaps;
+    public final File offHeapDir;
+
+    private LoaderOptions(boolean mapKmersFiles, boolean parseReadsInChunks, boolean preAggregateCounts,
+                          boolean lockFreeMaps, boolean offHeapMaps, File offHeapDir) {
+        this.mapKmersFiles = mapKmersFiles;
+        this.parseReadsInChunks = parseReadsInChunks;
+        this.preAggregateCounts = preAggregateCounts;
+        this.lockFreeMaps = lockFreeMaps;
+        this.offHeapMaps = offHeapMaps;
+        this.offHeapDir = offHeapDir;
+    }
+
+    public LoaderOptions withMapKmersFiles(boolean mapKmersFiles) {
+        return new LoaderOptions(mapKmersFiles, parseReadsInChunks, preAggregateCounts,
+                lockFreeMaps, offHeapMaps, offHeapDir);
+    }
+
+    public LoaderOptions withParseReadsInChunks(boolean parseReadsInChunks) {
+        return new LoaderOptions(mapKmersFiles, parseReadsInChunks, preAggregateCounts,
+                lockFreeMaps, offHeapMaps, offHeapDir);
+    }
+
+    public LoaderOptions withPreAggregateCounts(boolean preAggregateCounts) {
+        return new LoaderOptions(mapKmersFiles, parseReadsInChunks, preAggregateCounts,
+                lockFreeMaps, offHeapMaps, offHeapDir);
+    }
+
+    public LoaderOptions withLockFreeMaps(boolean lockFreeMaps) {
+        return new LoaderOptions(mapKmersFiles, parseReadsInChunks, preAggregateCounts,
+                lockFreeMaps, offHeapMaps, offHeapDir);
+    }
+
+    /**
+     * @param offHeapDir directory for memory-mapped files of off-heap maps, null for direct memory
+     */
+    public LoaderOptions withOffHeapMaps(boolean offHeapMaps, File offHeapDir) {
+        return new LoaderOptions(mapKmersFiles, parseReadsInChunks, preAggregateCounts,
+                lockFreeMaps, offHeapMaps, offHeapDir);
+    }
+}
@@ -0,0 +1,430 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMapInterface;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+import structures.map.BigLong2BitLongaHashMap;
+import structures.map.BigLong2BitSetHashMap;
+import structures.map.BigLong2BitShortaHashMap;
+import structures.map.Long2BitLongaHashMapInterface;
+import structures.map.Long2BitSetHashMapInterface;
+import structures.map.Long2BitShortaHashMapInterface;
+import structures.map.LockWaits;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of loading data to maps: throughput of dispatchers, fill of the counting map,
+ * time lost on waiting for locks and data, heap headroom.<br></br>
+ * <br></br>
+ *
+ * Dispatchers and workers add to the counters all the time, it costs one LongAdder.add per work range.
+ * Loaders set the map they fill by monitor(), any of counting and bit maps they build.
+ * Time of waiting for locks is taken from LockWaits, where writers of lock-based small maps add it.
+ * After start() the metrics are published as the MBean "metafast:type=LoadingMetrics"
+ * and, if the file is given, written to it as JSON once per period.
+ * Resizes of small maps are derived from their capacities, as the maps double their capacity on every resize.
+ */
+public class LoadingMetrics implements LoadingMetricsMBean {
+
+    static final String OBJECT_NAME = "metafast:type=LoadingMetrics";
+
+    static final LongAdder bytesRead = new LongAdder();
+    static final LongAdder reads = new LongAdder();
+    static final LongAdder kmersInserted = new LongAdder();
+    static final LongAdder ioWaitNanos = new LongAdder();
+
+    static volatile WeakReference<Object[]> smallMaps = new WeakReference<Object[]>(null);
+    static volatile long[] initialCapacities = null;
+
+    static LoadingMetrics instance = null;
+
+
+    public static void addBytes(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public static void addReads(long n) {
+        reads.add(n);
+    }
+
+    public static void addKmers(long n) {
+        kmersInserted.add(n);
+    }
+
+    public static void addIoWait(long nanos) {
+        ioWaitNanos.add(nanos);
+    }
+
+    /**
+     * Sets the map to report sizes and load factors of. The map is weakly referenced,
+     * metrics don't keep it in memory after the tool has dropped it.
+     */
+    public static void monitor(BigLong2ShortHashMap map) {
+        monitor((map == null) ? null : map.maps);
+    }
+
+    public static void monitor(BigLong2LongHashMap map) {
+        monitor((map == null) ? null : map.maps);
+    }
+
+    public static void monitor(BigLong2BitSetHashMap map) {
+        monitor((map == null) ? null : map.maps);
+    }
+
+    public static void monitor(BigLong2BitLongaHashMap map) {
+        monitor((map == null) ? null : map.maps);
+    }
+
+    public static void monitor(BigLong2BitShortaHashMap map) {
+        monitor((map == null) ? null : map.maps);
+    }
+
+    private static void monitor(Object[] maps) {
+        if (maps != null) {
+            long[] capacities = new long[maps.length];
+            for (int i = 0; i < capacities.length; i++) {
+                capacities[i] = capacity(maps[i]);
+            }
+            initialCapacities = capacities;
+        }
+        smallMaps = new WeakReference<Object[]>(maps);
+    }
+
+    /**
+     * Small maps of loaders have no common interface, their sizes are taken by their kinds.
+     */
+    static long size(Object map) {
+        if (map instanceof Long2ShortHashMapInterface) {
+            return ((Long2ShortHashMapInterface) map).size();
+        } else if (map instanceof Long2LongHashMapInterface) {
+            return ((Long2LongHashMapInterface) map).size();
+        } else if (map instanceof Long2BitSetHashMapInterface) {
+            return ((Long2BitSetHashMapInterface) map).size();
+        } else if (map instanceof Long2BitLongaHashMapInterface) {
+            return ((Long2BitLongaHashMapInterface) map).size();
+        } else if (map instanceof Long2BitShortaHashMapInterface) {
+            return ((Long2BitShortaHashMapInterface) map).size();
+        }
+        return 0;
+    }
+
+    static long capacity(Object map) {
+        if (map instanceof Long2ShortHashMapInterface) {
+            return ((Long2ShortHashMapInterface) map).capacity();
+        } else if (map instanceof Long2LongHashMapInterface) {
+            return ((Long2LongHashMapInterface) map).capacity();
+        } else if (map instanceof Long2BitSetHashMapInterface) {
+            return ((Long2BitSetHashMapInterface) map).capacity();
+        } else if (map instanceof Long2BitLongaHashMapInterface) {
+            return ((Long2BitLongaHashMapInterface) map).capacity();
+        } else if (map instanceof Long2BitShortaHashMapInterface) {
+            return ((Long2BitShortaHashMapInterface) map).capacity();
+        }
+        return 0;
+    }
+
+
+    /**
+     * Registers the MBean and starts sampling rates every periodSeconds.
+     * @param jsonFile file to write metrics to, or null
+     */
+    public static synchronized void start(File jsonFile, int periodSeconds, Logger logger) {
+        if (instance != null) {
+            stop(logger);
+        }
+        instance = new LoadingMetrics(jsonFile, logger);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(instance, name);
+        } catch (Exception e) {
+            Tool.warn(logger, "Can't register metrics MBean: " + e.getMessage());
+        }
+        final LoadingMetrics metrics = instance;
+        instance.sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                metrics.sample();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        if (jsonFile != null) {
+            Tool.info(logger, "Writing loading metrics to " + jsonFile + " every " + periodSeconds + " s");
+        }
+    }
+
+    /**
+     * Takes the last sample (the JSON file gets final values) and unregisters the MBean.
+     */
+    public static synchronized void stop(Logger logger) {
+        if (instance == null) {
+            return;
+        }
+        instance.sampler.shutdownNow();
+        instance.sample();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            Tool.warn(logger, "Can't unregister metrics MBean: " + e.getMessage());
+        }
+        instance = null;
+    }
+
+
+    /**
+     * Short state of the map for debug output.
+     */
+    static String mapState(BigLong2ShortHashMap map) {
+        double min = Double.MAX_VALUE, max = 0;
+        for (int i = 0; i < map.maps.length; i++) {
+            double lf = (double) map.maps[i].size() / map.maps[i].capacity();
+            min = Math.min(min, lf);
+            max = Math.max(max, lf);
+        }
+        return "Total hm size = " + NumUtils.groupDigits(map.size()) + " in " + map.maps.length + " small maps, " +
+                "load factor = " + round(min) + ".." + round(max);
+    }
+
+
+
+    final File jsonFile;
+    final Logger logger;
+    final ScheduledExecutorService sampler;
+
+    long lastTime;
+    long lastBytes, lastReads, lastKmers;
+    volatile double bytesPerSecond, readsPerSecond, kmersPerSecond;
+
+    private LoadingMetrics(File jsonFile, Logger logger) {
+        this.jsonFile = jsonFile;
+        this.logger = logger;
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "loading-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        lastTime = System.nanoTime();
+        lastBytes = bytesRead.sum();
+        lastReads = reads.sum();
+        lastKmers = kmersInserted.sum();
+    }
+
+    synchronized void sample() {
+        long time = System.nanoTime();
+        double seconds = (time - lastTime) / 1e9;
+        if (seconds > 0) {
+            long bytes = bytesRead.sum(), r = reads.sum(), kmers = kmersInserted.sum();
+            bytesPerSecond = (bytes - lastBytes) / seconds;
+            readsPerSecond = (r - lastReads) / seconds;
+            kmersPerSecond = (kmers - lastKmers) / seconds;
+            lastTime = time;
+            lastBytes = bytes;
+            lastReads = r;
+            lastKmers = kmers;
+        }
+        if (jsonFile != null) {
+            try {
+                writeJson();
+            } catch (IOException e) {
+                Tool.warn(logger, "Can't write metrics to " + jsonFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes to the temporary file and renames it, so readers never see a half-written file.
+     */
+    void writeJson() throws IOException {
+        File tmp = new File(jsonFile.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(tmp);
+        out.println("{");
+        out.println("  \"timeMillis\": " + System.currentTimeMillis() + ",");
+        out.println("  \"bytesRead\": " + getBytesRead() + ",");
+        out.println("  \"bytesPerSecond\": " + round(bytesPerSecond) + ",");
+        out.println("  \"reads\": " + getReads() + ",");
+        out.println("  \"readsPerSecond\": " + round(readsPerSecond) + ",");
+        out.println("  \"kmersInserted\": " + getKmersInserted() + ",");
+        out.println("  \"kmersPerSecond\": " + round(kmersPerSecond) + ",");
+        out.println("  \"mapSize\": " + getMapSize() + ",");
+        out.println("  \"mapCapacity\": " + getMapCapacity() + ",");
+        out.println("  \"submapLoadFactors\": " + toJson(getSubmapLoadFactors()) + ",");
+        out.println("  \"submapResizes\": " + toJson(getSubmapResizes()) + ",");
+        out.println("  \"resizes\": " + getResizes() + ",");
+        out.println("  \"lockWaitMillis\": " + getLockWaitMillis() + ",");
+        out.println("  \"ioWaitMillis\": " + getIoWaitMillis() + ",");
+        out.println("  \"heapUsed\": " + getHeapUsed() + ",");
+        out.println("  \"heapMax\": " + getHeapMax() + ",");
+        out.println("  \"heapHeadroom\": " + getHeapHeadroom());
+        out.println("}");
+        out.close();
+        if (out.checkError()) {
+            throw new IOException("Error while writing " + tmp);
+        }
+        if (!tmp.renameTo(jsonFile) && !(jsonFile.delete() && tmp.renameTo(jsonFile))) {
+            throw new IOException("Can't rename " + tmp + " to " + jsonFile);
+        }
+    }
+
+    static double round(double x) {
+        return Math.round(x * 1e4) / 1e4;
+    }
+
+    static String toJson(double[] a) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < a.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(round(a[i]));
+        }
+        return sb.append("]").toString();
+    }
+
+    static String toJson(int[] a) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < a.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(a[i]);
+        }
+        return sb.append("]").toString();
+    }
+
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public double getReadsPerSecond() {
+        return readsPerSecond;
+    }
+
+    @Override
+    public long getKmersInserted() {
+        return kmersInserted.sum();
+    }
+
+    @Override
+    public double getKmersPerSecond() {
+        return kmersPerSecond;
+    }
+
+    @Override
+    public long getMapSize() {
+        long sum = 0;
+        Object[] maps = smallMaps.get();
+        for (int i = 0; maps != null && i < maps.length; i++) {
+            sum += size(maps[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getMapCapacity() {
+        long sum = 0;
+        Object[] maps = smallMaps.get();
+        for (int i = 0; maps != null && i < maps.length; i++) {
+            sum += capacity(maps[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double[] getSubmapLoadFactors() {
+        Object[] maps = smallMaps.get();
+        if (maps == null) {
+            return new double[0];
+        }
+        double[] res = new double[maps.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (double) size(maps[i]) / capacity(maps[i]);
+        }
+        return res;
+    }
+
+    @Override
+    public double getMaxSubmapLoadFactor() {
+        double max = 0;
+        for (double lf : getSubmapLoadFactors()) {
+            max = Math.max(max, lf);
+        }
+        return max;
+    }
+
+    @Override
+    public int[] getSubmapResizes() {
+        Object[] maps = smallMaps.get();
+        long[] initial = initialCapacities;
+        if (maps == null || initial == null || initial.length != maps.length) {
+            return new int[0];
+        }
+        int[] res = new int[maps.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = Long.numberOfTrailingZeros(capacity(maps[i])) - Long.numberOfTrailingZeros(initial[i]);
+        }
+        return res;
+    }
+
+    @Override
+    public long getResizes() {
+        long sum = 0;
+        for (int r : getSubmapResizes()) {
+            sum += r;
+        }
+        return sum;
+    }
+
+    @Override
+    public long getLockWaitMillis() {
+        return LockWaits.nanos() / 1000000;
+    }
+
+    @Override
+    public long getIoWaitMillis() {
+        return ioWaitNanos.sum() / 1000000;
+    }
+
+    @Override
+    public long getHeapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Override
+    public long getHeapMax() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public long getHeapHeadroom() {
+        return getHeapMax() - getHeapUsed();
+    }
+}
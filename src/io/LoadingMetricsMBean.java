@@ -0,0 +1,37 @@
+package io;
+
+/**
+ * JMX view of LoadingMetrics, rates are sampled once per metrics period.
+ */
+public interface LoadingMetricsMBean {
+
+    long getBytesRead();
+    double getBytesPerSecond();
+
+    long getReads();
+    double getReadsPerSecond();
+
+    long getKmersInserted();
+    double getKmersPerSecond();
+
+    long getMapSize();
+    long getMapCapacity();
+    double[] getSubmapLoadFactors();
+    double getMaxSubmapLoadFactor();
+    int[] getSubmapResizes();
+    long getResizes();
+
+    /**
+     * Time spent by workers waiting for write locks of small maps (see structures.map.LockWaits).
+     */
+    long getLockWaitMillis();
+
+    /**
+     * Time spent by workers waiting for data from dispatchers.
+     */
+    long getIoWaitMillis();
+
+    long getHeapUsed();
+    long getHeapMax();
+    long getHeapHeadroom();
+}
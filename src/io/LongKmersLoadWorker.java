@@ -3,6 +3,7 @@ package io;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class LongKmersLoadWorker extends BytesWorker {
 
@@ -30,4 +31,20 @@ public abstract class LongKmersLoadWorker extends BytesWorker {
             throw new RuntimeException("Can't load kmers from file", e);
         }
     }
+
+    @Override
+    public void process(ByteBuffer range) {
+        int len = range.limit();
+        if (len % KMER_RECORD_SIZE != 0) {
+            throw new RuntimeException("BAD division by work range");
+        }
+        for (int off = 0; off < len; off += KMER_RECORD_SIZE) {
+            processKmer(range.getLong(off), range.getLong(off + 8));
+        }
+    }
+
+    @Override
+    int recordSize() {
+        return KMER_RECORD_SIZE;
+    }
 }
@@ -0,0 +1,137 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Capacity planning for big maps filled by loaders: the number of small maps and their initial capacity
+ * are chosen by the expected number of keys, so that the maps are not enlarged while loading.<br></br>
+ * <br></br>
+ *
+ * The expected number of keys is taken from the input sizes: records in the largest k-mers file, which is
+ * a lower bound of the number of distinct k-mers, or k-mers estimated by nucleotides in reads. Maps grow beyond it
+ * as needed. It is limited by the memory budget, a part of the maximum heap size (i.e. of the -m option),
+ * so that a map presized for a big input doesn't take the heap before it is filled. If the number of keys
+ * is unknown (e.g. streamed input or k-mers filtered by frequency), the default layout is used and the map grows.
+ */
+class MapCapacity {
+
+    static final int DEFAULT_LOG_SMALL_CAPACITY = 12;
+    static final int MAX_LOG_SMALL_CAPACITY = 26;           // 64 M slots, enlarging small maps further is too slow
+    static final double MEMORY_FRACTION = 0.7;              // of the maximum heap, the rest is for workers and printing
+    static final int READS_NUCS_PER_KMER = 4;               // distinct k-mers in reads, errors included
+
+    // memory per slot of the small map, values allocated per key are given separately
+    static final int SHORT_MAP_SLOT_BYTES = 8 + 2;
+    static final int CONCURRENT_SHORT_MAP_SLOT_BYTES = 8 + 4;   // value with flags in an int
+    static final int LONG_MAP_SLOT_BYTES = 8 + 8;
+    static final int TIERED_MAP_SLOT_BYTES = 8 + 1;         // counts above 125 take a side map slot besides
+    static final int ARRAY_MAP_SLOT_BYTES = 8 + 8;          // key and reference to the values array
+    static final int ROW_MAP_SLOT_BYTES = 8 + 4;            // key and index of the row in the presence matrix
+
+    final int logSmallMapNumber;
+    final int logSmallCapacity;
+
+    MapCapacity(int logSmallMapNumber, int logSmallCapacity) {
+        this.logSmallMapNumber = logSmallMapNumber;
+        this.logSmallCapacity = logSmallCapacity;
+    }
+
+
+    /**
+     * @param expectedKeys expected number of keys, negative if unknown
+     * @param keyBytes memory allocated for every added key besides its slot (e.g. values array), 0 if none
+     */
+    static MapCapacity plan(long expectedKeys, int slotBytes, int keyBytes, int availableProcessors, Logger logger) {
+        return plan(expectedKeys, slotBytes, keyBytes, availableProcessors, heapBudget(), logger);
+    }
+
+    /**
+     * Plan for maps keeping their data off the Java heap (see LoaderOptions.offHeapMaps): the budget is a part
+     * of the usable space in dir for memory-mapped files, or of the heap size for direct memory
+     * (-XX:MaxDirectMemorySize is the maximum heap size by default).
+     * @param expectedKeys expected number of keys, negative if unknown
+     * @param dir directory for memory-mapped files, or null for direct memory
+     */
+    static MapCapacity planOffHeap(long expectedKeys, int slotBytes, File dir, int availableProcessors, Logger logger) {
+        long budget = (dir == null) ? heapBudget() : (long) (dir.getUsableSpace() * MEMORY_FRACTION);
+        return plan(expectedKeys, slotBytes, 0, availableProcessors, budget, logger);
+    }
+
+    static long heapBudget() {
+        return (long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION);
+    }
+
+    static MapCapacity plan(long expectedKeys, int slotBytes, int keyBytes, int availableProcessors, long budget,
+                            Logger logger) {
+        int logSmallMapNumber = (int) (Math.log(availableProcessors) / Math.log(2)) + 4;
+        if (expectedKeys < 0) {
+            return new MapCapacity(logSmallMapNumber, DEFAULT_LOG_SMALL_CAPACITY);
+        }
+
+        double bytesPerKey = slotBytes / LongHashSet.DEFAULT_MAX_LOAD_FACTOR + keyBytes;
+        long keys = Math.min(expectedKeys, (long) (budget / bytesPerKey));
+        if (keys < expectedKeys) {
+            Tool.debug(logger, "Map is presized for " + NumUtils.groupDigits(keys) + " of up to " +
+                    NumUtils.groupDigits(expectedKeys) + " keys due to the memory budget of " +
+                    NumUtils.memoryAsString(budget));
+        }
+        return layout(keys, logSmallMapNumber, logger);
+    }
+
+    static MapCapacity layout(long keys, int logSmallMapNumber, Logger logger) {
+        long slots = (long) (keys / LongHashSet.DEFAULT_MAX_LOAD_FACTOR) + 1;
+
+        int logSlots = 64 - Long.numberOfLeadingZeros(slots - 1);
+        int logSmallCapacity = Math.max(DEFAULT_LOG_SMALL_CAPACITY, logSlots - logSmallMapNumber);
+        if (logSmallCapacity > MAX_LOG_SMALL_CAPACITY) {
+            logSmallMapNumber += logSmallCapacity - MAX_LOG_SMALL_CAPACITY;
+            logSmallCapacity = MAX_LOG_SMALL_CAPACITY;
+        }
+        Tool.debug(logger, "Map layout: " + NumUtils.groupDigits(1L << logSmallMapNumber) + " small maps of " +
+                NumUtils.groupDigits(1L << logSmallCapacity) + " slots for " + NumUtils.groupDigits(keys) + " keys");
+        return new MapCapacity(logSmallMapNumber, logSmallCapacity);
+    }
+
+    /**
+     * @return number of records in the largest of k-mers files, i.e. a lower bound of the number of k-mers
+     *         with frequency greater than freqThreshold, if it is 0, and -1 if the number is unknown
+     */
+    static long kmersRecords(File[] files, int recordSize, int freqThreshold) {
+        if (freqThreshold > 0) {
+            return -1;
+        }
+        long records = 0;
+        for (File file : files) {
+            if (StreamingInput.isStream(file)) {
+                return -1;
+            }
+            if (CompressedKmersFile.isCompressed(file)) {
+                try (CompressedKmersFile f = new CompressedKmersFile(file)) {
+                    records = Math.max(records, f.recordsNumber);
+                } catch (IOException e) {
+                    return -1;
+                }
+            } else {
+                records = Math.max(records, file.length() / recordSize);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return upper estimate of the number of distinct k-mers in reads files, -1 if it is unknown
+     */
+    static long readsKmers(File[] files, int k) {
+        if (StreamingInput.hasStreams(files)) {
+            return -1;
+        }
+        long kmers = IOUtils.estimateReadsLength(files) / READS_NUCS_PER_KMER;
+        return (k < 32) ? Math.min(kmers, (1L << (2 * k)) / 2) : kmers;
+    }
+}
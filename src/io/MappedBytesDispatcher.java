@@ -0,0 +1,89 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Zero-copy alternative to BytesDispatcher for regular files.<br></br>
+ * The file is memory-mapped, and every worker gets its own slice of the mapping,
+ * so no bytes are copied and no lock is taken while distributing work ranges.<br></br>
+ * <br></br>
+ *
+ * Work ranges never cross a mapped segment, so if workRangeSize is a multiple of the record size,
+ * every range (except, maybe, the last one) contains only whole records.
+ */
+public class MappedBytesDispatcher {
+
+    /**
+     * Maximal number of work ranges in one mapped segment (one mapping can't be larger than 2 Gb).
+     */
+    private final long rangesInSegment;
+
+    final RandomAccessFile file;
+    final long fileSize;
+    public final int workRangeSize;
+
+    final MappedByteBuffer[] segments;
+    final long segmentSize;
+
+    private final AtomicLong nextOffset = new AtomicLong(0);
+    final AtomicLong bytesRead = new AtomicLong(0);
+
+
+    public MappedBytesDispatcher(File f, int workRangeSize) throws IOException {
+        this.workRangeSize = workRangeSize;
+        rangesInSegment = Integer.MAX_VALUE / workRangeSize;
+        if (rangesInSegment == 0) {
+            throw new IllegalArgumentException("Work range size is too big for memory mapping: " + workRangeSize);
+        }
+
+        file = new RandomAccessFile(f, "r");
+        FileChannel channel = file.getChannel();
+        fileSize = channel.size();
+
+        segmentSize = rangesInSegment * workRangeSize;
+        int segmentsNumber = (int) ((fileSize + segmentSize - 1) / segmentSize);
+        segments = new MappedByteBuffer[segmentsNumber];
+        for (int i = 0; i < segmentsNumber; i++) {
+            long start = i * segmentSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, fileSize - start));
+        }
+    }
+
+
+    /**
+     * @return independent view of the next work range (position = 0, big-endian),
+     *         or null if the whole file has been dispatched.
+     */
+    public ByteBuffer getWorkRange() {
+        long offset = nextOffset.getAndAdd(workRangeSize);
+        if (offset >= fileSize) {
+            return null;
+        }
+        int len = (int) Math.min(workRangeSize, fileSize - offset);
+        bytesRead.addAndGet(len);
+        LoadingMetrics.addBytes(len);
+
+        ByteBuffer segment = segments[(int) (offset / segmentSize)].duplicate();
+        int pos = (int) (offset % segmentSize);
+        segment.position(pos);
+        segment.limit(pos + len);
+        return segment.slice();
+    }
+
+    public long bytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Closes the underlying file. The mapping itself is released when the buffers are garbage collected.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,300 @@
+package io;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressing input stream for gzip files with inflating done in separate threads.<br></br>
+ * <br></br>
+ *
+ * BGZF files (gzip files consisting of independent blocks with BSIZE in the extra field, as produced by bgzip)
+ * are split at block boundaries and blocks are inflated in parallel by the given number of threads,
+ * the order of blocks is preserved. Plain gzip files are inflated by one producer thread, so that inflating
+ * is pipelined with the consumer.
+ */
+public class ParallelGZIPInputStream extends InputStream {
+
+    static final int BUFFER_SIZE = 1 << 20;     // 1 Mb of decompressed data for plain gzip
+    static final int QUEUE_SIZE_PER_THREAD = 4;
+
+    static final byte[] END = new byte[0];
+
+    private final InputStream in;
+    private ExecutorService executor = null;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final int maxPending;
+    private boolean bgzfEnd = false;
+
+    private Thread producer = null;
+    private BlockingQueue<byte[]> produced = null;
+    private volatile Throwable producerException = null;
+
+    private byte[] cur = new byte[0];
+    private int curPos = 0;
+
+
+    public ParallelGZIPInputStream(File file, int threads) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(file), 1 << 20), isBGZF(file), threads);
+    }
+
+    /**
+     * @param in gzipped data, read sequentially
+     * @param bgzf true if the data is BGZF, its blocks are inflated in parallel then
+     */
+    public ParallelGZIPInputStream(InputStream in, boolean bgzf, int threads) {
+        this.in = in;
+        if (bgzf) {
+            maxPending = threads * QUEUE_SIZE_PER_THREAD;
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bgzf-inflater");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            maxPending = 0;
+            produced = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE_PER_THREAD);
+            producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    produce();
+                }
+            }, "gzip-inflater");
+            producer.setDaemon(true);
+            producer.start();
+        }
+    }
+
+
+    public static boolean isGzip(File file) {
+        try (InputStream is = new FileInputStream(file)) {
+            return is.read() == 31 && is.read() == 139;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the first block of the file has BGZF extra field
+     */
+    public static boolean isBGZF(File file) {
+        try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+            byte[] header = new byte[18];
+            is.readFully(header);
+            return isBGZF(header, header.length);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the header of the first block (len bytes of it) has BGZF extra field
+     */
+    public static boolean isBGZF(byte[] header, int len) {
+        return len >= 18 && (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && header[2] == 8
+                && (header[3] & 4) != 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2;
+    }
+
+
+    private void produce() {
+        try {
+            InputStream gz = new GZIPInputStream(in, 1 << 16);
+            while (true) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int len = 0, r;
+                while (len < buf.length && (r = gz.read(buf, len, buf.length - len)) > 0) {
+                    len += r;
+                }
+                if (len == 0) {
+                    break;
+                }
+                produced.put(len == buf.length ? buf : Arrays.copyOf(buf, len));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();     // closing, END is not needed
+        } catch (Throwable e) {
+            producerException = e;      // rethrown by nextBuffer
+        } finally {
+            try {
+                produced.put(END);
+            } catch (InterruptedException e) {
+                // closing
+            }
+        }
+    }
+
+
+    /**
+     * Reads the next BGZF block from the underlying stream and submits it for inflating.
+     * @return false at the end of the file
+     */
+    private boolean submitBlock() throws IOException {
+        if (bgzfEnd) {
+            return false;
+        }
+        byte[] header = new byte[12];
+        int first = in.read();
+        if (first < 0) {
+            bgzfEnd = true;
+            return false;
+        }
+        header[0] = (byte) first;
+        readFully(header, 1, 11);
+        if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0) {
+            throw new IOException("Bad BGZF block header");
+        }
+        int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+        byte[] extra = new byte[xlen];
+        readFully(extra, 0, xlen);
+        int bsize = -1;
+        for (int i = 0; i + 4 <= xlen; ) {
+            int slen = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2) {
+                bsize = (extra[i + 4] & 0xff) | ((extra[i + 5] & 0xff) << 8);
+            }
+            i += 4 + slen;
+        }
+        if (bsize < 0) {
+            throw new IOException("No BSIZE field in BGZF block");
+        }
+        final byte[] block = new byte[bsize - xlen - 11];     // deflated data, CRC32 and ISIZE
+        readFully(block, 0, block.length);
+
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return inflateBlock(block);
+            }
+        }));
+        return true;
+    }
+
+    static byte[] inflateBlock(byte[] block) throws IOException {
+        int n = block.length;
+        int crc = readIntLE(block, n - 8);
+        int size = readIntLE(block, n - 4);
+        byte[] res = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(block, 0, n - 8);
+            int len = 0;
+            while (len < size) {
+                int r = inflater.inflate(res, len, size - len);
+                if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                len += r;
+            }
+            if (len != size) {
+                throw new IOException("Corrupted BGZF block: " + len + " bytes inflated instead of " + size);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted BGZF block", e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(res, 0, size);
+        if ((int) crc32.getValue() != crc) {
+            throw new IOException("CRC mismatch in BGZF block");
+        }
+        return res;
+    }
+
+    private static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r < 0) {
+                throw new EOFException("Unexpected end of BGZF file");
+            }
+            off += r;
+            len -= r;
+        }
+    }
+
+
+    /**
+     * @return false at the end of the data
+     */
+    private boolean nextBuffer() throws IOException {
+        while (curPos == cur.length) {
+            if (cur == END) {
+                return false;
+            }
+            if (executor != null) {
+                while (pending.size() < maxPending && submitBlock()) {
+                }
+                Future<byte[]> f = pending.poll();
+                if (f == null) {
+                    cur = END;
+                    return false;
+                }
+                try {
+                    cur = f.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while inflating");
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+                            : new IOException("Can't inflate BGZF block", e.getCause());
+                }
+            } else {
+                try {
+                    cur = produced.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while inflating");
+                }
+                if (cur == END && producerException != null) {
+                    throw (producerException instanceof IOException) ? (IOException) producerException
+                            : new IOException("Can't inflate gzip data", producerException);
+                }
+            }
+            curPos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBuffer()) {
+            return -1;
+        }
+        return cur[curPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBuffer()) {
+            return -1;
+        }
+        int r = Math.min(len, cur.length - curPos);
+        System.arraycopy(cur, curPos, b, off, r);
+        curPos += r;
+        return r;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (producer != null) {
+            producer.interrupt();
+        }
+        in.close();
+    }
+}
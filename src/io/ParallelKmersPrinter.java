@@ -0,0 +1,159 @@
+package io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel printing of k-mers maps, every small map of the big one is a shard printed by its own worker.<br></br>
+ * <br></br>
+ *
+ * The first pass counts records of every shard (and collects per-thread statistics),
+ * so that every shard gets its offset in the resulting file. The second pass writes shards
+ * to their offsets with positional writes. Records are placed in the same order
+ * as the big map's entryIterator gives, so the file is the same as the one printed by a single thread.
+ */
+class ParallelKmersPrinter {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    interface ShardPrinter {
+        /**
+         * @return number of records to be written for the shard, statistics are collected here
+         * @param thread index of the worker thread, for per-thread statistics
+         */
+        long count(int shard, int thread);
+
+        /**
+         * Writes records of the shard, exactly the number returned by count().
+         */
+        void write(int shard, DataOutputStream out) throws IOException;
+    }
+
+
+    /**
+     * @return number of printed records
+     */
+    static long print(final int shards, final ShardPrinter printer, final int recordSize,
+                      File outFile, int threads) throws IOException {
+        final long[] records = new long[shards];
+        runShards(shards, threads, new ShardTask() {
+            @Override
+            public void run(int shard, int thread) {
+                records[shard] = printer.count(shard, thread);
+            }
+        });
+
+        final long[] offsets = new long[shards + 1];
+        for (int i = 0; i < shards; i++) {
+            offsets[i + 1] = offsets[i] + records[i] * recordSize;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+            raf.setLength(offsets[shards]);
+            final FileChannel channel = raf.getChannel();
+            runShards(shards, threads, new ShardTask() {
+                @Override
+                public void run(int shard, int thread) throws IOException {
+                    PositionalOutputStream os = new PositionalOutputStream(channel, offsets[shard]);
+                    DataOutputStream out = new DataOutputStream(os);
+                    printer.write(shard, out);
+                    out.flush();
+                    if (os.position != offsets[shard + 1]) {
+                        throw new IOException("Shard " + shard + " size has changed while printing");
+                    }
+                }
+            });
+        }
+        return offsets[shards] / recordSize;
+    }
+
+
+    interface ShardTask {
+        void run(int shard, int thread) throws IOException;
+    }
+
+    private static void runShards(final int shards, int threads, final ShardTask task) throws IOException {
+        threads = Math.max(1, Math.min(threads, shards));
+        final AtomicInteger nextShard = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    int shard;
+                    while ((shard = nextShard.getAndIncrement()) < shards) {
+                        task.run(shard, thread);
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new InterruptedIOException("Interrupted while printing k-mers");
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Can't print k-mers", e.getCause());
+        }
+    }
+
+
+    /**
+     * Buffered stream writing to the channel from the given position, several of them can write to one channel.
+     */
+    static class PositionalOutputStream extends OutputStream {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position;
+
+        PositionalOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package io;
+
+import algo.KmerScanner;
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * External-memory k-mers counting for inputs whose k-mers don't fit into memory.<br></br>
+ * <br></br>
+ *
+ * Three stages:
+ * <ol>
+ *     <li>Reads are cut into super-k-mers (runs of consecutive k-mers going to the same partition),
+ *     the partition of a k-mer is determined by its minimizer - canonical m-mer with minimal hash,
+ *     so a k-mer and its reverse complement always go to the same partition. Super-k-mers
+ *     are written to partition spill files, 4 nucleotides per byte.</li>
+ *     <li>Every partition is counted independently in its own map, several partitions in parallel
+ *     as long as their estimated maps fit into the memory budget.</li>
+ *     <li>Partition outputs are concatenated into the resulting k-mers file
+ *     (or merged by SortedKmersMerger for sorted and compressed output).</li>
+ * </ol>
+ * Peak memory is bounded by the partition size rather than by the dataset size.
+ */
+public class PartitionedKmersCounter {
+
+    static final int MINIMIZER_LENGTH = 11;
+    static final int MIN_PARTITIONS = 16;
+    static final int MAX_PARTITIONS = 512;         // every partition is an open file while spilling
+    static final int ENTRY_BYTES = 27;              // per k-mer in map: (8 + 2) / 0.75, doubled while enlarging
+    static final int MIN_SPILL_BUFFER = 1 << 12;
+    static final int MAX_SPILL_BUFFER = 1 << 16;
+
+    final int k;
+    final int partitions;
+    final long memoryBudget;
+    final LoaderOptions options;
+    final int threads;
+    final File spillDir;
+    final Logger logger;
+
+    final File[] spillFiles;
+    final OutputStream[] spillStreams;
+    final long[] partitionKmers;
+
+    long kmers = 0, goodKmers = 0;
+
+
+    /**
+     * @param partitions number of partitions, 0 to choose it from input size and memory budget
+     */
+    public PartitionedKmersCounter(File[] files, int k, int partitions, long memoryBudget,
+                                   int threads, File spillDir, Logger logger) {
+        this(files, k, partitions, memoryBudget, LoaderOptions.DEFAULT, threads, spillDir, logger);
+    }
+
+    /**
+     * @param partitions number of partitions, 0 to choose it from input size and memory budget
+     * @param options options of reading the input files while spilling
+     */
+    public PartitionedKmersCounter(File[] files, int k, int partitions, long memoryBudget, LoaderOptions options,
+                                   int threads, File spillDir, Logger logger) {
+        this.k = k;
+        this.memoryBudget = memoryBudget;
+        this.options = options;
+        this.threads = threads;
+        this.spillDir = spillDir;
+        this.logger = logger;
+        if (partitions > 0) {
+            int n = Integer.highestOneBit(partitions);     // partition is taken by hash bits
+            this.partitions = (n < partitions) ? 2 * n : n;
+        } else {
+            this.partitions = choosePartitions(files, memoryBudget, threads);
+        }
+
+        spillFiles = new File[this.partitions];
+        spillStreams = new OutputStream[this.partitions];
+        partitionKmers = new long[this.partitions];
+    }
+
+    /**
+     * Estimates the number of k-mers in reads by the files sizes, and takes the number of partitions
+     * such that partitions counted by all threads fit into the memory budget.
+     * The size of streamed reads is unknown, the maximal number of partitions is taken for them.
+     */
+    static int choosePartitions(File[] files, long memoryBudget, int threads) {
+        if (StreamingInput.hasStreams(files)) {
+            return MAX_PARTITIONS;
+        }
+        long nucs = IOUtils.estimateReadsLength(files);
+        long perPartition = Math.max(1, memoryBudget / Math.max(1, threads));
+        long n = nucs * ENTRY_BYTES / perPartition + 1;
+        int partitions = MIN_PARTITIONS;
+        while (partitions < n && partitions < MAX_PARTITIONS) {
+            partitions *= 2;
+        }
+        return partitions;
+    }
+
+
+    /**
+     * Counts k-mers of the files and prints ones with frequency greater than threshold to outFile,
+     * the histogram of all k-mers frequencies is printed to stFile.
+     *
+     * @param sorted print k-mers sorted by k-mer
+     * @param compressed print to the compressed block-indexed file (sorted by k-mer)
+     * @return number of printed k-mers
+     */
+    public long count(File[] files, int threshold, File outFile, File stFile, boolean sorted, boolean compressed)
+            throws ExecutionFailedException, IOException {
+        if (!spillDir.exists()) {
+            spillDir.mkdirs();
+        }
+        Tool.info(logger, "Counting k-mers in " + partitions + " partitions, " +
+                "memory budget = " + NumUtils.memoryAsString(memoryBudget));
+
+        try {
+            spill(files);
+            File[] outputs = countPartitions(threshold, sorted || compressed, stFile);
+            concat(outputs, outFile, sorted, compressed);
+        } finally {
+            for (File file : spillFiles) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+        return goodKmers;
+    }
+
+    /**
+     * @return number of distinct k-mers found
+     */
+    public long kmers() {
+        return kmers;
+    }
+
+
+    // ---------------------------- stage 1: spilling super-k-mers ----------------------------------
+
+    private void spill(File[] files) throws ExecutionFailedException, IOException {
+        Tool.debug(logger, "Spilling super-k-mers to " + spillDir.getPath());
+        for (int i = 0; i < partitions; i++) {
+            spillFiles[i] = new File(spillDir, "partition-" + i + ".spill");
+            spillStreams[i] = new FileOutputStream(spillFiles[i]);
+        }
+        int bufferSize = (int) Math.max(MIN_SPILL_BUFFER,
+                Math.min(MAX_SPILL_BUFFER, memoryBudget / 8 / ((long) threads * partitions)));
+
+        SpillWorker[] workers = new SpillWorker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new SpillWorker(bufferSize);
+        }
+        try {
+            IOUtils.run(files, workers, null, options, logger);
+        } finally {
+            for (OutputStream stream : spillStreams) {
+                stream.close();
+            }
+        }
+
+        long total = 0, bytes = 0;
+        for (SpillWorker worker : workers) {
+            for (int i = 0; i < partitions; i++) {
+                partitionKmers[i] += worker.kmers[i];
+            }
+        }
+        for (int i = 0; i < partitions; i++) {
+            total += partitionKmers[i];
+            bytes += spillFiles[i].length();
+        }
+        Tool.debug(logger, NumUtils.groupDigits(total) + " k-mers spilled to " + NumUtils.memoryAsString(bytes));
+    }
+
+    /**
+     * Cuts reads into super-k-mers and writes them to the partitions spill files through own buffers.
+     */
+    class SpillWorker extends ReadsWorker {
+        final int m = Math.min(MINIMIZER_LENGTH, k);
+        final long mMask = (1L << (2 * m)) - 1;
+        final int mShift = 2 * m - 2;
+
+        final byte[][] buffers;
+        final int[] lens;
+        final long[] kmers = new long[partitions];
+
+        byte[] nucs = new byte[0];
+        long[] hashes = new long[0];
+        int[] deque = new int[0];
+
+        SpillWorker(int bufferSize) {
+            buffers = new byte[partitions][bufferSize];
+            lens = new int[partitions];
+        }
+
+        @Override
+        public void process(List<Dna> reads) {
+            for (Dna dna : reads) {
+                int len = dna.length();
+                ensureCapacity(len);
+                for (int i = 0; i < len; i++) {
+                    nucs[i] = dna.nucAt(i);
+                }
+                processSequence(nucs, len);
+            }
+        }
+
+        private void ensureCapacity(int len) {
+            if (nucs.length < len) {
+                nucs = new byte[Math.max(len, 2 * nucs.length)];
+            }
+        }
+
+        @Override
+        public void processSequence(byte[] seq, int len) {
+            if (hashes.length < len) {
+                hashes = new long[Math.max(len, 2 * hashes.length)];
+                deque = new int[hashes.length];
+            }
+            long fw = 0, rc = 0;
+            int filled = 0;
+            int head = 0, tail = 0;         // deque of m-mers positions with increasing hashes
+            int start = -1, partition = -1; // current super-k-mer
+
+            for (int i = 0; i < len; i++) {
+                byte nuc = seq[i];
+                if (nuc < 0) {
+                    if (start != -1) {
+                        write(partition, seq, start, i);
+                        start = -1;
+                    }
+                    filled = 0;
+                    head = tail = 0;
+                    continue;
+                }
+                fw = ((fw << 2) | nuc) & mMask;
+                rc = (rc >>> 2) | ((3L - nuc) << mShift);
+                filled++;
+                if (filled >= m) {
+                    int pos = i - m + 1;
+                    hashes[pos] = HashCommon.murmurHash3(Math.min(fw, rc));
+                    while (tail > head && hashes[deque[tail - 1]] >= hashes[pos]) {
+                        tail--;
+                    }
+                    deque[tail++] = pos;
+                }
+                if (filled >= k) {
+                    int kmerStart = i - k + 1;
+                    while (deque[head] < kmerStart) {
+                        head++;
+                    }
+                    int p = (int) hashes[deque[head]] & (partitions - 1);
+                    kmers[p]++;
+                    if (start != -1 && p != partition) {
+                        write(partition, seq, start, i);
+                        start = -1;
+                    }
+                    if (start == -1) {
+                        start = kmerStart;
+                        partition = p;
+                    }
+                }
+            }
+            if (start != -1) {
+                write(partition, seq, start, len);
+            }
+        }
+
+        /**
+         * Writes nucleotides seq[from..to-1] as a record: varint length and 4 nucleotides per byte.
+         */
+        private void write(int p, byte[] seq, int from, int to) {
+            int n = to - from;
+            int size = 5 + (n + 3) / 4;
+            if (lens[p] + size > buffers[p].length) {
+                flush(p);
+                if (size > buffers[p].length) {
+                    buffers[p] = new byte[size];
+                }
+            }
+            byte[] buf = buffers[p];
+            int pos = lens[p];
+            int v = n;
+            while ((v & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+            for (int i = from; i < to; i += 4) {
+                int b = 0;
+                for (int j = 0; j < 4 && i + j < to; j++) {
+                    b |= seq[i + j] << (2 * j);
+                }
+                buf[pos++] = (byte) b;
+            }
+            lens[p] = pos;
+        }
+
+        private void flush(int p) {
+            if (lens[p] == 0) {
+                return;
+            }
+            OutputStream stream = spillStreams[p];
+            try {
+                synchronized (stream) {
+                    stream.write(buffers[p], 0, lens[p]);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Can't write to spill file " + spillFiles[p], e);
+            }
+            lens[p] = 0;
+        }
+
+        @Override
+        public void flushBuffers() {
+            for (int p = 0; p < partitions; p++) {
+                flush(p);
+            }
+        }
+    }
+
+
+    // ---------------------------- stage 2: counting partitions ----------------------------------
+
+    private File[] countPartitions(final int threshold, final boolean sorted, File stFile)
+            throws ExecutionFailedException, IOException {
+        final File[] outputs = new File[partitions];
+        final long[] hist = new long[Short.MAX_VALUE + 1];
+
+        // permits are Mb of the memory budget
+        final int budgetMb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 20));
+        final Semaphore memory = new Semaphore(budgetMb);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        Integer[] order = new Integer[partitions];
+        for (int i = 0; i < partitions; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(partitionKmers[b], partitionKmers[a]));   // largest first
+
+        for (final int p : order) {
+            outputs[p] = new File(spillDir, "partition-" + p + ".kmers.bin");
+            final int needMb = (int) Math.max(1, Math.min(budgetMb, partitionKmers[p] * ENTRY_BYTES >> 20));
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    memory.acquire(needMb);
+                    try {
+                        countPartition(p, threshold, sorted, outputs[p], hist, needMb);
+                    } finally {
+                        memory.release(needMb);
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Can't count k-mers in partition", e.getCause());
+        }
+
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        for (int v = 0; v < hist.length; v++) {
+            if (hist[v] > 0) {
+                stats.set((short) v, hist[v]);
+            }
+        }
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return outputs;
+    }
+
+    /**
+     * @param memoryMb memory budget taken for the partition, its map is presized for the partition k-mers within it
+     */
+    private void countPartition(int p, int threshold, boolean sorted, File outFile, long[] hist, int memoryMb)
+            throws IOException {
+        long expectedKmers = Math.min(partitionKmers[p], ((long) memoryMb << 20) / ENTRY_BYTES);
+        MapCapacity capacity = MapCapacity.plan(expectedKmers, MapCapacity.SHORT_MAP_SLOT_BYTES, 0, 1, logger);
+        final BigLong2ShortHashMap hm = new BigLong2ShortHashMap(capacity.logSmallMapNumber, capacity.logSmallCapacity);
+        KmerScanner.KmerConsumer consumer = new KmerScanner.KmerConsumer() {
+            @Override
+            public void accept(long kmer, int pos) {
+                hm.addAndBound(kmer, (short) 1);
+            }
+        };
+
+        byte[] nucs = new byte[1 << 10];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(spillFiles[p]), 1 << 20))) {
+            while (true) {
+                int n = readVarInt(in);
+                if (n < 0) {
+                    break;
+                }
+                if (nucs.length < n + 3) {
+                    nucs = new byte[Math.max(n + 3, 2 * nucs.length)];
+                }
+                for (int i = 0; i < n; i += 4) {
+                    int b = in.readUnsignedByte();
+                    nucs[i] = (byte) (b & 3);
+                    nucs[i + 1] = (byte) ((b >> 2) & 3);
+                    nucs[i + 2] = (byte) ((b >> 4) & 3);
+                    nucs[i + 3] = (byte) ((b >> 6) & 3);
+                }
+                KmerScanner.scan(nucs, n, k, consumer);
+            }
+        }
+        spillFiles[p].delete();
+
+        long[] localHist = new long[Short.MAX_VALUE + 1];
+        long good = 0;
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            short value = it.next().getValue();
+            localHist[value]++;
+            if (value > threshold) {
+                good++;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(outFile), 1 << 20))) {
+            if (sorted) {
+                long[] keys = new long[(int) good];
+                int i = 0;
+                it = hm.entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        keys[i++] = entry.getKey();
+                    }
+                }
+                Arrays.sort(keys);
+                for (long key : keys) {
+                    out.writeLong(key);
+                    out.writeShort(hm.get(key));
+                }
+            } else {
+                it = hm.entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        out.writeLong(entry.getKey());
+                        out.writeShort(entry.getValue());
+                    }
+                }
+            }
+        }
+
+        synchronized (hist) {
+            for (int v = 0; v < hist.length; v++) {
+                hist[v] += localHist[v];
+            }
+            kmers += hm.size();
+            goodKmers += good;
+        }
+        Tool.debug(logger, "Partition " + p + ": " + NumUtils.groupDigits(hm.size()) + " k-mers");
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return -1;
+        }
+        int res = b & 0x7f, shift = 7;
+        while ((b & 0x80) != 0) {
+            b = in.readUnsignedByte();
+            res |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        return res;
+    }
+
+
+    // ---------------------------- stage 3: joining partitions ----------------------------------
+
+    private void concat(File[] outputs, File outFile, boolean sorted, boolean compressed) throws IOException {
+        Tool.debug(logger, "Joining partitions to " + outFile.getPath());
+        try {
+            if (compressed) {
+                try (SortedKmersMerger merger = new SortedKmersMerger(outputs)) {
+                    CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(outFile, k, 2);
+                    while (merger.next()) {
+                        writer.write(merger.key(), merger.value(merger.presentFile(0)));
+                    }
+                    writer.close();
+                }
+            } else if (sorted) {
+                try (SortedKmersMerger merger = new SortedKmersMerger(outputs);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                             new FileOutputStream(outFile), 1 << 24))) {
+                    while (merger.next()) {
+                        out.writeLong(merger.key());
+                        out.writeShort(merger.value(merger.presentFile(0)));
+                    }
+                }
+            } else {
+                try (FileChannel out = new FileOutputStream(outFile).getChannel()) {
+                    for (File file : outputs) {
+                        try (FileChannel in = new FileInputStream(file).getChannel()) {
+                            long pos = 0, size = in.size();
+                            while (pos < size) {
+                                pos += in.transferTo(pos, size - pos, out);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (File file : outputs) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel alternative to ReadsDispatcher for plain FASTQ and FASTA files.<br></br>
+ * The file is split into raw byte chunks, every worker reads its chunk itself (positional reads, no lock),
+ * finds record boundaries in it and passes nucleotide codes of every read directly to
+ * ReadsWorker.processSequence, no Dna objects are created.<br></br>
+ * <br></br>
+ *
+ * A record belongs to the chunk where its header line starts (for FASTA - the last comment line before
+ * the sequence), the last record of a chunk is read beyond the chunk end.
+ * Reads are filtered the same way as ReadersUtils.readDnaLazy does: reads with 'N' (or zero quality for FASTQ)
+ * are skipped.<br></br>
+ * <br></br>
+ *
+ * Compressed files are read as a decompressed stream (see ParallelGZIPInputStream), which is cut into chunks
+ * of whole records by a separate splitter thread, and the chunks are parsed by the workers in the same way.
+ */
+public class ReadsChunkDispatcher {
+    final Logger logger = Logger.getLogger("reads-dispatcher");
+
+    static final int READS_CHUNK_SIZE = 1 << 22;    // 4 Mb
+    static final int OVERLAP_SIZE = 1 << 16;        // initially read after the chunk end
+
+    static final byte UNKNOWN = -1;     // 'N'
+    static final byte AMBIGUOUS = -2;   // other IUPAC codes, random nucleotide is chosen as DnaTools does
+    static final byte INVALID = -3;
+    static final byte[] NUC_CODES = new byte[256];
+    static {
+        for (int c = 0; c < 256; c++) {
+            byte code;
+            switch (c) {
+                case 'N': case 'n': case '.':
+                    code = UNKNOWN;
+                    break;
+                case 'A': case 'a': case 'C': case 'c': case 'G': case 'g': case 'T': case 't':
+                    code = DnaTools.fromChar((char) c);
+                    break;
+                default:
+                    try {
+                        DnaTools.fromChar((char) c);
+                        code = AMBIGUOUS;
+                    } catch (IllegalArgumentException e) {
+                        code = INVALID;
+                    }
+            }
+            NUC_CODES[c] = code;
+        }
+    }
+
+    final File file;
+    final boolean fastq;
+    final byte zeroQualityChar;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final long fileSize;
+    final int chunkSize;
+
+    private final AtomicLong nextChunk = new AtomicLong(0);
+
+    // stream mode
+    final InputStream stream;
+    BlockingQueue<StreamChunk> filled;
+    BlockingQueue<byte[]> free;
+    int buffersToAllocate;
+    private volatile Throwable splitterException = null;
+    private Thread splitter = null;
+    final AtomicLong reads = new AtomicLong(0);
+
+    final BigLong2ShortHashMap hm; // for debug output
+
+
+    /**
+     * @return true if the file is a plain FASTQ or FASTA file which can be parsed in chunks
+     */
+    public static boolean canParse(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            String format = ReadersUtils.detectFileFormat(file);
+            return format.equals("fastq") || format.equals("fasta");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the file is a gzipped FASTQ or FASTA file which can be parsed in chunks after decompressing
+     */
+    public static boolean canParseCompressed(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            String format = ReadersUtils.detectFileFormat(file);
+            return (format.equals("fastq.gz") || format.equals("fasta.gz")) && ParallelGZIPInputStream.isGzip(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return char of zero quality in the FASTQ file, 0 for other formats
+     */
+    static byte zeroQualityChar(File file) throws IOException {
+        if (!ReadersUtils.detectFileFormat(file).startsWith("fastq")) {
+            return 0;
+        }
+        return (byte) ReadersUtils.determineQualityFormat(file).getPhredChar((byte) 0);
+    }
+
+    public ReadsChunkDispatcher(File file, BigLong2ShortHashMap hmForMonitoring) throws IOException {
+        this(file, READS_CHUNK_SIZE, hmForMonitoring);
+    }
+
+    public ReadsChunkDispatcher(File file, int chunkSize, BigLong2ShortHashMap hmForMonitoring) throws IOException {
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.hm = hmForMonitoring;
+        fastq = ReadersUtils.detectFileFormat(file).equals("fastq");
+        zeroQualityChar = fastq ? (byte) ReadersUtils.determineQualityFormat(file).getPhredChar((byte) 0) : 0;
+
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        fileSize = channel.size();
+        stream = null;
+    }
+
+    /**
+     * Stream mode: decompressed data of the file is cut into chunks of whole records by the splitter thread.
+     */
+    public ReadsChunkDispatcher(File file, InputStream decompressed, int buffersNumber,
+                                BigLong2ShortHashMap hmForMonitoring) throws IOException {
+        this(file, decompressed, ReadersUtils.detectFileFormat(file).startsWith("fastq"), zeroQualityChar(file),
+                buffersNumber, hmForMonitoring);
+    }
+
+    /**
+     * Stream mode for inputs without a file to look into (see StreamingInput), the format is given by the caller.
+     */
+    public ReadsChunkDispatcher(File file, InputStream data, boolean fastq, byte zeroQualityChar, int buffersNumber,
+                                BigLong2ShortHashMap hmForMonitoring) {
+        this.file = file;
+        this.chunkSize = READS_CHUNK_SIZE;
+        this.hm = hmForMonitoring;
+        this.fastq = fastq;
+        this.zeroQualityChar = zeroQualityChar;
+
+        raf = null;
+        channel = null;
+        fileSize = 0;
+        stream = data;
+        filled = new ArrayBlockingQueue<StreamChunk>(buffersNumber + 1);
+        free = new ArrayBlockingQueue<byte[]>(buffersNumber);
+        buffersToAllocate = buffersNumber;
+
+        splitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                split();
+            }
+        }, "reads-splitter");
+        splitter.setDaemon(true);
+        splitter.start();
+    }
+
+
+    /**
+     * Parses the next chunk and passes all its good reads to the worker.
+     * @return false if all chunks have been dispatched
+     */
+    public boolean processNextChunk(ReadsWorker worker, ChunkBuffer buffer) {
+        long chunkReads;
+        if (stream != null) {
+            StreamChunk chunk = takeChunk();
+            if (chunk == null) {
+                return false;
+            }
+            LoadingMetrics.addBytes(chunk.len);
+            try {
+                buffer.wrap(chunk.bytes, chunk.len);
+                chunkReads = fastq ? parseFastq(worker, buffer, 0, chunk.len) : parseFasta(worker, buffer, 0, chunk.len);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't read reads from file " + file, e);
+            } finally {
+                free.offer(chunk.bytes);
+            }
+        } else {
+            long start = nextChunk.getAndAdd(chunkSize);
+            if (start >= fileSize) {
+                return false;
+            }
+            long end = Math.min(start + chunkSize, fileSize);
+            LoadingMetrics.addBytes(end - start);
+
+            try {
+                buffer.load(start, (int) (end - start) + OVERLAP_SIZE);
+                chunkReads = fastq ? parseFastq(worker, buffer, start, end) : parseFasta(worker, buffer, start, end);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't read reads from file " + file, e);
+            }
+        }
+
+        LoadingMetrics.addReads(chunkReads);
+        long before = reads.getAndAdd(chunkReads);
+        if ((before + chunkReads) / 2500000 != before / 2500000) {
+            Tool.debug(logger, "Processed " + NumUtils.groupDigits(before + chunkReads) + " reads:");
+            if (hm != null) {
+                Tool.debug(logger, LoadingMetrics.mapState(hm));
+            }
+            Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
+        }
+        return true;
+    }
+
+    public long reads() {
+        return reads.get();
+    }
+
+    public void close() throws IOException {
+        if (stream != null) {
+            splitter.interrupt();
+            stream.close();
+        } else {
+            raf.close();
+        }
+    }
+
+
+    static class StreamChunk {
+        final byte[] bytes;
+        final int len;
+
+        StreamChunk(byte[] bytes, int len) {
+            this.bytes = bytes;
+            this.len = len;
+        }
+    }
+
+    static final StreamChunk END = new StreamChunk(new byte[0], 0);
+
+    private StreamChunk takeChunk() {
+        StreamChunk chunk = filled.poll();
+        try {
+            if (chunk == null) {
+                long waitStart = System.nanoTime();
+                chunk = filled.take();
+                LoadingMetrics.addIoWait(System.nanoTime() - waitStart);
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+        if (chunk == END) {
+            filled.offer(END);      // for other workers
+            if (splitterException != null) {
+                throw new RuntimeException("Can't read reads from file " + file, splitterException);
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    private byte[] takeFreeBuffer(int minSize) throws InterruptedException {
+        byte[] buf = free.poll();
+        if (buf == null) {
+            if (buffersToAllocate > 0) {
+                buffersToAllocate--;
+                buf = new byte[chunkSize];
+            } else {
+                buf = free.take();
+            }
+        }
+        return (buf.length >= minSize) ? buf : new byte[minSize];
+    }
+
+    /**
+     * Splitter thread: reads the decompressed stream and cuts it into chunks of whole records.
+     */
+    private void split() {
+        try {
+            byte[] cur = takeFreeBuffer(chunkSize);
+            int len = 0;
+            while (true) {
+                int r = 0;
+                while (len < cur.length && (r = stream.read(cur, len, cur.length - len)) > 0) {
+                    len += r;
+                }
+                if (r < 0 || len < cur.length) {
+                    if (len > 0) {
+                        filled.put(new StreamChunk(cur, len));
+                    }
+                    break;
+                }
+
+                int cut = fastq ? lastFastqBoundary(cur, len) : lastFastaBoundary(cur, len);
+                if (cut <= 0) {
+                    cur = Arrays.copyOf(cur, 2 * cur.length);     // record is longer than the buffer
+                    continue;
+                }
+                byte[] next = takeFreeBuffer(len - cut);
+                System.arraycopy(cur, cut, next, 0, len - cut);
+                filled.put(new StreamChunk(cur, cut));
+                cur = next;
+                len = len - cut;
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } catch (Throwable e) {
+            splitterException = e;      // passed to the workers by takeChunk
+        } finally {
+            filled.offer(END);
+        }
+    }
+
+    /**
+     * Chunk starts from a record beginning, so records are counted by 4 lines (empty lines between them are skipped).
+     * @return end of the last whole record
+     */
+    static int lastFastqBoundary(byte[] buf, int len) {
+        int p = 0, last = 0;
+        while (p < len) {
+            if (buf[p] == '\n' || (buf[p] == '\r' && p + 1 < len && buf[p + 1] == '\n')) {     // empty line
+                p = nextLine(buf, len, p);
+                if (p <= len) {
+                    last = p;
+                }
+                continue;
+            }
+            int q = p;
+            for (int i = 0; i < 4 && q <= len; i++) {
+                q = nextLine(buf, len, q);
+            }
+            if (q > len) {
+                break;
+            }
+            p = q;
+            last = p;
+        }
+        return last;
+    }
+
+    /**
+     * @return start of the last '>' line
+     */
+    static int lastFastaBoundary(byte[] buf, int len) {
+        for (int i = len - 1; i > 0; i--) {
+            if (buf[i] == '>' && buf[i - 1] == '\n') {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return start of the next line or len + 1 if there is no whole line starting at p
+     */
+    private static int nextLine(byte[] buf, int len, int p) {
+        while (p < len && buf[p] != '\n') {
+            p++;
+        }
+        return p + 1;
+    }
+
+
+    private long parseFastq(ReadsWorker worker, ChunkBuffer b, long start, long end) throws IOException {
+        long chunkReads = 0;
+        int chunkLen = (int) (end - start);
+        int p = b.firstLineStart(start);
+        // looking for the first header: '@' line followed by a data line and a '+' line
+        while (p < chunkLen) {
+            if (b.at(p) == '@') {
+                int next = b.nextLine(b.nextLine(p));
+                if (b.has(next) && b.at(next) == '+') {
+                    break;
+                }
+            }
+            p = b.nextLine(p);
+        }
+
+        while (p < chunkLen && b.has(p)) {
+            if (b.lineEnd(p) == p) {      // skipping empty lines
+                p = b.nextLine(p);
+                continue;
+            }
+            if (b.at(p) != '@') {
+                throw new InputMismatchException("Unknown structure of fastq file " + file.getName() +
+                        "! Waiting \"@ID\" string at position " + (start + p) + ".");
+            }
+            int seq = b.nextLine(p);
+            int plus = b.nextLine(seq);
+            int qual = b.nextLine(plus);
+            if (!b.has(qual) || b.at(plus) != '+') {
+                throw new InputMismatchException("Unexpected end of file " + file.getName() +
+                        ". File is corrupted/Format mismatch.");
+            }
+            int seqLen = b.lineEnd(seq) - seq;
+            int qualLen = b.lineEnd(qual) - qual;
+            if (seqLen != qualLen) {
+                throw new InputMismatchException("Bad DnaQ record: length of chars and quality is not the same. " +
+                        "File is corrupted/Format mismatch.");
+            }
+
+            byte[] nucs = b.nucs(seqLen);
+            boolean good = true;
+            for (int i = 0; i < seqLen; i++) {
+                if (b.at(qual + i) == zeroQualityChar) {
+                    good = false;
+                }
+                byte code = code(b.at(seq + i));
+                if (code == UNKNOWN) {
+                    good = false;
+                }
+                nucs[i] = code;
+            }
+            if (good) {
+                worker.processSequence(nucs, seqLen);
+                chunkReads++;
+            }
+            p = b.nextLine(qual);
+        }
+        return chunkReads;
+    }
+
+    private long parseFasta(ReadsWorker worker, ChunkBuffer b, long start, long end) throws IOException {
+        long chunkReads = 0;
+        int chunkLen = (int) (end - start);
+        int p = b.firstLineStart(start);
+
+        boolean dataStart = (start == 0);     // data before the first comment line belongs to the first chunk
+        while (b.has(p) && (p < chunkLen || dataStart)) {
+            if (!dataStart) {
+                if (isComment(b, p)) {
+                    int next = b.nextLine(p);
+                    dataStart = b.has(next) && !isComment(b, next);
+                    p = next;
+                } else {
+                    p = b.nextLine(p);
+                }
+                continue;
+            }
+
+            // reading the sequence up to the next comment line
+            dataStart = false;
+            int len = 0;
+            boolean good = true;
+            while (b.has(p) && !isComment(b, p)) {
+                int lineEnd = b.lineEnd(p);
+                byte[] nucs = b.nucs(len + lineEnd - p);
+                for (int i = p; i < lineEnd; i++) {
+                    byte code = code(b.at(i));
+                    if (code == UNKNOWN) {
+                        good = false;
+                    }
+                    nucs[len++] = code;
+                }
+                p = b.nextLine(p);
+            }
+            if (good && len > 0) {
+                worker.processSequence(b.nucs, len);
+                chunkReads++;
+            }
+        }
+        return chunkReads;
+    }
+
+    private static boolean isComment(ChunkBuffer b, int p) throws IOException {
+        if (b.lineEnd(p) == p) {
+            return false;
+        }
+        byte c = b.at(p);
+        return c == '>' || c == ';';
+    }
+
+    private byte code(byte c) {
+        byte code = NUC_CODES[c & 0xff];
+        if (code == AMBIGUOUS) {
+            return DnaTools.fromChar((char) c);
+        }
+        if (code == INVALID) {
+            throw new IllegalArgumentException("Incorrect nucleotide char: \"" + (char) c + "\" in file " + file.getName());
+        }
+        return code;
+    }
+
+
+    /**
+     * Worker's reusable buffer with bytes of the file starting from the chunk start,
+     * it is extended on demand while the last record of the chunk is read.
+     * Positions are relative to the chunk start, line ends ('\n' or "\r\n") are not included into lines.
+     */
+    public class ChunkBuffer {
+        byte[] buf = new byte[0];
+        int len;
+        long bufStart;
+        int offset;     // position of the chunk start in buf
+        boolean inMemory = false;
+
+        byte[] nucs = new byte[1 << 10];
+
+        void wrap(byte[] bytes, int size) {
+            buf = bytes;
+            len = size;
+            bufStart = 0;
+            offset = 0;
+            inMemory = true;
+        }
+
+        void load(long start, int size) throws IOException {
+            // one previous byte is needed to check if the chunk starts from the line beginning
+            offset = (start > 0) ? 1 : 0;
+            bufStart = start - offset;
+            len = 0;
+            read(size + offset);
+        }
+
+        private void ensureCapacity(int size) {
+            if (buf.length < size) {
+                byte[] newBuf = new byte[Math.max(size, (int) Math.min(Integer.MAX_VALUE - 8, 2L * buf.length))];
+                System.arraycopy(buf, 0, newBuf, 0, len);
+                buf = newBuf;
+            }
+        }
+
+        private boolean read(int size) throws IOException {
+            if (inMemory) {
+                return false;
+            }
+            long pos = bufStart + len;
+            int toRead = (int) Math.min(size, fileSize - pos);
+            if (toRead <= 0) {
+                return false;
+            }
+            ensureCapacity(len + toRead);
+            ByteBuffer bb = ByteBuffer.wrap(buf, len, toRead);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, pos + (bb.position() - len)) < 0) {
+                    throw new EOFException("Unexpected end of file " + file);
+                }
+            }
+            len += toRead;
+            return true;
+        }
+
+        /**
+         * @return true if there is a byte at the position (reading more data if needed)
+         */
+        boolean has(int p) throws IOException {
+            int i = p + offset;
+            while (i >= len) {
+                if (!read(Math.max(OVERLAP_SIZE, len))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte at(int p) {
+            return buf[p + offset];
+        }
+
+        int firstLineStart(long chunkStart) throws IOException {
+            if (chunkStart == 0 || buf[0] == '\n') {
+                return 0;
+            }
+            return nextLine(0);
+        }
+
+        /**
+         * @return end of the line starting at p (position of '\n' or "\r\n", or end of file)
+         */
+        int lineEnd(int p) throws IOException {
+            int i = p;
+            while (has(i) && buf[i + offset] != '\n') {
+                i++;
+            }
+            if (i > p && buf[i - 1 + offset] == '\r') {
+                i--;
+            }
+            return i;
+        }
+
+        /**
+         * @return start of the line after the one containing position p
+         */
+        int nextLine(int p) throws IOException {
+            int i = p;
+            while (has(i) && buf[i + offset] != '\n') {
+                i++;
+            }
+            return i + 1;
+        }
+
+        byte[] nucs(int size) {
+            if (nucs.length < size) {
+                nucs = java.util.Arrays.copyOf(nucs, Math.max(size, 2 * nucs.length));
+            }
+            return nucs;
+        }
+    }
+}
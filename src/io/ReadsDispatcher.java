@@ -40,15 +40,12 @@ public class ReadsDispatcher {
             if (reads % 2500000 == 0) {
                 Tool.debug(logger, "Processed " + NumUtils.groupDigits(reads) + " reads:");
                 if (hm != null) {
-                    Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
-                            "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[1].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[2].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
+                    Tool.debug(logger, LoadingMetrics.mapState(hm));
                 }
                 Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
             }
         }
+        LoadingMetrics.addReads(list.size());
         return list.isEmpty() ? null : list;
     }
 }
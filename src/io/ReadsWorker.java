@@ -3,43 +3,74 @@ package io;
 import ru.ifmo.genetics.dna.Dna;
 
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 
-public abstract class ReadsWorker implements Runnable {
+public abstract class ReadsWorker implements LoaderEngine.Worker {
 
     private ReadsDispatcher dispatcher = null;
-    private CountDownLatch latch = null;
+    private ReadsChunkDispatcher chunkDispatcher = null;
+    private ReadsChunkDispatcher.ChunkBuffer chunkBuffer = null;
 
     boolean interrupted = false;
 
 
     void setDispatcher(ReadsDispatcher dispatcher) {
         this.dispatcher = dispatcher;
+        this.chunkDispatcher = null;
     }
-    void setLatch(CountDownLatch latch) {
-        this.latch = latch;
+    void setDispatcher(ReadsChunkDispatcher chunkDispatcher) {
+        this.chunkDispatcher = chunkDispatcher;
+        this.chunkBuffer = chunkDispatcher.new ChunkBuffer();
+        this.dispatcher = null;
     }
 
 
 
     public abstract void process(List<Dna> reads);
 
+    /**
+     * Processes one read given as nucleotide codes (see DnaTools.fromChar), used by ReadsChunkDispatcher.
+     */
+    public abstract void processSequence(byte[] nucs, int len);
 
+
+    /**
+     * Processes the next work range of the current file.
+     * @return false if there are no more work ranges in the file
+     */
     @Override
-    public void run() {
-        if (dispatcher == null || latch == null) {
+    public boolean processNextRange() {
+        if (dispatcher == null && chunkDispatcher == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            List<Dna> list = dispatcher.getWorkRange();
-            if (list == null) {
-                break;
-            }
-            process(list);
+        if (interrupted) {
+            return false;
+        }
+        if (chunkDispatcher != null) {
+            return chunkDispatcher.processNextChunk(this, chunkBuffer);
+        }
+        List<Dna> list = dispatcher.getWorkRange();
+        if (list == null) {
+            return false;
         }
-        latch.countDown();
+        process(list);
+        return true;
+    }
+
+    /**
+     * Called before the first work range of the file with the given index in the list of loaded files.
+     */
+    @Override
+    public void startFile(int fileIndex) {
     }
 
+    /**
+     * Called when there is no more work in all files.
+     */
+    @Override
+    public void flushBuffers() {
+    }
+
+    @Override
     public void interrupt() {
         interrupted = true;
     }
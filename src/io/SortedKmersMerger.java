@@ -0,0 +1,267 @@
+package io;
+
+import java.io.*;
+
+/**
+ * Streaming k-way merge of several k-mers files sorted by k-mer (see IOUtils.printKmers with sorted = true)
+ * or compressed ones (see CompressedKmersFile).<br></br>
+ * All files are read sequentially in one pass, only one record and one read buffer per file is kept in memory.<br></br>
+ * <br></br>
+ *
+ * Usage:
+ * <pre>
+ *     while (merger.next()) {
+ *         long kmer = merger.key();
+ *         for (int i = 0; i < merger.presentNumber(); i++) {
+ *             int file = merger.presentFile(i);
+ *             short value = merger.value(file);
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ */
+public class SortedKmersMerger implements Closeable {
+
+    static final int BUFFER_SIZE = 1 << 16;   // 64 Kb per file
+
+    final File[] files;
+    final DataInputStream[] streams;
+    final CompressedKmersFile[] compressed;
+    final CompressedKmersFile.Reader[] readers;
+    final long[] recordsLeft;
+
+    final long[] curKeys;       // current (not yet merged) record of every file
+    final short[] curValues;
+    final boolean[] started;
+
+    // binary min-heap of file indices by curKeys
+    final int[] heap;
+    int heapSize;
+
+    // result of the last next() call
+    long key;
+    final short[] values;       // value for every file, 0 if k-mer is absent in file
+    final int[] present;
+    int presentNumber;
+
+
+    /**
+     * Thrown by next(), if a file isn't sorted by k-mer.
+     */
+    public static class NotSortedException extends IOException {
+        private static final long serialVersionUID = 1;
+
+        public NotSortedException(String message) {
+            super(message);
+        }
+    }
+
+
+    public SortedKmersMerger(File[] files) throws IOException {
+        this.files = files;
+        int n = files.length;
+        streams = new DataInputStream[n];
+        compressed = new CompressedKmersFile[n];
+        readers = new CompressedKmersFile.Reader[n];
+        recordsLeft = new long[n];
+        curKeys = new long[n];
+        curValues = new short[n];
+        started = new boolean[n];
+        heap = new int[n];
+        values = new short[n];
+        present = new int[n];
+
+        try {
+            for (int i = 0; i < n; i++) {
+                if (CompressedKmersFile.isCompressed(files[i])) {
+                    compressed[i] = new CompressedKmersFile(files[i]);
+                    readers[i] = compressed[i].reader();
+                    recordsLeft[i] = compressed[i].recordsNumber;
+                } else {
+                    if (files[i].length() % KmersLoadWorker.KMER_RECORD_SIZE != 0) {
+                        throw new IOException("File " + files[i] + " is not a k-mers file (bad length " + files[i].length() + ")");
+                    }
+                    recordsLeft[i] = files[i].length() / KmersLoadWorker.KMER_RECORD_SIZE;
+                    streams[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(files[i]), BUFFER_SIZE));
+                }
+                if (readRecord(i)) {
+                    heap[heapSize++] = i;
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+
+    /**
+     * Advances to the next k-mer present in at least one file.
+     * @return false if all files are exhausted
+     */
+    public boolean next() throws IOException {
+        for (int i = 0; i < presentNumber; i++) {
+            values[present[i]] = 0;
+        }
+        presentNumber = 0;
+        if (heapSize == 0) {
+            return false;
+        }
+
+        key = curKeys[heap[0]];
+        while (heapSize > 0 && curKeys[heap[0]] == key) {
+            int file = heap[0];
+            values[file] = curValues[file];
+            present[presentNumber++] = file;
+
+            if (readRecord(file)) {
+                siftDown(0);
+            } else {
+                heap[0] = heap[--heapSize];
+                if (heapSize > 0) {
+                    siftDown(0);
+                }
+            }
+        }
+        return true;
+    }
+
+    public long key() {
+        return key;
+    }
+
+    /**
+     * @return value of the current k-mer in the file with given index, or 0 if k-mer is absent there
+     */
+    public short value(int file) {
+        return values[file];
+    }
+
+    /**
+     * @return number of files containing the current k-mer
+     */
+    public int presentNumber() {
+        return presentNumber;
+    }
+
+    /**
+     * @return index of the i-th file containing the current k-mer, 0 <= i < presentNumber()
+     */
+    public int presentFile(int i) {
+        return present[i];
+    }
+
+    /**
+     * @return sum of values of the current k-mer in files from..to-1, bounded by Short.MAX_VALUE
+     * (as IOUtils.loadKmers does for several files), only values greater than threshold are counted
+     */
+    public short sum(int from, int to, int threshold) {
+        int sum = 0;
+        for (int i = 0; i < presentNumber; i++) {
+            int file = present[i];
+            if (from <= file && file < to && values[file] > threshold) {
+                sum += values[file];
+            }
+        }
+        return (short) Math.min(sum, Short.MAX_VALUE);
+    }
+
+    /**
+     * @return number of files from..to-1 with value of the current k-mer greater than threshold
+     */
+    public int count(int from, int to, int threshold) {
+        int count = 0;
+        for (int i = 0; i < presentNumber; i++) {
+            int file = present[i];
+            if (from <= file && file < to && values[file] > threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private boolean readRecord(int file) throws IOException {
+        if (recordsLeft[file] == 0) {
+            return false;
+        }
+        recordsLeft[file]--;
+        long kmer;
+        short value;
+        if (readers[file] != null) {
+            if (!readers[file].next()) {
+                throw new EOFException("Unexpected end of file " + files[file]);
+            }
+            kmer = readers[file].key();
+            value = (short) Math.min(readers[file].count(), Short.MAX_VALUE);
+        } else {
+            kmer = streams[file].readLong();
+            value = streams[file].readShort();
+        }
+        if (started[file] && kmer <= curKeys[file]) {
+            throw new NotSortedException("K-mers file " + files[file] + " is not sorted by k-mer, " +
+                    "it should be printed with sorted output option");
+        }
+        started[file] = true;
+        curKeys[file] = kmer;
+        curValues[file] = value;
+        return true;
+    }
+
+    private void siftDown(int i) {
+        int file = heap[i];
+        long k = curKeys[file];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && curKeys[heap[child + 1]] < curKeys[heap[child]]) {
+                child++;
+            }
+            if (curKeys[heap[child]] >= k) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = file;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        IOException ex = null;
+        for (int i = 0; i < files.length; i++) {
+            Closeable c = (streams[i] != null) ? streams[i] : compressed[i];
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    ex = e;
+                }
+            }
+        }
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+
+    public static File[] concat(File[]... groups) {
+        int n = 0;
+        for (File[] group : groups) {
+            n += group.length;
+        }
+        File[] res = new File[n];
+        int i = 0;
+        for (File[] group : groups) {
+            System.arraycopy(group, 0, res, i, group.length);
+            i += group.length;
+        }
+        return res;
+    }
+}
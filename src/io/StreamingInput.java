@@ -0,0 +1,173 @@
+package io;
+
+import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.io.formats.Illumina;
+import ru.ifmo.genetics.io.formats.Sanger;
+
+import java.io.*;
+
+/**
+ * Inputs which can be read only once from the beginning to the end: standard input (given as "-")
+ * and named pipes.<br></br>
+ * <br></br>
+ *
+ * Such inputs are consumed in a single forward pass, nothing is reopened or read by position.
+ * The format of reads is detected by the content instead of the file name: the stream is buffered,
+ * its head is looked through and reset, gzipped data (including BGZF) is recognized by the magic bytes.
+ */
+public class StreamingInput {
+
+    public static final String STDIN = "-";
+
+    static final int HEAD_SIZE = 1 << 20;      // looked through to detect the format
+
+
+    public static boolean isStdin(File file) {
+        return file.getPath().equals(STDIN);
+    }
+
+    /**
+     * @return true for standard input and other non-regular files (named pipes, devices)
+     */
+    public static boolean isStream(File file) {
+        return isStdin(file) || (file.exists() && !file.isFile() && !file.isDirectory());
+    }
+
+    public static boolean hasStreams(File[] files) {
+        for (File file : files) {
+            if (isStream(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the input for sequential reading, closing the returned stream doesn't close System.in.
+     */
+    public static InputStream open(File file) throws IOException {
+        if (isStdin(file)) {
+            return new FilterInputStream(System.in) {
+                @Override
+                public void close() {
+                }
+            };
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * @return name of the reads file for output files, "stdin" for the standard input
+     */
+    public static String readsName(File file) throws IOException {
+        if (isStdin(file)) {
+            return "stdin";
+        }
+        if (isStream(file)) {
+            String name = file.getName();       // the pipe isn't opened here, it would be consumed
+            for (String ext : new String[]{".gz", ".bz2"}) {
+                if (name.endsWith(ext)) {
+                    name = name.substring(0, name.length() - ext.length());
+                }
+            }
+            for (String ext : new String[]{".fastq", ".fq", ".fasta", ".fa", ".fn", ".fna"}) {
+                if (name.endsWith(ext)) {
+                    return name.substring(0, name.length() - ext.length());
+                }
+            }
+            return name;
+        }
+        return ReadersUtils.readDnaLazy(file).name();
+    }
+
+
+    /**
+     * Opened stream of reads: decompressed, with the format detected by the content.
+     */
+    static class ReadsStream {
+        final InputStream in;
+        final boolean fastq;
+        final byte zeroQualityChar;
+
+        ReadsStream(InputStream in, boolean fastq, byte zeroQualityChar) {
+            this.in = in;
+            this.fastq = fastq;
+            this.zeroQualityChar = zeroQualityChar;
+        }
+    }
+
+    /**
+     * Opens FASTQ or FASTA reads, plain or gzipped.
+     * @param threads threads for inflating BGZF blocks
+     */
+    static ReadsStream openReads(File file, int threads) throws IOException {
+        InputStream raw = new BufferedInputStream(open(file), HEAD_SIZE);
+        byte[] head = new byte[HEAD_SIZE];
+        int len = peek(raw, head, 18);
+        InputStream in = raw;
+        if (len >= 2 && (head[0] & 0xff) == 31 && (head[1] & 0xff) == 139) {
+            in = new BufferedInputStream(
+                    new ParallelGZIPInputStream(raw, ParallelGZIPInputStream.isBGZF(head, len), threads), HEAD_SIZE);
+        }
+
+        len = peek(in, head, HEAD_SIZE);
+        int p = 0;
+        while (p < len && Character.isWhitespace(head[p])) {
+            p++;
+        }
+        if (p == len) {
+            return new ReadsStream(in, false, (byte) 0);       // empty input
+        }
+        if (head[p] == '>') {
+            return new ReadsStream(in, false, (byte) 0);
+        }
+        if (head[p] == '@') {
+            return new ReadsStream(in, true, zeroQualityChar(head, p, len));
+        }
+        in.close();
+        throw new IOException("Can't detect reads format of " + file + ", FASTQ or FASTA is expected");
+    }
+
+    /**
+     * Reads up to n bytes from the beginning of the stream without consuming them.
+     * @return number of bytes read to buf
+     */
+    static int peek(InputStream in, byte[] buf, int n) throws IOException {
+        in.mark(n);
+        int len = 0, r;
+        while (len < n && (r = in.read(buf, len, n - len)) > 0) {
+            len += r;
+        }
+        in.reset();
+        return len;
+    }
+
+    /**
+     * Detects the quality format by the head of FASTQ data in the same way as ReadersUtils.determineQualityFormat:
+     * Illumina (Phred+64) if all quality chars fit it, Sanger (Phred+33) otherwise.
+     */
+    static byte zeroQualityChar(byte[] head, int from, int len) {
+        boolean illumina = true;
+        int line = 0;
+        int p = from;
+        while (p < len) {
+            int end = p;
+            while (end < len && head[end] != '\n') {
+                end++;
+            }
+            if (end == len) {
+                break;          // incomplete line
+            }
+            if (line % 4 == 3) {
+                for (int i = p; i < end; i++) {
+                    if (head[i] != '\r' && head[i] < 64) {
+                        illumina = false;
+                    }
+                }
+            }
+            line++;
+            p = end + 1;
+        }
+        return (byte) (illumina ? Illumina.instance : Sanger.instance).getPhredChar((byte) 0);
+    }
+}
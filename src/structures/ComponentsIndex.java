@@ -0,0 +1,431 @@
+package structures;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static index of k-mers of components: maps every k-mer of a components file to its slot in 0..size-1
+ * by MinimalPerfectHash and the slot to the number of the component (ConnectedComponent.no).
+ * A k-mer of several components is mapped to the first of them.<br></br>
+ * <br></br>
+ *
+ * Optional fingerprints of k-mers (fingerprintBits of a hash of the k-mer) are kept by slots to reject k-mers
+ * outside of the components, the fraction of such k-mers taken for components is 2^-fingerprintBits.
+ * 64-bit fingerprints are exact, without fingerprints only k-mers of the components can be looked up.
+ * With fingerprints most of other k-mers are rejected at once by the blocked Bloom filter (a cache line
+ * per k-mer, about 1 byte per k-mer of the components), the function and the fingerprint are checked then.<br></br>
+ * <br></br>
+ *
+ * The index is saved next to the components file (see indexFile) with the fingerprint of that file
+ * and is mapped to memory read-only, so it is opened at once, shared by processes and doesn't take the heap.
+ * File layout (longs in the native byte order): header, the function, the filter and entries of slots,
+ * the fingerprint and the component number of a slot are packed together to fingerprintBits + idBits,
+ * so that a lookup reads the function and one entry.
+ */
+public class ComponentsIndex implements Closeable {
+
+    private static final long MAGIC = 0x4d46434944583032L;     // "MFCIDX02"
+    private static final int HEADER_LONGS = 16;      // 9 are used, the function is aligned to 64 bytes
+
+    private static final int FILTER_BITS_PER_KMER = 8;
+    private static final int FILTER_HASHES = 5;
+    private static final int FILTER_BLOCK_LONGS = 8;  // 512 bits, a cache line
+    private static final long FILTER_SEED = 0x5851F42D4C957F2DL;
+
+    private final OffHeapMemory memory;
+    private final MinimalPerfectHash mph;
+    private final long source;
+    private final long size;
+    private final int components;
+    private final int fingerprintBits;
+    private final int idBits;
+    private final long filterBlocks;
+    private final long filterOffset, entriesOffset;
+
+
+    private ComponentsIndex(OffHeapMemory memory, File file) throws IOException {
+        this.memory = memory;
+        long magic = memory.getLong(0);
+        if (magic == Long.reverseBytes(MAGIC)) {
+            throw new IOException("Components index " + file + " has been written with other byte order");
+        }
+        if (magic != MAGIC) {
+            throw new IOException("File " + file + " isn't a components index");
+        }
+        source = memory.getLong(8);
+        size = memory.getLong(16);
+        components = (int) memory.getLong(24);
+        fingerprintBits = (int) memory.getLong(32);
+        idBits = (int) memory.getLong(40);
+        long functionLongs = memory.getLong(48);
+        filterBlocks = memory.getLong(56);
+        long entriesLongs = memory.getLong(64);
+
+        filterOffset = 8 * (HEADER_LONGS + functionLongs);
+        entriesOffset = filterOffset + 8L * FILTER_BLOCK_LONGS * filterBlocks;
+        if (fingerprintBits < 0 || fingerprintBits > 64 || idBits < 1 || idBits > 32 || filterBlocks < 0 ||
+                entriesOffset + 8 * entriesLongs != memory.size()) {
+            throw new IOException("Components index " + file + " is truncated");
+        }
+        try {
+            mph = new MinimalPerfectHash(memory, 8 * HEADER_LONGS);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Components index " + file + " is corrupted: " + e.getMessage(), e);
+        }
+        if (mph.size() != size) {
+            throw new IOException("Components index " + file + " is corrupted");
+        }
+    }
+
+    /**
+     * Maps the index file to memory.
+     */
+    public static ComponentsIndex map(File file) throws IOException {
+        if (file.length() < 8 * HEADER_LONGS) {
+            throw new IOException("File " + file + " isn't a components index");
+        }
+        OffHeapMemory memory = OffHeapMemory.mapFile(file, 0, file.length(), false);
+        try {
+            return new ComponentsIndex(memory, file);
+        } catch (IOException | RuntimeException e) {
+            memory.close();
+            throw e;
+        }
+    }
+
+    public static File indexFile(File componentsFile) {
+        return new File(componentsFile.getPath() + ".idx");
+    }
+
+    /**
+     * @return the fingerprint of the components file, the index is rebuilt if it changes
+     */
+    public static long source(File componentsFile) {
+        long source = componentsFile.getAbsolutePath().hashCode();
+        source = source * 1000003 + componentsFile.length();
+        source = source * 1000003 + componentsFile.lastModified();
+        return source;
+    }
+
+
+    /**
+     * Maps the index of the components file, building and saving it first, if it is missing or outdated.
+     * If the index can't be saved next to the components file, it is built in a temporary file.
+     *
+     * @param components components loaded from the file, or null to load them if needed
+     */
+    public static ComponentsIndex open(File componentsFile, List<ConnectedComponent> components, int fingerprintBits,
+                                       Logger logger) throws ExecutionFailedException {
+        File file = indexFile(componentsFile);
+        long source = source(componentsFile);
+        if (file.exists()) {
+            try {
+                ComponentsIndex index = map(file);
+                if (index.source == source && index.fingerprintBits == fingerprintBits) {
+                    Tool.debug(logger, "Components index is mapped from " + file);
+                    return index;
+                }
+                index.close();
+                Tool.info(logger, "Components index " + file + " has been built for other components " +
+                        "or fingerprints, rebuilding it");
+            } catch (IOException e) {
+                Tool.warn(logger, "Can't read components index " + file + ", rebuilding it: " + e.getMessage());
+            }
+        }
+
+        if (components == null) {
+            components = ConnectedComponent.loadComponents(componentsFile);
+        }
+        try {
+            try {
+                build(components, fingerprintBits, source, file, logger);
+                Tool.debug(logger, "Components index is saved to " + file);
+                return map(file);
+            } catch (IOException e) {
+                Tool.warn(logger, "Can't save components index to " + file + ": " + e.getMessage());
+            }
+            File tmp = File.createTempFile("components", ".idx");
+            try {
+                build(components, fingerprintBits, source, tmp, logger);
+                return map(tmp);
+            } finally {
+                // mapping stays valid after the file is deleted
+                if (!tmp.delete()) {
+                    tmp.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't build components index: " + e.getMessage(), e);
+        }
+    }
+
+
+    /**
+     * Builds the index of k-mers of components and writes it to the file.
+     *
+     * @param fingerprintBits bits of k-mer fingerprints, 0..64
+     * @param source fingerprint of the components file, see source(File)
+     */
+    public static void build(List<ConnectedComponent> components, int fingerprintBits, long source, File file,
+                             Logger logger) throws IOException {
+        if (fingerprintBits < 0 || fingerprintBits > 64) {
+            throw new IllegalArgumentException("Fingerprint bits should be in 0..64: " + fingerprintBits);
+        }
+        long total = 0;
+        for (ConnectedComponent component : components) {
+            total += component.kmers.size();
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many k-mers in components: " + total);
+        }
+        long[] keys = new long[(int) total];
+        int n = 0;
+        for (ConnectedComponent component : components) {
+            for (long kmer : component.kmers.array()) {
+                keys[n++] = kmer;
+            }
+        }
+        Arrays.parallelSort(keys);
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[size++] = keys[i];
+            }
+        }
+
+        long[] filter = new long[(int) (FILTER_BLOCK_LONGS * filterBlocks(size, fingerprintBits))];
+        for (int i = 0; i < size && filter.length > 0; i++) {
+            addToFilter(filter, keys[i]);
+        }
+        long[] function = MinimalPerfectHash.build(keys, size);
+        keys = null;
+        function = Arrays.copyOf(function, (function.length + 7) & ~7);     // the filter is aligned to 64 bytes
+        OffHeapMemory functionMemory = new OffHeapMemory(8L * function.length, null);
+        long[] entries;
+        int idBits = Math.max(1, 64 - Long.numberOfLeadingZeros(components.size()));
+        int entryBits = fingerprintBits + idBits;
+        long shared = 0;
+        try {
+            for (int i = 0; i < function.length; i++) {
+                functionMemory.putLong(8L * i, function[i]);
+            }
+            MinimalPerfectHash mph = new MinimalPerfectHash(functionMemory, 0);
+
+            if ((long) size * entryBits > 64L * (Integer.MAX_VALUE - 8)) {
+                throw new IOException("Too many k-mers in components: " + size);
+            }
+            entries = new long[(int) (((long) size * entryBits + 63) >>> 6)];
+            for (int i = 0; i < components.size(); i++) {
+                for (long kmer : components.get(i).kmers.array()) {
+                    long slot = mph.index(kmer);
+                    long entry = slot * entryBits;
+                    long id = get(entries, entry + fingerprintBits, idBits);
+                    if (id != 0) {
+                        if (id != i + 1) {
+                            shared++;
+                        }
+                        continue;
+                    }
+                    set(entries, entry, fingerprintBits, fingerprint(kmer));
+                    set(entries, entry + fingerprintBits, idBits, i + 1);
+                }
+            }
+        } finally {
+            functionMemory.close();
+        }
+        if (shared > 0) {
+            Tool.debug(logger, NumUtils.groupDigits(shared) + " k-mers are in several components, " +
+                    "they are indexed for the first one");
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+            long[] header = new long[HEADER_LONGS];
+            System.arraycopy(new long[]{MAGIC, source, size, components.size(), fingerprintBits, idBits,
+                    function.length, filter.length / FILTER_BLOCK_LONGS, entries.length}, 0, header, 0, 9);
+            write(channel, buffer, header);
+            write(channel, buffer, function);
+            write(channel, buffer, filter);
+            write(channel, buffer, entries);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Tool.debug(logger, "Components index: " + NumUtils.groupDigits(size) + " k-mers, " +
+                String.format("%.1f", 8.0 * (HEADER_LONGS + function.length + filter.length + entries.length) /
+                        Math.max(1, size)) + " bytes per k-mer");
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long[] array) throws IOException {
+        int i = 0;
+        while (i < array.length) {
+            buffer.clear();
+            int n = Math.min(array.length - i, buffer.capacity() >> 3);
+            buffer.asLongBuffer().put(array, i, n);
+            buffer.limit(n << 3);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            i += n;
+        }
+    }
+
+
+    /**
+     * @return number of blocks of the filter, it isn't used without fingerprints
+     */
+    private static long filterBlocks(long size, int fingerprintBits) {
+        if (fingerprintBits == 0) {
+            return 0;
+        }
+        return Math.max(1, (size * FILTER_BITS_PER_KMER + 64 * FILTER_BLOCK_LONGS - 1) / (64 * FILTER_BLOCK_LONGS));
+    }
+
+    private static void addToFilter(long[] filter, long kmer) {
+        long h = MinimalPerfectHash.mix(kmer ^ FILTER_SEED);
+        int block = (int) (((h >>> 32) * (filter.length / FILTER_BLOCK_LONGS)) >>> 32) * FILTER_BLOCK_LONGS;
+        long g = h * 0xC2B2AE3D27D4EB4FL;
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = (int) (g >>> (64 - 9 * (i + 1))) & 511;
+            filter[block + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean inFilter(long kmer) {
+        long h = MinimalPerfectHash.mix(kmer ^ FILTER_SEED);
+        long block = filterOffset + (((h >>> 32) * filterBlocks) >>> 32) * (8 * FILTER_BLOCK_LONGS);
+        long g = h * 0xC2B2AE3D27D4EB4FL;
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = (int) (g >>> (64 - 9 * (i + 1))) & 511;
+            if ((memory.getLong(block + ((bit >>> 6) << 3)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long fingerprint(long kmer) {
+        return MinimalPerfectHash.mix(kmer);
+    }
+
+    private static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private static long get(long[] packed, long bit, int bits) {
+        if (bits == 0) {
+            return 0;
+        }
+        int word = (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        long value = packed[word] >>> shift;
+        if (shift + bits > 64) {
+            value |= packed[word + 1] << (64 - shift);
+        }
+        return value & mask(bits);
+    }
+
+    private static void set(long[] packed, long bit, int bits, long value) {
+        if (bits == 0) {
+            return;
+        }
+        value &= mask(bits);
+        int word = (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        packed[word] |= value << shift;
+        if (shift + bits > 64) {
+            packed[word + 1] |= value >>> (64 - shift);
+        }
+    }
+
+    private long get(long bit, int bits) {
+        long word = entriesOffset + ((bit >>> 6) << 3);
+        int shift = (int) (bit & 63);
+        long value = memory.getLong(word) >>> shift;
+        if (shift + bits > 64) {
+            value |= memory.getLong(word + 8) << (64 - shift);
+        }
+        return value & mask(bits);
+    }
+
+
+    /**
+     * @return slot of the k-mer of the components, k-mers outside of the components aren't checked,
+     *         they get an arbitrary slot or -1
+     */
+    public long slot(long kmer) {
+        return mph.index(kmer);
+    }
+
+    /**
+     * @return slot of the k-mer checked by its fingerprint, or -1 if the k-mer isn't from the components
+     */
+    public long find(long kmer) {
+        if (fingerprintBits == 0) {
+            return mph.index(kmer);
+        }
+        if (!inFilter(kmer)) {
+            return -1;
+        }
+        long slot = mph.index(kmer);
+        if (slot == -1) {
+            return -1;
+        }
+        long fingerprint = get(slot * (fingerprintBits + idBits), fingerprintBits);
+        return fingerprint == (fingerprint(kmer) & mask(fingerprintBits)) ? slot : -1;
+    }
+
+    /**
+     * @return number of the component of the k-mer (starting from 1), or 0 if the k-mer isn't from the components
+     */
+    public int component(long kmer) {
+        long slot = find(kmer);
+        return slot == -1 ? 0 : componentAt(slot);
+    }
+
+    public int componentAt(long slot) {
+        return (int) get(slot * (fingerprintBits + idBits) + fingerprintBits, idBits);
+    }
+
+
+    /**
+     * @return number of distinct k-mers in the index
+     */
+    public long size() {
+        return size;
+    }
+
+    public int components() {
+        return components;
+    }
+
+    public int fingerprintBits() {
+        return fingerprintBits;
+    }
+
+    public long source() {
+        return source;
+    }
+
+    @Override
+    public void close() {
+        memory.close();
+    }
+}
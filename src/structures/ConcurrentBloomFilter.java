@@ -0,0 +1,111 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter for long keys, bits are set by CAS on words of AtomicLongArray.<br></br>
+ * <br></br>
+ *
+ * Used to skip k-mers seen only once: a k-mer is added to the counting map on its second sighting,
+ * i.e. when add() says it has been in the filter already.
+ * If the same new key is added by two threads at the same moment, both of them can get false.
+ */
+public class ConcurrentBloomFilter {
+
+    static final int MIN_LOG_BITS = 6;
+    static final int MAX_LOG_BITS = 36;     // 2^30 words of AtomicLongArray, 8 Gb
+
+    final AtomicLongArray words;
+    final long bitsMask;
+    final int hashes;
+
+
+    /**
+     * @param logBits log2 of the number of bits, MIN_LOG_BITS..MAX_LOG_BITS
+     */
+    public ConcurrentBloomFilter(int logBits, int hashes) {
+        if (logBits < MIN_LOG_BITS || logBits > MAX_LOG_BITS) {
+            throw new IllegalArgumentException("logBits should be in " + MIN_LOG_BITS + ".." + MAX_LOG_BITS);
+        }
+        words = new AtomicLongArray(1 << (logBits - 6));
+        bitsMask = (1L << logBits) - 1;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates a filter with false positive rate not greater than fpRate for the expected number of keys,
+     * if it fits into maxBytes. Otherwise the filter of maxBytes is created with greater false positive rate.
+     */
+    public static ConcurrentBloomFilter create(long expectedKeys, double fpRate, long maxBytes) {
+        int logBits = logBits(expectedKeys, fpRate, maxBytes);
+        int hashes = (int) Math.round((double) (1L << logBits) / Math.max(1, expectedKeys) * Math.log(2));
+        return new ConcurrentBloomFilter(logBits, Math.max(1, Math.min(hashes, 16)));
+    }
+
+
+    /**
+     * @return log2 of the number of bits of the filter created by create()
+     */
+    static int logBits(long expectedKeys, double fpRate, long maxBytes) {
+        double bits = -Math.max(1, expectedKeys) * Math.log(fpRate) / (Math.log(2) * Math.log(2));
+        int logBits = MIN_LOG_BITS;
+        while (logBits < MAX_LOG_BITS && (1L << logBits) < bits && (1L << (logBits + 1)) / 8 <= maxBytes) {
+            logBits++;
+        }
+        return logBits;
+    }
+
+
+    /**
+     * Adds the key to the filter.
+     * @return true if the key has (probably) been added before
+     */
+    public boolean add(long key) {
+        long h = HashCommon.murmurHash3(key);
+        long h1 = h, h2 = (h >>> 32) | 1;
+        boolean present = true;
+        for (int i = 0; i < hashes; i++) {
+            long bitIndex = (h1 + i * h2) & bitsMask;
+            int word = (int) (bitIndex >>> 6);
+            long bit = 1L << bitIndex;
+            long w = words.get(word);
+            while ((w & bit) == 0) {
+                if (words.compareAndSet(word, w, w | bit)) {
+                    present = false;
+                    break;
+                }
+                w = words.get(word);
+            }
+        }
+        return present;
+    }
+
+    public boolean mightContain(long key) {
+        long h = HashCommon.murmurHash3(key);
+        long h1 = h, h2 = (h >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bitIndex = (h1 + i * h2) & bitsMask;
+            if ((words.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return (long) words.length() * 8;
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    /**
+     * @return expected false positive rate after adding the given number of distinct keys
+     */
+    public double fpRate(long keys) {
+        return Math.pow(1 - Math.exp(-(double) hashes * keys / (bitsMask + 1)), hashes);
+    }
+}
@@ -1,6 +1,5 @@
 package structures;
 
-import it.unimi.dsi.fastutil.longs.LongArrayList;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 
@@ -14,7 +13,7 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
     /**
      * Stores k-mers if the component isn't a big one (less than b2 vertices).
      */
-    public List<Long> kmers;
+    public SortedKmers kmers;
 
     /**
      * Current component size (number of k-mers)
@@ -43,15 +42,14 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
 
 
     public ConnectedComponent() {
-        kmers = new LongArrayList();
+        kmers = new SortedKmers();
         size = 0;
         weight = 0;
         n_pivot = 0;
     }
 
     public ConnectedComponent(SequenceComponent component) {
-        kmers = new LongArrayList();
-        kmers.addAll(component.kmers);
+        kmers = component.kmers.copy();
         size = component.size;
         weight = component.weight;
         n_pivot = component.n_pivot;
@@ -66,13 +64,15 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
     }
 
     public void add(long kmer, short w) {
-        kmers.add(kmer);
-        size++;
+        if (kmers.add(kmer)) {
+            size++;
+        }
         weight += w;
     }
     public void add(long kmer) {
-        kmers.add(kmer);
-        size++;
+        if (kmers.add(kmer)) {
+            size++;
+        }
     }
 
 
@@ -82,11 +82,9 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
         outputStream.writeInt(components.size());
 
         for (ConnectedComponent component : components) {
-            outputStream.writeInt((int) component.size);
+            outputStream.writeInt(component.kmers.size());
             outputStream.writeLong(component.weight);
-            for (long kmer : component.kmers) {
-                outputStream.writeLong(kmer);
-            }
+            component.kmers.write(outputStream);
         }
 
         outputStream.close();
@@ -99,13 +97,7 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
             List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(cnt);
 
             for (int i = 0; i < cnt; i++) {
-                int componentSize = inputStream.readInt();
-                ConnectedComponent component = new ConnectedComponent();
-
-                component.weight = inputStream.readLong();
-                for (int j = 0; j < componentSize; j++) {
-                    component.add(inputStream.readLong());
-                }
+                ConnectedComponent component = readComponent(inputStream);
                 res.add(component);
                 component.no = i + 1;
             }
@@ -122,6 +114,22 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
     }
 
 
+    /**
+     * Reads the component written by saveComponents, its k-mers are read in bulk.
+     */
+    static ConnectedComponent readComponent(DataInputStream inputStream) throws IOException {
+        int componentSize = inputStream.readInt();
+        if (componentSize < 0) {
+            throw new EOFException("Negative component size " + componentSize);
+        }
+        ConnectedComponent component = new ConnectedComponent();
+        component.weight = inputStream.readLong();
+        component.kmers = SortedKmers.read(inputStream, componentSize);
+        component.size = component.kmers.size();
+        return component;
+    }
+
+
     @Override
     public int compareTo(ConnectedComponent o) {
         int sign = usedFreqThreshold - o.usedFreqThreshold;
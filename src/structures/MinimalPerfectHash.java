@@ -0,0 +1,201 @@
+package structures;
+
+import java.util.Arrays;
+
+/**
+ * Minimal perfect hash function over a static set of distinct long keys (k-mers): the keys are mapped
+ * to distinct indices 0..size-1 without storing them, about 4 bits per key. Built as BBHash
+ * (Limasset et al., 2017) with gamma = 2: a key is hashed to a bit array of the level,
+ * keys colliding there go to the next level, index of a key is the rank of its bit among the bits of all levels.
+ * Keys left after MAX_LEVELS levels are stored sorted after the levels.
+ * Bits of levels are stored by blocks of a cache line: the rank of the block and 448 bits,
+ * so that a lookup usually reads one cache line per level.<br></br>
+ * <br></br>
+ *
+ * The function is built to an array of longs (see build), which is saved by the owner, e.g. in ComponentsIndex,
+ * and read from OffHeapMemory, usually mapped from the file, at an offset being a multiple of 64. Keys outside of the set get arbitrary indices
+ * or -1, they should be checked by the owner (e.g. by fingerprints).
+ */
+public class MinimalPerfectHash {
+
+    static final int MAX_LEVELS = 32;
+    private static final int GAMMA = 2;
+    private static final int BLOCK_LONGS = 8;           // rank and 7 words, 64 bytes
+    private static final int BLOCK_BITS = 64 * (BLOCK_LONGS - 1);
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    // section layout in longs: size, levels, fallback keys, blocks, bits of every level (MAX_LEVELS), padding,
+    // then blocks of levels and sorted fallback keys
+    static final int HEADER_LONGS = 40;
+
+    private final OffHeapMemory memory;
+    private final long size;
+    private final long[] levelBits;
+    private final long fallback;
+    private final long blocksOffset, fallbackOffset;
+    private final long bytes;
+
+
+    /**
+     * Function written by build at the given offset (a multiple of 8) of the memory.
+     */
+    public MinimalPerfectHash(OffHeapMemory memory, long offset) {
+        this.memory = memory;
+        size = memory.getLong(offset);
+        int levels = (int) memory.getLong(offset + 8);
+        fallback = memory.getLong(offset + 16);
+        long blocks = memory.getLong(offset + 24);
+        if (levels < 0 || levels > MAX_LEVELS || fallback < 0 || fallback > size || blocks < 0) {
+            throw new IllegalArgumentException("Bad minimal perfect hash at offset " + offset);
+        }
+        levelBits = new long[levels];
+        for (int i = 0; i < levels; i++) {
+            levelBits[i] = memory.getLong(offset + 32 + 8L * i);
+        }
+        blocksOffset = offset + 8L * HEADER_LONGS;
+        fallbackOffset = blocksOffset + 8L * BLOCK_LONGS * blocks;
+        bytes = fallbackOffset + 8 * fallback - offset;
+        if (offset + bytes > memory.size()) {
+            throw new IllegalArgumentException("Minimal perfect hash at offset " + offset + " is truncated");
+        }
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3. Hashes are a part of the format of saved functions and indices
+     * (see ComponentsIndex), so they don't depend on a library version.
+     */
+    static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    static long hash(long key, int level) {
+        return mix(key + (level + 1) * SEED);
+    }
+
+    private static long position(long key, int level, long bits) {
+        return (hash(key, level) >>> 1) % bits;
+    }
+
+
+    /**
+     * Builds the function over the first size keys of the array, the keys should be distinct.
+     * The array is reordered.
+     *
+     * @return the function to be read by the constructor
+     */
+    public static long[] build(long[] keys, int size) {
+        int remaining = size;
+        long[][] levels = new long[MAX_LEVELS][];
+        int levelsNumber = 0;
+        while (remaining > 0 && levelsNumber < MAX_LEVELS) {
+            int level = levelsNumber;
+            long bits = Math.max(BLOCK_BITS, ((long) GAMMA * remaining + BLOCK_BITS - 1) / BLOCK_BITS * BLOCK_BITS);
+            long[] words = new long[(int) (bits >>> 6)];
+            long[] collided = new long[words.length];
+            for (int i = 0; i < remaining; i++) {
+                long p = position(keys[i], level, bits);
+                int w = (int) (p >>> 6);
+                long bit = 1L << p;
+                if ((words[w] & bit) != 0) {
+                    collided[w] |= bit;
+                } else {
+                    words[w] |= bit;
+                }
+            }
+            for (int w = 0; w < words.length; w++) {
+                words[w] &= ~collided[w];
+            }
+
+            int next = 0;
+            for (int i = 0; i < remaining; i++) {
+                long p = position(keys[i], level, bits);
+                if ((collided[(int) (p >>> 6)] & (1L << p)) != 0) {
+                    keys[next++] = keys[i];
+                }
+            }
+            remaining = next;
+            levels[levelsNumber++] = words;
+        }
+        Arrays.sort(keys, 0, remaining);
+
+        long blocks = 0;
+        for (int i = 0; i < levelsNumber; i++) {
+            blocks += levels[i].length / (BLOCK_LONGS - 1);
+        }
+        long length = HEADER_LONGS + BLOCK_LONGS * blocks + remaining;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many keys for minimal perfect hash: " + size);
+        }
+        long[] f = new long[(int) length];
+        f[0] = size;
+        f[1] = levelsNumber;
+        f[2] = remaining;
+        f[3] = blocks;
+        int b = HEADER_LONGS;
+        long rank = 0;
+        for (int i = 0; i < levelsNumber; i++) {
+            f[4 + i] = 64L * levels[i].length;
+            for (int w = 0; w < levels[i].length; w++) {
+                if (w % (BLOCK_LONGS - 1) == 0) {
+                    f[b++] = rank;
+                }
+                f[b++] = levels[i][w];
+                rank += Long.bitCount(levels[i][w]);
+            }
+        }
+        System.arraycopy(keys, 0, f, f.length - remaining, remaining);
+        return f;
+    }
+
+
+    /**
+     * @return index of the key in 0..size-1, if the key is from the set.
+     *         Otherwise an arbitrary index or -1 is returned.
+     */
+    public long index(long key) {
+        long base = 0;
+        for (int level = 0; level < levelBits.length; level++) {
+            long p = base + position(key, level, levelBits[level]);
+            long block = blocksOffset + (p / BLOCK_BITS) * (8 * BLOCK_LONGS);
+            int bit = (int) (p % BLOCK_BITS);
+            long word = memory.getLong(block + 8 + ((bit >>> 6) << 3));
+            if ((word & (1L << bit)) != 0) {
+                long rank = memory.getLong(block);
+                for (int w = 0; w < (bit >>> 6); w++) {
+                    rank += Long.bitCount(memory.getLong(block + 8 + (w << 3)));
+                }
+                return rank + Long.bitCount(word & ((1L << bit) - 1));
+            }
+            base += levelBits[level];
+        }
+        long lo = 0, hi = fallback - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long k = memory.getLong(fallbackOffset + (mid << 3));
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return size - fallback + mid;
+            }
+        }
+        return -1;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes taken by the function in the memory
+     */
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,244 @@
+package structures;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Zero-filled memory outside of the Java heap addressed by long offsets: direct buffers,
+ * or a temporary file mapped to memory. The memory is split into pages of 1 Gb,
+ * so its size isn't limited by 2^31 bytes as the size of ByteBuffer is.<br></br>
+ * <br></br>
+ *
+ * Longs and shorts should be aligned to their size, so that they never cross the page boundary.
+ * Only absolute gets and puts are used, the memory can be read by many threads, writes are synchronized by the owner.
+ * close() releases the memory at once, without waiting for the buffers to be collected,
+ * the memory can't be used after that. The mapped file is deleted as soon as it is mapped.<br></br>
+ * <br></br>
+ *
+ * Direct buffers are limited by -XX:MaxDirectMemorySize (the maximal heap size by default),
+ * mapped files are limited only by the disk space and are paged in and out by OS.
+ * A region of an existing file (e.g. a map snapshot, see MapSnapshot) can be mapped by mapFile,
+ * its changes aren't written to the file.
+ */
+public class OffHeapMemory implements Closeable {
+
+    private final static int LOG_PAGE_BYTES = 30;   // 1 Gb
+    private final static long PAGE_MASK = (1L << LOG_PAGE_BYTES) - 1;
+    private final static byte[] ZEROS = new byte[1 << 16];
+
+    private final long bytes;
+    private final ByteBuffer[] pages;
+
+
+    /**
+     * @param dir directory for the mapped file, or null to allocate direct buffers
+     */
+    public OffHeapMemory(long bytes, File dir) {
+        this(bytes);
+        try {
+            if (dir == null) {
+                for (int i = 0; i < pages.length; i++) {
+                    pages[i] = ByteBuffer.allocateDirect(pageSize(i));
+                }
+            } else {
+                map(dir);
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Can't map " + bytes + " bytes to a file in " + dir + ": " + e.getMessage(), e);
+        } catch (OutOfMemoryError e) {
+            close();
+            throw new RuntimeException("Can't allocate " + bytes + " bytes of direct memory, " +
+                    "increase -XX:MaxDirectMemorySize or use memory-mapped files", e);
+        }
+        setOrder();
+    }
+
+    private OffHeapMemory(long bytes) {
+        this.bytes = bytes;
+        pages = new ByteBuffer[(int) ((bytes + PAGE_MASK) >>> LOG_PAGE_BYTES)];
+    }
+
+    private void setOrder() {
+        for (ByteBuffer page : pages) {
+            page.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Maps bytes of the existing file from the given position. If writable, the mapping is private
+     * (copy-on-write): the memory can be changed, but the file isn't, though it should be writable
+     * to be mapped so. The file should stay unchanged while the memory is used.
+     */
+    public static OffHeapMemory mapFile(File file, long position, long bytes, boolean writable) throws IOException {
+        OffHeapMemory memory = new OffHeapMemory(bytes);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("File " + file + " not found");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            if (position + bytes > raf.length()) {
+                throw new IOException("File " + file + " is too short: " + raf.length() + " bytes, " +
+                        (position + bytes) + " bytes expected");
+            }
+            FileChannel channel = raf.getChannel();
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+            for (int i = 0; i < memory.pages.length; i++) {
+                memory.pages[i] = channel.map(mode, position + ((long) i << LOG_PAGE_BYTES), memory.pageSize(i));
+            }
+        } catch (IOException e) {
+            memory.close();
+            throw e;
+        }
+        memory.setOrder();
+        return memory;
+    }
+
+    private void map(File dir) throws IOException {
+        File file = File.createTempFile("offheap", ".bin", dir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(bytes);
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i << LOG_PAGE_BYTES, pageSize(i));
+            }
+        } finally {
+            // mapping stays valid after the file is deleted
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private int pageSize(int page) {
+        return (int) Math.min(1L << LOG_PAGE_BYTES, bytes - ((long) page << LOG_PAGE_BYTES));
+    }
+
+    public long size() {
+        return bytes;
+    }
+
+
+    public long getLong(long offset) {
+        return pages[(int) (offset >>> LOG_PAGE_BYTES)].getLong((int) (offset & PAGE_MASK));
+    }
+
+    public void putLong(long offset, long value) {
+        pages[(int) (offset >>> LOG_PAGE_BYTES)].putLong((int) (offset & PAGE_MASK), value);
+    }
+
+    public short getShort(long offset) {
+        return pages[(int) (offset >>> LOG_PAGE_BYTES)].getShort((int) (offset & PAGE_MASK));
+    }
+
+    public void putShort(long offset, short value) {
+        pages[(int) (offset >>> LOG_PAGE_BYTES)].putShort((int) (offset & PAGE_MASK), value);
+    }
+
+    /**
+     * Reads length longs from offset to dst by pages, offset should be a multiple of 8.
+     */
+    public void getLongs(long offset, long[] dst, int dstIndex, int length) {
+        while (length > 0) {
+            ByteBuffer page = pages[(int) (offset >>> LOG_PAGE_BYTES)].duplicate().order(ByteOrder.nativeOrder());
+            page.position((int) (offset & PAGE_MASK));
+            int n = Math.min(length, page.remaining() >> 3);
+            page.asLongBuffer().get(dst, dstIndex, n);
+            offset += (long) n << 3;
+            dstIndex += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Reads length shorts from offset to dst by pages, offset should be a multiple of 2.
+     */
+    public void getShorts(long offset, short[] dst, int dstIndex, int length) {
+        while (length > 0) {
+            ByteBuffer page = pages[(int) (offset >>> LOG_PAGE_BYTES)].duplicate().order(ByteOrder.nativeOrder());
+            page.position((int) (offset & PAGE_MASK));
+            int n = Math.min(length, page.remaining() >> 1);
+            page.asShortBuffer().get(dst, dstIndex, n);
+            offset += (long) n << 1;
+            dstIndex += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies length bytes to dst, length and offsets should be multiples of 8 or 2 (copied by longs or by shorts).
+     */
+    public void copyTo(long offset, OffHeapMemory dst, long dstOffset, int length) {
+        if ((length & 7) == 0) {
+            for (int i = 0; i < length; i += 8) {
+                dst.putLong(dstOffset + i, getLong(offset + i));
+            }
+        } else {
+            for (int i = 0; i < length; i += 2) {
+                dst.putShort(dstOffset + i, getShort(offset + i));
+            }
+        }
+    }
+
+    /**
+     * Fills all the memory with zeros.
+     */
+    public void clear() {
+        for (ByteBuffer page : pages) {
+            ByteBuffer buf = page.duplicate();
+            buf.clear();
+            while (buf.remaining() > 0) {
+                buf.put(ZEROS, 0, Math.min(ZEROS.length, buf.remaining()));
+            }
+        }
+    }
+
+
+    /**
+     * Releases the memory, any access after that throws NullPointerException (if not racing with close).
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < pages.length; i++) {
+            ByteBuffer page = pages[i];
+            pages[i] = null;
+            if (page != null) {
+                free(page);
+            }
+        }
+    }
+
+    /**
+     * Frees direct or mapped buffer by its cleaner, if it is accessible, otherwise the buffer is freed by GC.
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            // java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // not available, trying java 8 way
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left for GC
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package structures;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Matrix of presence bits: a row per key, a bit per sample. Rows have the fixed width of (samples>>6)+1 words
+ * and are allocated one after another in large pages of longs (the first page grows up to the full size),
+ * so a row costs only its bits, and a row index (int) is enough to find it.<br></br>
+ * <br></br>
+ *
+ * Not synchronized, rows are added and bits are set under the lock of the owning map.
+ */
+public class PresenceMatrix {
+
+    private final static int BITS_PER_WORD = 6; // size(long)=64=2^6
+    private final static int PAGE_WORDS = 1 << 20;  // 8 Mb
+    private final static int INITIAL_ROWS = 1 << 6;
+
+    final int samples;
+    final int width;
+    final int logPageRows;
+    final int pageRowsMask;
+    final int pageWords;
+
+    volatile long[][] pages = new long[0][];
+    int rows = 0;
+
+
+    public PresenceMatrix(int samples) {
+        this.samples = samples;
+        width = (samples>>BITS_PER_WORD) + 1;
+        logPageRows = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(1, PAGE_WORDS / width)));
+        pageRowsMask = (1 << logPageRows) - 1;
+        pageWords = (1 << logPageRows) * width;
+    }
+
+    public int samples() {
+        return samples;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @return index of the new empty row
+     */
+    public int addRow() {
+        int row = rows;
+        int page = row >>> logPageRows;
+        if (page == pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(1, 2 * pages.length));
+        }
+        // the page grows up to pageWords, so small matrices don't take the whole page
+        long[] p = pages[page];
+        int need = offset(row) + width;
+        if (p == null) {
+            pages[page] = new long[Math.min(pageWords, Math.max(need, INITIAL_ROWS * width))];
+        } else if (p.length < need) {
+            pages[page] = Arrays.copyOf(p, Math.min(pageWords, 2 * p.length));
+        }
+        rows++;
+        return row;
+    }
+
+    public void set(int row, int bitIndex) {
+        pages[row >>> logPageRows][offset(row) + (bitIndex>>BITS_PER_WORD)] |= 1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+    }
+
+    public boolean get(int row, int bitIndex) {
+        long word = pages[row >>> logPageRows][offset(row) + (bitIndex>>BITS_PER_WORD)];
+        return ((word>>(bitIndex&((1L<<BITS_PER_WORD) - 1)))&1) == 1;
+    }
+
+    public int cardinality(int row) {
+        long[] page = pages[row >>> logPageRows];
+        int offset = offset(row);
+        int count = 0;
+        for (int i = 0; i < width; i++) {
+            count += Long.bitCount(page[offset + i]);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of bits set in range [from; to) of the row
+     */
+    public int cardinality(int row, int from, int to) {
+        long[] page = pages[row >>> logPageRows];
+        int offset = offset(row);
+        int count = 0;
+
+        long bitFrom = from&((1L<<BITS_PER_WORD) - 1);
+        long bitTo = to&((1L<<BITS_PER_WORD) - 1);
+        if ((from>>BITS_PER_WORD) == (to>>BITS_PER_WORD)) {
+            return Long.bitCount(page[offset + (from>>BITS_PER_WORD)] & ((1L<<bitTo)-(1L<<bitFrom)));
+        } else {
+            long all = 0xFFFFFFFFFFFFFFFFL;
+            count += Long.bitCount(page[offset + (from>>BITS_PER_WORD)] & (all - ((1L<<bitFrom)-1)));
+            for (int i = (from>>BITS_PER_WORD) + 1; i < (to>>BITS_PER_WORD); i++) {
+                count += Long.bitCount(page[offset + i]);
+            }
+            count += Long.bitCount(page[offset + (to>>BITS_PER_WORD)] & ((1L<<bitTo) - 1));
+        }
+        return count;
+    }
+
+    public long getWord(int row, int wordIndex) {
+        return pages[row >>> logPageRows][offset(row) + wordIndex];
+    }
+
+    public void setWord(int row, int wordIndex, long word) {
+        pages[row >>> logPageRows][offset(row) + wordIndex] = word;
+    }
+
+    /**
+     * Clears bs and sets the bits of the row in it.
+     */
+    public void toBitSet(int row, BitSet bs) {
+        bs.clear();
+        long[] page = pages[row >>> logPageRows];
+        int offset = offset(row);
+        for (int i = 0; i < width; i++) {
+            long word = page[offset + i];
+            while (word != 0) {
+                bs.set((i << BITS_PER_WORD) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Removes all rows, allocated pages are kept.
+     */
+    public void clear() {
+        clearBits();
+        rows = 0;
+    }
+
+    /**
+     * Clears bits of all rows.
+     */
+    public void clearBits() {
+        for (long[] page : pages) {
+            if (page != null) {
+                Arrays.fill(page, 0);
+            }
+        }
+    }
+
+    private int offset(int row) {
+        return (row & pageRowsMask) * width;
+    }
+}
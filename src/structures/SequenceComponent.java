@@ -1,26 +1,24 @@
 package structures;
 
-import it.unimi.dsi.fastutil.longs.LongArraySet;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Created by -- on 04.02.2020.
  */
 public class SequenceComponent implements Comparable<SequenceComponent> {
 
-    public Set<Long> kmers;
+    public SortedKmers kmers;
     public long size;
     public long weight;
     public long n_pivot;
 
     public SequenceComponent() {
-        kmers = new LongArraySet();
+        kmers = new SortedKmers();
         size = 0;
         weight = 0;
         n_pivot = 0;
@@ -40,7 +38,7 @@ public class SequenceComponent implements Comparable<SequenceComponent> {
         weight++;
     }
     public void addAll(SequenceComponent component) {
-        for (long kmer: component.kmers) {
+        for (long kmer: component.kmers.array()) {
             add(kmer);
         }
     }
@@ -56,11 +54,9 @@ public class SequenceComponent implements Comparable<SequenceComponent> {
         outputStream.writeInt(components.size());
 
         for (SequenceComponent component : components) {
-            outputStream.writeInt((int) component.size);
+            outputStream.writeInt(component.kmers.size());
             outputStream.writeLong(component.weight);
-            for (long kmer : component.kmers) {
-                outputStream.writeLong(kmer);
-            }
+            component.kmers.write(outputStream);
         }
 
         outputStream.close();
@@ -73,13 +69,7 @@ public class SequenceComponent implements Comparable<SequenceComponent> {
             List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(cnt);
 
             for (int i = 0; i < cnt; i++) {
-                int componentSize = inputStream.readInt();
-                ConnectedComponent component = new ConnectedComponent();
-
-                component.weight = inputStream.readLong();
-                for (int j = 0; j < componentSize; j++) {
-                    component.add(inputStream.readLong());
-                }
+                ConnectedComponent component = ConnectedComponent.readComponent(inputStream);
                 res.add(component);
                 component.no = i + 1;
             }
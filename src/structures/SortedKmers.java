@@ -0,0 +1,152 @@
+package structures;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * K-mers of a component: sorted array of distinct k-mers, contains() is a binary search.<br></br>
+ * <br></br>
+ *
+ * K-mers added one by one are kept in a hash set and merged to the array, when the array is read
+ * (array(), get()), so that a component can be built k-mer by k-mer with membership checks.
+ * K-mers are added by one thread, the merged array can be read by many threads.
+ * In files k-mers are written as longs one after another (as DataOutput.writeLong does) by bulk writes and reads.
+ */
+public class SortedKmers {
+
+    private static final long[] EMPTY = new long[0];
+    private static final int IO_CHUNK = 1 << 13;     // longs written or read at once
+
+    private long[] kmers;
+    private LongOpenHashSet added;     // k-mers added after the last merge
+
+
+    public SortedKmers() {
+        kmers = EMPTY;
+    }
+
+    private SortedKmers(long[] kmers) {
+        this.kmers = kmers;
+    }
+
+    /**
+     * @return k-mers of the first size elements of the array, which is sorted and used,
+     *         or copied if duplicates are removed
+     */
+    public static SortedKmers wrap(long[] kmers, int size) {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            sorted = kmers[i - 1] < kmers[i];
+        }
+        if (!sorted) {
+            Arrays.sort(kmers, 0, size);
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || kmers[i] != kmers[n - 1]) {
+                    kmers[n++] = kmers[i];
+                }
+            }
+            size = n;
+        }
+        return new SortedKmers(size == kmers.length ? kmers : Arrays.copyOf(kmers, size));
+    }
+
+
+    /**
+     * @return true if the k-mer is new
+     */
+    public boolean add(long kmer) {
+        if (Arrays.binarySearch(kmers, kmer) >= 0) {
+            return false;
+        }
+        if (added == null) {
+            added = new LongOpenHashSet();
+        }
+        return added.add(kmer);
+    }
+
+    public boolean contains(long kmer) {
+        return Arrays.binarySearch(kmers, kmer) >= 0 || (added != null && added.contains(kmer));
+    }
+
+    public int size() {
+        return kmers.length + (added == null ? 0 : added.size());
+    }
+
+    public long get(int i) {
+        return array()[i];
+    }
+
+    /**
+     * @return sorted array of all k-mers, it isn't copied and shouldn't be changed
+     */
+    public long[] array() {
+        if (added != null) {
+            merge();
+        }
+        return kmers;
+    }
+
+    /**
+     * @return k-mers sharing the array with these k-mers, k-mers added to any of them aren't seen by the other
+     */
+    public SortedKmers copy() {
+        return new SortedKmers(array());
+    }
+
+    private synchronized void merge() {
+        if (added == null) {
+            return;
+        }
+        long[] b = added.toLongArray();
+        Arrays.sort(b);
+        long[] a = kmers;
+        long[] merged = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            merged[n++] = (a[i] < b[j]) ? a[i++] : b[j++];
+        }
+        while (i < a.length) {
+            merged[n++] = a[i++];
+        }
+        while (j < b.length) {
+            merged[n++] = b[j++];
+        }
+        kmers = merged;
+        added = null;
+    }
+
+
+    public void write(DataOutput out) throws IOException {
+        long[] a = array();
+        byte[] bytes = new byte[8 * Math.min(a.length, IO_CHUNK)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < a.length; i += IO_CHUNK) {
+            int n = Math.min(a.length - i, IO_CHUNK);
+            buffer.clear();
+            buffer.asLongBuffer().put(a, i, n);
+            out.write(bytes, 0, 8 * n);
+        }
+    }
+
+    /**
+     * Reads size k-mers written by write() or by writeLong() one by one, in any order.
+     */
+    public static SortedKmers read(DataInput in, int size) throws IOException {
+        long[] a = new long[size];
+        byte[] bytes = new byte[8 * Math.min(size, IO_CHUNK)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < size; i += IO_CHUNK) {
+            int n = Math.min(size - i, IO_CHUNK);
+            in.readFully(bytes, 0, 8 * n);
+            buffer.clear();
+            buffer.asLongBuffer().get(a, i, n);
+        }
+        return wrap(a, size);
+    }
+}
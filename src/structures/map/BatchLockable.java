@@ -0,0 +1,16 @@
+package structures.map;
+
+/**
+ * Map, which write lock can be held by a thread for a batch of changes (e.g. counts flushed by io.KmersCountsBuffer).
+ * The lock is reentrant: changes made by the holding thread take it again without waiting,
+ * other writers wait for the whole batch. Reading doesn't take the lock, as before.
+ */
+public interface BatchLockable {
+
+    /**
+     * Takes the write lock, waiting for other writers, if needed (the wait is counted in LockWaits).
+     */
+    void lockBatch();
+
+    void unlockBatch();
+}
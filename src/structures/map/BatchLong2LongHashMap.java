@@ -0,0 +1,49 @@
+package structures.map;
+
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+
+/**
+ * Long2LongHashMap, which write lock can be held for a batch of changes (see BatchLockable).<br></br>
+ * It can be put to BigLong2LongHashMap.maps instead of Long2LongHashMap (see newBigMap).
+ */
+public class BatchLong2LongHashMap extends Long2LongHashMap implements BatchLockable {
+
+    public BatchLong2LongHashMap(int logCapacity, float maxLoadFactor) {
+        super(logCapacity, maxLoadFactor);
+    }
+
+    /**
+     * Creates BigLong2LongHashMap with BatchLong2LongHashMap small maps.
+     */
+    public static BigLong2LongHashMap newBigMap(int logSmallMapNumber, int logSmallCapacity) {
+        BigLong2LongHashMap hm = new BigLong2LongHashMap(logSmallMapNumber, 0);
+        for (int i = 0; i < hm.maps.length; i++) {
+            hm.maps[i] = new BatchLong2LongHashMap(logSmallCapacity, DEFAULT_MAX_LOAD_FACTOR);
+        }
+        return hm;
+    }
+
+    /**
+     * Takes the lock before Long2LongHashMap does, to count the time of waiting for it (see LockWaits).
+     */
+    @Override
+    public long addAndBound(long key, long incValue) {
+        LockWaits.lock(writeLock);
+        try {
+            return super.addAndBound(key, incValue);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void lockBatch() {
+        LockWaits.lock(writeLock);
+    }
+
+    @Override
+    public void unlockBatch() {
+        writeLock.unlock();
+    }
+}
@@ -0,0 +1,49 @@
+package structures.map;
+
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+
+/**
+ * Long2ShortHashMap, which write lock can be held for a batch of changes (see BatchLockable).<br></br>
+ * It can be put to BigLong2ShortHashMap.maps instead of Long2ShortHashMap (see newBigMap).
+ */
+public class BatchLong2ShortHashMap extends Long2ShortHashMap implements BatchLockable {
+
+    public BatchLong2ShortHashMap(int logCapacity, float maxLoadFactor) {
+        super(logCapacity, maxLoadFactor);
+    }
+
+    /**
+     * Creates BigLong2ShortHashMap with BatchLong2ShortHashMap small maps.
+     */
+    public static BigLong2ShortHashMap newBigMap(int logSmallMapNumber, int logSmallCapacity) {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(logSmallMapNumber, 0);
+        for (int i = 0; i < hm.maps.length; i++) {
+            hm.maps[i] = new BatchLong2ShortHashMap(logSmallCapacity, DEFAULT_MAX_LOAD_FACTOR);
+        }
+        return hm;
+    }
+
+    /**
+     * Takes the lock before Long2ShortHashMap does, to count the time of waiting for it (see LockWaits).
+     */
+    @Override
+    public short addAndBound(long key, short incValue) {
+        LockWaits.lock(writeLock);
+        try {
+            return super.addAndBound(key, incValue);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void lockBatch() {
+        LockWaits.lock(writeLock);
+    }
+
+    @Override
+    public void unlockBatch() {
+        writeLock.unlock();
+    }
+}
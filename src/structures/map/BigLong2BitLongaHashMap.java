@@ -8,6 +8,7 @@ import ru.ifmo.genetics.structures.set.LongHashSet;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.Tool;
 
+import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -21,10 +22,10 @@ import java.util.NoSuchElementException;
  * It can contain up to 2^60 (~10^18) elements.<br></br>
  * <br></br>
  */
-public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
+public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface, Closeable {
     private static final Logger logger = Logger.getLogger("BigLong2BitLongaHashMap");
 
-    public Long2BitLongaHashMap[] maps;
+    public Long2BitLongaHashMapInterface[] maps;
     protected int mask;
 
 
@@ -46,6 +47,14 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
     }
 
     public BigLong2BitLongaHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo, int sizeBitSet) {
+        this(logSmallMapNumber, logSmallCapacity, debugInfo, sizeBitSet, false);
+    }
+
+    /**
+     * @param flat if true, small maps keep values in flat storage (see FlatLong2BitLongaHashMap)
+     */
+    public BigLong2BitLongaHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo, int sizeBitSet,
+                                   boolean flat) {
         if (logSmallMapNumber > 30) {
             throw new IllegalArgumentException("logSmallMapNumber > 30!");
         }
@@ -53,9 +62,11 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
         int smallMapNumber = 1 << logSmallMapNumber;
         mask = smallMapNumber - 1;
 
-        maps = new Long2BitLongaHashMap[smallMapNumber];
+        maps = new Long2BitLongaHashMapInterface[smallMapNumber];
         for (int i = 0; i < smallMapNumber; i++) {
-            maps[i] = new Long2BitLongaHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet);
+            maps[i] = flat
+                    ? new FlatLong2BitLongaHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet)
+                    : new Long2BitLongaHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet);
         }
         if (debugInfo) {
             Tool.debug(logger, "Created " + NumUtils.groupDigits(smallMapNumber) + " small Long2BitSetHashMaps");
@@ -106,7 +117,7 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
     @Override
     public long size() {
         long size = 0;
-        for (Long2BitLongaHashMap map : maps) {
+        for (Long2BitLongaHashMapInterface map : maps) {
             size += map.size();
         }
         return size;
@@ -115,7 +126,7 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
     @Override
     public long capacity() {
         long capacity = 0;
-        for (Long2BitLongaHashMap map : maps) {
+        for (Long2BitLongaHashMapInterface map : maps) {
             capacity += map.capacity();
         }
         return capacity;
@@ -127,13 +138,13 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
 
     @Override
     public void reset() {
-        for (Long2BitLongaHashMap map : maps) {
+        for (Long2BitLongaHashMapInterface map : maps) {
             map.reset();
         }
     }
     @Override
     public void resetValues() {
-        for (Long2BitLongaHashMap map : maps) {
+        for (Long2BitLongaHashMapInterface map : maps) {
             map.resetValues();
         }
     }
@@ -143,6 +154,9 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
 
     @Override
     public void prepare() {
+        for (Long2BitLongaHashMapInterface map : maps) {
+            map.prepare();
+        }
         off = new long[maps.length];
         off[0] = 0;
         for (int i = 1; i < maps.length; i++) {
@@ -197,7 +211,7 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
     public void write(DataOutput out) throws IOException {
         out.writeInt(maps.length);
 
-        for (Long2BitLongaHashMap map : maps) {
+        for (Long2BitLongaHashMapInterface map : maps) {
             map.write(out);
         }
     }
@@ -208,7 +222,7 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
         if (Integer.bitCount(len) != 1) {
             throw new RuntimeException("Length is not a power of two!");
         }
-        maps = new Long2BitLongaHashMap[len];
+        maps = new Long2BitLongaHashMapInterface[len];
         mask = maps.length - 1;
 
         for (int i = 0; i < len; i++) {
@@ -266,4 +280,20 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
             throw new UnsupportedOperationException();
         }
     }
+
+
+    /**
+     * Frees the memory of small maps: off-heap ones (see OffHeapLong2BitLongaHashMap) are closed,
+     * on-heap ones are reset, so that their values are collected by GC. The map can't be used after that.
+     */
+    @Override
+    public void close() {
+        for (Long2BitLongaHashMapInterface map : maps) {
+            if (map instanceof OffHeapLong2BitLongaHashMap) {
+                ((OffHeapLong2BitLongaHashMap) map).close();
+            } else {
+                map.reset();
+            }
+        }
+    }
 }
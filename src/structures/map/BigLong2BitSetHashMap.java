@@ -25,7 +25,7 @@ import java.util.NoSuchElementException;
 public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
     private static final Logger logger = Logger.getLogger("BigLong2BitSetHashMap");
 
-    public Long2BitSetHashMap[] maps;
+    public Long2BitSetHashMapInterface[] maps;
     protected int mask;
 
 
@@ -47,6 +47,14 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
     }
 
     public BigLong2BitSetHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo, int sizeBitSet) {
+        this(logSmallMapNumber, logSmallCapacity, debugInfo, sizeBitSet, false);
+    }
+
+    /**
+     * @param compact if true, small maps keep values in presence matrices (see CompactLong2BitSetHashMap)
+     */
+    public BigLong2BitSetHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo, int sizeBitSet,
+                                 boolean compact) {
         if (logSmallMapNumber > 30) {
             throw new IllegalArgumentException("logSmallMapNumber > 30!");
         }
@@ -54,9 +62,11 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
         int smallMapNumber = 1 << logSmallMapNumber;
         mask = smallMapNumber - 1;
 
-        maps = new Long2BitSetHashMap[smallMapNumber];
+        maps = new Long2BitSetHashMapInterface[smallMapNumber];
         for (int i = 0; i < smallMapNumber; i++) {
-            maps[i] = new Long2BitSetHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet);
+            maps[i] = compact
+                    ? new CompactLong2BitSetHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet)
+                    : new Long2BitSetHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet);
         }
         if (debugInfo) {
             Tool.debug(logger, "Created " + NumUtils.groupDigits(smallMapNumber) + " small Long2BitSetHashMaps");
@@ -88,6 +98,18 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
         return maps[n].getWithEmpty(key);
     }
 
+    @Override
+    public int getCardinality(long key) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        return maps[n].getCardinality(key);
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        return maps[n].getCardinality(key, from, to);
+    }
+
     @Override
     public boolean contains(long key) {
         int n = HashCommon.murmurHash3((int) key) & mask;
@@ -97,7 +119,7 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
     @Override
     public long size() {
         long size = 0;
-        for (Long2BitSetHashMap map : maps) {
+        for (Long2BitSetHashMapInterface map : maps) {
             size += map.size();
         }
         return size;
@@ -106,7 +128,7 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
     @Override
     public long capacity() {
         long capacity = 0;
-        for (Long2BitSetHashMap map : maps) {
+        for (Long2BitSetHashMapInterface map : maps) {
             capacity += map.capacity();
         }
         return capacity;
@@ -118,13 +140,13 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
 
     @Override
     public void reset() {
-        for (Long2BitSetHashMap map : maps) {
+        for (Long2BitSetHashMapInterface map : maps) {
             map.reset();
         }
     }
     @Override
     public void resetValues() {
-        for (Long2BitSetHashMap map : maps) {
+        for (Long2BitSetHashMapInterface map : maps) {
             map.resetValues();
         }
     }
@@ -188,7 +210,7 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
     public void write(DataOutput out) throws IOException {
         out.writeInt(maps.length);
 
-        for (Long2BitSetHashMap map : maps) {
+        for (Long2BitSetHashMapInterface map : maps) {
             map.write(out);
         }
     }
@@ -199,7 +221,7 @@ public class BigLong2BitSetHashMap implements Long2BitSetHashMapInterface {
         if (Integer.bitCount(len) != 1) {
             throw new RuntimeException("Length is not a power of two!");
         }
-        maps = new Long2BitSetHashMap[len];
+        maps = new Long2BitSetHashMapInterface[len];
         mask = maps.length - 1;
 
         for (int i = 0; i < len; i++) {
@@ -8,6 +8,7 @@ import ru.ifmo.genetics.structures.set.LongHashSet;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.Tool;
 
+import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -21,10 +22,10 @@ import java.util.NoSuchElementException;
  * It can contain up to 2^60 (~10^18) elements.<br></br>
  * <br></br>
  */
-public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface {
+public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface, Closeable {
     private static final Logger logger = Logger.getLogger("BigLong2BitLongaHashMap");
 
-    public Long2BitShortaHashMap[] maps;
+    public Long2BitShortaHashMapInterface[] maps;
     protected int mask;
 
 
@@ -53,7 +54,7 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
         int smallMapNumber = 1 << logSmallMapNumber;
         mask = smallMapNumber - 1;
 
-        maps = new Long2BitShortaHashMap[smallMapNumber];
+        maps = new Long2BitShortaHashMapInterface[smallMapNumber];
         for (int i = 0; i < smallMapNumber; i++) {
             maps[i] = new Long2BitShortaHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet);
         }
@@ -106,7 +107,7 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
     @Override
     public long size() {
         long size = 0;
-        for (Long2BitShortaHashMap map : maps) {
+        for (Long2BitShortaHashMapInterface map : maps) {
             size += map.size();
         }
         return size;
@@ -115,7 +116,7 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
     @Override
     public long capacity() {
         long capacity = 0;
-        for (Long2BitShortaHashMap map : maps) {
+        for (Long2BitShortaHashMapInterface map : maps) {
             capacity += map.capacity();
         }
         return capacity;
@@ -127,13 +128,13 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
 
     @Override
     public void reset() {
-        for (Long2BitShortaHashMap map : maps) {
+        for (Long2BitShortaHashMapInterface map : maps) {
             map.reset();
         }
     }
     @Override
     public void resetValues() {
-        for (Long2BitShortaHashMap map : maps) {
+        for (Long2BitShortaHashMapInterface map : maps) {
             map.resetValues();
         }
     }
@@ -143,6 +144,9 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
 
     @Override
     public void prepare() {
+        for (Long2BitShortaHashMapInterface map : maps) {
+            map.prepare();
+        }
         off = new long[maps.length];
         off[0] = 0;
         for (int i = 1; i < maps.length; i++) {
@@ -197,7 +201,7 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
     public void write(DataOutput out) throws IOException {
         out.writeInt(maps.length);
 
-        for (Long2BitShortaHashMap map : maps) {
+        for (Long2BitShortaHashMapInterface map : maps) {
             map.write(out);
         }
     }
@@ -208,7 +212,7 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
         if (Integer.bitCount(len) != 1) {
             throw new RuntimeException("Length is not a power of two!");
         }
-        maps = new Long2BitShortaHashMap[len];
+        maps = new Long2BitShortaHashMapInterface[len];
         mask = maps.length - 1;
 
         for (int i = 0; i < len; i++) {
@@ -266,4 +270,20 @@ public class BigLong2BitShortaHashMap implements Long2BitShortaHashMapInterface
             throw new UnsupportedOperationException();
         }
     }
+
+
+    /**
+     * Frees the memory of small maps: off-heap ones (see OffHeapLong2BitShortaHashMap) are closed,
+     * on-heap ones are reset, so that their values are collected by GC. The map can't be used after that.
+     */
+    @Override
+    public void close() {
+        for (Long2BitShortaHashMapInterface map : maps) {
+            if (map instanceof OffHeapLong2BitShortaHashMap) {
+                ((OffHeapLong2BitShortaHashMap) map).close();
+            } else {
+                map.reset();
+            }
+        }
+    }
 }
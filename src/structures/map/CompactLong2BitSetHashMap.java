@@ -0,0 +1,360 @@
+package structures.map;
+
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import structures.PresenceMatrix;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Memory-lean version of Long2BitSetHashMap: values are rows of PresenceMatrix,
+ * the hash table keeps only keys and row indices.<br></br>
+ * <br></br>
+ *
+ * A row is allocated when its key is added, so empty slots cost 12 bytes (key and row index)
+ * and a key costs (sizeBitSet>>6)+1 longs. Rows don't move on rehashing, only row indices are copied.
+ * Bits are set, got and counted in place. Methods returning BitSet (get, valueAt) create a new BitSet
+ * with the bits of the row, the iterator reuses one BitSet for all entries.<br></br>
+ * set() doesn't return the previous value: it returns null, if the key is new, and an empty BitSet otherwise.
+ */
+public class CompactLong2BitSetHashMap extends LongHashSet implements Long2BitSetHashMapInterface {
+
+    private final static BitSet NOT_NEW = new BitSet(0);
+
+
+
+    protected class MapData extends SetData {
+        protected final int[] rows;
+        protected volatile int rowForFreeKey;
+
+        public MapData(int capacity, float maxLoadFactor) {
+            super(capacity, maxLoadFactor);
+            rows = new int[capacity];
+            rowForFreeKey = -1;
+        }
+    }
+
+    protected volatile MapData data;
+    protected final PresenceMatrix matrix;
+
+    // constructors
+    public CompactLong2BitSetHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR, 0);  // 1 M elements
+    }
+    public CompactLong2BitSetHashMap(int logCapacity, float maxLoadFactor, int sizeBitSet) {
+        if (logCapacity > 30) {
+            throw new IllegalArgumentException("log capacity > 30!");
+        }
+
+        this.maxLoadFactor = maxLoadFactor;
+        int capacity = 1 << logCapacity;
+        data = new MapData(capacity, maxLoadFactor);
+        super.data = data;
+        matrix = new PresenceMatrix(sizeBitSet);
+    }
+
+    @Override
+    public boolean add(long key) {
+        return set(key, 0) == null;
+    }
+
+
+    @Override
+    public BitSet set(long key, int bitIndex) {
+        if (key == FREE) {
+            LockWaits.lock(writeLock);
+            try {
+                MapData curData = data;
+                boolean isNew = !curData.containsFreeKey;
+                if (isNew) {
+                    curData.rowForFreeKey = matrix.addRow();
+                }
+                matrix.set(curData.rowForFreeKey, bitIndex);
+                if (isNew) {
+                    curData.containsFreeKey = true;
+                    curData.size++;
+                    return null;
+                }
+                return NOT_NEW;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        while (true) {
+            MapData curData = data;
+            int pos = getPositionInt(curData, key);
+            LockWaits.lock(writeLock);
+            try {
+                if (curData == data && (curData.keys[pos] == FREE || curData.keys[pos] == key)) {  // i.e. nothing has changed
+                    if (curData.keys[pos] == FREE) {
+                        curData.rows[pos] = matrix.addRow();
+                        matrix.set(curData.rows[pos], bitIndex);
+                        curData.keys[pos] = key;
+                        curData.size++;
+                        if (curData.size >= curData.maxFill) {
+                            enlargeAndRehash();
+                        }
+                        return null;
+                    }
+                    matrix.set(curData.rows[pos], bitIndex);
+                    return NOT_NEW;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void enlargeAndRehash() {
+        MapData curData = data;
+        if (curData.capacity > Integer.MAX_VALUE / 2) {
+            throw new RuntimeException("Can't enlarge map (can't create single array of 2^31 elements)!");
+        }
+        int newCapacity = 2 * curData.capacity;
+        MapData newData = new MapData(newCapacity, maxLoadFactor);
+
+        // copying elements, rows stay in place
+        for (int oldPos = 0; oldPos < curData.keys.length; oldPos++) {
+            long key = curData.keys[oldPos];
+            if (key != FREE) {
+                int pos = getPositionInt(newData, key);
+                newData.keys[pos] = key;
+                newData.rows[pos] = curData.rows[oldPos];
+            }
+        }
+        newData.containsFreeKey = curData.containsFreeKey;
+        newData.rowForFreeKey = curData.rowForFreeKey;
+        newData.size = curData.size;
+
+        data = newData;
+        super.data = newData;
+    }
+
+    /**
+     * @return row of the key, or -1 if not found
+     */
+    private static int row(MapData curData, long key) {
+        if (key == FREE) {
+            return curData.containsFreeKey ? curData.rowForFreeKey : -1;
+        }
+        int pos = getPositionInt(curData, key);
+        return (curData.keys[pos] == key) ? curData.rows[pos] : -1;
+    }
+
+    @Override
+    public boolean get(long key, int bitIndex) {
+        int row = row(data, key);
+        return row != -1 && matrix.get(row, bitIndex);
+    }
+
+    @Override
+    public BitSet get(long key) {
+        int row = row(data, key);
+        if (row == -1) {
+            return null;
+        }
+        BitSet value = new BitSet(matrix.samples());
+        matrix.toBitSet(row, value);
+        return value;
+    }
+
+    @Override
+    public BitSet getWithEmpty(long key) {
+        BitSet value = get(key);
+        if (value == null)
+            return new BitSet();
+        return value;
+    }
+
+    @Override
+    public int getCardinality(long key) {
+        int row = row(data, key);
+        return (row == -1) ? 0 : matrix.cardinality(row);
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        int row = row(data, key);
+        return (row == -1) ? 0 : matrix.cardinality(row, from, to);
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return contains(data, key);
+    }
+
+    @Override
+    public long size() { return data.size; }
+
+    @Override
+    public long capacity() { return data.capacity; }
+
+
+    @Override
+    public void reset() {
+        writeLock.lock();
+        MapData curData = data;
+        try {
+            Arrays.fill(curData.keys, FREE);
+            matrix.clear();
+            curData.containsFreeKey = false;
+            curData.rowForFreeKey = -1;
+            curData.size = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void resetValues() {
+        writeLock.lock();
+        try {
+            matrix.clearBits();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    @Override
+    public long keyAt(long pos) {
+        return elementAt(pos);
+    }
+
+    @Override
+    public BitSet valueAt(long pos) {
+        MapData curData = data;
+        if (!containsAt(pos)) {
+            return null;
+        }
+        BitSet value = new BitSet(matrix.samples());
+        matrix.toBitSet((pos == curData.capacity) ? curData.rowForFreeKey : curData.rows[(int) pos], value);
+        return value;
+    }
+
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        MapData curData = data;
+
+        out.writeInt(matrix.samples());
+        out.writeInt(curData.capacity);
+        out.writeInt(curData.size);
+        out.writeFloat(maxLoadFactor);
+
+        int width = (matrix.samples() >> 6) + 1;
+        for (int i = 0; i < curData.capacity; i++) {
+            out.writeLong(curData.keys[i]);
+            if (curData.keys[i] != FREE) {
+                for (int j = 0; j < width; j++) {
+                    out.writeLong(matrix.getWord(curData.rows[i], j));
+                }
+            }
+        }
+        out.writeBoolean(curData.containsFreeKey);
+        if (curData.containsFreeKey) {
+            for (int j = 0; j < width; j++) {
+                out.writeLong(matrix.getWord(curData.rowForFreeKey, j));
+            }
+        }
+    }
+
+    /**
+     * Reads the map written by CompactLong2BitSetHashMap.write, the number of samples should be the same.
+     */
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int sizeBitSet = in.readInt();
+        if (sizeBitSet != matrix.samples()) {
+            throw new IOException("Map for " + sizeBitSet + " samples can't be read to the map for " +
+                    matrix.samples() + " samples");
+        }
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+        MapData newData = new MapData(capacity, maxLoadFactor);
+        matrix.clear();
+
+        int width = (sizeBitSet >> 6) + 1;
+        for (int i = 0; i < capacity; i++) {
+            newData.keys[i] = in.readLong();
+            if (newData.keys[i] != FREE) {
+                newData.rows[i] = matrix.addRow();
+                for (int j = 0; j < width; j++) {
+                    matrix.setWord(newData.rows[i], j, in.readLong());
+                }
+            }
+        }
+        newData.containsFreeKey = in.readBoolean();
+        if (newData.containsFreeKey) {
+            newData.rowForFreeKey = matrix.addRow();
+            for (int j = 0; j < width; j++) {
+                matrix.setWord(newData.rowForFreeKey, j, in.readLong());
+            }
+        }
+        newData.size = size;
+
+        data = newData;
+        super.data = newData;
+    }
+
+    @Override
+    public Iterator<MutableLongBitSetEntry> entryIterator() {
+        return new MyIterator(data);
+    }
+
+    protected class MyIterator implements Iterator<MutableLongBitSetEntry> {
+        private final MapData curData;
+        private int index = 0;
+        private final MutableLongBitSetEntry entry = new MutableLongBitSetEntry();
+        private final BitSet value = new BitSet(matrix.samples());
+
+        MyIterator(MapData curData) {
+            this.curData = curData;
+            entry.setValue(value);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((index < curData.capacity) && (curData.keys[index] == FREE)) {
+                index++;
+            }
+            if (index < curData.capacity) {
+                return true;
+            }
+            if (index == curData.capacity && curData.containsFreeKey) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public MutableLongBitSetEntry next() {
+            if (hasNext()){
+                if (index < curData.capacity) {
+                    entry.setKey(curData.keys[index]);
+                    matrix.toBitSet(curData.rows[index], value);
+                }
+                if (index == curData.capacity) {
+                    entry.setKey(FREE);
+                    matrix.toBitSet(curData.rowForFreeKey, value);
+                }
+                index++;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package structures.map;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free version of Long2ShortHashMap, counting threads don't take any lock.<br></br>
+ * It can be put to BigLong2ShortHashMap.maps instead of Long2ShortHashMap (see newBigMap).<br></br>
+ * <br></br>
+ *
+ * Keys are claimed by compareAndSet from FREE, values are updated by compareAndSet of the value cell
+ * (saturating in addAndBound as NumUtils.addAndBound does). The value cell is an int holding the short value
+ * and two flags: PRESENT (the key has been added) and FROZEN (the cell has been copied to the next table).
+ * The free key has its own value cell at position capacity, the same as in Long2ShortHashMap.<br></br>
+ * <br></br>
+ *
+ * Resize is cooperative. The thread exceeding maxFill allocates the next table, after that new keys aren't added
+ * to the current table, and every thread touching it helps to copy it by chunks: a cell is frozen, then
+ * its key and value are copied. Threads finding a frozen cell or a free slot wait for the copying to finish
+ * (helping it) and repeat the operation in the next table.<br></br>
+ * <br></br>
+ *
+ * A slot takes 12 bytes instead of 10 in Long2ShortHashMap.
+ * Methods using positions, iterators, reset, write and readFields are for the time no other thread changes the map.
+ */
+public class ConcurrentLong2ShortHashMap extends Long2ShortHashMap {
+
+    static final int VALUE_MASK = 0xffff;
+    static final int PRESENT = 1 << 16;
+    static final int FROZEN = 1 << 17;
+    static final int MOVED = -1;                // returned instead of the value cell, if it is frozen
+
+    static final int MIGRATION_CHUNK = 1 << 12;
+
+
+    protected static class Table {
+        final AtomicLongArray keys;
+        final AtomicIntegerArray values;        // capacity + 1 cells, the last one is for the free key
+        final int capacity, capacityMask, maxFill;
+        final AtomicInteger size = new AtomicInteger(0);
+
+        volatile Table next = null;
+        volatile boolean copied = false;
+        final int chunks;
+        final AtomicInteger chunksClaimed = new AtomicInteger(0);
+        final AtomicInteger chunksDone = new AtomicInteger(0);
+
+        Table(int capacity, float maxLoadFactor) {
+            if (Integer.bitCount(capacity) != 1) {  // i.e. not power of 2
+                throw new RuntimeException("Bad capacity " + capacity + ".");
+            }
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicIntegerArray(capacity + 1);
+            this.capacity = capacity;
+            capacityMask = capacity - 1;
+            maxFill = (int) Math.ceil(capacity * maxLoadFactor);
+            chunks = capacity / MIGRATION_CHUNK + 1;
+        }
+    }
+
+    protected volatile Table table;
+
+
+    // constructors
+    public ConcurrentLong2ShortHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR);  // 1 M elements
+    }
+    public ConcurrentLong2ShortHashMap(int logCapacity, float maxLoadFactor) {
+        super(0, maxLoadFactor);            // data of Long2ShortHashMap isn't used
+        if (logCapacity > 30) {
+            throw new IllegalArgumentException("log capacity > 30!");
+        }
+        table = new Table(1 << logCapacity, maxLoadFactor);
+    }
+
+    /**
+     * Creates BigLong2ShortHashMap with ConcurrentLong2ShortHashMap small maps.
+     */
+    public static BigLong2ShortHashMap newBigMap(int logSmallMapNumber, int logSmallCapacity) {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(logSmallMapNumber, 0);
+        for (int i = 0; i < hm.maps.length; i++) {
+            hm.maps[i] = new ConcurrentLong2ShortHashMap(logSmallCapacity, DEFAULT_MAX_LOAD_FACTOR);
+        }
+        return hm;
+    }
+
+
+
+    // methods
+    @Override
+    public boolean add(long key) {
+        return put(key, (short) 0) == -1;
+    }
+
+    @Override
+    public short put(long key, short value) {
+        int prev = update(key, value, false);
+        return ((prev & PRESENT) == 0) ? -1 : (short) prev;
+    }
+
+    @Override
+    public short addAndBound(long key, short incValue) {
+        return (short) update(key, incValue, true);
+    }
+
+    /**
+     * @return previous value cell without FROZEN flag
+     */
+    private int update(long key, short value, boolean add) {
+        Table t = table;
+        while (true) {
+            int pos = (key == FREE) ? t.capacity : claim(t, key);
+            if (pos != -1) {
+                int prev = updateCell(t.values, pos, value, add);
+                if (prev != MOVED) {
+                    if ((prev & PRESENT) == 0 && t.size.incrementAndGet() >= t.maxFill) {
+                        startResize(t);
+                    }
+                    return prev;
+                }
+            } else if (t.next == null) {
+                startResize(t);     // all slots are claimed by keys, which haven't got their values yet
+            }
+            t = helpResize(t);
+        }
+    }
+
+    /**
+     * @return position of the key, claiming a free slot for it if needed,
+     * or -1 if the table is being copied or there are no free slots
+     */
+    private static int claim(Table t, long key) {
+        int pos = (int) (HashCommon.murmurHash3(key) & t.capacityMask);
+        for (int probes = 0; probes < t.capacity; ) {
+            long k = t.keys.get(pos);
+            if (k == key) {
+                return pos;
+            }
+            if (k == FREE) {
+                if (t.next != null) {
+                    return -1;
+                }
+                if (t.keys.compareAndSet(pos, FREE, key)) {
+                    return pos;
+                }
+                continue;   // the slot has been claimed by another thread, check it again
+            }
+            pos = (pos + 1) & t.capacityMask;
+            probes++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return position of the key, or -1 if there is no such key
+     */
+    private static int find(Table t, long key) {
+        if (key == FREE) {
+            return t.capacity;
+        }
+        int pos = (int) (HashCommon.murmurHash3(key) & t.capacityMask);
+        for (int probes = 0; probes < t.capacity; probes++) {
+            long k = t.keys.get(pos);
+            if (k == key) {
+                return pos;
+            }
+            if (k == FREE) {
+                return -1;
+            }
+            pos = (pos + 1) & t.capacityMask;
+        }
+        return -1;
+    }
+
+    private static int updateCell(AtomicIntegerArray values, int pos, short value, boolean add) {
+        while (true) {
+            int cell = values.get(pos);
+            if ((cell & FROZEN) != 0) {
+                return MOVED;
+            }
+            short newValue = add ? NumUtils.addAndBound((short) cell, value) : value;
+            int newCell = PRESENT | (newValue & VALUE_MASK);
+            if (newCell == cell || values.compareAndSet(pos, cell, newCell)) {
+                return cell;
+            }
+        }
+    }
+
+
+    private void startResize(Table t) {
+        if (t.capacity > Integer.MAX_VALUE / 2) {
+            throw new RuntimeException("Can't enlarge map (can't create single array of 2^31 elements)!");
+        }
+        synchronized (t) {
+            if (t.next == null) {
+                t.next = new Table(2 * t.capacity, maxLoadFactor);
+            }
+        }
+        helpResize(t);
+    }
+
+    /**
+     * Copies chunks of the table to the next one, while there are unclaimed chunks,
+     * then waits for the other threads to finish copying.
+     * @return the next table
+     */
+    private Table helpResize(Table t) {
+        Table next = t.next;
+        int c;
+        while ((c = t.chunksClaimed.getAndIncrement()) < t.chunks) {
+            copyChunk(t, next, c);
+            if (t.chunksDone.incrementAndGet() == t.chunks) {
+                table = next;
+                t.copied = true;
+            }
+        }
+        while (!t.copied) {
+            Thread.yield();
+        }
+        return next;
+    }
+
+    private static void copyChunk(Table t, Table next, int chunk) {
+        int from = chunk * MIGRATION_CHUNK;
+        int to = Math.min(from + MIGRATION_CHUNK, t.capacity + 1);
+        int copied = 0;
+        for (int pos = from; pos < to; pos++) {
+            int cell = freeze(t.values, pos);
+            if ((cell & PRESENT) == 0) {
+                continue;   // free slot or the key hasn't got its value yet, it will be added to the next table
+            }
+            int newPos = (pos == t.capacity) ? next.capacity : claim(next, t.keys.get(pos));
+            next.values.set(newPos, cell);
+            copied++;
+        }
+        next.size.addAndGet(copied);
+    }
+
+    private static int freeze(AtomicIntegerArray values, int pos) {
+        while (true) {
+            int cell = values.get(pos);
+            if (values.compareAndSet(pos, cell, cell | FROZEN)) {
+                return cell;
+            }
+        }
+    }
+
+
+    /**
+     * @return value cell of the key, 0 if there is no such key
+     */
+    private int getCell(long key) {
+        Table t = table;
+        while (true) {
+            int pos = find(t, key);
+            if (pos == -1) {
+                return 0;
+            }
+            int cell = t.values.get(pos);
+            if ((cell & FROZEN) == 0) {
+                return cell;
+            }
+            t = helpResize(t);
+        }
+    }
+
+    @Override
+    public short get(long key) {
+        int cell = getCell(key);
+        return ((cell & PRESENT) == 0) ? -1 : (short) cell;
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        return (short) getCell(key);
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return (getCell(key) & PRESENT) != 0;
+    }
+
+    @Override
+    public long size() { return table.size.get(); }
+
+    @Override
+    public long capacity() { return table.capacity; }
+
+
+
+    // --------------  Other methods from interface Long2ShortHashMapInterface  ---------------
+
+    /**
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    @Override
+    public void reset() {
+        table = new Table(table.capacity, maxLoadFactor);
+    }
+    /**
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    @Override
+    public void resetValues() {
+        Table t = table;
+        for (int pos = 0; pos <= t.capacity; pos++) {
+            if ((t.values.get(pos) & PRESENT) != 0) {
+                t.values.set(pos, PRESENT);
+            }
+        }
+    }
+
+
+    @Override
+    public void prepare() {}
+    @Override
+    public long maxPosition() { return table.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        Table t = table;
+        int pos = find(t, key);
+        return (pos == -1 || (t.values.get(pos) & PRESENT) == 0) ? -1 : pos;
+    }
+
+    @Override
+    public long elementAt(long pos) {
+        Table t = table;
+        if (pos == t.capacity || (t.values.get((int) pos) & PRESENT) == 0) {
+            return FREE;    // ambiguous answer
+        }
+        return t.keys.get((int) pos);
+    }
+    @Override
+    public long keyAt(long pos) {
+        return elementAt(pos);
+    }
+    @Override
+    public boolean containsAt(long pos) {
+        return (table.values.get((int) pos) & PRESENT) != 0;
+    }
+
+    @Override
+    public short valueAt(long pos) {
+        int cell = table.values.get((int) pos);
+        return ((cell & PRESENT) == 0) ? -1 : (short) cell;
+    }
+
+
+    /**
+     * Writes the map in the format of Long2ShortHashMap.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        Table t = table;
+
+        out.writeInt(t.capacity);
+        out.writeInt(t.size.get());
+        out.writeFloat(maxLoadFactor);
+
+        for (int i = 0; i < t.capacity; i++) {
+            out.writeLong(containsAt(i) ? t.keys.get(i) : FREE);
+            out.writeShort((short) t.values.get(i));
+        }
+        out.writeBoolean(containsAt(t.capacity));
+        out.writeShort((short) t.values.get(t.capacity));
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+        Table newTable = new Table(capacity, maxLoadFactor);
+
+        for (int i = 0; i < capacity; i++) {
+            long key = in.readLong();
+            short value = in.readShort();
+            if (key != FREE) {
+                newTable.keys.set(i, key);
+                newTable.values.set(i, PRESENT | (value & VALUE_MASK));
+            }
+        }
+        boolean containsFreeKey = in.readBoolean();
+        short valueForFreeKey = in.readShort();
+        if (containsFreeKey) {
+            newTable.values.set(capacity, PRESENT | (valueForFreeKey & VALUE_MASK));
+        }
+        newTable.size.set(size);
+
+        table = newTable;
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final Iterator<MutableLongShortEntry> it = entryIterator();
+        final MutableLong key = new MutableLong();
+        return new Iterator<MutableLong>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                key.setValue(it.next().getKey());
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<MutableLongShortEntry> entryIterator() {
+        return new EntryIterator(table);
+    }
+
+    protected static class EntryIterator implements Iterator<MutableLongShortEntry> {
+        private final Table t;
+        private int index = 0;
+        private final MutableLongShortEntry entry = new MutableLongShortEntry();
+
+        EntryIterator(Table t) {
+            this.t = t;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index <= t.capacity && (t.values.get(index) & PRESENT) == 0) {
+                index++;
+            }
+            return index <= t.capacity;
+        }
+
+        @Override
+        public MutableLongShortEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            entry.setKey((index == t.capacity) ? FREE : t.keys.get(index));
+            entry.setValue((short) t.values.get(index));
+            index++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package structures.map;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of keys with short values, for k-mers maps which are only queried after loading.
+ * Keys are coded by Elias-Fano: sorted keys are split to high parts, kept in unary code in the upper bit array
+ * (the i-th key is the one at position high + i), and low parts of lowBits = floor(log2(universe / size)) bits
+ * in the packed lower array. So a key takes about 2 + log2(universe / size) bits, i.e. 2-5 bytes for k-mers maps
+ * instead of more than 20 bytes in hash maps, and a value takes 2 bytes more, if the map has values.<br></br>
+ * <br></br>
+ *
+ * Every 256-th zero and one of the upper array is sampled, so a key is found by jumping to the sample of its high part
+ * and scanning a few words. Positions are ranks of keys in the sorted order (0..size-1).
+ * The map is built from keys in increasing order by Builder, or from BigLong2ShortHashMap by build.
+ * It can contain less than 2^31 keys.<br></br>
+ * <br></br>
+ *
+ * Keys can't be added, put and addAndBound change values of present keys only (throwing
+ * UnsupportedOperationException for others). Reading methods can be called by many threads at once,
+ * changing values isn't synchronized. The map without values (a set) returns 1 for every key and can't be changed.
+ */
+public class EliasFanoLong2ShortMap implements Long2ShortHashMapInterface {
+
+    private final static int LOG_SAMPLE = 8;   // every 256-th zero and one of the upper array is sampled
+    private final static int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    protected long size;
+    protected long min, max;
+    protected int lowBits;
+    protected long lowMask;
+    protected long[] lower;
+    protected long[] upper;
+    protected long upperBits;
+    protected long[] zeroSamples;   // position of every (j << LOG_SAMPLE)-th zero of the upper array
+    protected long[] oneSamples;    // position of every (j << LOG_SAMPLE)-th one of the upper array
+    protected short[] values;       // null for a set
+
+
+    /**
+     * Creates an empty map, e.g. for readFields.
+     */
+    public EliasFanoLong2ShortMap() {
+        this(0, 0, 0, false);
+        sample();
+    }
+
+    private EliasFanoLong2ShortMap(long size, long min, long max, boolean withValues) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Can't create EliasFanoLong2ShortMap for " + size + " keys");
+        }
+        this.size = size;
+        this.min = min;
+        this.max = max;
+
+        long universe = max - min;     // unsigned
+        lowBits = (size == 0) ? 0 : 63 - Long.numberOfLeadingZeros(Long.divideUnsigned(universe, size));
+        if (lowBits < 0) {
+            lowBits = 0;
+        }
+        lowMask = (1L << lowBits) - 1;
+        lower = new long[(int) ((size * lowBits + 63) >>> 6)];
+        upperBits = size + (universe >>> lowBits) + 1;
+        upper = new long[(int) ((upperBits + 63) >>> 6)];
+        values = withValues ? new short[(int) size] : null;
+    }
+
+    /**
+     * Builds the map from keys in increasing order (signed comparison), the number of keys and the minimal
+     * and maximal keys should be known in advance.
+     */
+    public static class Builder {
+        private final EliasFanoLong2ShortMap map;
+        private long added = 0;
+        private long prev;
+
+        public Builder(long size, long min, long max, boolean withValues) {
+            if (size > 0 && min > max) {
+                throw new IllegalArgumentException("min > max");
+            }
+            map = new EliasFanoLong2ShortMap(size, min, max, withValues);
+        }
+
+        public void add(long key, short value) {
+            if (added == map.size) {
+                throw new IllegalStateException("More than " + map.size + " keys are added");
+            }
+            if (key < map.min || key > map.max || (added > 0 && key <= prev)) {
+                throw new IllegalArgumentException("Keys should increase from " + map.min + " to " + map.max +
+                        ", got " + key + " after " + prev);
+            }
+            long x = key - map.min;
+            long pos = (x >>> map.lowBits) + added;
+            map.upper[(int) (pos >>> 6)] |= 1L << pos;
+            map.setLow(added, x & map.lowMask);
+            if (map.values != null) {
+                map.values[(int) added] = value;
+            }
+            prev = key;
+            added++;
+        }
+
+        public EliasFanoLong2ShortMap build() {
+            if (added != map.size) {
+                throw new IllegalStateException(added + " keys are added, " + map.size + " expected");
+            }
+            map.sample();
+            return map;
+        }
+    }
+
+    /**
+     * Builds the map with the keys of hm, sorting them. If withValues is false, the map is a set.
+     */
+    public static EliasFanoLong2ShortMap build(BigLong2ShortHashMap hm, boolean withValues) {
+        return build(hm, withValues, false);
+    }
+
+    /**
+     * Builds the map with the keys of hm: keys of every small map are sorted separately,
+     * then the sorted runs are merged to the Builder.
+     * @param freeSmallMaps if true, every small map of hm is replaced by an empty one (an off-heap one is closed)
+     *                      as soon as its keys are taken, so the hash map and all sorted keys aren't kept together
+     *                      and hm is left empty
+     */
+    public static EliasFanoLong2ShortMap build(BigLong2ShortHashMap hm, boolean withValues, boolean freeSmallMaps) {
+        long size = hm.size();
+        if (size > MAX_SIZE) {
+            throw new IllegalArgumentException("Can't create EliasFanoLong2ShortMap for " + size + " keys");
+        }
+        int runs = hm.maps.length;
+        long[][] keys = new long[runs][];
+        short[][] values = new short[runs][];
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < runs; i++) {
+            Long2ShortHashMap map = hm.maps[i];
+            long[] runKeys = new long[(int) map.size()];
+            int n = 0;
+            for (Iterator<MutableLong> it = map.iterator(); it.hasNext(); ) {
+                runKeys[n++] = it.next().longValue();
+            }
+            Arrays.parallelSort(runKeys);
+            if (withValues) {
+                values[i] = new short[n];
+                for (int j = 0; j < n; j++) {
+                    values[i][j] = map.get(runKeys[j]);
+                }
+            }
+            if (n > 0) {
+                min = Math.min(min, runKeys[0]);
+                max = Math.max(max, runKeys[n - 1]);
+            }
+            keys[i] = runKeys;
+            if (freeSmallMaps) {
+                if (map instanceof OffHeapLong2ShortHashMap) {
+                    ((OffHeapLong2ShortHashMap) map).close();
+                }
+                hm.maps[i] = new Long2ShortHashMap(1, LongHashSet.DEFAULT_MAX_LOAD_FACTOR);
+            }
+        }
+
+        Builder builder = new Builder(size, (size == 0) ? 0 : min, (size == 0) ? 0 : max, withValues);
+        int[] heap = new int[runs];        // runs with keys left, min-heap by their current keys
+        int[] next = new int[runs];
+        int heapSize = 0;
+        for (int i = 0; i < runs; i++) {
+            if (keys[i].length > 0) {
+                heap[heapSize++] = i;
+            }
+        }
+        for (int j = heapSize / 2 - 1; j >= 0; j--) {
+            siftDown(heap, heapSize, j, keys, next);
+        }
+        while (heapSize > 0) {
+            int run = heap[0];
+            builder.add(keys[run][next[run]], withValues ? values[run][next[run]] : 1);
+            next[run]++;
+            if (next[run] == keys[run].length) {
+                keys[run] = null;
+                values[run] = null;
+                heap[0] = heap[--heapSize];
+            }
+            if (heapSize > 0) {
+                siftDown(heap, heapSize, 0, keys, next);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int j, long[][] keys, int[] next) {
+        int run = heap[j];
+        long key = head(run, keys, next);
+        while (2 * j + 1 < heapSize) {
+            int child = 2 * j + 1;
+            if (child + 1 < heapSize && head(heap[child + 1], keys, next) < head(heap[child], keys, next)) {
+                child++;
+            }
+            if (head(heap[child], keys, next) >= key) {
+                break;
+            }
+            heap[j] = heap[child];
+            j = child;
+        }
+        heap[j] = run;
+    }
+
+    private static long head(int run, long[][] keys, int[] next) {
+        return keys[run][next[run]];
+    }
+
+
+    private void sample() {
+        int sample = 1 << LOG_SAMPLE;
+        zeroSamples = new long[(int) ((upperBits - size + sample - 1) >>> LOG_SAMPLE)];
+        oneSamples = new long[(int) ((size + sample - 1) >>> LOG_SAMPLE)];
+        long ones = 0, zeros = 0;
+        for (int word = 0; word < upper.length; word++) {
+            int bitsInWord = (int) Math.min(64, upperBits - ((long) word << 6));
+            long onesMask = upper[word];
+            long zerosMask = ~upper[word] & ((bitsInWord == 64) ? -1L : (1L << bitsInWord) - 1);
+            // a word has at most one sample of each kind, as 64 < sample
+            long nextOne = (ones + sample - 1) & -sample;
+            int c = Long.bitCount(onesMask);
+            if (nextOne < ones + c) {
+                oneSamples[(int) (nextOne >>> LOG_SAMPLE)] = ((long) word << 6) + selectInWord(onesMask, (int) (nextOne - ones));
+            }
+            ones += c;
+            long nextZero = (zeros + sample - 1) & -sample;
+            c = Long.bitCount(zerosMask);
+            if (nextZero < zeros + c) {
+                zeroSamples[(int) (nextZero >>> LOG_SAMPLE)] = ((long) word << 6) + selectInWord(zerosMask, (int) (nextZero - zeros));
+            }
+            zeros += c;
+        }
+    }
+
+    private boolean bit(long pos) {
+        return ((upper[(int) (pos >>> 6)] >>> pos) & 1) != 0;
+    }
+
+    private long low(long i) {
+        if (lowBits == 0) {
+            return 0;
+        }
+        long bitPos = i * lowBits;
+        int word = (int) (bitPos >>> 6);
+        int offset = (int) (bitPos & 63);
+        long v = lower[word] >>> offset;
+        if (offset + lowBits > 64) {
+            v |= lower[word + 1] << (64 - offset);
+        }
+        return v & lowMask;
+    }
+
+    private void setLow(long i, long v) {
+        if (lowBits == 0) {
+            return;
+        }
+        long bitPos = i * lowBits;
+        int word = (int) (bitPos >>> 6);
+        int offset = (int) (bitPos & 63);
+        lower[word] |= v << offset;
+        if (offset + lowBits > 64) {
+            lower[word + 1] |= v >>> (64 - offset);
+        }
+    }
+
+    /**
+     * @return position of the r-th (from 0) one of the upper array
+     */
+    private long select1(long r) {
+        long pos = oneSamples[(int) (r >>> LOG_SAMPLE)];
+        int left = (int) (r & ((1 << LOG_SAMPLE) - 1));
+        int word = (int) (pos >>> 6);
+        long bits = upper[word] & (-1L << pos);
+        int count;
+        while ((count = Long.bitCount(bits)) <= left) {
+            left -= count;
+            bits = upper[++word];
+        }
+        return ((long) word << 6) + selectInWord(bits, left);
+    }
+
+    /**
+     * @return position of the r-th (from 0) zero of the upper array
+     */
+    private long select0(long r) {
+        long pos = zeroSamples[(int) (r >>> LOG_SAMPLE)];
+        int left = (int) (r & ((1 << LOG_SAMPLE) - 1));
+        int word = (int) (pos >>> 6);
+        long bits = ~upper[word] & (-1L << pos);
+        int count;
+        while ((count = Long.bitCount(bits)) <= left) {
+            left -= count;
+            bits = ~upper[++word];
+        }
+        return ((long) word << 6) + selectInWord(bits, left);
+    }
+
+    private static int selectInWord(long bits, int r) {
+        for (int i = 0; i < r; i++) {
+            bits &= bits - 1;
+        }
+        return Long.numberOfTrailingZeros(bits);
+    }
+
+
+    /**
+     * @return rank of the key in the sorted order, or -1 if not found
+     */
+    public long index(long key) {
+        if (size == 0 || key < min || key > max) {
+            return -1;
+        }
+        long x = key - min;
+        long high = x >>> lowBits;
+        long lowPart = x & lowMask;
+
+        long pos = (high == 0) ? 0 : select0(high - 1) + 1;
+        for (long rank = pos - high; pos < upperBits && bit(pos); pos++, rank++) {
+            long l = low(rank);
+            if (l == lowPart) {
+                return rank;
+            }
+            if (l > lowPart) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    private long key(long rank) {
+        long high = select1(rank) - rank;
+        return min + ((high << lowBits) | low(rank));
+    }
+
+    /**
+     * @return memory taken by the map, in bytes
+     */
+    public long memoryBytes() {
+        return 8L * (lower.length + upper.length + zeroSamples.length + oneSamples.length) +
+                ((values == null) ? 0 : 2L * values.length);
+    }
+
+
+    @Override
+    public short put(long key, short value) {
+        int i = changedIndex(key);
+        short prev = values[i];
+        values[i] = value;
+        return prev;
+    }
+
+    @Override
+    public short addAndBound(long key, short incValue) {
+        int i = changedIndex(key);
+        short prev = values[i];
+        values[i] = NumUtils.addAndBound(prev, incValue);
+        return prev;
+    }
+
+    private int changedIndex(long key) {
+        if (values == null) {
+            throw new UnsupportedOperationException("Values of EliasFanoLong2ShortMap without values can't be changed");
+        }
+        long i = index(key);
+        if (i == -1) {
+            throw new UnsupportedOperationException("Key " + key + " can't be added to EliasFanoLong2ShortMap");
+        }
+        return (int) i;
+    }
+
+    @Override
+    public short get(long key) {
+        long i = index(key);
+        return (i == -1) ? -1 : value(i);
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        long i = index(key);
+        return (i == -1) ? 0 : value(i);
+    }
+
+    private short value(long i) {
+        return (values == null) ? 1 : values[(int) i];
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return index(key) != -1;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long capacity() {
+        return size;
+    }
+
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("EliasFanoLong2ShortMap can't be reset");
+    }
+
+    @Override
+    public void resetValues() {
+        if (values == null) {
+            throw new UnsupportedOperationException("Values of EliasFanoLong2ShortMap without values can't be changed");
+        }
+        Arrays.fill(values, (short) 0);
+    }
+
+
+    @Override
+    public void prepare() {}
+
+    @Override
+    public long maxPosition() {
+        return size - 1;
+    }
+
+    @Override
+    public long getPosition(long key) {
+        return index(key);
+    }
+
+    @Override
+    public long keyAt(long pos) {
+        return key(pos);
+    }
+
+    @Override
+    public short valueAt(long pos) {
+        return containsAt(pos) ? value(pos) : -1;
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        return 0 <= pos && pos < size;
+    }
+
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(size);
+        out.writeLong(min);
+        out.writeLong(max);
+        out.writeBoolean(values != null);
+        for (long word : lower) {
+            out.writeLong(word);
+        }
+        for (long word : upper) {
+            out.writeLong(word);
+        }
+        if (values != null) {
+            for (short value : values) {
+                out.writeShort(value);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        long size = in.readLong();
+        long min = in.readLong();
+        long max = in.readLong();
+        boolean withValues = in.readBoolean();
+
+        EliasFanoLong2ShortMap map = new EliasFanoLong2ShortMap(size, min, max, withValues);
+        for (int i = 0; i < map.lower.length; i++) {
+            map.lower[i] = in.readLong();
+        }
+        for (int i = 0; i < map.upper.length; i++) {
+            map.upper[i] = in.readLong();
+        }
+        if (withValues) {
+            for (int i = 0; i < map.values.length; i++) {
+                map.values[i] = in.readShort();
+            }
+        }
+        map.sample();
+
+        this.size = map.size;
+        this.min = map.min;
+        this.max = map.max;
+        lowBits = map.lowBits;
+        lowMask = map.lowMask;
+        lower = map.lower;
+        upper = map.upper;
+        upperBits = map.upperBits;
+        zeroSamples = map.zeroSamples;
+        oneSamples = map.oneSamples;
+        values = map.values;
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final Iterator<MutableLongShortEntry> it = entryIterator();
+        final MutableLong key = new MutableLong();
+        return new Iterator<MutableLong>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                key.setValue(it.next().getKey());
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Iterates over keys in increasing order, walking the upper array.
+     */
+    @Override
+    public Iterator<MutableLongShortEntry> entryIterator() {
+        return new Iterator<MutableLongShortEntry>() {
+            private long rank = 0;
+            private int word = 0;
+            private long bits = (upper.length == 0) ? 0 : upper[0];
+            private final MutableLongShortEntry entry = new MutableLongShortEntry();
+
+            @Override
+            public boolean hasNext() {
+                return rank < size;
+            }
+
+            @Override
+            public MutableLongShortEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                while (bits == 0) {
+                    bits = upper[++word];
+                }
+                long pos = ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                long high = pos - rank;
+                entry.setKey(min + ((high << lowBits) | low(rank)));
+                entry.setValue(value(rank));
+                rank++;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
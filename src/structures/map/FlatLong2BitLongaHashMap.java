@@ -0,0 +1,408 @@
+package structures.map;
+
+import ru.ifmo.genetics.structures.set.LongHashSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Long2BitLongaHashMap with all values in flat storage: the bits of the slot pos are (sizeBitSet>>6)+1 words
+ * from pos * stride in large pages of longs, instead of a separate long[] per slot.
+ * It saves the array header and the reference per key, and set() doesn't allocate anything.<br></br>
+ * <br></br>
+ *
+ * Bits are set and counted in place. Methods returning long[] (get, valueAt, entries of the iterator)
+ * copy the bits out of the storage: get and valueAt to a new array, the iterator to the array of the entry,
+ * which is reused for all entries.<br></br>
+ * set() doesn't return the previous value: it returns null, if the key is new, and an empty array otherwise.
+ */
+public class FlatLong2BitLongaHashMap extends LongHashSet implements Long2BitLongaHashMapInterface {
+
+    private final static int BITS_PER_WORD = 6; // size(long)=64=2^6
+    private final static int PAGE_WORDS = 1 << 20;  // 8 Mb
+
+    private final static long[] NOT_NEW = new long[0];
+
+
+
+    protected class MapData extends SetData {
+        protected final int sizeBitSet;
+        protected final int stride;
+        protected final int logPageSlots;
+        protected final long[][] pages;
+        protected final long[] valueForFreeKey;
+
+        public MapData(int capacity, float maxLoadFactor, int sizeBitSet) {
+            super(capacity, maxLoadFactor);
+            this.sizeBitSet = sizeBitSet;
+            stride = (sizeBitSet>>BITS_PER_WORD) + 1;
+            int pageSlots = Math.min(capacity, Integer.highestOneBit(Math.max(1, PAGE_WORDS / stride)));
+            logPageSlots = Integer.numberOfTrailingZeros(pageSlots);
+            pages = new long[capacity / pageSlots][];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = new long[pageSlots * stride];
+            }
+            valueForFreeKey = new long[stride];
+        }
+
+        long[] page(int pos) {
+            return (pos == capacity) ? valueForFreeKey : pages[pos >>> logPageSlots];
+        }
+
+        int offset(int pos) {
+            return (pos == capacity) ? 0 : (pos & ((1 << logPageSlots) - 1)) * stride;
+        }
+
+        void copyTo(int pos, long[] dst) {
+            System.arraycopy(page(pos), offset(pos), dst, 0, stride);
+        }
+
+        void clear() {
+            for (long[] page : pages) {
+                Arrays.fill(page, 0);
+            }
+            Arrays.fill(valueForFreeKey, 0);
+        }
+    }
+
+    protected volatile MapData data;
+
+    // constructors
+    public FlatLong2BitLongaHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR, 0);  // 1 M elements
+    }
+    public FlatLong2BitLongaHashMap(int logCapacity, float maxLoadFactor, int sizeBitSet) {
+        if (logCapacity > 30) {
+            throw new IllegalArgumentException("log capacity > 30!");
+        }
+
+        this.maxLoadFactor = maxLoadFactor;
+        int capacity = 1 << logCapacity;
+        data = new MapData(capacity, maxLoadFactor, sizeBitSet);
+        super.data = data;
+    }
+
+    @Override
+    public boolean add(long key) {
+        return set(key, 0) == null;
+    }
+
+
+    @Override
+    public long[] set(long key, int bitIndex) {
+        if (key == FREE) {
+            LockWaits.lock(writeLock);
+            try {
+                MapData curData = data;
+                curData.valueForFreeKey[bitIndex>>BITS_PER_WORD] |= 1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+                if (!curData.containsFreeKey) {
+                    curData.containsFreeKey = true;
+                    curData.size++;
+                    return null;
+                }
+                return NOT_NEW;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        while (true) {
+            MapData curData = data;
+            int pos = getPositionInt(curData, key);
+            LockWaits.lock(writeLock);
+            try {
+                if (curData == data && (curData.keys[pos] == FREE || curData.keys[pos] == key)) {  // i.e. nothing has changed
+                    curData.page(pos)[curData.offset(pos) + (bitIndex>>BITS_PER_WORD)] |=
+                            1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+                    if (curData.keys[pos] == FREE) {
+                        curData.keys[pos] = key;
+                        curData.size++;
+                        if (curData.size >= curData.maxFill) {
+                            enlargeAndRehash();
+                        }
+                        return null;
+                    }
+                    return NOT_NEW;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void enlargeAndRehash() {
+        MapData curData = data;
+        if (curData.capacity > Integer.MAX_VALUE / 2) {
+            throw new RuntimeException("Can't enlarge map (can't create single array of 2^31 elements)!");
+        }
+        int newCapacity = 2 * curData.capacity;
+        MapData newData = new MapData(newCapacity, maxLoadFactor, curData.sizeBitSet);
+
+        // copying elements
+        for (int oldPos = 0; oldPos < curData.keys.length; oldPos++) {
+            long key = curData.keys[oldPos];
+            if (key != FREE) {
+                int pos = getPositionInt(newData, key);
+                newData.keys[pos] = key;
+                System.arraycopy(curData.page(oldPos), curData.offset(oldPos),
+                        newData.page(pos), newData.offset(pos), curData.stride);
+            }
+        }
+        newData.containsFreeKey = curData.containsFreeKey;
+        System.arraycopy(curData.valueForFreeKey, 0, newData.valueForFreeKey, 0, curData.stride);
+        newData.size = curData.size;
+
+        data = newData;
+        super.data = newData;
+    }
+
+    /**
+     * @return position of the key, or -1 if not found
+     */
+    private static int find(MapData curData, long key) {
+        if (key == FREE) {
+            return curData.containsFreeKey ? curData.capacity : -1;
+        }
+        int pos = getPositionInt(curData, key);
+        return (curData.keys[pos] == key) ? pos : -1;
+    }
+
+    @Override
+    public boolean get(long key, int bitIndex) {
+        MapData curData = data;
+        int pos = find(curData, key);
+        if (pos == -1) {
+            return false;
+        }
+        long word = curData.page(pos)[curData.offset(pos) + (bitIndex>>BITS_PER_WORD)];
+        return ((word>>(bitIndex&((1L<<BITS_PER_WORD) - 1)))&1) == 1;
+    }
+
+    @Override
+    public long[] get(long key) {
+        MapData curData = data;
+        int pos = find(curData, key);
+        if (pos == -1) {
+            return null;
+        }
+        long[] value = new long[curData.stride];
+        curData.copyTo(pos, value);
+        return value;
+    }
+
+    @Override
+    public long[] getWithEmpty(long key) {
+        long[] value = get(key);
+        if (value == null)
+            return new long[1];
+        return value;
+    }
+
+    @Override
+    public int getCardinality(long key) {
+        MapData curData = data;
+        int pos = find(curData, key);
+        if (pos == -1) {
+            return 0;
+        }
+        long[] page = curData.page(pos);
+        int offset = curData.offset(pos);
+        int count = 0;
+        for (int i = 0; i < curData.stride; i++) {
+            count += Long.bitCount(page[offset + i]);
+        }
+        return count;
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        MapData curData = data;
+        int pos = find(curData, key);
+        if (pos == -1) {
+            return 0;
+        }
+        long[] page = curData.page(pos);
+        int offset = curData.offset(pos);
+        int count = 0;
+
+        long bitFrom = from&((1L<<BITS_PER_WORD) - 1);
+        long bitTo = to&((1L<<BITS_PER_WORD) - 1);
+        if ((from>>BITS_PER_WORD) == (to>>BITS_PER_WORD)) {
+            return Long.bitCount(page[offset + (from>>BITS_PER_WORD)] & ((1L<<bitTo)-(1L<<bitFrom)));
+        } else {
+            long all = 0xFFFFFFFFFFFFFFFFL;
+            count += Long.bitCount(page[offset + (from>>BITS_PER_WORD)] & (all - ((1L<<bitFrom)-1)));
+            for (int i = (from>>BITS_PER_WORD) + 1; i < (to>>BITS_PER_WORD); i++) {
+                count += Long.bitCount(page[offset + i]);
+            }
+            count += Long.bitCount(page[offset + (to>>BITS_PER_WORD)] & ((1L<<bitTo) - 1));
+        }
+        return count;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return contains(data, key);
+    }
+
+    @Override
+    public long size() { return data.size; }
+
+    @Override
+    public long capacity() { return data.capacity; }
+
+
+    @Override
+    public void reset() {
+        writeLock.lock();
+        MapData curData = data;
+        try {
+            Arrays.fill(curData.keys, FREE);
+            curData.clear();
+            curData.containsFreeKey = false;
+            curData.size = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void resetValues() {
+        writeLock.lock();
+        MapData curData = data;
+        try {
+            curData.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    @Override
+    public long keyAt(long pos) {
+        return elementAt(pos);
+    }
+
+    @Override
+    public long[] valueAt(long pos) {
+        MapData curData = data;
+        if (!containsAt(pos)) {
+            return null;
+        }
+        long[] value = new long[curData.stride];
+        curData.copyTo((int) pos, value);
+        return value;
+    }
+
+
+    /**
+     * Writes the map in the format of Long2BitLongaHashMap.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        MapData curData = data;
+
+        out.writeInt(curData.sizeBitSet);
+        out.writeInt(curData.capacity);
+        out.writeInt(curData.size);
+        out.writeFloat(maxLoadFactor);
+
+        for (int i = 0; i < curData.capacity; i++) {
+            out.writeLong(curData.keys[i]);
+            writeValue(out, curData.page(i), curData.offset(i), curData.stride);
+        }
+        out.writeBoolean(curData.containsFreeKey);
+        writeValue(out, curData.valueForFreeKey, 0, curData.stride);
+    }
+
+    private static void writeValue(DataOutput out, long[] page, int offset, int stride) throws IOException {
+        out.writeInt(stride);
+        for (int j = 0; j < stride; j++) {
+            out.writeLong(page[offset + j]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int sizeBitSet = in.readInt();
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+
+        MapData newData = new MapData(capacity, maxLoadFactor, sizeBitSet);
+
+        for (int i = 0; i < capacity; i++) {
+            newData.keys[i] = in.readLong();
+            readValue(in, newData.page(i), newData.offset(i), newData.stride);
+        }
+        newData.containsFreeKey = in.readBoolean();
+        readValue(in, newData.valueForFreeKey, 0, newData.stride);
+        newData.size = size;
+
+        data = newData;
+        super.data = newData;
+    }
+
+    private static void readValue(DataInput in, long[] page, int offset, int stride) throws IOException {
+        int len = in.readInt();
+        for (int j = 0; j < len; j++) {
+            long word = in.readLong();
+            if (j < stride) {
+                page[offset + j] = word;
+            }
+        }
+    }
+
+    @Override
+    public Iterator<MutableLongBitLongaEntry> entryIterator() {
+        return new MyIterator(data);
+    }
+
+    protected class MyIterator implements Iterator<MutableLongBitLongaEntry> {
+        private final MapData curData;
+        private int index = 0;
+        private final MutableLongBitLongaEntry entry = new MutableLongBitLongaEntry();
+        private final long[] value;
+
+        MyIterator(MapData curData) {
+            this.curData = curData;
+            value = new long[curData.stride];
+            entry.setValue(value);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((index < curData.capacity) && (curData.keys[index] == FREE)) {
+                index++;
+            }
+            if (index < curData.capacity) {
+                return true;
+            }
+            if (index == curData.capacity && curData.containsFreeKey) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public MutableLongBitLongaEntry next() {
+            if (hasNext()){
+                entry.setKey((index < curData.capacity) ? curData.keys[index] : FREE);
+                curData.copyTo(index, value);
+                index++;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package structures.map;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Time spent by writers waiting for write locks of small maps, it is published by io.LoadingMetrics.<br></br>
+ * Writers of lock-based maps take their lock by lock(lock): an uncontended lock (or a lock already held
+ * by the thread) is taken by tryLock without reading the clock, only contended acquisitions are timed.
+ * Lock-free maps don't wait for locks and don't add anything here.
+ */
+public class LockWaits {
+
+    static final LongAdder waitNanos = new LongAdder();
+
+    public static void lock(ReentrantLock lock) {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    public static long nanos() {
+        return waitNanos.sum();
+    }
+}
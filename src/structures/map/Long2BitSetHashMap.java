@@ -20,10 +20,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
 
         public MapData(int capacity, float maxLoadFactor, int sizeBitSet) {
             super(capacity, maxLoadFactor);
-            values = new BitSet[capacity];
-            for (int i=0; i<capacity; i++) {
-                values[i] = new BitSet();
-            }
+            values = new BitSet[capacity];     // allocated on adding keys
             //valueForFreeKey = new BitSet(sizeBitSet);
             valueForFreeKey = new BitSet();
             this.sizeBitSet = sizeBitSet;
@@ -63,7 +60,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
     @Override
     public BitSet set(long key, int bitIndex) {
         if (key == FREE) {
-            writeLock.lock();
+            LockWaits.lock(writeLock);
             try {
                 MapData curData = data;
                 BitSet prev = curData.valueForFreeKey;
@@ -71,6 +68,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
                 if (!curData.containsFreeKey) {
                     curData.containsFreeKey = true;
                     curData.size++;
+                    return null;
                 }
                 return prev;
             } finally {
@@ -81,10 +79,13 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
         while (true) {
             Long2BitSetHashMap.MapData curData = data;
             int pos = getPositionInt(curData, key);
-            writeLock.lock();
+            LockWaits.lock(writeLock);
             try {
                 if (curData == data && (curData.keys[pos] == FREE || curData.keys[pos] == key)) {  // i.e. nothing has changed
                     BitSet prev = curData.values[pos];
+                    if (prev == null) {
+                        curData.values[pos] = new BitSet();
+                    }
                     curData.values[pos].set(bitIndex);
                     if (curData.keys[pos] == FREE) {
                         curData.keys[pos] = key;
@@ -157,6 +158,26 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
         return value;
     }
 
+    @Override
+    public int getCardinality(long key) {
+        BitSet value = get(key);
+        if (value == null)
+            return 0;
+        return value.cardinality();
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        BitSet value = get(key);
+        if (value == null)
+            return 0;
+        int count = 0;
+        for (int i = value.nextSetBit(from); i >= 0 && i < to; i = value.nextSetBit(i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
     @Override
     public boolean contains(long key) {
         return contains(data, key);
@@ -232,12 +253,14 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
 
         for (int i = 0; i < curData.capacity; i++) {
             out.writeLong(curData.keys[i]);
-            out.writeInt(curData.values[i].length());
-            out.write(curData.values[i].toByteArray());
+            byte[] bytes = (curData.values[i] == null) ? new byte[0] : curData.values[i].toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
         }
         out.writeBoolean(curData.containsFreeKey);
-        out.writeInt(curData.valueForFreeKey.length());
-        out.write(curData.valueForFreeKey.toByteArray());
+        byte[] bytes = curData.valueForFreeKey.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
     @Override
@@ -255,7 +278,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             int len = in.readInt();
             byte[] bytes = new byte[len];
             in.readFully(bytes);
-            newData.values[i] = BitSet.valueOf(bytes);
+            newData.values[i] = (newData.keys[i] == FREE) ? null : BitSet.valueOf(bytes);
         }
         newData.containsFreeKey = in.readBoolean();
         int len = in.readInt();
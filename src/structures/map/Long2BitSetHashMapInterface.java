@@ -26,6 +26,16 @@ public interface Long2BitSetHashMapInterface extends Writable, Iterable<MutableL
      * @return empty BitSet, if not found
      */
     public BitSet getWithEmpty(long key);
+
+    /**
+     * @return the number of bits set (equal 1) in the value of this key
+     */
+    int getCardinality(long key);
+
+    /**
+     * @return the number of bits set (equal 1) in range [from; to) in the value of this key
+     */
+    int getCardinality(long key, int from, int to);
     public boolean contains(long key);
 
 
@@ -1,5 +1,6 @@
 package structures.map;
 
+import org.apache.commons.lang.mutable.MutableLong;
 import ru.ifmo.genetics.structures.set.LongHashSet;
 import ru.ifmo.genetics.utils.NumUtils;
 
@@ -10,8 +11,13 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+/**
+ * Hash map from k-mer to bits of samples, values are short[] allocated per key.<br></br>
+ * It is resized incrementally, as Long2BitLongaHashMap is.
+ */
 public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShortaHashMapInterface {
 
+    final static int MIGRATION_STEP = 16;  // positions of the previous table moved on every set()
     private final static int BITS_PER_WORD = 4; // size(short)=16=2^4
 
 
@@ -21,6 +27,10 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         protected volatile short[] valueForFreeKey;
         protected volatile int sizeBitSet;
 
+        // the previous table, which keys are being moved to this one, and the next position to move
+        protected volatile MapData old = null;
+        protected int migrated = 0;
+
         public MapData(int capacity, float maxLoadFactor, int sizeBitSet) {
             super(capacity, maxLoadFactor);
             values = new short[capacity][];
@@ -62,7 +72,7 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
     @Override
     public short[] set(long key, int bitIndex) {
         if (key == FREE) {
-            writeLock.lock();
+            LockWaits.lock(writeLock);
             try {
                 MapData curData = data;
                 short[] prev = curData.valueForFreeKey.clone();
@@ -82,8 +92,13 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         while (true) {
             MapData curData = data;
             int pos = getPositionInt(curData, key);
-            writeLock.lock();
+            LockWaits.lock(writeLock);
             try {
+                if (curData == data && curData.old != null) {
+                    migrate(curData, MIGRATION_STEP);
+                    pos = getPositionInt(curData, key);     // moved keys could take the slot
+                    moveFromOld(curData, pos, key);
+                }
                 if (curData == data && (curData.keys[pos] == FREE || curData.keys[pos] == key)) {  // i.e. nothing has changed
                     if (curData.values[pos] == null) {
                         curData.values[pos] = new short[(data.sizeBitSet>>BITS_PER_WORD) + 1];
@@ -108,29 +123,77 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
 
     private void enlargeAndRehash() {
         MapData curData = data;
+        if (curData.old != null) {
+            migrate(curData, curData.old.capacity);     // isn't expected, a few positions are moved on every set()
+        }
         if (curData.capacity > Integer.MAX_VALUE / 2) {
             throw new RuntimeException("Can't enlarge map (can't create single array of 2^31 elements)!");
         }
         int newCapacity = 2 * curData.capacity;
         MapData newData = new MapData(newCapacity, maxLoadFactor, curData.sizeBitSet);
 
-        // copying elements
-        for (int oldPos = 0; oldPos < curData.keys.length; oldPos++) {
-            long key = curData.keys[oldPos];
-            if (key != FREE) {
-                int pos = getPositionInt(newData, key);
-                newData.keys[pos] = key;
-                newData.values[pos] = curData.values[oldPos];
-            }
-        }
+        // elements are moved later by migrate()
         newData.containsFreeKey = curData.containsFreeKey;
         newData.valueForFreeKey = curData.valueForFreeKey;
         newData.size = curData.size;
+        newData.old = curData;
 
         data = newData;
         super.data = newData;
     }
 
+    /**
+     * Moves keys from the next positions of the previous table. Call under writeLock.
+     */
+    private void migrate(MapData curData, int positions) {
+        MapData old = curData.old;
+        int end = (int) Math.min(old.capacity, (long) curData.migrated + positions);
+        for (int oldPos = curData.migrated; oldPos < end; oldPos++) {
+            long key = old.keys[oldPos];
+            if (key != FREE) {
+                int pos = getPositionInt(curData, key);
+                if (curData.keys[pos] == FREE) {    // i.e. not moved by moveFromOld
+                    curData.values[pos] = old.values[oldPos];
+                    curData.keys[pos] = key;
+                }
+            }
+        }
+        curData.migrated = end;
+        if (end == old.capacity) {
+            curData.old = null;
+        }
+    }
+
+    /**
+     * Moves the key to the free position pos, if it is in the previous table. Call under writeLock.
+     */
+    private void moveFromOld(MapData curData, int pos, long key) {
+        MapData old = curData.old;
+        if (old == null || curData.keys[pos] != FREE) {
+            return;
+        }
+        int oldPos = getPositionInt(old, key);
+        if (old.keys[oldPos] == key) {
+            curData.values[pos] = old.values[oldPos];
+            curData.keys[pos] = key;
+        }
+    }
+
+    /**
+     * Moves all keys of the previous table, if the map is being resized.
+     */
+    private void finishMigration() {
+        writeLock.lock();
+        try {
+            MapData curData = data;
+            if (curData.old != null) {
+                migrate(curData, curData.old.capacity);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     @Override
     public boolean get(long key, int bitIndex) {
         short[] val = get(key);
@@ -143,6 +206,7 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
     @Override
     public short[] get(long key) {
         MapData curData = data;
+        MapData old = curData.old;      // read before the current table, the key is in one of them
         if (key == FREE) {
             if (!curData.containsFreeKey) {
                 return null;
@@ -152,10 +216,15 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         int pos = getPositionInt(curData, key);
         if (curData.keys[pos] == key) {
             return curData.values[pos];
-        } else {
-            // assuming keys[pos] == FREE
-            return null;
         }
+        if (old != null) {
+            int oldPos = getPositionInt(old, key);
+            if (old.keys[oldPos] == key) {
+                return old.values[oldPos];
+            }
+        }
+        // assuming keys[pos] == FREE
+        return null;
     }
 
     @Override
@@ -209,7 +278,9 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
 
     @Override
     public boolean contains(long key) {
-        return contains(data, key);
+        MapData curData = data;
+        MapData old = curData.old;
+        return contains(curData, key) || (old != null && contains(old, key));
     }
 
     @Override
@@ -224,6 +295,8 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         writeLock.lock();
         MapData curData = data;
         try {
+            curData.old = null;
+            curData.migrated = 0;
             Arrays.fill(curData.keys, FREE);
             Arrays.fill(curData.values, null);
             curData.containsFreeKey = false;
@@ -239,6 +312,9 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         writeLock.lock();
         MapData curData = data;
         try {
+            if (curData.old != null) {
+                migrate(curData, curData.old.capacity);     // otherwise old values would be moved
+            }
             Arrays.fill(curData.values, null);
             curData.valueForFreeKey = new short[(curData.sizeBitSet>>BITS_PER_WORD) + 1];
         } finally {
@@ -247,6 +323,15 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
     }
 
 
+    /**
+     * Finishes resizing, so that positions and iterators cover all keys.
+     * Assuming no other thread modifying map!
+     */
+    @Override
+    public void prepare() {
+        finishMigration();
+    }
+
     @Override
     public long keyAt(long pos) {
         return elementAt(pos);
@@ -271,6 +356,7 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
 
     @Override
     public void write(DataOutput out) throws IOException {
+        finishMigration();
         MapData curData = data;
 
         out.writeInt(curData.sizeBitSet);
@@ -324,8 +410,15 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         super.data = newData;
     }
 
+    @Override
+    public Iterator<MutableLong> iterator() {
+        finishMigration();
+        return super.iterator();
+    }
+
     @Override
     public Iterator<MutableLongBitShortaEntry> entryIterator() {
+        finishMigration();
         return new MyIterator(data);
     }
 
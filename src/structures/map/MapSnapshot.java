@@ -0,0 +1,593 @@
+package structures.map;
+
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import structures.OffHeapMemory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary snapshot of big k-mers maps (BigLong2ShortHashMap, BigLong2LongHashMap, BigLong2BitShortaHashMap
+ * and BigLong2BitLongaHashMap): raw hash tables of small maps, which are reopened without rebuilding the map.<br></br>
+ * <br></br>
+ *
+ * The snapshot starts with the header: kind of the map, sizeBitSet, slot size, number of small maps and source,
+ * the fingerprint of the data the map was built from (given by the writer, see source(File)).
+ * Then capacity, size and the free key flag of every small map follow, and then tables of small maps:
+ * keys (capacity longs) and value slots (capacity + 1 slots, the last one is for the free key), as in OffHeapTable.
+ * Numbers are in the native byte order. The snapshot is written to a temporary file, which is renamed at the end.<br></br>
+ * <br></br>
+ *
+ * Mapped snapshot has off-heap small maps (see OffHeapTable) over the file mapped to memory: the map is opened
+ * at once, its pages are read by OS on demand. The mapping is private, changes of the map aren't written to the file,
+ * enlarged small maps are moved to direct memory. The file shouldn't be changed while the map is used.
+ * Otherwise small maps are on-heap maps (ConcurrentLong2ShortHashMap, ConcurrentLong2LongHashMap,
+ * Long2BitShortaHashMap and Long2BitLongaHashMap), their arrays are filled by bulk reads from the mapped file.
+ * Maps are reopened with the default load factor.
+ */
+public class MapSnapshot {
+
+    private static final long MAGIC = 0x4d46534e41503031L;     // "MFSNAP01"
+    private static final int HEADER_BYTES = 32;
+    private static final int MAP_ENTRY_BYTES = 24;
+    private static final int MAX_SMALL_MAPS = 1 << 26;
+    private static final int CHUNK = 1 << 16;                   // keys and values copied to concurrent maps at once
+
+    static final int SHORT_MAP = 1;
+    static final int LONG_MAP = 2;
+    static final int BIT_SHORTA_MAP = 3;
+    static final int BIT_LONGA_MAP = 4;
+
+    private static final float LOAD_FACTOR = LongHashSet.DEFAULT_MAX_LOAD_FACTOR;
+
+
+    // --------------  Writing  ---------------
+
+    public static void write(final BigLong2ShortHashMap hm, long source, File file) throws IOException {
+        hm.prepare();
+        write(file, SHORT_MAP, 0, 2, source, new CountTables(hm.maps.length) {
+            @Override
+            Long2ShortHashMap map(int i) {
+                return hm.maps[i];
+            }
+            @Override
+            void writeValue(int i, long pos, Output out) throws IOException {
+                out.putShort(hm.maps[i].valueAt(pos));
+            }
+        });
+    }
+
+    public static void write(final BigLong2LongHashMap hm, long source, File file) throws IOException {
+        hm.prepare();
+        write(file, LONG_MAP, 0, 8, source, new CountTables(hm.maps.length) {
+            @Override
+            Long2LongHashMap map(int i) {
+                return hm.maps[i];
+            }
+            @Override
+            void writeValue(int i, long pos, Output out) throws IOException {
+                out.putLong(hm.maps[i].valueAt(pos));
+            }
+        });
+    }
+
+    public static void write(final BigLong2BitShortaHashMap hm, int sizeBitSet, long source, File file) throws IOException {
+        hm.prepare();
+        final int stride = (sizeBitSet >> 4) + 1;
+        write(file, BIT_SHORTA_MAP, sizeBitSet, 2 * stride, source, new Tables(hm.maps.length) {
+            @Override
+            long capacity(int i) {
+                return hm.maps[i].maxPosition();
+            }
+            @Override
+            long size(int i) {
+                return hm.maps[i].size();
+            }
+            @Override
+            boolean containsAt(int i, long pos) {
+                return hm.maps[i].containsAt(pos);
+            }
+            @Override
+            long keyAt(int i, long pos) {
+                return hm.maps[i].keyAt(pos);
+            }
+            @Override
+            void writeValue(int i, long pos, Output out) throws IOException {
+                short[] value = hm.maps[i].valueAt(pos);
+                for (int j = 0; j < stride; j++) {
+                    out.putShort(j < value.length ? value[j] : 0);
+                }
+            }
+        });
+    }
+
+    public static void write(final BigLong2BitLongaHashMap hm, int sizeBitSet, long source, File file) throws IOException {
+        hm.prepare();
+        final int stride = (sizeBitSet >> 6) + 1;
+        write(file, BIT_LONGA_MAP, sizeBitSet, 8 * stride, source, new Tables(hm.maps.length) {
+            @Override
+            long capacity(int i) {
+                return hm.maps[i].maxPosition();
+            }
+            @Override
+            long size(int i) {
+                return hm.maps[i].size();
+            }
+            @Override
+            boolean containsAt(int i, long pos) {
+                return hm.maps[i].containsAt(pos);
+            }
+            @Override
+            long keyAt(int i, long pos) {
+                return hm.maps[i].keyAt(pos);
+            }
+            @Override
+            void writeValue(int i, long pos, Output out) throws IOException {
+                long[] value = hm.maps[i].valueAt(pos);
+                for (int j = 0; j < stride; j++) {
+                    out.putLong(j < value.length ? value[j] : 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Small maps of the big map seen through their positions (see Long2ShortHashMapInterface.prepare).
+     */
+    private static abstract class Tables {
+        final int maps;
+
+        Tables(int maps) {
+            this.maps = maps;
+        }
+
+        abstract long capacity(int i);
+        abstract long size(int i);
+        abstract boolean containsAt(int i, long pos);
+        abstract long keyAt(int i, long pos);
+
+        abstract void writeValue(int i, long pos, Output out) throws IOException;
+    }
+
+    /**
+     * Tables of the count maps, whose small maps are hash sets of keys with values (see map()).
+     */
+    private static abstract class CountTables extends Tables {
+        CountTables(int maps) {
+            super(maps);
+        }
+
+        abstract LongHashSet map(int i);
+
+        @Override
+        long capacity(int i) {
+            return map(i).maxPosition();
+        }
+        @Override
+        long size(int i) {
+            return map(i).size();
+        }
+        @Override
+        boolean containsAt(int i, long pos) {
+            return map(i).containsAt(pos);
+        }
+        @Override
+        long keyAt(int i, long pos) {
+            return map(i).elementAt(pos);
+        }
+    }
+
+    private static void write(File file, int kind, int sizeBitSet, int valueBytes, long source, Tables tables)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Output out = new Output(tmp)) {
+            out.putLong(MAGIC);
+            out.putInt(kind);
+            out.putInt(sizeBitSet);
+            out.putInt(valueBytes);
+            out.putInt(tables.maps);
+            out.putLong(source);
+
+            for (int i = 0; i < tables.maps; i++) {
+                long capacity = tables.capacity(i);
+                out.putLong(capacity);
+                out.putLong(tables.size(i));
+                out.putInt(tables.containsAt(i, capacity) ? 1 : 0);
+                out.putInt(0);
+            }
+
+            for (int i = 0; i < tables.maps; i++) {
+                long capacity = tables.capacity(i);
+                for (long pos = 0; pos < capacity; pos++) {
+                    out.putLong(tables.containsAt(i, pos) ? tables.keyAt(i, pos) : LongHashSet.FREE);
+                }
+                for (long pos = 0; pos <= capacity; pos++) {
+                    if (tables.containsAt(i, pos)) {
+                        tables.writeValue(i, pos, out);
+                    } else {
+                        out.putZeros(valueBytes);
+                    }
+                }
+                out.align();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class Output implements Closeable {
+        private final FileOutputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+        private long flushed = 0;
+
+        Output(File file) throws IOException {
+            stream = new FileOutputStream(file);
+            channel = stream.getChannel();
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putShort(short value) throws IOException {
+            ensure(2);
+            buffer.putShort(value);
+        }
+
+        void putZeros(int bytes) throws IOException {
+            for (int i = 0; i < bytes; i++) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        /**
+         * Pads the output with zeros to a multiple of 8 bytes.
+         */
+        void align() throws IOException {
+            putZeros((int) (-(flushed + buffer.position()) & 7));
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+
+    // --------------  Reading  ---------------
+
+    static class Header {
+        int kind, sizeBitSet, valueBytes, maps;
+        long source;
+        long[] capacity, size, offset;
+        boolean[] containsFreeKey;
+
+        long keysOffset(int i) {
+            return offset[i];
+        }
+
+        long valuesOffset(int i) {
+            return offset[i] + capacity[i] * 8;
+        }
+
+        long valuesBytes(int i) {
+            return (capacity[i] + 1) * valueBytes;
+        }
+    }
+
+    static Header readHeader(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = read(channel, HEADER_BYTES, file);
+
+            long magic = buffer.getLong();
+            if (magic == Long.reverseBytes(MAGIC)) {
+                throw new IOException("Map snapshot " + file + " has been written with other byte order");
+            }
+            if (magic != MAGIC) {
+                throw new IOException("File " + file + " isn't a map snapshot");
+            }
+            Header h = new Header();
+            h.kind = buffer.getInt();
+            h.sizeBitSet = buffer.getInt();
+            h.valueBytes = buffer.getInt();
+            h.maps = buffer.getInt();
+            h.source = buffer.getLong();
+            if (Integer.bitCount(h.maps) != 1 || h.maps > MAX_SMALL_MAPS) {
+                throw new IOException("Bad number of small maps " + h.maps + " in map snapshot " + file);
+            }
+
+            buffer = read(channel, h.maps * MAP_ENTRY_BYTES, file);
+            h.capacity = new long[h.maps];
+            h.size = new long[h.maps];
+            h.offset = new long[h.maps];
+            h.containsFreeKey = new boolean[h.maps];
+            long offset = HEADER_BYTES + (long) h.maps * MAP_ENTRY_BYTES;
+            for (int i = 0; i < h.maps; i++) {
+                h.capacity[i] = buffer.getLong();
+                h.size[i] = buffer.getLong();
+                h.containsFreeKey[i] = buffer.getInt() != 0;
+                buffer.getInt();
+                if (Long.bitCount(h.capacity[i]) != 1) {
+                    throw new IOException("Bad capacity " + h.capacity[i] + " in map snapshot " + file);
+                }
+                h.offset[i] = offset;
+                offset += h.capacity[i] * 8 + ((h.valuesBytes(i) + 7) & ~7L);
+            }
+            if (channel.size() < offset) {
+                throw new IOException("Map snapshot " + file + " is truncated: " + channel.size() + " bytes, " +
+                        offset + " bytes expected");
+            }
+            return h;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, int bytes, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.nativeOrder());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Map snapshot " + file + " is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Header readHeader(File file, int kind, int valueBytes) throws IOException {
+        Header h = readHeader(file);
+        if (h.kind != kind) {
+            throw new IOException("Map snapshot " + file + " has map of other kind (" + h.kind + " instead of " + kind + ")");
+        }
+        if (valueBytes != -1 && h.valueBytes != valueBytes) {
+            throw new IOException("Map snapshot " + file + " has slots of " + h.valueBytes + " bytes, " +
+                    valueBytes + " expected");
+        }
+        return h;
+    }
+
+    /**
+     * @return the fingerprint of the data the map was built from, as it was given to write
+     */
+    public static long source(File file) throws IOException {
+        return readHeader(file).source;
+    }
+
+
+    public static BigLong2ShortHashMap readShort(File file, boolean mapped) throws IOException {
+        Header h = readHeader(file, SHORT_MAP, 2);
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(Integer.numberOfTrailingZeros(h.maps), 0);
+        try {
+            for (int i = 0; i < h.maps; i++) {
+                hm.maps[i] = mapped ? new OffHeapLong2ShortHashMap(mapTable(file, h, i)) : readConcurrentShort(file, h, i);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(hm.maps);
+            throw e;
+        }
+        return hm;
+    }
+
+    public static BigLong2LongHashMap readLong(File file, boolean mapped) throws IOException {
+        Header h = readHeader(file, LONG_MAP, 8);
+        BigLong2LongHashMap hm = new BigLong2LongHashMap(Integer.numberOfTrailingZeros(h.maps), 0);
+        try {
+            for (int i = 0; i < h.maps; i++) {
+                hm.maps[i] = mapped ? new OffHeapLong2LongHashMap(mapTable(file, h, i)) : readConcurrentLong(file, h, i);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(hm.maps);
+            throw e;
+        }
+        return hm;
+    }
+
+    public static BigLong2BitShortaHashMap readBitShorta(File file, boolean mapped) throws IOException {
+        Header h = readHeader(file, BIT_SHORTA_MAP, -1);
+        if (h.valueBytes != 2 * ((h.sizeBitSet >> 4) + 1)) {
+            throw new IOException("Map snapshot " + file + " has slots of " + h.valueBytes + " bytes for " +
+                    h.sizeBitSet + " samples");
+        }
+        BigLong2BitShortaHashMap hm = new BigLong2BitShortaHashMap(Integer.numberOfTrailingZeros(h.maps), 0, false, h.sizeBitSet);
+        try {
+            for (int i = 0; i < h.maps; i++) {
+                hm.maps[i] = mapped ? new OffHeapLong2BitShortaHashMap(mapTable(file, h, i), h.sizeBitSet)
+                        : readBitShorta(file, h, i);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(hm.maps);
+            throw e;
+        }
+        return hm;
+    }
+
+    public static BigLong2BitLongaHashMap readBitLonga(File file, boolean mapped) throws IOException {
+        Header h = readHeader(file, BIT_LONGA_MAP, -1);
+        if (h.valueBytes != 8 * ((h.sizeBitSet >> 6) + 1)) {
+            throw new IOException("Map snapshot " + file + " has slots of " + h.valueBytes + " bytes for " +
+                    h.sizeBitSet + " samples");
+        }
+        BigLong2BitLongaHashMap hm = new BigLong2BitLongaHashMap(Integer.numberOfTrailingZeros(h.maps), 0, false, h.sizeBitSet);
+        try {
+            for (int i = 0; i < h.maps; i++) {
+                hm.maps[i] = mapped ? new OffHeapLong2BitLongaHashMap(mapTable(file, h, i), h.sizeBitSet)
+                        : readBitLonga(file, h, i);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(hm.maps);
+            throw e;
+        }
+        return hm;
+    }
+
+    private static void closeAll(Object[] maps) {
+        for (Object map : maps) {
+            if (map instanceof Closeable) {
+                try {
+                    ((Closeable) map).close();
+                } catch (IOException e) {
+                    // memory of off-heap maps is freed without exceptions
+                }
+            }
+        }
+    }
+
+
+    private static OffHeapTable mapTable(File file, Header h, int i) throws IOException {
+        OffHeapMemory keys = OffHeapMemory.mapFile(file, h.keysOffset(i), h.capacity[i] * 8, true);
+        OffHeapMemory values;
+        try {
+            values = OffHeapMemory.mapFile(file, h.valuesOffset(i), h.valuesBytes(i), true);
+        } catch (IOException e) {
+            keys.close();
+            throw e;
+        }
+        OffHeapTable.Data data = new OffHeapTable.Data(keys, values, h.capacity[i], LOAD_FACTOR, h.valueBytes);
+        data.size = h.size[i];
+        data.containsFreeKey = h.containsFreeKey[i];
+        return new OffHeapTable(data, LOAD_FACTOR, null);
+    }
+
+    private static int onHeapLogCapacity(File file, Header h, int i) throws IOException {
+        if (h.capacity[i] > (1 << 30)) {
+            throw new IOException("Small map of capacity " + h.capacity[i] + " from map snapshot " + file +
+                    " can't be read to the heap, map the snapshot instead");
+        }
+        return Long.numberOfTrailingZeros(h.capacity[i]);
+    }
+
+    private static ConcurrentLong2ShortHashMap readConcurrentShort(File file, Header h, int i) throws IOException {
+        ConcurrentLong2ShortHashMap map = new ConcurrentLong2ShortHashMap(onHeapLogCapacity(file, h, i), LOAD_FACTOR);
+        ConcurrentLong2ShortHashMap.Table t = map.table;
+        long[] keysChunk = new long[CHUNK];
+        short[] valuesChunk = new short[CHUNK];
+        try (OffHeapMemory keys = OffHeapMemory.mapFile(file, h.keysOffset(i), h.capacity[i] * 8, false);
+             OffHeapMemory values = OffHeapMemory.mapFile(file, h.valuesOffset(i), h.valuesBytes(i), false)) {
+            for (int from = 0; from < t.capacity; from += CHUNK) {
+                int n = Math.min(CHUNK, t.capacity - from);
+                keys.getLongs((long) from << 3, keysChunk, 0, n);
+                values.getShorts((long) from << 1, valuesChunk, 0, n);
+                for (int j = 0; j < n; j++) {
+                    if (keysChunk[j] != LongHashSet.FREE) {
+                        t.keys.set(from + j, keysChunk[j]);
+                        t.values.set(from + j, ConcurrentLong2ShortHashMap.PRESENT |
+                                (valuesChunk[j] & ConcurrentLong2ShortHashMap.VALUE_MASK));
+                    }
+                }
+            }
+            if (h.containsFreeKey[i]) {
+                t.values.set(t.capacity, ConcurrentLong2ShortHashMap.PRESENT |
+                        (values.getShort((long) t.capacity << 1) & ConcurrentLong2ShortHashMap.VALUE_MASK));
+            }
+        }
+        t.size.set((int) h.size[i]);
+        return map;
+    }
+
+    private static ConcurrentLong2LongHashMap readConcurrentLong(File file, Header h, int i) throws IOException {
+        ConcurrentLong2LongHashMap map = new ConcurrentLong2LongHashMap(onHeapLogCapacity(file, h, i), LOAD_FACTOR);
+        ConcurrentLong2LongHashMap.Table t = map.table;
+        long[] keysChunk = new long[CHUNK];
+        long[] valuesChunk = new long[CHUNK];
+        try (OffHeapMemory keys = OffHeapMemory.mapFile(file, h.keysOffset(i), h.capacity[i] * 8, false);
+             OffHeapMemory values = OffHeapMemory.mapFile(file, h.valuesOffset(i), h.valuesBytes(i), false)) {
+            for (int from = 0; from < t.capacity; from += CHUNK) {
+                int n = Math.min(CHUNK, t.capacity - from);
+                keys.getLongs((long) from << 3, keysChunk, 0, n);
+                values.getLongs((long) from << 3, valuesChunk, 0, n);
+                for (int j = 0; j < n; j++) {
+                    if (keysChunk[j] != LongHashSet.FREE) {
+                        t.keys.set(from + j, keysChunk[j]);
+                        t.values.set(from + j, ConcurrentLong2LongHashMap.PRESENT |
+                                (valuesChunk[j] & ConcurrentLong2LongHashMap.VALUE_MASK));
+                    }
+                }
+            }
+            if (h.containsFreeKey[i]) {
+                t.values.set(t.capacity, ConcurrentLong2LongHashMap.PRESENT |
+                        (values.getLong((long) t.capacity << 3) & ConcurrentLong2LongHashMap.VALUE_MASK));
+            }
+        }
+        t.size.set((int) h.size[i]);
+        return map;
+    }
+
+    private static Long2BitShortaHashMap readBitShorta(File file, Header h, int i) throws IOException {
+        Long2BitShortaHashMap map = new Long2BitShortaHashMap(onHeapLogCapacity(file, h, i), LOAD_FACTOR, h.sizeBitSet);
+        Long2BitShortaHashMap.MapData d = map.data;
+        int stride = h.valueBytes / 2;
+        try (OffHeapMemory keys = OffHeapMemory.mapFile(file, h.keysOffset(i), h.capacity[i] * 8, false);
+             OffHeapMemory values = OffHeapMemory.mapFile(file, h.valuesOffset(i), h.valuesBytes(i), false)) {
+            keys.getLongs(0, d.keys, 0, d.capacity);
+            for (int pos = 0; pos < d.capacity; pos++) {
+                if (d.keys[pos] != LongHashSet.FREE) {
+                    d.values[pos] = new short[stride];
+                    values.getShorts((long) pos * h.valueBytes, d.values[pos], 0, stride);
+                }
+            }
+            values.getShorts((long) d.capacity * h.valueBytes, d.valueForFreeKey, 0, stride);
+        }
+        d.containsFreeKey = h.containsFreeKey[i];
+        d.size = (int) h.size[i];
+        return map;
+    }
+
+    private static Long2BitLongaHashMap readBitLonga(File file, Header h, int i) throws IOException {
+        Long2BitLongaHashMap map = new Long2BitLongaHashMap(onHeapLogCapacity(file, h, i), LOAD_FACTOR, h.sizeBitSet);
+        Long2BitLongaHashMap.MapData d = map.data;
+        int stride = h.valueBytes / 8;
+        try (OffHeapMemory keys = OffHeapMemory.mapFile(file, h.keysOffset(i), h.capacity[i] * 8, false);
+             OffHeapMemory values = OffHeapMemory.mapFile(file, h.valuesOffset(i), h.valuesBytes(i), false)) {
+            keys.getLongs(0, d.keys, 0, d.capacity);
+            for (int pos = 0; pos < d.capacity; pos++) {
+                if (d.keys[pos] != LongHashSet.FREE) {
+                    d.values[pos] = new long[stride];
+                    values.getLongs((long) pos * h.valueBytes, d.values[pos], 0, stride);
+                }
+            }
+            values.getLongs((long) d.capacity * h.valueBytes, d.valueForFreeKey, 0, stride);
+        }
+        d.containsFreeKey = h.containsFreeKey[i];
+        d.size = (int) h.size[i];
+        return map;
+    }
+}
@@ -0,0 +1,333 @@
+package structures.map;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Long2BitShortaHashMap keeping keys and values off the Java heap (see OffHeapTable and OffHeapMemory),
+ * in direct memory or in a memory-mapped file. It isn't scanned by GC and its capacity isn't limited by 2^30.<br></br>
+ * <br></br>
+ *
+ * The bits of a key are (sizeBitSet>>4)+1 shorts in its value slot, they are set and counted in place,
+ * as in FlatLong2BitLongaHashMap. Methods returning short[] copy the bits: get and valueAt to a new array,
+ * the iterator to the array of the entry, which is reused for all entries.<br></br>
+ * set() doesn't return the previous value: it returns null, if the key is new, and an empty array otherwise.
+ * close() frees the memory, the map can't be used after that.
+ */
+public class OffHeapLong2BitShortaHashMap implements Long2BitShortaHashMapInterface, Closeable {
+
+    private final static int BITS_PER_WORD = 4; // size(short)=16=2^4
+
+    private final static short[] NOT_NEW = new short[0];
+
+    protected final int sizeBitSet;
+    protected final int stride;
+    protected final OffHeapTable table;
+
+
+    /**
+     * @param dir directory for the memory-mapped file, or null for direct memory
+     */
+    public OffHeapLong2BitShortaHashMap(int logCapacity, float maxLoadFactor, int sizeBitSet, File dir) {
+        this.sizeBitSet = sizeBitSet;
+        stride = (sizeBitSet>>BITS_PER_WORD) + 1;
+        table = new OffHeapTable(logCapacity, maxLoadFactor, 2 * stride, dir);
+    }
+
+    /**
+     * Map over the given table, e.g. mapped from a snapshot (see MapSnapshot).
+     */
+    OffHeapLong2BitShortaHashMap(OffHeapTable table, int sizeBitSet) {
+        this.sizeBitSet = sizeBitSet;
+        stride = (sizeBitSet>>BITS_PER_WORD) + 1;
+        if (table.valueBytes != 2 * stride) {
+            throw new IllegalArgumentException("Slot of " + table.valueBytes + " bytes doesn't fit " + sizeBitSet + " samples");
+        }
+        this.table = table;
+    }
+
+    /**
+     * Creates BigLong2BitShortaHashMap with OffHeapLong2BitShortaHashMap small maps.
+     */
+    public static BigLong2BitShortaHashMap newBigMap(int logSmallMapNumber, int logSmallCapacity, int sizeBitSet, File dir) {
+        BigLong2BitShortaHashMap hm = new BigLong2BitShortaHashMap(logSmallMapNumber, 0, false, sizeBitSet);
+        for (int i = 0; i < hm.maps.length; i++) {
+            hm.maps[i] = new OffHeapLong2BitShortaHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet, dir);
+        }
+        return hm;
+    }
+
+
+    private long wordOffset(OffHeapTable.Data d, long pos, int wordIndex) {
+        return d.valueOffset(pos) + ((long) wordIndex << 1);
+    }
+
+    @Override
+    public short[] set(long key, int bitIndex) {
+        LockWaits.lock(table.writeLock);
+        try {
+            long pos = table.claim(key);
+            OffHeapTable.Data d = table.data;
+            long offset = wordOffset(d, pos < 0 ? -pos - 1 : pos, bitIndex>>BITS_PER_WORD);
+            d.values.putShort(offset, (short) (d.values.getShort(offset) | 1<<(bitIndex&((1<<BITS_PER_WORD) - 1))));
+            if (pos < 0) {
+                table.added();
+                return null;
+            }
+            return NOT_NEW;
+        } finally {
+            table.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean get(long key, int bitIndex) {
+        OffHeapTable.Data d = table.data;
+        long pos = OffHeapTable.find(d, key);
+        if (pos == -1) {
+            return false;
+        }
+        int word = word(d, pos, bitIndex>>BITS_PER_WORD);
+        return ((word>>(bitIndex&((1<<BITS_PER_WORD) - 1)))&1) == 1;
+    }
+
+    /**
+     * @return the word as unsigned, for counting bits
+     */
+    private int word(OffHeapTable.Data d, long pos, int wordIndex) {
+        return d.values.getShort(wordOffset(d, pos, wordIndex)) & 0xFFFF;
+    }
+
+    private short[] copy(OffHeapTable.Data d, long pos, short[] value) {
+        for (int i = 0; i < stride; i++) {
+            value[i] = d.values.getShort(wordOffset(d, pos, i));
+        }
+        return value;
+    }
+
+    @Override
+    public short[] get(long key) {
+        OffHeapTable.Data d = table.data;
+        long pos = OffHeapTable.find(d, key);
+        return (pos == -1) ? null : copy(d, pos, new short[stride]);
+    }
+
+    @Override
+    public short[] getWithEmpty(long key) {
+        short[] value = get(key);
+        if (value == null)
+            return new short[1];
+        return value;
+    }
+
+    @Override
+    public int getCardinality(long key) {
+        OffHeapTable.Data d = table.data;
+        long pos = OffHeapTable.find(d, key);
+        if (pos == -1) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < stride; i++) {
+            count += Integer.bitCount(word(d, pos, i));
+        }
+        return count;
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        OffHeapTable.Data d = table.data;
+        long pos = OffHeapTable.find(d, key);
+        if (pos == -1) {
+            return 0;
+        }
+        int count = 0;
+
+        int bitFrom = from&((1<<BITS_PER_WORD) - 1);
+        int bitTo = to&((1<<BITS_PER_WORD) - 1);
+        if ((from>>BITS_PER_WORD) == (to>>BITS_PER_WORD)) {
+            return Integer.bitCount(word(d, pos, from>>BITS_PER_WORD) & ((1<<bitTo)-(1<<bitFrom)));
+        } else {
+            int all = 0xFFFF;
+            count += Integer.bitCount(word(d, pos, from>>BITS_PER_WORD) & (all - ((1<<bitFrom)-1)));
+            for (int i = (from>>BITS_PER_WORD) + 1; i < (to>>BITS_PER_WORD); i++) {
+                count += Integer.bitCount(word(d, pos, i));
+            }
+            count += Integer.bitCount(word(d, pos, to>>BITS_PER_WORD) & ((1<<bitTo) - 1));
+        }
+        return count;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return OffHeapTable.find(table.data, key) != -1;
+    }
+
+    @Override
+    public long size() { return table.data.size; }
+
+    @Override
+    public long capacity() { return table.data.capacity; }
+
+
+    @Override
+    public void reset() {
+        table.reset();
+    }
+
+    @Override
+    public void resetValues() {
+        table.resetValues();
+    }
+
+
+    @Override
+    public void prepare() {}
+    @Override
+    public long maxPosition() { return table.data.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        return OffHeapTable.find(table.data, key);
+    }
+
+    @Override
+    public long keyAt(long pos) {
+        return OffHeapTable.keyAtPosition(table.data, pos);
+    }
+
+    @Override
+    public short[] valueAt(long pos) {
+        OffHeapTable.Data d = table.data;
+        return d.containsAt(pos) ? copy(d, pos, new short[stride]) : null;
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        return table.data.containsAt(pos);
+    }
+
+
+    /**
+     * Writes the map in the format of Long2BitShortaHashMap, the capacity should be less than 2^31.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        OffHeapTable.Data d = table.data;
+        if (d.capacity > Integer.MAX_VALUE) {
+            throw new IOException("Can't write map of capacity " + d.capacity + " in Long2BitShortaHashMap format");
+        }
+
+        out.writeInt(sizeBitSet);
+        out.writeInt((int) d.capacity);
+        out.writeInt((int) d.size);
+        out.writeFloat(table.maxLoadFactor);
+
+        for (long i = 0; i < d.capacity; i++) {
+            out.writeLong(d.keyAt(i));
+            writeValue(out, d, i);
+        }
+        out.writeBoolean(d.containsFreeKey);
+        writeValue(out, d, d.capacity);
+    }
+
+    private void writeValue(DataOutput out, OffHeapTable.Data d, long pos) throws IOException {
+        out.writeInt(stride);
+        for (int j = 0; j < stride; j++) {
+            out.writeShort(d.values.getShort(wordOffset(d, pos, j)));
+        }
+    }
+
+    /**
+     * Reads the map written by Long2BitShortaHashMap.write, the number of samples should be the same.
+     */
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int sizeBitSet = in.readInt();
+        if (sizeBitSet != this.sizeBitSet) {
+            throw new IOException("Map for " + sizeBitSet + " samples can't be read to the map for " +
+                    this.sizeBitSet + " samples");
+        }
+        int capacity = in.readInt();
+        int size = in.readInt();
+        in.readFloat();
+
+        OffHeapTable.Data d = table.replace(capacity);
+        for (long i = 0; i < capacity; i++) {
+            d.keys.putLong(i << 3, in.readLong());
+            readValue(in, d, i);
+        }
+        d.containsFreeKey = in.readBoolean();
+        readValue(in, d, capacity);
+        d.size = size;
+    }
+
+    private void readValue(DataInput in, OffHeapTable.Data d, long pos) throws IOException {
+        int len = in.readInt();
+        for (int j = 0; j < len; j++) {
+            short word = in.readShort();
+            if (j < stride) {
+                d.values.putShort(wordOffset(d, pos, j), word);
+            }
+        }
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        return table.keyIterator();
+    }
+
+    @Override
+    public Iterator<MutableLongBitShortaEntry> entryIterator() {
+        return new MyIterator(table.data);
+    }
+
+    protected class MyIterator implements Iterator<MutableLongBitShortaEntry> {
+        private final OffHeapTable.Data d;
+        private long index = 0;
+        private final MutableLongBitShortaEntry entry = new MutableLongBitShortaEntry();
+        private final short[] value = new short[stride];
+
+        MyIterator(OffHeapTable.Data d) {
+            this.d = d;
+            entry.setValue(value);
+        }
+
+        @Override
+        public boolean hasNext() {
+            index = OffHeapTable.nextPosition(d, index);
+            return index <= d.capacity;
+        }
+
+        @Override
+        public MutableLongBitShortaEntry next() {
+            if (hasNext()){
+                entry.setKey(OffHeapTable.keyAtPosition(d, index));
+                copy(d, index, value);
+                index++;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    @Override
+    public void close() {
+        table.close();
+    }
+}
@@ -0,0 +1,275 @@
+package structures.map;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Long2ShortHashMap keeping keys and values off the Java heap (see OffHeapTable and OffHeapMemory),
+ * in direct memory or in a memory-mapped file. It isn't scanned by GC and its capacity isn't limited by 2^30.<br></br>
+ * It can be put to BigLong2ShortHashMap.maps instead of Long2ShortHashMap (see newBigMap).<br></br>
+ * <br></br>
+ *
+ * The map is synchronized as Long2ShortHashMap is: keys are added under the write lock, reading doesn't take it.
+ * A slot takes 10 bytes, as in Long2ShortHashMap. close() frees the memory, the map can't be used after that.
+ */
+public class OffHeapLong2ShortHashMap extends Long2ShortHashMap implements BatchLockable, Closeable {
+
+    protected final OffHeapTable table;
+
+
+    // constructors
+    public OffHeapLong2ShortHashMap(File dir) {
+        this(20, DEFAULT_MAX_LOAD_FACTOR, dir);  // 1 M elements
+    }
+    /**
+     * @param dir directory for the memory-mapped file, or null for direct memory
+     */
+    public OffHeapLong2ShortHashMap(int logCapacity, float maxLoadFactor, File dir) {
+        super(0, maxLoadFactor);            // data of Long2ShortHashMap isn't used
+        table = new OffHeapTable(logCapacity, maxLoadFactor, 2, dir);
+    }
+
+    /**
+     * Map over the given table, e.g. mapped from a snapshot (see MapSnapshot).
+     */
+    OffHeapLong2ShortHashMap(OffHeapTable table) {
+        super(0, table.maxLoadFactor);
+        this.table = table;
+    }
+
+    /**
+     * Creates BigLong2ShortHashMap with OffHeapLong2ShortHashMap small maps.
+     */
+    public static BigLong2ShortHashMap newBigMap(int logSmallMapNumber, int logSmallCapacity, File dir) {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(logSmallMapNumber, 0);
+        for (int i = 0; i < hm.maps.length; i++) {
+            hm.maps[i] = new OffHeapLong2ShortHashMap(logSmallCapacity, DEFAULT_MAX_LOAD_FACTOR, dir);
+        }
+        return hm;
+    }
+
+
+
+    // methods
+    @Override
+    public boolean add(long key) {
+        return put(key, (short) 0) == -1;
+    }
+
+    @Override
+    public short put(long key, short value) {
+        LockWaits.lock(table.writeLock);
+        try {
+            long pos = table.claim(key);
+            OffHeapTable.Data d = table.data;
+            if (pos < 0) {
+                d.values.putShort(d.valueOffset(-pos - 1), value);
+                table.added();
+                return -1;
+            }
+            short prev = d.values.getShort(d.valueOffset(pos));
+            d.values.putShort(d.valueOffset(pos), value);
+            return prev;
+        } finally {
+            table.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public short addAndBound(long key, short incValue) {
+        LockWaits.lock(table.writeLock);
+        try {
+            long pos = table.claim(key);
+            OffHeapTable.Data d = table.data;
+            long offset = d.valueOffset(pos < 0 ? -pos - 1 : pos);
+            short prev = d.values.getShort(offset);
+            d.values.putShort(offset, NumUtils.addAndBound(prev, incValue));
+            if (pos < 0) {
+                table.added();
+            }
+            return prev;
+        } finally {
+            table.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public short get(long key) {
+        OffHeapTable.Data d = table.data;
+        long pos = OffHeapTable.find(d, key);
+        return (pos == -1) ? -1 : d.values.getShort(d.valueOffset(pos));
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        short value = get(key);
+        return (value == -1) ? 0 : value;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return OffHeapTable.find(table.data, key) != -1;
+    }
+
+    @Override
+    public long size() { return table.data.size; }
+
+    @Override
+    public long capacity() { return table.data.capacity; }
+
+
+
+    // --------------  Other methods from interface Long2ShortHashMapInterface  ---------------
+
+    @Override
+    public void reset() {
+        table.reset();
+    }
+
+    @Override
+    public void resetValues() {
+        table.resetValues();
+    }
+
+
+    @Override
+    public void prepare() {}
+    @Override
+    public long maxPosition() { return table.data.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        return OffHeapTable.find(table.data, key);
+    }
+
+    @Override
+    public long elementAt(long pos) {
+        return OffHeapTable.keyAtPosition(table.data, pos);    // ambiguous answer for the free key
+    }
+    @Override
+    public long keyAt(long pos) {
+        return elementAt(pos);
+    }
+    @Override
+    public boolean containsAt(long pos) {
+        return table.data.containsAt(pos);
+    }
+
+    @Override
+    public short valueAt(long pos) {
+        OffHeapTable.Data d = table.data;
+        return d.containsAt(pos) ? d.values.getShort(d.valueOffset(pos)) : -1;
+    }
+
+
+    /**
+     * Writes the map in the format of Long2ShortHashMap, the capacity should be less than 2^31.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        OffHeapTable.Data d = table.data;
+        if (d.capacity > Integer.MAX_VALUE) {
+            throw new IOException("Can't write map of capacity " + d.capacity + " in Long2ShortHashMap format");
+        }
+
+        out.writeInt((int) d.capacity);
+        out.writeInt((int) d.size);
+        out.writeFloat(maxLoadFactor);
+
+        for (long i = 0; i < d.capacity; i++) {
+            out.writeLong(d.keyAt(i));
+            out.writeShort(d.values.getShort(d.valueOffset(i)));
+        }
+        out.writeBoolean(d.containsFreeKey);
+        out.writeShort(d.values.getShort(d.valueOffset(d.capacity)));
+    }
+
+    /**
+     * Reads the map written by Long2ShortHashMap.write, the maxLoadFactor of the map is kept.
+     */
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int size = in.readInt();
+        in.readFloat();
+
+        OffHeapTable.Data d = table.replace(capacity);
+        for (long i = 0; i < capacity; i++) {
+            d.keys.putLong(i << 3, in.readLong());
+            d.values.putShort(d.valueOffset(i), in.readShort());
+        }
+        d.containsFreeKey = in.readBoolean();
+        d.values.putShort(d.valueOffset(capacity), in.readShort());
+        d.size = size;
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        return table.keyIterator();
+    }
+
+    @Override
+    public Iterator<MutableLongShortEntry> entryIterator() {
+        return new EntryIterator(table.data);
+    }
+
+    protected static class EntryIterator implements Iterator<MutableLongShortEntry> {
+        private final OffHeapTable.Data d;
+        private long index = 0;
+        private final MutableLongShortEntry entry = new MutableLongShortEntry();
+
+        EntryIterator(OffHeapTable.Data d) {
+            this.d = d;
+        }
+
+        @Override
+        public boolean hasNext() {
+            index = OffHeapTable.nextPosition(d, index);
+            return index <= d.capacity;
+        }
+
+        @Override
+        public MutableLongShortEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            entry.setKey(OffHeapTable.keyAtPosition(d, index));
+            entry.setValue(d.values.getShort(d.valueOffset(index)));
+            index++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    @Override
+    public void lockBatch() {
+        LockWaits.lock(table.writeLock);
+    }
+
+    @Override
+    public void unlockBatch() {
+        table.writeLock.unlock();
+    }
+
+    @Override
+    public void close() {
+        table.close();
+    }
+}
@@ -0,0 +1,268 @@
+package structures.map;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.mutable.MutableLong;
+import structures.OffHeapMemory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hash table with open addressing over OffHeapMemory for the off-heap maps: keys and fixed-size value slots
+ * (valueBytes per slot, the slot at position capacity is for the free key) in separate memory regions.
+ * Positions are long, so the capacity isn't limited by 2^31.<br></br>
+ * <br></br>
+ *
+ * Keys are added under writeLock by the owning map (claim, then the value is set, then added),
+ * reading doesn't take the lock, as in LongHashSet. On enlarging the old memory isn't closed,
+ * as it can be read by other threads, it is freed by GC of its buffers. close() frees the current memory at once.
+ */
+class OffHeapTable implements Closeable {
+
+    static final long FREE = 0;
+
+    static class Data {
+        final OffHeapMemory keys;
+        final OffHeapMemory values;
+        final long capacity;
+        final long capacityMask;
+        final long maxFill;
+        final int valueBytes;
+
+        volatile long size = 0;
+        volatile boolean containsFreeKey = false;
+
+        Data(long capacity, float maxLoadFactor, int valueBytes, File dir) {
+            this.capacity = capacity;
+            capacityMask = capacity - 1;
+            maxFill = (long) Math.ceil(capacity * maxLoadFactor);
+            this.valueBytes = valueBytes;
+            keys = new OffHeapMemory(capacity * 8, dir);
+            try {
+                values = new OffHeapMemory((capacity + 1) * valueBytes, dir);
+            } catch (RuntimeException e) {
+                keys.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Data over the given memory: capacity * 8 bytes of keys and (capacity + 1) * valueBytes bytes of values.
+         */
+        Data(OffHeapMemory keys, OffHeapMemory values, long capacity, float maxLoadFactor, int valueBytes) {
+            this.capacity = capacity;
+            capacityMask = capacity - 1;
+            maxFill = (long) Math.ceil(capacity * maxLoadFactor);
+            this.valueBytes = valueBytes;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        long keyAt(long pos) {
+            return keys.getLong(pos << 3);
+        }
+
+        long valueOffset(long pos) {
+            return pos * valueBytes;
+        }
+
+        boolean containsAt(long pos) {
+            return (pos == capacity) ? containsFreeKey : keyAt(pos) != FREE;
+        }
+    }
+
+    final float maxLoadFactor;
+    final int valueBytes;
+    final File dir;
+    final ReentrantLock writeLock = new ReentrantLock();
+
+    volatile Data data;
+
+
+    /**
+     * @param dir directory for memory-mapped files, or null for direct memory
+     */
+    OffHeapTable(int logCapacity, float maxLoadFactor, int valueBytes, File dir) {
+        if (logCapacity > 60) {
+            throw new IllegalArgumentException("log capacity > 60!");
+        }
+        this.maxLoadFactor = maxLoadFactor;
+        this.valueBytes = valueBytes;
+        this.dir = dir;
+        data = new Data(1L << logCapacity, maxLoadFactor, valueBytes, dir);
+    }
+
+    /**
+     * Table starting with the given data (e.g. mapped from a snapshot, see MapSnapshot),
+     * it is enlarged to memory in dir.
+     */
+    OffHeapTable(Data data, float maxLoadFactor, File dir) {
+        this.maxLoadFactor = maxLoadFactor;
+        this.valueBytes = data.valueBytes;
+        this.dir = dir;
+        this.data = data;
+    }
+
+
+    /**
+     * @return position of the key or of the free slot, where it should be
+     */
+    static long position(Data d, long key) {
+        if (key == FREE) {
+            return d.capacity;
+        }
+        long pos = HashCommon.murmurHash3(key) & d.capacityMask;
+        long cur;
+        while ((cur = d.keyAt(pos)) != FREE && cur != key) {
+            pos = (pos + 1) & d.capacityMask;
+        }
+        return pos;
+    }
+
+    /**
+     * @return position of the key, or -1 if not found
+     */
+    static long find(Data d, long key) {
+        long pos = position(d, key);
+        return d.containsAt(pos) ? pos : -1;
+    }
+
+    /**
+     * Adds the key to the table if it is new. Call under writeLock, and call added() after setting the value
+     * of the new key.
+     * @return position of the key, if it has been in the table, and -(position + 1), if it is new
+     */
+    long claim(long key) {
+        Data d = data;
+        long pos = position(d, key);
+        if (d.containsAt(pos)) {
+            return pos;
+        }
+        if (pos == d.capacity) {
+            d.containsFreeKey = true;
+        } else {
+            d.keys.putLong(pos << 3, key);
+        }
+        return -(pos + 1);
+    }
+
+    /**
+     * Counts the key claimed as new, enlarges the table, if it is full. Call under writeLock.
+     */
+    void added() {
+        Data d = data;
+        d.size++;
+        if (d.size >= d.maxFill) {
+            enlargeAndRehash();
+        }
+    }
+
+    private void enlargeAndRehash() {
+        Data curData = data;
+        Data newData = new Data(2 * curData.capacity, maxLoadFactor, valueBytes, dir);
+
+        for (long oldPos = 0; oldPos < curData.capacity; oldPos++) {
+            long key = curData.keyAt(oldPos);
+            if (key != FREE) {
+                long pos = position(newData, key);
+                newData.keys.putLong(pos << 3, key);
+                curData.values.copyTo(curData.valueOffset(oldPos), newData.values, newData.valueOffset(pos), valueBytes);
+            }
+        }
+        curData.values.copyTo(curData.valueOffset(curData.capacity),
+                newData.values, newData.valueOffset(newData.capacity), valueBytes);
+        newData.containsFreeKey = curData.containsFreeKey;
+        newData.size = curData.size;
+
+        data = newData;
+    }
+
+    void reset() {
+        writeLock.lock();
+        try {
+            Data d = data;
+            d.keys.clear();
+            d.values.clear();
+            d.containsFreeKey = false;
+            d.size = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void resetValues() {
+        writeLock.lock();
+        try {
+            data.values.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the table with the empty one of the given capacity, for reading the map.
+     */
+    Data replace(long capacity) {
+        Data old = data;
+        data = new Data(capacity, maxLoadFactor, valueBytes, dir);
+        old.keys.close();
+        old.values.close();
+        return data;
+    }
+
+    /**
+     * @return the first position from pos (inclusive) containing a key, or capacity + 1, if there are no more keys
+     */
+    static long nextPosition(Data d, long pos) {
+        while (pos < d.capacity && d.keyAt(pos) == FREE) {
+            pos++;
+        }
+        if (pos == d.capacity && !d.containsFreeKey) {
+            pos++;
+        }
+        return pos;
+    }
+
+    static long keyAtPosition(Data d, long pos) {
+        return (pos == d.capacity) ? FREE : d.keyAt(pos);
+    }
+
+    Iterator<MutableLong> keyIterator() {
+        final Data d = data;
+        return new Iterator<MutableLong>() {
+            private long index = 0;
+            private final MutableLong key = new MutableLong();
+
+            @Override
+            public boolean hasNext() {
+                index = nextPosition(d, index);
+                return index <= d.capacity;
+            }
+
+            @Override
+            public MutableLong next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                key.setValue(keyAtPosition(d, index));
+                index++;
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        Data d = data;
+        d.keys.close();
+        d.values.close();
+    }
+}
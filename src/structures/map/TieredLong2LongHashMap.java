@@ -0,0 +1,548 @@
+package structures.map;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counting map with counters of tiered width: a count is kept in one byte of the slot
+ * while it is at most INLINE_MAX, and is promoted to the side ConcurrentLong2LongHashMap on overflow.
+ * Counts aren't bounded by Short.MAX_VALUE, but a k-mer with a count up to INLINE_MAX takes 9 bytes per slot:
+ * about 10% less than 10 bytes in Long2ShortHashMap (the default counting map), 25% less than 12 bytes
+ * in ConcurrentLong2ShortHashMap, and 16 bytes in ConcurrentLong2LongHashMap. A promoted k-mer also takes
+ * a slot of the side map, so the saving is lower when many k-mers are frequent.<br></br>
+ * It can be put to BigLong2LongHashMap.maps instead of Long2LongHashMap (see newBigMap).<br></br>
+ * <br></br>
+ *
+ * Keys are claimed by compareAndSet from FREE, the same as in ConcurrentLong2LongHashMap. Value cells are bytes,
+ * four of them are packed into an int and updated by compareAndSet of the int. A cell holds the code of the value
+ * in 7 bits (0 - no value yet, 1..INLINE_MAX+1 - the value plus one, OVERFLOW - the value is in the side map)
+ * and the FROZEN flag (the cell has been copied to the next table). The side map is shared by all tables,
+ * a cell never goes back from OVERFLOW, so adding to the side map is a plain addAndBound there.
+ * Values are counts: negative values aren't supported, big ones are limited by ConcurrentLong2LongHashMap.MAX_VALUE.<br></br>
+ * <br></br>
+ *
+ * Resize is cooperative, as in ConcurrentLong2LongHashMap.
+ * Previous values returned by put and addAndBound are exact, if no other thread changes the same key.
+ * Methods using positions, iterators, reset, write and readFields are for the time no other thread changes the map.
+ */
+public class TieredLong2LongHashMap extends Long2LongHashMap {
+
+    public static final int INLINE_MAX = 125;
+    public static final long MAX_VALUE = ConcurrentLong2LongHashMap.MAX_VALUE;
+
+    static final int OVERFLOW = INLINE_MAX + 2;
+    static final int FROZEN = 1 << 7;
+    static final long MOVED = Long.MIN_VALUE;   // returned instead of the previous value, if the cell is frozen
+
+    static final int MIGRATION_CHUNK = 1 << 12;
+    static final int SIDE_LOG_CAPACITY = 6;
+
+
+    protected static class Table {
+        final AtomicLongArray keys;
+        final AtomicIntegerArray cells;      // capacity + 1 byte cells, the last one is for the free key
+        final int capacity, capacityMask, maxFill;
+        final AtomicInteger size = new AtomicInteger(0);
+
+        volatile Table next = null;
+        volatile boolean copied = false;
+        final int chunks;
+        final AtomicInteger chunksClaimed = new AtomicInteger(0);
+        final AtomicInteger chunksDone = new AtomicInteger(0);
+
+        Table(int capacity, float maxLoadFactor) {
+            if (Integer.bitCount(capacity) != 1) {  // i.e. not power of 2
+                throw new RuntimeException("Bad capacity " + capacity + ".");
+            }
+            keys = new AtomicLongArray(capacity);
+            cells = new AtomicIntegerArray(capacity / 4 + 1);
+            this.capacity = capacity;
+            capacityMask = capacity - 1;
+            maxFill = (int) Math.ceil(capacity * maxLoadFactor);
+            chunks = capacity / MIGRATION_CHUNK + 1;
+        }
+
+        int cell(int pos) {
+            return (cells.get(pos >> 2) >>> ((pos & 3) << 3)) & 0xff;
+        }
+    }
+
+    protected volatile Table table;
+    protected volatile ConcurrentLong2LongHashMap side;
+
+
+    // constructors
+    public TieredLong2LongHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR);  // 1 M elements
+    }
+    public TieredLong2LongHashMap(int logCapacity, float maxLoadFactor) {
+        super(0, maxLoadFactor);            // data of Long2LongHashMap isn't used
+        if (logCapacity > 30) {
+            throw new IllegalArgumentException("log capacity > 30!");
+        }
+        table = new Table(1 << logCapacity, maxLoadFactor);
+        side = new ConcurrentLong2LongHashMap(SIDE_LOG_CAPACITY, maxLoadFactor);
+    }
+
+    /**
+     * Creates BigLong2LongHashMap with TieredLong2LongHashMap small maps.
+     */
+    public static BigLong2LongHashMap newBigMap(int logSmallMapNumber, int logSmallCapacity) {
+        BigLong2LongHashMap hm = new BigLong2LongHashMap(logSmallMapNumber, 0);
+        for (int i = 0; i < hm.maps.length; i++) {
+            hm.maps[i] = new TieredLong2LongHashMap(logSmallCapacity, DEFAULT_MAX_LOAD_FACTOR);
+        }
+        return hm;
+    }
+
+
+
+    // methods
+    @Override
+    public boolean add(long key) {
+        return put(key, 0) == -1;
+    }
+
+    @Override
+    public long put(long key, long value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalArgumentException("Value " + value + " is out of range!");
+        }
+        return update(key, value, false);
+    }
+
+    @Override
+    public long addAndBound(long key, long incValue) {
+        if (incValue < 0) {
+            throw new IllegalArgumentException("Negative increment " + incValue + ", only counting is supported!");
+        }
+        return Math.max(update(key, incValue, true), 0);
+    }
+
+    /**
+     * @return previous value, -1 if there was no value
+     */
+    private long update(long key, long value, boolean add) {
+        Table t = table;
+        while (true) {
+            int pos = (key == FREE) ? t.capacity : claim(t, key);
+            if (pos != -1) {
+                long prev = updateCell(t, pos, key, value, add);
+                if (prev != MOVED) {
+                    if (prev == -1 && t.size.incrementAndGet() >= t.maxFill) {
+                        startResize(t);
+                    }
+                    return prev;
+                }
+            } else if (t.next == null) {
+                startResize(t);     // all slots are claimed by keys, which haven't got their values yet
+            }
+            t = helpResize(t);
+        }
+    }
+
+    /**
+     * @return position of the key, claiming a free slot for it if needed,
+     * or -1 if the table is being copied or there are no free slots
+     */
+    private static int claim(Table t, long key) {
+        int pos = (int) (HashCommon.murmurHash3(key) & t.capacityMask);
+        for (int probes = 0; probes < t.capacity; ) {
+            long k = t.keys.get(pos);
+            if (k == key) {
+                return pos;
+            }
+            if (k == FREE) {
+                if (t.next != null) {
+                    return -1;
+                }
+                if (t.keys.compareAndSet(pos, FREE, key)) {
+                    return pos;
+                }
+                continue;   // the slot has been claimed by another thread, check it again
+            }
+            pos = (pos + 1) & t.capacityMask;
+            probes++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return position of the key, or -1 if there is no such key
+     */
+    private static int find(Table t, long key) {
+        if (key == FREE) {
+            return t.capacity;
+        }
+        int pos = (int) (HashCommon.murmurHash3(key) & t.capacityMask);
+        for (int probes = 0; probes < t.capacity; probes++) {
+            long k = t.keys.get(pos);
+            if (k == key) {
+                return pos;
+            }
+            if (k == FREE) {
+                return -1;
+            }
+            pos = (pos + 1) & t.capacityMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return previous value, -1 if there was no value, or MOVED
+     */
+    private long updateCell(Table t, int pos, long key, long value, boolean add) {
+        int index = pos >> 2;
+        int shift = (pos & 3) << 3;
+        while (true) {
+            int word = t.cells.get(index);
+            int cell = (word >>> shift) & 0xff;
+            if ((cell & FROZEN) != 0) {
+                return MOVED;
+            }
+            if (cell == OVERFLOW) {
+                // the value has been promoted, the cell is left unchanged
+                return Math.max(add ? side.addAndBound(key, value) : side.put(key, value), 0);
+            }
+            long prev = cell - 1;
+            long newValue = add ? Math.min(MAX_VALUE, Math.max(prev, 0) + value) : value;
+            int newCell = (newValue <= INLINE_MAX) ? (int) newValue + 1 : OVERFLOW;
+            int newWord = (word & ~(0xff << shift)) | (newCell << shift);
+            if (newWord == word || t.cells.compareAndSet(index, word, newWord)) {
+                if (newCell == OVERFLOW) {
+                    // other threads may have added to the side map already, so the value is added too
+                    side.addAndBound(key, newValue);
+                }
+                return prev;
+            }
+        }
+    }
+
+
+    private void startResize(Table t) {
+        if (t.capacity > Integer.MAX_VALUE / 2) {
+            throw new RuntimeException("Can't enlarge map (can't create single array of 2^31 elements)!");
+        }
+        synchronized (t) {
+            if (t.next == null) {
+                t.next = new Table(2 * t.capacity, maxLoadFactor);
+            }
+        }
+        helpResize(t);
+    }
+
+    /**
+     * Copies chunks of the table to the next one, while there are unclaimed chunks,
+     * then waits for the other threads to finish copying.
+     * @return the next table
+     */
+    private Table helpResize(Table t) {
+        Table next = t.next;
+        int c;
+        while ((c = t.chunksClaimed.getAndIncrement()) < t.chunks) {
+            copyChunk(t, next, c);
+            if (t.chunksDone.incrementAndGet() == t.chunks) {
+                table = next;
+                t.copied = true;
+            }
+        }
+        while (!t.copied) {
+            Thread.yield();
+        }
+        return next;
+    }
+
+    private static void copyChunk(Table t, Table next, int chunk) {
+        int from = chunk * MIGRATION_CHUNK;
+        int to = Math.min(from + MIGRATION_CHUNK, t.capacity + 1);
+        int copied = 0;
+        for (int pos = from; pos < to; pos++) {
+            int cell = freeze(t.cells, pos);
+            if (cell == 0) {
+                continue;   // free slot or the key hasn't got its value yet, it will be added to the next table
+            }
+            int newPos = (pos == t.capacity) ? next.capacity : claim(next, t.keys.get(pos));
+            setCell(next.cells, newPos, cell);
+            copied++;
+        }
+        next.size.addAndGet(copied);
+    }
+
+    /**
+     * @return the cell without FROZEN flag
+     */
+    private static int freeze(AtomicIntegerArray cells, int pos) {
+        int index = pos >> 2;
+        int shift = (pos & 3) << 3;
+        while (true) {
+            int word = cells.get(index);
+            if (cells.compareAndSet(index, word, word | (FROZEN << shift))) {
+                return (word >>> shift) & 0xff & ~FROZEN;
+            }
+        }
+    }
+
+    /**
+     * Sets the cell, other cells of the same int can be set by other threads at the same time.
+     */
+    private static void setCell(AtomicIntegerArray cells, int pos, int cell) {
+        int index = pos >> 2;
+        int shift = (pos & 3) << 3;
+        while (true) {
+            int word = cells.get(index);
+            if (cells.compareAndSet(index, word, (word & ~(0xff << shift)) | (cell << shift))) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return value cell of the key, 0 if there is no such key
+     */
+    private int getCell(long key) {
+        Table t = table;
+        while (true) {
+            int pos = find(t, key);
+            if (pos == -1) {
+                return 0;
+            }
+            int cell = t.cell(pos);
+            if ((cell & FROZEN) == 0) {
+                return cell;
+            }
+            t = helpResize(t);
+        }
+    }
+
+    private long value(long key, int cell) {
+        return (cell == OVERFLOW) ? side.getWithZero(key) : cell - 1;
+    }
+
+    @Override
+    public long get(long key) {
+        return value(key, getCell(key));
+    }
+
+    @Override
+    public long getWithZero(long key) {
+        return Math.max(get(key), 0);
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return getCell(key) != 0;
+    }
+
+    @Override
+    public long size() { return table.size.get(); }
+
+    @Override
+    public long capacity() { return table.capacity; }
+
+    /**
+     * @return number of keys with values promoted to the side map
+     */
+    public long overflowSize() { return side.size(); }
+
+
+
+    // --------------  Other methods from interface Long2LongHashMapInterface  ---------------
+
+    /**
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    @Override
+    public void reset() {
+        table = new Table(table.capacity, maxLoadFactor);
+        side = new ConcurrentLong2LongHashMap(SIDE_LOG_CAPACITY, maxLoadFactor);
+    }
+    /**
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    @Override
+    public void resetValues() {
+        Table t = table;
+        for (int pos = 0; pos <= t.capacity; pos++) {
+            if (t.cell(pos) != 0) {
+                setCell(t.cells, pos, 1);
+            }
+        }
+        side = new ConcurrentLong2LongHashMap(SIDE_LOG_CAPACITY, maxLoadFactor);
+    }
+
+
+    @Override
+    public void prepare() {}
+    @Override
+    public long maxPosition() { return table.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        Table t = table;
+        int pos = find(t, key);
+        return (pos == -1 || t.cell(pos) == 0) ? -1 : pos;
+    }
+
+    @Override
+    public long elementAt(long pos) {
+        Table t = table;
+        if (pos == t.capacity || t.cell((int) pos) == 0) {
+            return FREE;    // ambiguous answer
+        }
+        return t.keys.get((int) pos);
+    }
+    @Override
+    public long keyAt(long pos) {
+        return elementAt(pos);
+    }
+    @Override
+    public boolean containsAt(long pos) {
+        return table.cell((int) pos) != 0;
+    }
+
+    @Override
+    public long valueAt(long pos) {
+        Table t = table;
+        int cell = t.cell((int) pos);
+        return value(pos == t.capacity ? FREE : t.keys.get((int) pos), cell);
+    }
+
+
+    /**
+     * Writes the map in the format of Long2LongHashMap.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        Table t = table;
+
+        out.writeInt(t.capacity);
+        out.writeInt(t.size.get());
+        out.writeFloat(maxLoadFactor);
+
+        for (int i = 0; i < t.capacity; i++) {
+            out.writeLong(containsAt(i) ? t.keys.get(i) : FREE);
+            out.writeLong(Math.max(valueAt(i), 0));
+        }
+        out.writeBoolean(containsAt(t.capacity));
+        out.writeLong(Math.max(valueAt(t.capacity), 0));
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+        Table newTable = new Table(capacity, maxLoadFactor);
+        ConcurrentLong2LongHashMap newSide = new ConcurrentLong2LongHashMap(SIDE_LOG_CAPACITY, maxLoadFactor);
+
+        for (int i = 0; i <= capacity; i++) {
+            boolean present;
+            long key;
+            if (i < capacity) {
+                key = in.readLong();
+                present = key != FREE;
+            } else {
+                key = FREE;
+                present = in.readBoolean();
+            }
+            long value = in.readLong();
+            if (!present) {
+                continue;
+            }
+            if (value < 0 || value > MAX_VALUE) {
+                throw new IOException("Value " + value + " is out of range!");
+            }
+            if (i < capacity) {
+                newTable.keys.set(i, key);
+            }
+            if (value <= INLINE_MAX) {
+                setCell(newTable.cells, i, (int) value + 1);
+            } else {
+                setCell(newTable.cells, i, OVERFLOW);
+                newSide.put(key, value);
+            }
+        }
+        newTable.size.set(size);
+
+        table = newTable;
+        side = newSide;
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final Iterator<MutableLongLongEntry> it = entryIterator();
+        final MutableLong key = new MutableLong();
+        return new Iterator<MutableLong>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                key.setValue(it.next().getKey());
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<MutableLongLongEntry> entryIterator() {
+        return new EntryIterator(table);
+    }
+
+    protected class EntryIterator implements Iterator<MutableLongLongEntry> {
+        private final Table t;
+        private int index = 0;
+        private final MutableLongLongEntry entry = new MutableLongLongEntry();
+
+        EntryIterator(Table t) {
+            this.t = t;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index <= t.capacity && t.cell(index) == 0) {
+                index++;
+            }
+            return index <= t.capacity;
+        }
+
+        @Override
+        public MutableLongLongEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long key = (index == t.capacity) ? FREE : t.keys.get(index);
+            entry.setKey(key);
+            entry.setValue(value(key, t.cell(index)));
+            index++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
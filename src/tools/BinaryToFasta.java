@@ -1,5 +1,6 @@
 package tools;
 
+import io.CompressedKmersFile;
 import io.IOUtils;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
@@ -16,6 +17,7 @@ import structures.ConnectedComponent;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
@@ -93,17 +95,21 @@ public class BinaryToFasta extends Tool {
                 throw new ExecutionFailedException("Couldn't open output file", e);
             }
 
-            BigLong2ShortHashMap kmersHM =
-                    IOUtils.loadKmers(new File[]{kmersFile.get()}, 0, availableProcessors.get(), logger);
-
-            info("Printing kmers...");
-            Iterator<MutableLongShortEntry> it = kmersHM.entryIterator();
-            int i = 1;
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                out.println(">" + i);
-                out.println(new ShortKmer(entry.getKey(), k.get()));
-                i++;
+            if (CompressedKmersFile.isCompressed(kmersFile.get())) {
+                printCompressedKmers(out);
+            } else {
+                BigLong2ShortHashMap kmersHM =
+                        IOUtils.loadKmers(new File[]{kmersFile.get()}, 0, availableProcessors.get(), logger);
+
+                info("Printing kmers...");
+                Iterator<MutableLongShortEntry> it = kmersHM.entryIterator();
+                int i = 1;
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    out.println(">" + i);
+                    out.println(new ShortKmer(entry.getKey(), k.get()));
+                    i++;
+                }
             }
             out.close();
         }
@@ -134,7 +140,7 @@ public class BinaryToFasta extends Tool {
                             "weight = " + component.weight);
 
                     int j = 1;
-                    for (long kmer : component.kmers) {
+                    for (long kmer : component.kmers.array()) {
                         out.println(">" + j);
                         out.println(new ShortKmer(kmer, k.get()).toString());
                         j++;
@@ -158,7 +164,7 @@ public class BinaryToFasta extends Tool {
                             "weight = " + component.weight);
 
                     int j = 1;
-                    for (long kmer : component.kmers) {
+                    for (long kmer : component.kmers.array()) {
                         out.println(">" + (i + 1) + "_" + j);
                         out.println(new ShortKmer(kmer, k.get()).toString());
                         j++;
@@ -174,6 +180,29 @@ public class BinaryToFasta extends Tool {
 
 
 
+    private void printCompressedKmers(PrintWriter out) throws ExecutionFailedException {
+        try {
+            CompressedKmersFile file = new CompressedKmersFile(kmersFile.get());
+            int kk = k.get();
+            if (file.k != kk) {
+                warn("k-mers file was saved with k = " + file.k + ", using it instead of " + kk);
+                kk = file.k;
+            }
+
+            info("Printing kmers...");
+            CompressedKmersFile.Reader reader = file.reader();
+            long i = 1;
+            while (reader.next()) {
+                out.println(">" + i);
+                out.println(new ShortKmer(reader.key(), kk));
+                i++;
+            }
+            file.close();
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't read k-mers file", e);
+        }
+    }
+
     @Override
     protected void cleanImpl() {
     }
@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.LoaderOptions;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ChiSquaredDistribution;
 import org.apache.commons.math.distribution.ChiSquaredDistributionImpl;
@@ -15,6 +16,7 @@ import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.DoubleParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
@@ -61,6 +63,17 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
             .withDefaultValue(0.05)
             .create());
 
+    public final Parameter<Boolean> offHeapMaps = addParameter(new BoolParameterBuilder("off-heap-maps")
+            .withDescription("keep k-mers maps off the Java heap: in memory-mapped files in off-heap-dir, " +
+                    "or in direct memory (see -XX:MaxDirectMemorySize), if it isn't set")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<File> offHeapDir = addParameter(new FileParameterBuilder("off-heap-dir")
+            .optional()
+            .withDescription("directory for memory-mapped files of off-heap k-mers maps")
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -83,6 +96,7 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
+        LoaderOptions options = LoaderOptions.DEFAULT.withOffHeapMaps(offHeapMaps.get(), offHeapDir.get());
         info("Loading k-mers occurrences...");
         Timer t = new Timer();
         int Alength = Afiles.get().length;
@@ -95,9 +109,9 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
         //BigLong2BitSetHashMap Ckmers = IOUtils.loadBitSetKmers(Cfiles.get(), 0, availableProcessors.get(), logger);
         //debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
         File[] all_files = Stream.of(Afiles.get(), Bfiles.get(), Cfiles.get()).flatMap(Stream::of).toArray(File[]::new);
-        BigLong2BitSetHashMap allKmers = IOUtils.loadBitSetKmers(all_files, 0, availableProcessors.get(), logger);
+        BigLong2BitSetHashMap allKmers = IOUtils.loadBitSetKmers(all_files, 0, options, availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-        BigLong2ShortHashMap hm = IOUtils.loadKmers(all_files, 0, availableProcessors.get(), logger);
+        BigLong2ShortHashMap hm = IOUtils.loadKmers(all_files, 0, options, availableProcessors.get(), logger);
 
         ChiSquaredDistribution xi = new ChiSquaredDistributionImpl(1, 1e-15D);
         double qvalue;
@@ -135,9 +149,9 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
             MutableLongShortEntry entry = it_all.next();
             long key = entry.getKey();
 
-            int n_1_A = allKmers.getWithEmpty(key).get(0, Alength).cardinality();
-            int n_1_B = allKmers.getWithEmpty(key).get(Alength, Alength+Blength).cardinality();
-            int n_1_C = allKmers.getWithEmpty(key).get(Alength+Blength, totalLength).cardinality();
+            int n_1_A = allKmers.getCardinality(key, 0, Alength);
+            int n_1_B = allKmers.getCardinality(key, Alength, Alength+Blength);
+            int n_1_C = allKmers.getCardinality(key, Alength+Blength, totalLength);
 
             int n_0_A = Alength - n_1_A;
             int n_0_B = Blength - n_1_B;
@@ -165,7 +179,7 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
                 nFilteredChi++;
             }
         }
-        hm.reset();
+        IOUtils.closeMap(hm);
 
         long c = IOUtils.printKmers(hm_chisq, 0, filteredKmers, stFile);
         if (c != n - nInAll - nScarce - nFilteredChi) {
@@ -187,13 +201,14 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
         int i = 0;
         for (File file : Afiles.get()) {
             AkmersHMs.set(i, new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12));
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, options, availableProcessors.get(), logger);
             Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
             while (it.hasNext()) {
                 MutableLongShortEntry entry = it.next();
                 long key = entry.getKey();
                 AkmersHMs.get(i).put(key, tmp.first().getWithZero(key));
             }
+            IOUtils.closeMap(tmp.first());
             AkmersFreq[i] = tmp.second();
             i++;
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
@@ -202,13 +217,14 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
         i = 0;
         for (File file : Bfiles.get()) {
             BkmersHMs.set(i, new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12));
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, options, availableProcessors.get(), logger);
             Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
             while (it.hasNext()) {
                 MutableLongShortEntry entry = it.next();
                 long key = entry.getKey();
                 BkmersHMs.get(i).put(key, tmp.first().getWithZero(key));
             }
+            IOUtils.closeMap(tmp.first());
             BkmersFreq[i] = tmp.second();
             i++;
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
@@ -217,13 +233,14 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
         i = 0;
         for (File file : Cfiles.get()) {
             CkmersHMs.set(i, new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12));
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, options, availableProcessors.get(), logger);
             Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
             while (it.hasNext()) {
                 MutableLongShortEntry entry = it.next();
                 long key = entry.getKey();
                 CkmersHMs.get(i).put(key, tmp.first().getWithZero(key));
             }
+            IOUtils.closeMap(tmp.first());
             CkmersFreq[i] = tmp.second();
             i++;
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
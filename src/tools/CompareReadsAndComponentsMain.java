@@ -1,9 +1,8 @@
 package tools;
 
-import structures.ConnectedComponent;
+import structures.ComponentsIndex;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
-import ru.ifmo.genetics.structures.map.ArrayLong2IntHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -42,19 +41,21 @@ public class CompareReadsAndComponentsMain extends Tool {
             .withDescription("SamTools view reads output from BAM file")
             .create());
 
+    public final Parameter<Integer> fingerprintBits = addParameter(new IntParameterBuilder("index-fingerprint")
+            .withDescription("bits of k-mer fingerprints in the components index (1..64), " +
+                    "a fraction 2^-bits of other k-mers is taken for k-mers of components, 64 for exact lookups")
+            .withDefaultValue(64)
+            .create());
+
     private List<String> contigsID = new ArrayList<String>();
     private List<String> referenceContigs = new ArrayList<String>();
 
     private List<int[]> readsBegins = new ArrayList<int[]>();
     private List<int[]> readsEnds = new ArrayList<int[]>();
 
-    private List<ConnectedComponent> components;
-
     @Override
     protected void runImpl() throws ExecutionFailedException {
-        debug("Lets load components");
-        components = ConnectedComponent.loadComponents(componentsFile.get());
-        debug("Components loaded, loading reference");
+        debug("Loading reference");
 
         try {
             readReferenceContigs();
@@ -90,20 +91,16 @@ public class CompareReadsAndComponentsMain extends Tool {
             throw new ExecutionFailedException("Couldn't load samtools", e);
         }
 
-        debug("Building kmer-to-component map");
-        ArrayLong2IntHashMap kmerToComponent =
-                new ArrayLong2IntHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4);
-
-        for (int compNum = 0; compNum < components.size(); compNum++) {
-            for (long kmer : components.get(compNum).kmers) {
-                assert kmerToComponent.get(kmer) == 0;
-                kmerToComponent.add(kmer, compNum + 1);
-            }
+        debug("Opening kmer-to-component index");
+        if (fingerprintBits.get() < 1 || fingerprintBits.get() > 64) {
+            throw new ExecutionFailedException("Index fingerprint bits should be in 1..64");
         }
+        ComponentsIndex kmerToComponent =
+                ComponentsIndex.open(componentsFile.get(), null, fingerprintBits.get(), logger);
 
         debug("Printing statistics");
         try {
-            int[] componentToCount = new int[components.size() + 1];
+            int[] componentToCount = new int[kmerToComponent.components() + 1];
             PrintWriter pw = new PrintWriter(workDir + File.separator + "reference-to-component");
 
             long inComponents = 0, inReads = 0, inComponentsAndReads = 0;
@@ -122,7 +119,7 @@ public class CompareReadsAndComponentsMain extends Tool {
                     }
 
                     if (pos >= k.get()) {
-                        int componentNum = kmerToComponent.get(currentKmer.toLong());
+                        int componentNum = kmerToComponent.component(currentKmer.toLong());
                         pw.println((pos - k.get()) + " " + componentNum + " " + currentReadsCount);
                         componentToCount[componentNum]++;
 
@@ -157,6 +154,8 @@ public class CompareReadsAndComponentsMain extends Tool {
             componentStatPW.close();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+        } finally {
+            kmerToComponent.close();
         }
 
         debug("done");
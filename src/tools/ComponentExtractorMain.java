@@ -15,6 +15,7 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import structures.ConnectedComponent;
+import structures.map.EliasFanoLong2ShortMap;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -68,7 +69,7 @@ public class ComponentExtractorMain extends Tool {
         BigLong2ShortHashMap hm = IOUtils.loadKmers(inputFiles.get(), 0, availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
         debug("Loading graph from files...");
-        BigLong2ShortHashMap pivot = IOUtils.loadKmers(pivotFiles.get(), 0, availableProcessors.get(), logger);
+        EliasFanoLong2ShortMap pivot = IOUtils.loadStaticKmers(pivotFiles.get(), 0, true, availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
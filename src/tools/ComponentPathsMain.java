@@ -1,8 +1,8 @@
 package tools;
 
+import algo.KmerScanner;
 import io.IOUtils;
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.statistics.Timer;
@@ -112,7 +112,7 @@ public class ComponentPathsMain extends Tool {
         }
         for (int i = 0; i < n; i++) {
             compKmers[i] = new LongHashSet((int) (usedComps[i].size / 0.75f) +10);
-            for (long kmer : usedComps[i].kmers) {
+            for (long kmer : usedComps[i].kmers.array()) {
                 compKmers[i].add(kmer);
             }
         }
@@ -125,6 +125,10 @@ public class ComponentPathsMain extends Tool {
 
 
         debug("Loading sequences and extracting paths...");
+        PathsExtractor[] extractors = new PathsExtractor[n];
+        for (int i = 0; i < n; i++) {
+            extractors[i] = new PathsExtractor(compKmers[i], ans[i], usedComps[i]);
+        }
         for (File seqFile : sequenceFiles.get()) {
             info("Loading file " + seqFile.getName() + "...");
 
@@ -135,26 +139,7 @@ public class ComponentPathsMain extends Tool {
 
                 for (int i = 0; i < n; i++) {
                     // checking sequence dna on component i
-                    int first = -1;
-                    int cur = 0;
-                    for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        if (compKmers[i].contains(kmer.toLong())) {
-                            if (first == -1) {
-                                first = cur;
-                            } else {
-                                // continue...
-                            }
-                        } else {
-                            if (first != -1) {
-                                checkAndAddPath(dna, first, cur, ans[i], usedComps[i]);
-                                first = -1;
-                            }
-                        }
-                        cur++;
-                    }
-                    if (first != -1) {
-                        checkAndAddPath(dna, first, cur, ans[i], usedComps[i]);
-                    }
+                    extractors[i].process(dna, k);
                 }
             }
         }
@@ -189,6 +174,51 @@ public class ComponentPathsMain extends Tool {
         info("Paths for " + n + " component(s) were saved in directory " + outputDir.get());
     }
 
+    /**
+     * Finds maximal runs of consecutive k-mers of the sequence belonging to the component.
+     */
+    private class PathsExtractor implements KmerScanner.KmerConsumer {
+        final LongHashSet compKmers;
+        final List<Sequence> ans;
+        final ConnectedComponent comp;
+
+        Dna dna;
+        int first, cur;
+
+        PathsExtractor(LongHashSet compKmers, List<Sequence> ans, ConnectedComponent comp) {
+            this.compKmers = compKmers;
+            this.ans = ans;
+            this.comp = comp;
+        }
+
+        void process(Dna dna, int k) {
+            this.dna = dna;
+            first = -1;
+            cur = 0;
+            KmerScanner.scan(dna, k, this);
+            if (first != -1) {
+                checkAndAddPath(dna, first, cur, ans, comp);
+            }
+        }
+
+        @Override
+        public void accept(long kmer, int pos) {
+            if (compKmers.contains(kmer)) {
+                if (first == -1) {
+                    first = cur;
+                } else {
+                    // continue...
+                }
+            } else {
+                if (first != -1) {
+                    checkAndAddPath(dna, first, cur, ans, comp);
+                    first = -1;
+                }
+            }
+            cur++;
+        }
+    }
+
     private void checkAndAddPath(Dna dna, int first, int cur, List<Sequence> ans, ConnectedComponent comp) {
         // possible adding from first to cur
         int len = cur - first - 1 + k.get();
@@ -1,10 +1,8 @@
 package tools;
 
 import io.IOUtils;
-import ru.ifmo.genetics.io.ReadersUtils;
+import io.StreamingInput;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
@@ -16,11 +14,14 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.ComponentsIndex;
 import structures.ConnectedComponent;
+import structures.map.EliasFanoLong2ShortMap;
 
 import java.io.*;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class FeaturesCalculatorMain extends Tool {
     public static final String NAME = "features-calculator";
@@ -41,7 +42,7 @@ public class FeaturesCalculatorMain extends Tool {
 
     public final Parameter<File[]> readsFiles = addParameter(new FileMVParameterBuilder("reads")
             .withShortOpt("i")
-            .withDescription("FASTQ, BINQ, FASTA reads")
+            .withDescription("FASTQ, BINQ, FASTA reads, '-' for standard input or named pipes with FASTQ or FASTA")
             .withDefaultValue(new File[]{})
             .create());
 
@@ -63,6 +64,12 @@ public class FeaturesCalculatorMain extends Tool {
             .withDefaultValue(0)
             .create());
 
+    public final Parameter<Integer> fingerprintBits = addParameter(new IntParameterBuilder("index-fingerprint")
+            .withDescription("bits of k-mer fingerprints in the components index (1..64), " +
+                    "a fraction 2^-bits of other k-mers is counted for components, 64 for exact counting")
+            .withDefaultValue(64)
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -94,80 +101,91 @@ public class FeaturesCalculatorMain extends Tool {
 
 
         // preparing
-        BigLong2LongHashMap hm = new BigLong2LongHashMap(
-                (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-        for (ConnectedComponent component : components) {
-            for (long kmer : component.kmers) {
-                hm.put(kmer, 0);
-            }
+        if (fingerprintBits.get() < 1 || fingerprintBits.get() > 64) {
+            throw new ExecutionFailedException("Index fingerprint bits should be in 1..64");
         }
-        debug("Kmers in components = " + NumUtils.groupDigits(hm.size()));
-        final long[] vector = new long[components.size()];
-        final double[] breadth = new double[components.size()];
-        debug("Memory used (before processing files) = " + Misc.usedMemoryAsString() + ", Time for preparing = " + t);
-
-
         int featuresFilesCount = (readsFiles.get() == null ? 0 : readsFiles.get().length)
                                   + (kmersFiles.get() == null ? 0 : kmersFiles.get().length);
         File[] featuresFiles = new File[featuresFilesCount];
         int curFiles = 0;
 
-        BigLong2ShortHashMap selected = null;
-        if (selectedKmers.get() != null && selectedKmers.get().length > 0) {
-            selected = IOUtils.loadKmers(selectedKmers.get(), 0, availableProcessors.get(), logger);
-        }
+        ComponentsIndex index = ComponentsIndex.open(componentsFile.get(), components, fingerprintBits.get(), logger);
+        try {
+            debug("Kmers in components = " + NumUtils.groupDigits(index.size()));
+            // counts of k-mers are kept by their slots in the index
+            final int[][] slots = new int[components.size()][];
+            for (int i = 0; i < components.size(); i++) {
+                ConnectedComponent component = components.get(i);
+                slots[i] = new int[component.kmers.size()];
+                int j = 0;
+                for (long kmer : component.kmers.array()) {
+                    slots[i][j++] = (int) index.slot(kmer);
+                }
+            }
+            final long[] vector = new long[components.size()];
+            final double[] breadth = new double[components.size()];
+            debug("Memory used (before processing files) = " + Misc.usedMemoryAsString() + ", Time for preparing = " + t);
+
 
-        if (readsFiles.get() != null) {
-            for (File readsFile : readsFiles.get()) {
-                hm.resetValues();
-                IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), hm,
-                        availableProcessors.get(), logger);
-
-                File outFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".vec");
-                File outBreadthFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".breadth");
-                buildAndPrintVector(components, hm, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
-                info("Features for file " + readsFile.getName() + " printed to " + outFile);
-                info("Components breadth coverage for file " + readsFile.getName() + " printed to " + outBreadthFile);
-                featuresFiles[curFiles] = outFile;
-                curFiles++;
+            EliasFanoLong2ShortMap selected = null;
+            if (selectedKmers.get() != null && selectedKmers.get().length > 0) {
+                selected = IOUtils.loadStaticKmers(selectedKmers.get(), 0, false, availableProcessors.get(), logger);
             }
-        }
 
-        if (kmersFiles.get() != null) {
-            for (File kmersFile : kmersFiles.get()) {
-                /*
-                // normalize on total amount of k-mers in kmersFile
-                BigLong2ShortHashMap hm_tmp =IOUtils.loadKmers(new File[]{kmersFile}, threshold.get(), availableProcessors.get(), logger);
-                debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-                long totalKmers = 0;
-                Iterator<MutableLongShortEntry> it = hm_tmp.entryIterator();
-                while (it.hasNext()) {
-                    MutableLongShortEntry entry = it.next();
-                    int value = entry.getValue();
-                    totalKmers += value;
+            if (readsFiles.get() != null) {
+                for (File readsFile : readsFiles.get()) {
+                    AtomicLongArray counts = new AtomicLongArray((int) index.size());
+                    IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), index, counts,
+                            availableProcessors.get(), logger);
+
+                    File outFile = new File(outDir, StreamingInput.readsName(readsFile) + ".vec");
+                    File outBreadthFile = new File(outDir, StreamingInput.readsName(readsFile) + ".breadth");
+                    buildAndPrintVector(components, slots, counts, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
+                    info("Features for file " + readsFile.getName() + " printed to " + outFile);
+                    info("Components breadth coverage for file " + readsFile.getName() + " printed to " + outBreadthFile);
+                    featuresFiles[curFiles] = outFile;
+                    curFiles++;
                 }
-                */
-
-                hm.resetValues();
-                IOUtils.calculatePresenceForKmers(new File[]{kmersFile}, hm,
-                        availableProcessors.get(), logger);
-
-                File outFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".vec");
-                File outBreadthFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".breadth");
-                buildAndPrintVector(components, hm, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
-                info("Features for file " + kmersFile.getName() + " printed to " + outFile);
-                info("Components breadth coverage for file " + kmersFile.getName() + " printed to " + outBreadthFile);
-                featuresFiles[curFiles] = outFile;
-                curFiles++;
             }
-        }
 
+            if (kmersFiles.get() != null) {
+                for (File kmersFile : kmersFiles.get()) {
+                    /*
+                    // normalize on total amount of k-mers in kmersFile
+                    BigLong2ShortHashMap hm_tmp =IOUtils.loadKmers(new File[]{kmersFile}, threshold.get(), availableProcessors.get(), logger);
+                    debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+                    long totalKmers = 0;
+                    Iterator<MutableLongShortEntry> it = hm_tmp.entryIterator();
+                    while (it.hasNext()) {
+                        MutableLongShortEntry entry = it.next();
+                        int value = entry.getValue();
+                        totalKmers += value;
+                    }
+                    */
+
+                    AtomicLongArray counts = new AtomicLongArray((int) index.size());
+                    IOUtils.calculatePresenceForKmers(new File[]{kmersFile}, index, counts,
+                            availableProcessors.get(), logger);
+
+                    File outFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".vec");
+                    File outBreadthFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".breadth");
+                    buildAndPrintVector(components, slots, counts, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
+                    info("Features for file " + kmersFile.getName() + " printed to " + outFile);
+                    info("Components breadth coverage for file " + kmersFile.getName() + " printed to " + outBreadthFile);
+                    featuresFiles[curFiles] = outFile;
+                    curFiles++;
+                }
+            }
+        } finally {
+            index.close();
+        }
         featuresFilesPr.set(featuresFiles);
         debug("Features-calculator has finished! Time = " + t);
     }
 
-    private void buildAndPrintVector(final List<ConnectedComponent> components, final BigLong2LongHashMap hm,
-                                     final int threshold, final BigLong2ShortHashMap selected, final long[] vector, final double[] breadth, File outFile,
+    private void buildAndPrintVector(final List<ConnectedComponent> components, final int[][] slots,
+                                     final AtomicLongArray counts,
+                                     final int threshold, final EliasFanoLong2ShortMap selected, final long[] vector, final double[] breadth, File outFile,
                                      File outBreadthFile) throws ExecutionFailedException {
 
         try {
@@ -189,9 +207,11 @@ public class FeaturesCalculatorMain extends Tool {
                                 ConnectedComponent component = components.get(i);
                                 long kmers = 0;
                                 long kmersCount = 0, kmersFound = 0;
-                                for (long kmer : component.kmers) {
+                                int j = 0;
+                                for (long kmer : component.kmers.array()) {
+                                    int slot = slots[i][j++];
                                     if (selected == null || selected.getWithZero(kmer) > 0) {
-                                        long value = hm.getWithZero(kmer);
+                                        long value = counts.get(slot);
                                         if (value > threshold) {
                                             kmers += value;
                                             kmersFound++;
@@ -6,6 +6,8 @@ import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.DoubleParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
@@ -42,6 +44,18 @@ public class KmersCounterForManyFilesMain extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> bloomFilter = addParameter(new BoolParameterBuilder("bloom-filter")
+            .withDescription("don't keep k-mers seen only once in memory: k-mers are added to the map " +
+                    "on the second sighting, k-mers seen once are kept in the Bloom filter")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Double> bloomFpRate = addParameter(new DoubleParameterBuilder("bloom-fp-rate")
+            .optional()
+            .withDescription("false positive rate of the Bloom filter (k-mers seen once and counted as seen twice)")
+            .withDefaultValue(0.01)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -86,6 +100,8 @@ public class KmersCounterForManyFilesMain extends Tool {
                 counter.k.set(k);
                 counter.inputFiles.set(new File[]{files[i], files[i+1]});
                 counter.maximalBadFrequency.set(maximalBadFrequency);
+                counter.bloomFilter.set(bloomFilter);
+                counter.bloomFpRate.set(bloomFpRate);
                 counter.outputDir.set(outputDir);
                 counter.statsDir.set(statsDir);
 
@@ -98,6 +114,8 @@ public class KmersCounterForManyFilesMain extends Tool {
                 counter.k.set(k);
                 counter.inputFiles.set(new File[]{files[i]});
                 counter.maximalBadFrequency.set(maximalBadFrequency);
+                counter.bloomFilter.set(bloomFilter);
+                counter.bloomFpRate.set(bloomFpRate);
                 counter.outputDir.set(outputDir);
                 counter.statsDir.set(statsDir);
 
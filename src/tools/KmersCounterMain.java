@@ -1,19 +1,26 @@
 package tools;
 
 import io.IOUtils;
-import ru.ifmo.genetics.io.ReadersUtils;
+import io.LoaderOptions;
+import io.LoadingMetrics;
+import io.PartitionedKmersCounter;
+import io.StreamingInput;
 import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.DoubleParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.ConcurrentBloomFilter;
 
 import java.io.File;
 import java.io.IOException;
@@ -34,7 +41,8 @@ public class KmersCounterMain extends Tool {
     public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("reads")
             .withShortOpt("i")
             .mandatory()
-            .withDescription("list of reads files from single environment. FASTQ, BINQ, FASTA (ignored reads with 'N')")
+            .withDescription("list of reads files from single environment. FASTQ, BINQ, FASTA (ignored reads with 'N'), " +
+                    "'-' for standard input or named pipes with FASTQ or FASTA (possibly gzipped)")
             .create());
 
     public final Parameter<Integer> maximalBadFrequency = addParameter(new IntParameterBuilder("maximal-bad-frequence")
@@ -44,6 +52,84 @@ public class KmersCounterMain extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> sortedOutput = addParameter(new BoolParameterBuilder("sorted")
+            .withDescription("print k-mers sorted by k-mer, such files can be joined by multi-sample tools with --sorted-input")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> compressedOutput = addParameter(new BoolParameterBuilder("compressed")
+            .withDescription("print k-mers to the compressed block-indexed file (sorted by k-mer), " +
+                    "all tools read such files as well as plain ones")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> bloomFilter = addParameter(new BoolParameterBuilder("bloom-filter")
+            .withDescription("don't keep k-mers seen only once in memory: k-mers are added to the map " +
+                    "on the second sighting, k-mers seen once are kept in the Bloom filter")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Double> bloomFpRate = addParameter(new DoubleParameterBuilder("bloom-fp-rate")
+            .optional()
+            .withDescription("false positive rate of the Bloom filter (k-mers seen once and counted as seen twice)")
+            .withDefaultValue(0.01)
+            .create());
+
+    public final Parameter<Boolean> tieredCounters = addParameter(new BoolParameterBuilder("tiered-counters")
+            .withDescription("count k-mers in 1-byte counters, promoted to a side table on overflow: " +
+                    "counting takes about 10% less memory and counts aren't bounded by 32767")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> longCounts = addParameter(new BoolParameterBuilder("long-counts")
+            .withDescription("print exact counts as 8-byte values (as color-kmers does), implies --tiered-counters, " +
+                    "otherwise counts are bounded by 32767 in the output")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> lockFreeMaps = addParameter(new BoolParameterBuilder("lock-free-maps")
+            .withDescription("count k-mers in lock-free maps: faster with many threads, " +
+                    "but a k-mer takes 12 bytes instead of 10")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> externalMemory = addParameter(new BoolParameterBuilder("external-memory")
+            .withDescription("count k-mers on disk: spill them to partitions and count partitions separately, " +
+                    "for inputs whose k-mers don't fit into memory")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Integer> partitions = addParameter(new IntParameterBuilder("partitions")
+            .optional()
+            .withDescription("number of partitions for external memory counting")
+            .withDefaultValue(0)
+            .withDefaultComment("chosen by input size and memory budget")
+            .create());
+
+    public final Parameter<Integer> memoryBudget = addParameter(new IntParameterBuilder("memory-budget")
+            .optional()
+            .withDescription("memory for counting partitions in parallel (in Mb) for external memory counting")
+            .withDefaultValue(0)
+            .withDefaultComment("80% of available memory")
+            .create());
+
+    public final Parameter<File> spillDir = addParameter(new FileParameterBuilder("spill-dir")
+            .withDescription("directory for partitions files in external memory counting, better on local disk")
+            .withDefaultValue(workDir.append("spill"))
+            .create());
+
+    public final Parameter<Boolean> metricsFile = addParameter(new BoolParameterBuilder("metrics")
+            .withDescription("write live loading metrics (throughput, map fill, lock and I/O waits, heap headroom) " +
+                    "to metrics.json in the working directory, they are published via JMX anyway")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Integer> metricsPeriod = addParameter(new IntParameterBuilder("metrics-period")
+            .optional()
+            .withDescription("period of sampling loading metrics (in seconds)")
+            .withDefaultValue(10)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -73,12 +159,6 @@ public class KmersCounterMain extends Tool {
         }
 
 
-        Timer t = new Timer();
-        BigLong2ShortHashMap hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
-                availableProcessors.get(),  logger);
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-
         File outDir = outputDir.get();
         if (!outDir.exists()) {
             outDir.mkdirs();
@@ -93,25 +173,83 @@ public class KmersCounterMain extends Tool {
         File stFile = new File(stDir, name + ".stat.txt");
 
 
-        debug("Starting to print k-mers to " + outFile.getPath());
-        long c = 0;
+        LoadingMetrics.start(metricsFile.get() ? new File(workDir.get(), "metrics.json") : null,
+                Math.max(1, metricsPeriod.get()), logger);
         try {
-            c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
-        } catch (IOException e) {
-            e.printStackTrace();
+            count(outFile, stFile);
+        } finally {
+            LoadingMetrics.stop(logger);
+        }
+    }
+
+    private void count(File outFile, File stFile) throws ExecutionFailedException, IOException {
+        Timer t = new Timer();
+        long c = 0;
+        long size;
+        LoaderOptions options = LoaderOptions.DEFAULT.withLockFreeMaps(lockFreeMaps.get());
+        if (externalMemory.get()) {
+            if (bloomFilter.get()) {
+                warn("Bloom filter isn't used in external memory mode, partitions are counted exactly");
+            }
+            if (tieredCounters.get() || longCounts.get()) {
+                warn("Tiered counters aren't used in external memory mode, counts are bounded by 32767");
+            }
+            long budget = (memoryBudget.get() > 0) ? (long) memoryBudget.get() << 20
+                    : (long) (Misc.availableMemory() * 0.8);
+            PartitionedKmersCounter counter = new PartitionedKmersCounter(inputFiles.get(), k.get(),
+                    partitions.get(), budget, options, availableProcessors.get(), spillDir.get(), logger);
+            c = counter.count(inputFiles.get(), maximalBadFrequency.get(), outFile, stFile,
+                    sortedOutput.get(), compressedOutput.get());
+            size = counter.kmers();
+            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+        } else {
+            ConcurrentBloomFilter filter = null;
+            if (bloomFilter.get()) {
+                long expectedKmers = IOUtils.estimateReadsLength(inputFiles.get());
+                long maxBytes = Misc.availableMemory() / 4;
+                if (StreamingInput.hasStreams(inputFiles.get())) {
+                    // size of streamed reads is unknown, the filter is as big as allowed
+                    expectedKmers = Math.max(expectedKmers, (long) (-(maxBytes * 8.0) * Math.log(2) * Math.log(2)
+                            / Math.log(bloomFpRate.get())));
+                }
+                filter = ConcurrentBloomFilter.create(expectedKmers, bloomFpRate.get(), maxBytes);
+                debug("Bloom filter of " + NumUtils.memoryAsString(filter.sizeInBytes()) + " with " +
+                        filter.hashes() + " hash functions created, " +
+                        "false positive rate for " + NumUtils.groupDigits(expectedKmers) + " k-mers = " +
+                        String.format("%.4f", filter.fpRate(expectedKmers)));
+            }
+            BigLong2LongHashMap tieredHm = null;
+            BigLong2ShortHashMap hm = null;
+            if (tieredCounters.get() || longCounts.get()) {
+                tieredHm = IOUtils.loadTieredReads(inputFiles.get(), k.get(), 0, filter, options,
+                        availableProcessors.get(), logger);
+                size = tieredHm.size();
+            } else {
+                hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0, filter, options,
+                        availableProcessors.get(),  logger);
+                size = hm.size();
+            }
+            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+            debug("Starting to print k-mers to " + outFile.getPath());
+            try {
+                c = (tieredHm != null) ? printKmers(tieredHm, outFile, stFile) : printKmers(hm, outFile, stFile);
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't print k-mers to " + outFile.getPath(), e);
+            }
         }
-        info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
-                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them is good (not erroneous)");
+        info(NumUtils.groupDigits(size) + " k-mers found, "
+                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / size) + "%) of them is good (not erroneous)");
 
-        if (hm.size() == 0) {
+        if (size == 0) {
             warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
-        } else if (c == 0 || c < (long) (hm.size() * 0.03)) {
+        } else if (c == 0 || c < (long) (size * 0.03)) {
             warn("Too few good k-mers were found! Perhaps you should decrease k-mer size or --maximal-bad-frequency value");
         }
         long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
-        if (hm.size() == allKmersNumber) {
+        if (size == allKmersNumber) {
             warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
-        } else if (hm.size() >= (long) (allKmersNumber * 0.99)) {
+        } else if (size >= (long) (allKmersNumber * 0.99)) {
             warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
         }
 
@@ -119,10 +257,28 @@ public class KmersCounterMain extends Tool {
         resultingKmerFilesPr.set(outFile);
     }
 
+    private long printKmers(BigLong2ShortHashMap hm, File outFile, File stFile) throws IOException {
+        if (compressedOutput.get()) {
+            return IOUtils.printCompressedKmers(hm, maximalBadFrequency.get(), k.get(), outFile, stFile);
+        }
+        return IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile, sortedOutput.get());
+    }
+
+    /**
+     * Counts are printed bounded by Short.MAX_VALUE unless --long-counts is set.
+     */
+    private long printKmers(BigLong2LongHashMap hm, File outFile, File stFile) throws IOException {
+        boolean bounded = !longCounts.get();
+        if (compressedOutput.get()) {
+            return IOUtils.printCompressedKmers(hm, maximalBadFrequency.get(), k.get(), outFile, stFile, bounded);
+        }
+        return IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile, sortedOutput.get(), bounded);
+    }
+
     private String getName() throws IOException {
         if (inputFiles.get().length == 2) {
-            String name1 = ReadersUtils.readDnaLazy(inputFiles.get()[0]).name();
-            String name2 = ReadersUtils.readDnaLazy(inputFiles.get()[1]).name();
+            String name1 = StreamingInput.readsName(inputFiles.get()[0]);
+            String name2 = StreamingInput.readsName(inputFiles.get()[1]);
             if ((name1.endsWith("_r1") && name2.endsWith("_r2")) ||
                 (name1.endsWith("_R1") && name2.endsWith("_R2"))) {
                 return name1.substring(0, name1.length()-3);
@@ -131,7 +287,7 @@ public class KmersCounterMain extends Tool {
             }
 
         } else {
-            return ReadersUtils.readDnaLazy(inputFiles.get()[0]).name()
+            return StreamingInput.readsName(inputFiles.get()[0])
                     + (inputFiles.get().length > 1 ? "+" : "");
         }
     }
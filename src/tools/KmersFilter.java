@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.SortedKmersMerger;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
@@ -8,14 +9,15 @@ import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.map.EliasFanoLong2ShortMap;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 
 /**
  * Created by -- on 14.02.2020.
@@ -57,6 +59,12 @@ public class KmersFilter extends Tool {
             .withDefaultValue(0)
             .create());
 
+    public final Parameter<Boolean> sortedInput = addParameter(new BoolParameterBuilder("sorted-input")
+            .withDescription("input and filter files are sorted by k-mer (see kmer-counter --sorted), " +
+                    "filter all of them in one streaming pass instead of loading into memory")
+            .withDefaultValue(false)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -91,8 +99,13 @@ public class KmersFilter extends Tool {
             outDir.mkdirs();
         }
 
-        BigLong2ShortHashMap filter_hm = IOUtils.loadKmers(filterFiles.get(), maximalBadFrequency.get(),
-                availableProcessors.get(), logger);
+        if (sortedInput.get()) {
+            filterSortedKmers();
+            return;
+        }
+
+        EliasFanoLong2ShortMap filter_hm = IOUtils.loadStaticKmers(filterFiles.get(), maximalBadFrequency.get(),
+                true, availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
@@ -119,6 +132,63 @@ public class KmersFilter extends Tool {
         }
     }
 
+    private void filterSortedKmers() throws ExecutionFailedException {
+        int b = maximalBadFrequency.get();
+        int filterThreshold = maximalThreshold.get() * filterFiles.get().length;
+        int inputs = inputFiles.get().length;
+        File[] files = SortedKmersMerger.concat(inputFiles.get(), filterFiles.get());
+
+        File[] outFiles = new File[inputs];
+        for (int i = 0; i < inputs; i++) {
+            String name = inputFiles.get()[i].getName().replaceAll(".kmers.bin", "");
+            outFiles[i] = new File(outputDir.get(), name + ".kmers.bin");
+        }
+
+        debug("Joining " + files.length + " sorted k-mers files");
+        long[] found = new long[inputs], c = new long[inputs];
+        DataOutputStream[] streams = new DataOutputStream[inputs];
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            try {
+                for (int i = 0; i < inputs; i++) {
+                    streams[i] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(outFiles[i]), 1 << 20));   // 1 Mb buffer per output file
+                }
+                while (merger.next()) {
+                    boolean passed = merger.sum(inputs, files.length, b) > filterThreshold;
+                    for (int j = 0; j < merger.presentNumber(); j++) {
+                        int i = merger.presentFile(j);
+                        short value = merger.value(i);
+                        if (i >= inputs || value <= b) {
+                            continue;
+                        }
+                        found[i]++;
+                        if (passed) {
+                            streams[i].writeLong(merger.key());
+                            streams[i].writeShort(value);
+                            c[i]++;
+                        }
+                    }
+                }
+            } finally {
+                merger.close();
+                for (DataOutputStream stream : streams) {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't join sorted k-mers files", e);
+        }
+
+        for (int i = 0; i < inputs; i++) {
+            info(NumUtils.groupDigits(found[i]) + " k-mers found, " + NumUtils.groupDigits(c[i]) +
+                    " (" + String.format("%.1f", c[i] * 100.0 / found[i]) + "%) of them survived after filtering");
+            info("Filtered k-mers printed to " + outFiles[i].getPath());
+        }
+    }
+
     @Override
     protected void cleanImpl() {
     }
@@ -2,6 +2,7 @@ package tools;
 
 
 import io.IOUtils;
+import io.SortedKmersMerger;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
@@ -10,12 +11,14 @@ import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 
@@ -67,6 +70,12 @@ public class KmersGroupedSamplesCounter  extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> sortedInput = addParameter(new BoolParameterBuilder("sorted-input")
+            .withDescription("all k-mers files are sorted by k-mer (see kmer-counter --sorted), " +
+                    "join them in one streaming pass instead of loading into memory")
+            .withDefaultValue(false)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -100,6 +109,11 @@ public class KmersGroupedSamplesCounter  extends Tool {
             stDir.mkdirs();
         }
 
+        if (sortedInput.get()) {
+            countSortedGroups(outDir);
+            return;
+        }
+
         BigLong2ShortHashMap cd_hm = IOUtils.loadKmers(kmersFile.get(), 0,
                 availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
@@ -189,6 +203,43 @@ public class KmersGroupedSamplesCounter  extends Tool {
 
     }
 
+    private void countSortedGroups(File outDir) throws ExecutionFailedException {
+        int b = maximalBadFrequency.get();
+        int kf = kmersFile.get().length;
+        int cd = kf + CDFiles.get().length;
+        int uc = cd + UCFiles.get().length;
+        File[] files = SortedKmersMerger.concat(kmersFile.get(), CDFiles.get(), UCFiles.get(), nonIBDFiles.get());
+
+        File outFile = new File(outDir, "kmers.groups.txt");
+        PrintWriter out;
+        try {
+            out = new PrintWriter(outFile);
+        } catch (FileNotFoundException e) {
+            throw new ExecutionFailedException("Couldn't open output file", e);
+        }
+
+        debug("Joining " + files.length + " sorted k-mers files, printing k-mers to " + outFile.getPath());
+        out.println("Kmer\tcd_count\tuc_count\tnonibd_count");
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            try {
+                while (merger.next()) {
+                    if (merger.count(0, kf, 0) > 0) {
+                        out.println(new ShortKmer(merger.key(), k.get()) + "\t" + merger.count(kf, cd, b) +
+                                "\t" + merger.count(cd, uc, b) + "\t" + merger.count(uc, files.length, b));
+                    }
+                }
+            } finally {
+                merger.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't join sorted k-mers files", e);
+        } finally {
+            out.close();
+        }
+        info("K-mers printed to " + outFile.getPath());
+    }
+
     @Override
     protected void cleanImpl() {
     }
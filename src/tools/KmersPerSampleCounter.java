@@ -1,6 +1,8 @@
 package tools;
 
 import io.IOUtils;
+import io.SortedKmersMerger;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
@@ -9,12 +11,14 @@ import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 
@@ -47,6 +51,12 @@ public class KmersPerSampleCounter  extends Tool {
             .withDefaultValue(20)
             .create());
 
+    public final Parameter<Boolean> sortedInput = addParameter(new BoolParameterBuilder("sorted-input")
+            .withDescription("input files are sorted by k-mer (see kmer-counter --sorted), " +
+                    "process them with streaming passes instead of loading into memory")
+            .withDefaultValue(false)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers_per_samples"))
@@ -72,6 +82,11 @@ public class KmersPerSampleCounter  extends Tool {
         }
 
 
+        if (sortedInput.get()) {
+            countSortedKmersPerSample(outDir);
+            return;
+        }
+
         info("Loading all k-mers...");
         BigLong2ShortHashMap hm = null;
         for (File file : inputFiles.get()) {
@@ -156,6 +171,73 @@ public class KmersPerSampleCounter  extends Tool {
         info("K-mers printed to " + outFile.getPath());
     }
 
+    private void countSortedKmersPerSample(File outDir) throws ExecutionFailedException {
+        File[] files = inputFiles.get();
+        int thresh = files.length * percentPresent.get()/100;
+
+        info("Selecting  k-mers...");
+        LongArrayList selected = new LongArrayList();
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            try {
+                while (merger.next()) {
+                    if (merger.count(0, files.length, 0) >= thresh) {
+                        selected.add(merger.key());
+                    }
+                }
+            } finally {
+                merger.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't join sorted k-mers files", e);
+        }
+        debug(selected.size() + " k-mers selected, memory used = " + Misc.usedMemoryAsString());
+
+
+        info("Calculating presence of selected k-mers...");
+        File outFile = new File(outDir, "selected_kmers_"+ percentPresent.get() +".txt");
+        PrintWriter out;
+        try {
+            out = new PrintWriter(outFile);
+        } catch (FileNotFoundException e) {
+            throw new ExecutionFailedException("Couldn't open output file", e);
+        }
+        debug("Starting to print k-mers to " + outFile.getPath());
+
+        for (int i = 0; i < selected.size(); i++) {
+            out.print("\t" + new ShortKmer(selected.getLong(i), k.get()));
+        }
+        out.println();
+
+        try {
+            for (File file : files) {
+                out.print(file.getName().replace(".kmers.bin", ""));
+
+                // both selected k-mers and file are sorted, so a single merge-like pass is enough
+                SortedKmersMerger fileReader = new SortedKmersMerger(new File[]{file});
+                try {
+                    boolean hasNext = fileReader.next();
+                    for (int i = 0; i < selected.size(); i++) {
+                        long key = selected.getLong(i);
+                        while (hasNext && fileReader.key() < key) {
+                            hasNext = fileReader.next();
+                        }
+                        out.print("\t" + (hasNext && fileReader.key() == key ? fileReader.value(0) : 0));
+                    }
+                } finally {
+                    fileReader.close();
+                }
+                out.println();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't read sorted k-mers file", e);
+        } finally {
+            out.close();
+        }
+
+        info("K-mers printed to " + outFile.getPath());
+    }
+
     @Override
     protected void cleanImpl() {
     }
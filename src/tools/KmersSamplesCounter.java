@@ -2,6 +2,8 @@ package tools;
 
 
 import io.IOUtils;
+import io.SortedKmersMerger;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
@@ -10,14 +12,14 @@ import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.Iterator;
 
 /**
@@ -49,6 +51,12 @@ public class KmersSamplesCounter extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> sortedInput = addParameter(new BoolParameterBuilder("sorted-input")
+            .withDescription("input files are sorted by k-mer (see kmer-counter --sorted), " +
+                    "join them in one streaming pass instead of loading into memory")
+            .withDefaultValue(false)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -87,6 +95,11 @@ public class KmersSamplesCounter extends Tool {
             stDir.mkdirs();
         }
 
+        if (sortedInput.get()) {
+            countSortedSamples(outDir, stDir);
+            return;
+        }
+
         BigLong2ShortHashMap hm = IOUtils.loadKmers(inputFiles.get(), maximalBadFrequency.get(),
                 availableProcessors.get(), logger);
         hm.resetValues();
@@ -139,6 +152,43 @@ public class KmersSamplesCounter extends Tool {
         resultingKmerFilesPr.set(outFile);
     }
 
+    private void countSortedSamples(File outDir, File stDir) throws ExecutionFailedException {
+        File outFile = new File(outDir, "n_samples.kmers.bin");
+        File stFile = new File(stDir, "n_samples.stat.txt");
+        File[] files = inputFiles.get();
+
+        debug("Joining " + files.length + " sorted k-mers files into " + outFile.getPath());
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        long c = 0;
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+            try {
+                while (merger.next()) {
+                    int n = merger.count(0, files.length, maximalBadFrequency.get());
+                    if (n > 0) {
+                        short value = (short) Math.min(n, Short.MAX_VALUE);
+                        stats.add(value);
+                        stream.writeLong(merger.key());
+                        stream.writeShort(value);
+                        c++;
+                    }
+                }
+            } finally {
+                merger.close();
+                stream.close();
+            }
+            stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't join sorted k-mers files", e);
+        }
+
+        info(NumUtils.groupDigits(c) + " good k-mers found");
+        info("Good k-mers printed to " + outFile.getPath());
+        resultingKmerFilesPr.set(outFile);
+    }
+
     @Override
     protected void cleanImpl() {
     }
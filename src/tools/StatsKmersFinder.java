@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.LoaderOptions;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ChiSquaredDistribution;
 import org.apache.commons.math.distribution.ChiSquaredDistributionImpl;
@@ -14,6 +15,7 @@ import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.DoubleParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
@@ -68,6 +70,23 @@ public class StatsKmersFinder extends Tool {
             .create());
 
 
+    public final Parameter<Boolean> offHeapMaps = addParameter(new BoolParameterBuilder("off-heap-maps")
+            .withDescription("keep k-mers maps off the Java heap: in memory-mapped files in off-heap-dir, " +
+                    "or in direct memory (see -XX:MaxDirectMemorySize), if it isn't set")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<File> offHeapDir = addParameter(new FileParameterBuilder("off-heap-dir")
+            .optional()
+            .withDescription("directory for memory-mapped files of off-heap k-mers maps")
+            .create());
+
+    public final Parameter<File> kmersSnapshot = addParameter(new FileParameterBuilder("kmers-snapshot")
+            .optional()
+            .withDescription("snapshot of loaded k-mers map, it is written on the first run " +
+                    "and reused by runs with the same k-mers files and maximal bad frequency")
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -87,6 +106,7 @@ public class StatsKmersFinder extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
+        LoaderOptions options = LoaderOptions.DEFAULT.withOffHeapMaps(offHeapMaps.get(), offHeapDir.get());
         info("Loading k-mers occurrences...");
         Timer t = new Timer();
         int Alength = Afiles.get().length;
@@ -94,7 +114,8 @@ public class StatsKmersFinder extends Tool {
         int totalLength = Alength + Blength;
 
         File[] all_files = Stream.of(Afiles.get(), Bfiles.get()).flatMap(Stream::of).toArray(File[]::new);
-        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
+        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), options, availableProcessors.get(),
+                kmersSnapshot.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
         ChiSquaredDistribution xi = new ChiSquaredDistributionImpl(1, 1e-15D);
@@ -167,7 +188,7 @@ public class StatsKmersFinder extends Tool {
         }
         info("Survived after chi-squared test k-mers printed to: " + filteredKmers.getPath());
 
-        allKmers.reset();
+        allKmers.close();
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
@@ -181,7 +202,7 @@ public class StatsKmersFinder extends Tool {
         int i = 0;
         for (File file : Afiles.get()) {
             BigLong2ShortHashMap add_hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, options, availableProcessors.get(), logger);
             BigLong2ShortHashMap tmp_hm = tmp.first();
             Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
             while (it.hasNext()) {
@@ -189,6 +210,7 @@ public class StatsKmersFinder extends Tool {
                 long key = entry.getKey();
                 add_hm.put(key, tmp_hm.getWithZero(key));
             }
+            IOUtils.closeMap(tmp_hm);
             AkmersHMs.add(add_hm);
             AkmersFreq[i] = tmp.second();
             i++;
@@ -198,7 +220,7 @@ public class StatsKmersFinder extends Tool {
         i = 0;
         for (File file : Bfiles.get()) {
             BigLong2ShortHashMap add_hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, options, availableProcessors.get(), logger);
             BigLong2ShortHashMap tmp_hm = tmp.first();
             Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
             while (it.hasNext()) {
@@ -206,6 +228,7 @@ public class StatsKmersFinder extends Tool {
                 long key = entry.getKey();
                 add_hm.put(key, tmp_hm.getWithZero(key));
             }
+            IOUtils.closeMap(tmp_hm);
             BkmersHMs.add(add_hm);
             BkmersFreq[i] = tmp.second();
             i++;
@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.LoaderOptions;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
@@ -8,6 +9,7 @@ import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
@@ -61,6 +63,23 @@ public class TopStatsKmersFinder extends Tool {
             .withDefaultValue(0)
             .create());
 
+    public final Parameter<Boolean> offHeapMaps = addParameter(new BoolParameterBuilder("off-heap-maps")
+            .withDescription("keep k-mers maps off the Java heap: in memory-mapped files in off-heap-dir, " +
+                    "or in direct memory (see -XX:MaxDirectMemorySize), if it isn't set")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<File> offHeapDir = addParameter(new FileParameterBuilder("off-heap-dir")
+            .optional()
+            .withDescription("directory for memory-mapped files of off-heap k-mers maps")
+            .create());
+
+    public final Parameter<File> kmersSnapshot = addParameter(new FileParameterBuilder("kmers-snapshot")
+            .optional()
+            .withDescription("snapshot of loaded k-mers map, it is written on the first run " +
+                    "and reused by runs with the same k-mers files and maximal bad frequency")
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -79,6 +98,7 @@ public class TopStatsKmersFinder extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
+        LoaderOptions options = LoaderOptions.DEFAULT.withOffHeapMaps(offHeapMaps.get(), offHeapDir.get());
         info("Loading k-mers occurrences...");
         Timer t = new Timer();
         int Alength = Afiles.get().length;
@@ -94,7 +114,8 @@ public class TopStatsKmersFinder extends Tool {
         }
 
         int totalLength = Alength + Blength + Clength;
-        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
+        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), options, availableProcessors.get(),
+                kmersSnapshot.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
         File outDir = outputDir.get();
@@ -153,6 +174,7 @@ public class TopStatsKmersFinder extends Tool {
             hm_chisq.put(key, n);
             n++;
         }
+        allKmers.close();
 
         File allKmersFile = new File(outDir, "all.kmers.bin");
         File allRanksFile = new File(outDir, "all_chi_squared_ranks.bin");
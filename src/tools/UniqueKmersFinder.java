@@ -1,6 +1,8 @@
 package tools;
 
 import io.IOUtils;
+import io.SortedKmersMerger;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
@@ -9,14 +11,14 @@ import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.Iterator;
 
 /**
@@ -53,6 +55,12 @@ public class UniqueKmersFinder extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> sortedInput = addParameter(new BoolParameterBuilder("sorted-input")
+            .withDescription("input and filter files are sorted by k-mer (see kmer-counter --sorted), " +
+                    "join them in one streaming pass instead of loading into memory")
+            .withDefaultValue(false)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -81,6 +89,11 @@ public class UniqueKmersFinder extends Tool {
         }
 
 
+        if (sortedInput.get()) {
+            findSortedUniqueKmers();
+            return;
+        }
+
         Timer t = new Timer();
 
         BigLong2ShortHashMap hm = IOUtils.loadKmers(inputFiles.get(), maximalBadFrequency.get(),
@@ -143,6 +156,60 @@ public class UniqueKmersFinder extends Tool {
         info("Good k-mers printed to " + outFile.getPath());
     }
 
+    private void findSortedUniqueKmers() throws ExecutionFailedException {
+        File outDir = outputDir.get();
+        if (!outDir.exists()) {
+            outDir.mkdirs();
+        }
+        File stDir = statsDir.get();
+        if (!stDir.exists()) {
+            stDir.mkdirs();
+        }
+        File outFile = new File(outDir, "filtered.kmers.bin");
+        File stFile = new File(stDir, "filtered.stat.txt");
+
+        int b = maximalBadFrequency.get();
+        int inputs = inputFiles.get().length;
+        File[] files = SortedKmersMerger.concat(inputFiles.get(), filterFiles.get());
+
+        debug("Joining " + files.length + " sorted k-mers files, printing k-mers to " + outFile.getPath());
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        long found = 0, c = 0;
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+            try {
+                while (merger.next()) {
+                    short value = merger.sum(0, inputs, b);
+                    if (value == 0) {
+                        continue;   // k-mer is only in filter files
+                    }
+                    found++;
+                    if (value > b && merger.count(inputs, files.length, b) > 0) {
+                        value = 0;
+                    }
+                    stats.add(value);
+                    if (value > b) {
+                        stream.writeLong(merger.key());
+                        stream.writeShort(value);
+                        c++;
+                    }
+                }
+            } finally {
+                merger.close();
+                stream.close();
+            }
+            stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't join sorted k-mers files", e);
+        }
+
+        info(NumUtils.groupDigits(found) + " k-mers found, " + NumUtils.groupDigits(c) + " (" +
+                String.format("%.1f", c * 100.0 / found) + "%) of them is good (present in one dataset and missing in other)");
+        info("Good k-mers printed to " + outFile.getPath());
+    }
+
     @Override
     protected void cleanImpl() {
     }
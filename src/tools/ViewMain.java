@@ -1,5 +1,6 @@
 package tools;
 
+import io.CompressedKmersFile;
 import io.IOUtils;
 import ru.ifmo.genetics.ToolTemplate;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
@@ -17,6 +18,7 @@ import structures.ConnectedComponent;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
@@ -82,7 +84,9 @@ public class ViewMain extends Tool {
         }
 
         if (kmersFile.get() != null) {
-            if (isLong.get()) {
+            if (CompressedKmersFile.isCompressed(kmersFile.get())) {
+                printCompressedKmers(out);
+            } else if (isLong.get()) {
                 BigLong2LongHashMap kmersHM =
                         IOUtils.loadLongKmers(new File[]{kmersFile.get()}, 0, availableProcessors.get(), logger);
 
@@ -121,7 +125,7 @@ public class ViewMain extends Tool {
                 out.println("Component " + (i + 1) + ", size = " + component.size + " kmers, " +
                         "weight = " + component.weight +". Kmers:");
 
-                for (long kmer : component.kmers) {
+                for (long kmer : component.kmers.array()) {
                     out.println(new ShortKmer(kmer, k.get()));
                 }
                 out.println();
@@ -134,6 +138,27 @@ public class ViewMain extends Tool {
 
 
 
+    private void printCompressedKmers(PrintWriter out) throws ExecutionFailedException {
+        try {
+            CompressedKmersFile file = new CompressedKmersFile(kmersFile.get());
+            int kk = k.get();
+            if (file.k != kk) {
+                warn("k-mers file was saved with k = " + file.k + ", using it instead of " + kk);
+                kk = file.k;
+            }
+
+            logger.info("Printing kmers...");
+            out.println("Kmer\tCount");
+            CompressedKmersFile.Reader reader = file.reader();
+            while (reader.next()) {
+                out.println(new ShortKmer(reader.key(), kk) + "\t" + reader.count());
+            }
+            file.close();
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't read k-mers file", e);
+        }
+    }
+
     @Override
     protected void cleanImpl() {
     }
@@ -0,0 +1,105 @@
+package algo;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KmerScannerTest {
+    private Random rand;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+    }
+
+    private static class Collector implements KmerScanner.KmerConsumer {
+        final List<Long> kmers = new ArrayList<Long>();
+        final List<Integer> positions = new ArrayList<Integer>();
+
+        @Override
+        public void accept(long kmer, int pos) {
+            kmers.add(kmer);
+            positions.add(pos);
+        }
+    }
+
+    private String sequence(int len) {
+        char[] c = new char[len];
+        for (int i = 0; i < len; i++) {
+            c[i] = "ACGT".charAt(rand.nextInt(4));
+        }
+        return new String(c);
+    }
+
+    /**
+     * K-mers of the parts between 'N's, as ShortKmer gives them, with their positions in the whole sequence.
+     */
+    private static void expected(String s, int k, List<Long> kmers, List<Integer> positions) {
+        int start = 0;
+        for (String part : s.split("N", -1)) {
+            int pos = start;
+            for (ShortKmer kmer : ShortKmer.kmersOf(new Dna(part), k)) {
+                kmers.add(kmer.toLong());
+                positions.add(pos++);
+            }
+            start += part.length() + 1;
+        }
+    }
+
+    @Test
+    public void testSameAsShortKmer() {
+        for (int k = 1; k <= 31; k++) {
+            for (int len : new int[]{0, 1, k - 1, k, k + 1, 200}) {
+                String s = sequence(len);
+                List<Long> kmers = new ArrayList<Long>();
+                List<Integer> positions = new ArrayList<Integer>();
+                expected(s, k, kmers, positions);
+
+                Collector c = new Collector();
+                assertEquals(kmers.size(), KmerScanner.scan(new Dna(s), k, c));
+                assertEquals(kmers, c.kmers);
+                assertEquals(positions, c.positions);
+
+                byte[] nucs = new byte[len + 5];
+                for (int i = 0; i < len; i++) {
+                    nucs[i] = DnaTools.fromChar(s.charAt(i));
+                }
+                c = new Collector();
+                assertEquals(kmers.size(), KmerScanner.scan(nucs, len, k, c));
+                assertEquals(kmers, c.kmers);
+                assertEquals(positions, c.positions);
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownNucleotides() {
+        for (int k : new int[]{1, 5, 21, 31}) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                sb.append(sequence(rand.nextInt(3 * k))).append(rand.nextBoolean() ? "N" : "NN");
+            }
+            String s = sb.append(sequence(2 * k)).toString();
+            List<Long> kmers = new ArrayList<Long>();
+            List<Integer> positions = new ArrayList<Integer>();
+            expected(s, k, kmers, positions);
+
+            byte[] nucs = new byte[s.length()];
+            for (int i = 0; i < nucs.length; i++) {
+                nucs[i] = (s.charAt(i) == 'N') ? -1 : DnaTools.fromChar(s.charAt(i));
+            }
+            Collector c = new Collector();
+            assertEquals(kmers.size(), KmerScanner.scan(nucs, nucs.length, k, c));
+            assertEquals(kmers, c.kmers);
+            assertEquals(positions, c.positions);
+        }
+    }
+}
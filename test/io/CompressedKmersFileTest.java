@@ -0,0 +1,147 @@
+package io;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class CompressedKmersFileTest {
+    private static final int BLOCK_RECORDS = 100;
+
+    private Random rand;
+    private File file;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        file = Files.createTempFile("kmers", ".kmers.bin").toFile();
+        file.deleteOnExit();
+    }
+
+    private TreeMap<Long, Long> kmers(int size) {
+        TreeMap<Long, Long> kmers = new TreeMap<Long, Long>();
+        while (kmers.size() < size) {
+            long key = rand.nextBoolean() ? rand.nextLong() : rand.nextInt(100000);
+            kmers.put(key, (long) rand.nextInt(1000) + 1);
+        }
+        return kmers;
+    }
+
+    private CompressedKmersFile write(TreeMap<Long, Long> kmers, int countWidth) throws IOException {
+        CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(file, 31, countWidth, BLOCK_RECORDS);
+        for (Map.Entry<Long, Long> e : kmers.entrySet()) {
+            writer.write(e.getKey(), e.getValue());
+        }
+        writer.close();
+        return new CompressedKmersFile(file);
+    }
+
+    private static void check(Map<Long, Long> expected, CompressedKmersFile.Reader reader) throws IOException {
+        for (Map.Entry<Long, Long> e : expected.entrySet()) {
+            assertTrue(reader.next());
+            assertEquals((long) e.getKey(), reader.key());
+            assertEquals((long) e.getValue(), reader.count());
+        }
+        assertFalse(reader.next());
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int size : new int[]{0, 1, BLOCK_RECORDS, BLOCK_RECORDS + 1, 12345}) {
+            TreeMap<Long, Long> kmers = kmers(size);
+            CompressedKmersFile f = write(kmers, 8);
+            assertTrue(CompressedKmersFile.isCompressed(file));
+            assertEquals(31, f.k);
+            assertEquals(8, f.countWidth);
+            assertEquals(size, f.recordsNumber);
+            assertEquals((size + BLOCK_RECORDS - 1) / BLOCK_RECORDS, f.blocksNumber());
+            check(kmers, f.reader());
+
+            // decoding blocks as plain records
+            Long[] keys = kmers.keySet().toArray(new Long[0]);
+            int i = 0;
+            for (int block = 0; block < f.blocksNumber(); block++) {
+                assertEquals(block < f.blocksNumber() - 1 ? BLOCK_RECORDS : size - i, f.blockSize(block));
+                ByteBuffer records = f.decodeBlock(block, LongKmersLoadWorker.KMER_RECORD_SIZE,
+                        f.readBlock(block, null), null);
+                assertEquals(f.blockSize(block) * LongKmersLoadWorker.KMER_RECORD_SIZE, records.limit());
+                while (records.hasRemaining()) {
+                    assertEquals((long) keys[i], records.getLong());
+                    assertEquals((long) kmers.get(keys[i]), records.getLong());
+                    i++;
+                }
+            }
+            assertEquals(size, i);
+            f.close();
+        }
+    }
+
+    @Test
+    public void testReaderFromKey() throws IOException {
+        TreeMap<Long, Long> kmers = kmers(1000);
+        CompressedKmersFile f = write(kmers, 8);
+        assertEquals(10, f.blocksNumber());
+
+        for (int block = 0; block < f.blocksNumber(); block++) {
+            long first = f.firstKeys[block];
+            long last = (block == 0) ? first : kmers.lowerKey(first);      // last key of the previous block
+            for (long fromKey : new long[]{first - 1, first, first + 1, last, last + 1}) {
+                check(kmers.tailMap(fromKey, true), f.reader(fromKey));
+            }
+        }
+        check(kmers, f.reader(Long.MIN_VALUE));
+        check(kmers.tailMap(kmers.lastKey(), true), f.reader(kmers.lastKey()));
+        check(new TreeMap<Long, Long>(), f.reader(kmers.lastKey() + 1));
+        f.close();
+    }
+
+    @Test
+    public void testShortCounts() throws IOException {
+        TreeMap<Long, Long> kmers = new TreeMap<Long, Long>();
+        for (long key = 0; key < 300; key++) {
+            kmers.put(key, key * 1000);
+        }
+        TreeMap<Long, Long> bounded = new TreeMap<Long, Long>();
+        for (Map.Entry<Long, Long> e : kmers.entrySet()) {
+            bounded.put(e.getKey(), Math.min(e.getValue(), Short.MAX_VALUE));
+        }
+
+        CompressedKmersFile f = write(kmers, 2);
+        assertEquals(2, f.countWidth);
+        check(bounded, f.reader());
+        ByteBuffer records = f.decodeBlock(2, KmersLoadWorker.KMER_RECORD_SIZE, f.readBlock(2, null), null);
+        for (long key = 200; key < 300; key++) {
+            assertEquals(key, records.getLong());
+            assertEquals(Short.MAX_VALUE, records.getShort());
+        }
+        f.close();
+
+        f = write(kmers, 8);
+        check(kmers, f.reader());
+        f.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsortedAtBlockStart() throws IOException {
+        CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(file, 31, 8, BLOCK_RECORDS);
+        for (int i = 0; i < BLOCK_RECORDS; i++) {
+            writer.write(i * 10, 1);
+        }
+        writer.write(5, 1);     // the first key of the second block
+    }
+
+    @Test(expected = IOException.class)
+    public void testDuplicateKey() throws IOException {
+        CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(file, 31, 8, BLOCK_RECORDS);
+        writer.write(1, 1);
+        writer.write(1, 2);
+    }
+}
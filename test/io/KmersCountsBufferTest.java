@@ -0,0 +1,170 @@
+package io;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import structures.map.BatchLong2LongHashMap;
+import structures.map.BatchLong2ShortHashMap;
+import structures.map.BatchLockable;
+import structures.map.ConcurrentLong2ShortHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KmersCountsBufferTest {
+    private Random rand;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+    }
+
+    private void checkSameCounts(BigLong2ShortHashMap hm) {
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        KmersCountsBuffer buffer = new KmersCountsBuffer(hm);
+        for (int i = 0; i < 300000; i++) {
+            long key = (rand.nextInt(10) == 0) ? 0 : rand.nextInt(50000) - 25000;
+            int value = 1 + rand.nextInt(3);
+            buffer.addAndBound(key, value);
+            Integer prev = expected.get(key);
+            expected.put(key, (prev == null ? 0 : prev) + value);
+        }
+        buffer.flush();
+
+        assertEquals(expected.size(), hm.size());
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assertEquals((short) Math.min(e.getValue(), Short.MAX_VALUE), hm.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testSameCounts() {
+        checkSameCounts(BatchLong2ShortHashMap.newBigMap(4, 10));
+        checkSameCounts(ConcurrentLong2ShortHashMap.newBigMap(4, 10));
+        checkSameCounts(new BigLong2ShortHashMap(4, 10));
+    }
+
+    @Test
+    public void testKeyZero() {
+        BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(4, 10);
+        KmersCountsBuffer buffer = new KmersCountsBuffer(hm);
+        buffer.addAndBound(0, 5);
+        buffer.addAndBound(0, 7);
+        assertEquals(12, hm.get(0));        // key 0 isn't buffered, it marks free cells
+        buffer.flush();
+        assertEquals(12, hm.get(0));
+        assertEquals(1, hm.size());
+    }
+
+    @Test
+    public void testShortSaturation() {
+        BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(2, 10);
+        KmersCountsBuffer buffer = new KmersCountsBuffer(hm);
+        for (int i = 0; i < 100; i++) {
+            buffer.addAndBound(42, 1000);
+            buffer.addAndBound(0, 1000);
+        }
+        buffer.addAndBound(43, Short.MAX_VALUE - 1);
+        buffer.flush();
+        buffer.addAndBound(43, 5);
+        buffer.flush();
+        assertEquals(Short.MAX_VALUE, hm.get(42));
+        assertEquals(Short.MAX_VALUE, hm.get(0));
+        assertEquals(Short.MAX_VALUE, hm.get(43));
+
+        // counts are exact for long maps, also when the buffered sum doesn't fit into int
+        BigLong2LongHashMap longHm = BatchLong2LongHashMap.newBigMap(2, 10);
+        KmersCountsBuffer longBuffer = new KmersCountsBuffer(longHm);
+        for (int i = 0; i < 100; i++) {
+            longBuffer.addAndBound(42, 1000);
+        }
+        longBuffer.addAndBound(44, Integer.MAX_VALUE);
+        longBuffer.addAndBound(44, Integer.MAX_VALUE);
+        longBuffer.addAndBound(44, 3);
+        longBuffer.flush();
+        assertEquals(100000, longHm.get(42));
+        assertEquals(2L * Integer.MAX_VALUE + 3, longHm.get(44));
+    }
+
+    @Test
+    public void testFlushOnClose() {
+        BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(4, 10);
+        IOUtils.Kmers2HMWorker worker = new IOUtils.Kmers2HMWorker(hm, 0, true);
+        for (long key = 1; key <= 100; key++) {
+            worker.processKmer(key, (short) 2);
+        }
+        assertEquals(0, hm.size());         // buckets aren't filled yet, counts stay in the buffer
+
+        worker.flushBuffers();              // the loader engine calls it when the worker is done
+        assertEquals(100, hm.size());
+        for (long key = 1; key <= 100; key++) {
+            assertEquals(2, hm.get(key));
+        }
+        worker.flushBuffers();
+        assertEquals(2, hm.get(1));
+    }
+
+    @Test
+    public void testBatchUnderWriteLock() throws InterruptedException {
+        final BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(0, 10);
+        final KmersCountsBuffer buffer = new KmersCountsBuffer(hm);
+        for (long key = 1; key <= 10; key++) {
+            buffer.addAndBound(key, 1);
+        }
+
+        BatchLockable map = (BatchLockable) hm.maps[0];
+        map.lockBatch();
+        final CountDownLatch flushed = new CountDownLatch(1);
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                buffer.flush();
+                flushed.countDown();
+            }
+        };
+        try {
+            flusher.start();
+            assertFalse(flushed.await(100, TimeUnit.MILLISECONDS));     // waits for the lock held by another writer
+            assertEquals(0, hm.size());
+        } finally {
+            map.unlockBatch();
+        }
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+        assertEquals(10, hm.size());
+    }
+
+    @Test
+    public void testConcurrentWorkers() throws InterruptedException {
+        final BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(3, 8);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random r = new Random(seed);
+                    KmersCountsBuffer buffer = new KmersCountsBuffer(hm);
+                    for (int i = 0; i < 100000; i++) {
+                        buffer.addAndBound(1 + r.nextInt(20000), 1);
+                    }
+                    buffer.flush();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long sum = 0;
+        for (long key = 1; key <= 20000; key++) {
+            sum += hm.getWithZero(key);
+        }
+        assertEquals(400000, sum);
+    }
+}
@@ -0,0 +1,199 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LoaderEngineTest {
+    private static final Logger logger = Logger.getLogger("test");
+    private static final int RANGES = 1000;
+
+    private static class TestSource implements LoaderEngine.Source<TestWorker> {
+        final AtomicInteger ranges = new AtomicInteger(RANGES);
+        final AtomicInteger closed = new AtomicInteger(0);
+        int failAt = -1;
+
+        @Override
+        public void attach(TestWorker worker) {
+            worker.source = this;
+        }
+
+        @Override
+        public void close(Logger logger) {
+            closed.incrementAndGet();
+        }
+    }
+
+    private static class TestWorker implements LoaderEngine.Worker {
+        TestSource source;
+        int processed = 0;
+        boolean flushed = false, interrupted = false;
+
+        @Override
+        public void startFile(int fileIndex) {
+        }
+
+        @Override
+        public boolean processNextRange() {
+            int left = source.ranges.getAndDecrement();
+            if (interrupted || left <= 0) {
+                return false;
+            }
+            if (left == source.failAt) {
+                throw new IllegalStateException("Worker failed");
+            }
+            processed++;
+            return true;
+        }
+
+        @Override
+        public void flushBuffers() {
+            flushed = true;
+        }
+
+        @Override
+        public void interrupt() {
+            interrupted = true;
+        }
+    }
+
+    private static class TestFactory implements LoaderEngine.SourceFactory<TestWorker> {
+        final TestSource[] sources;
+        final AtomicInteger opened = new AtomicInteger(0);
+        final int failingFile;
+
+        TestFactory(int files, int failingFile) {
+            sources = new TestSource[files];
+            for (int i = 0; i < files; i++) {
+                sources[i] = new TestSource();
+            }
+            this.failingFile = failingFile;
+        }
+
+        @Override
+        public LoaderEngine.Source<TestWorker> open(File file) throws IOException {
+            opened.incrementAndGet();
+            int f = Integer.parseInt(file.getName());
+            if (f == failingFile) {
+                throw new IOException("Can't open " + file);
+            }
+            return sources[f];
+        }
+    }
+
+    private static File[] files(int n) {
+        File[] files = new File[n];
+        for (int i = 0; i < n; i++) {
+            files[i] = new File(Integer.toString(i));
+        }
+        return files;
+    }
+
+    private static TestWorker[] workers(int n) {
+        TestWorker[] workers = new TestWorker[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = new TestWorker();
+        }
+        return workers;
+    }
+
+    @Test
+    public void testRun() throws IOException, ExecutionFailedException {
+        TestFactory factory = new TestFactory(5, -1);
+        TestWorker[] workers = workers(4);
+        LoaderEngine.run(files(5), workers, factory, logger);
+
+        assertEquals(5, factory.opened.get());
+        for (TestSource source : factory.sources) {
+            assertEquals(1, source.closed.get());
+        }
+        int processed = 0;
+        for (TestWorker worker : workers) {
+            processed += worker.processed;
+            assertTrue(worker.flushed);
+        }
+        assertEquals(5 * RANGES, processed);
+    }
+
+    @Test
+    public void testOpeningDoesNotBlockClosing() throws IOException, ExecutionFailedException {
+        final TestFactory factory = new TestFactory(2, -1);
+        LoaderEngine.SourceFactory<TestWorker> blocking = new LoaderEngine.SourceFactory<TestWorker>() {
+            @Override
+            public LoaderEngine.Source<TestWorker> open(File file) throws IOException {
+                if (file.getName().equals("1")) {
+                    // the second file is opened only after the first one is closed by another worker
+                    long deadline = System.currentTimeMillis() + 10000;
+                    while (factory.sources[0].closed.get() == 0) {
+                        if (System.currentTimeMillis() > deadline) {
+                            throw new IOException("The first file isn't closed while the second one is opened");
+                        }
+                        Thread.yield();
+                    }
+                }
+                return factory.open(file);
+            }
+        };
+        LoaderEngine.run(files(2), workers(3), blocking, logger);
+        assertEquals(1, factory.sources[1].closed.get());
+    }
+
+    @Test
+    public void testWorkerFailure() throws IOException {
+        TestFactory factory = new TestFactory(3, -1);
+        factory.sources[1].failAt = RANGES / 2;
+        try {
+            LoaderEngine.run(files(3), workers(4), factory, logger);
+            fail();
+        } catch (ExecutionFailedException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(factory.opened.get() >= 2);
+        for (int f = 0; f < factory.opened.get(); f++) {
+            assertEquals(1, factory.sources[f].closed.get());      // closed although the failed worker hasn't left
+        }
+    }
+
+    @Test
+    public void testOpeningFailure() throws ExecutionFailedException {
+        TestFactory factory = new TestFactory(4, 2);
+        try {
+            LoaderEngine.run(files(4), workers(4), factory, logger);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Can't open"));
+        }
+        assertEquals(3, factory.opened.get());
+        assertEquals(1, factory.sources[0].closed.get());
+        assertEquals(1, factory.sources[1].closed.get());
+        assertEquals(0, factory.sources[3].closed.get());
+    }
+
+    @Test
+    public void testOpeningOnce() throws IOException, ExecutionFailedException, InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final TestFactory factory = new TestFactory(1, -1);
+        LoaderEngine.SourceFactory<TestWorker> slow = new LoaderEngine.SourceFactory<TestWorker>() {
+            @Override
+            public LoaderEngine.Source<TestWorker> open(File file) throws IOException {
+                try {
+                    start.await(100, TimeUnit.MILLISECONDS);     // other workers come while opening
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return factory.open(file);
+            }
+        };
+        LoaderEngine.run(files(1), workers(8), slow, logger);
+        assertEquals(1, factory.opened.get());
+        assertEquals(1, factory.sources[0].closed.get());
+    }
+}
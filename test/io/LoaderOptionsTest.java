@@ -0,0 +1,144 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LoaderOptionsTest {
+    private static final Logger logger = Logger.getLogger("test");
+
+    private File dir;
+    private File reads;
+
+    @Before
+    public void before() throws IOException {
+        Random rand = new Random(239);
+        dir = Files.createTempDirectory("options").toFile();
+        dir.deleteOnExit();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("@read").append(i).append('\n');
+            int len = 50 + rand.nextInt(50);
+            for (int j = 0; j < len; j++) {
+                sb.append("ACGT".charAt(rand.nextInt(4)));
+            }
+            sb.append("\n+\n");
+            for (int j = 0; j < len; j++) {
+                sb.append('I');
+            }
+            sb.append('\n');
+        }
+        reads = file("reads.fastq");
+        Files.write(reads.toPath(), sb.toString().getBytes("US-ASCII"));
+    }
+
+    private File file(String name) {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static Map<Long, Long> asMap(BigLong2ShortHashMap hm) {
+        Map<Long, Long> res = new HashMap<Long, Long>();
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry e = it.next();
+            res.put(e.getKey(), (long) e.getValue());
+        }
+        return res;
+    }
+
+    private static Map<Long, Long> asMap(BigLong2LongHashMap hm) {
+        Map<Long, Long> res = new HashMap<Long, Long>();
+        Iterator<MutableLongLongEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongLongEntry e = it.next();
+            res.put(e.getKey(), e.getValue());
+        }
+        return res;
+    }
+
+    private LoaderOptions[] options() {
+        File offHeapDir = new File(dir, "off-heap");
+        offHeapDir.mkdir();
+        offHeapDir.deleteOnExit();
+        return new LoaderOptions[]{
+                LoaderOptions.DEFAULT.withMapKmersFiles(false),
+                LoaderOptions.DEFAULT.withParseReadsInChunks(false),
+                LoaderOptions.DEFAULT.withPreAggregateCounts(false),
+                LoaderOptions.DEFAULT.withLockFreeMaps(true),
+                LoaderOptions.DEFAULT.withOffHeapMaps(true, null),
+                LoaderOptions.DEFAULT.withOffHeapMaps(true, offHeapDir)
+        };
+    }
+
+    @Test
+    public void testDefault() {
+        LoaderOptions o = LoaderOptions.DEFAULT;
+        assertTrue(o.mapKmersFiles && o.parseReadsInChunks && o.preAggregateCounts);
+        assertFalse(o.lockFreeMaps);
+        assertFalse(o.offHeapMaps);
+        assertNull(o.offHeapDir);
+
+        LoaderOptions changed = o.withLockFreeMaps(true).withOffHeapMaps(true, dir);
+        assertTrue(changed.lockFreeMaps);
+        assertTrue(changed.offHeapMaps);
+        assertEquals(dir, changed.offHeapDir);
+        assertTrue(changed.mapKmersFiles && changed.parseReadsInChunks && changed.preAggregateCounts);
+        assertFalse(o.lockFreeMaps);
+    }
+
+    @Test
+    public void testSameReads() throws IOException, ExecutionFailedException {
+        File[] files = {reads};
+        BigLong2ShortHashMap expected = IOUtils.loadReads(files, 21, 0, 2, logger);
+        for (LoaderOptions options : options()) {
+            BigLong2ShortHashMap hm = IOUtils.loadReads(files, 21, 0, null, options, 2, logger);
+            assertEquals(asMap(expected), asMap(hm));
+            IOUtils.closeMap(hm);
+        }
+    }
+
+    @Test
+    public void testSameKmers() throws IOException, ExecutionFailedException {
+        BigLong2ShortHashMap counted = IOUtils.loadReads(new File[]{reads}, 21, 0, 2, logger);
+        File kmers = file("reads.kmers.bin");
+        IOUtils.printKmers(counted, 0, kmers, file("reads.stat.txt"));
+        File[] files = {kmers, kmers};
+
+        BigLong2ShortHashMap expected = IOUtils.loadKmers(files, 0, 2, logger);
+        assertEquals(counted.size(), expected.size());
+        for (LoaderOptions options : options()) {
+            BigLong2ShortHashMap hm = IOUtils.loadKmers(files, 0, options, 2, logger);
+            assertEquals(asMap(expected), asMap(hm));
+            IOUtils.closeMap(hm);
+        }
+
+        File longKmers = file("reads.long.kmers.bin");
+        IOUtils.printKmers(IOUtils.loadTieredReads(new File[]{reads}, 21, 0, null, 2, logger),
+                0, longKmers, file("reads.long.stat.txt"));
+        BigLong2LongHashMap expectedLong = IOUtils.loadLongKmers(new File[]{longKmers}, 0, 2, logger);
+        assertEquals(counted.size(), expectedLong.size());
+        for (LoaderOptions options : options()) {
+            BigLong2LongHashMap hm = IOUtils.loadLongKmers(new File[]{longKmers}, 0, options, 2, logger);
+            assertEquals(asMap(expectedLong), asMap(hm));
+            IOUtils.closeMap(hm);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import structures.map.BatchLockable;
+import structures.map.BatchLong2ShortHashMap;
+import structures.map.BigLong2BitLongaHashMap;
+import structures.map.BigLong2BitSetHashMap;
+import structures.map.BigLong2BitShortaHashMap;
+import structures.map.TieredLong2LongHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class LoadingMetricsTest {
+    private static final Logger logger = Logger.getLogger("test");
+
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        dir = Files.createTempDirectory("metrics").toFile();
+        dir.deleteOnExit();
+    }
+
+    @After
+    public void after() {
+        LoadingMetrics.stop(logger);
+        LoadingMetrics.monitor((BigLong2ShortHashMap) null);
+    }
+
+    private static void checkMonitored(LoadingMetrics metrics, long size, int smallMaps, long initialCapacity) {
+        assertEquals(size, metrics.getMapSize());
+        assertEquals(smallMaps, metrics.getSubmapLoadFactors().length);
+        assertEquals(smallMaps, metrics.getSubmapResizes().length);
+        assertTrue(metrics.getMapCapacity() > initialCapacity);         // the maps have grown
+        assertTrue(metrics.getResizes() > 0);
+        assertTrue(metrics.getMaxSubmapLoadFactor() > 0 && metrics.getMaxSubmapLoadFactor() < 1);
+    }
+
+    @Test
+    public void testMapKinds() {
+        LoadingMetrics.start(null, 3600, logger);
+        LoadingMetrics metrics = instance();
+        int n = 10000;
+
+        BigLong2ShortHashMap shortHm = BatchLong2ShortHashMap.newBigMap(2, 4);
+        LoadingMetrics.monitor(shortHm);
+        for (long key = 1; key <= n; key++) {
+            shortHm.addAndBound(key, (short) 1);
+        }
+        checkMonitored(metrics, n, 4, 4 * 16);
+
+        BigLong2LongHashMap tieredHm = TieredLong2LongHashMap.newBigMap(2, 4);
+        LoadingMetrics.monitor(tieredHm);
+        for (long key = 1; key <= n; key++) {
+            tieredHm.addAndBound(key, 1000);
+        }
+        checkMonitored(metrics, n, 4, 4 * 16);
+
+        BigLong2BitSetHashMap bitSetHm = new BigLong2BitSetHashMap(2, 4);
+        LoadingMetrics.monitor(bitSetHm);
+        BigLong2BitLongaHashMap bitLongaHm = new BigLong2BitLongaHashMap(2, 4);
+        BigLong2BitShortaHashMap bitShortaHm = new BigLong2BitShortaHashMap(2, 4);
+        for (long key = 1; key <= n; key++) {
+            bitSetHm.set(key, 1);
+            bitLongaHm.set(key, 1);
+            bitShortaHm.set(key, 1);
+        }
+        checkMonitored(metrics, n, 4, 4 * 16);
+        LoadingMetrics.monitor(bitLongaHm);
+        assertEquals(n, metrics.getMapSize());
+        assertEquals(0, metrics.getResizes());          // capacities are taken when monitoring starts
+        LoadingMetrics.monitor(bitShortaHm);
+        assertEquals(n, metrics.getMapSize());
+        assertEquals(bitShortaHm.capacity(), metrics.getMapCapacity());
+
+        LoadingMetrics.monitor((BigLong2ShortHashMap) null);
+        assertEquals(0, metrics.getMapSize());
+        assertEquals(0, metrics.getSubmapLoadFactors().length);
+    }
+
+    @Test
+    public void testLockWait() throws InterruptedException {
+        final BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(0, 4);
+        LoadingMetrics.start(null, 3600, logger);
+        LoadingMetrics metrics = instance();
+        long before = metrics.getLockWaitMillis();
+
+        hm.addAndBound(1, (short) 1);
+        assertEquals(before, metrics.getLockWaitMillis());     // uncontended locks aren't timed
+
+        BatchLockable map = (BatchLockable) hm.maps[0];
+        map.lockBatch();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                hm.addAndBound(2, (short) 1);
+            }
+        };
+        try {
+            writer.start();
+            Thread.sleep(200);
+        } finally {
+            map.unlockBatch();
+        }
+        writer.join();
+        assertEquals(1, hm.get(2));
+        assertTrue(metrics.getLockWaitMillis() - before >= 100);
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LoadingMetrics.OBJECT_NAME);
+        LoadingMetrics.start(null, 3600, logger);
+        assertTrue(server.isRegistered(name));
+
+        long reads = (Long) server.getAttribute(name, "Reads");
+        LoadingMetrics.addReads(5);
+        assertEquals(reads + 5, ((Long) server.getAttribute(name, "Reads")).longValue());
+
+        BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(1, 4);
+        hm.addAndBound(7, (short) 1);
+        LoadingMetrics.monitor(hm);
+        assertEquals(1L, server.getAttribute(name, "MapSize"));
+        assertEquals(2, ((double[]) server.getAttribute(name, "SubmapLoadFactors")).length);
+        assertTrue((Long) server.getAttribute(name, "HeapHeadroom") > 0);
+
+        LoadingMetrics.start(null, 3600, logger);        // restarting replaces the registered MBean
+        assertTrue(server.isRegistered(name));
+        LoadingMetrics.stop(logger);
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testJson() throws IOException, InterruptedException {
+        File json = new File(dir, "metrics.json");
+        json.deleteOnExit();
+        LoadingMetrics.start(json, 3600, logger);
+        LoadingMetrics metrics = instance();
+        BigLong2ShortHashMap hm = BatchLong2ShortHashMap.newBigMap(1, 4);
+        hm.addAndBound(7, (short) 1);
+        hm.addAndBound(8, (short) 1);
+        LoadingMetrics.monitor(hm);
+
+        long bytes = metrics.getBytesRead();
+        Thread.sleep(20);
+        LoadingMetrics.addBytes(1000);
+        LoadingMetrics.addKmers(10);
+        metrics.sample();
+        assertTrue(metrics.getBytesPerSecond() > 0);
+        assertTrue(metrics.getKmersPerSecond() > 0);
+
+        String text = new String(Files.readAllBytes(json.toPath()), "UTF-8");
+        assertTrue(text.startsWith("{") && text.trim().endsWith("}"));
+        assertTrue(text.contains("\"bytesRead\": " + (bytes + 1000) + ","));
+        assertTrue(text.contains("\"mapSize\": 2,"));
+        assertTrue(text.contains("\"submapLoadFactors\": ["));
+        assertTrue(text.contains("\"heapHeadroom\": "));
+        assertFalse(new File(dir, "metrics.json.tmp").exists());
+
+        LoadingMetrics.addReads(3);
+        long reads = metrics.getReads();
+        LoadingMetrics.stop(logger);            // the last sample is written on stop
+        text = new String(Files.readAllBytes(json.toPath()), "UTF-8");
+        assertTrue(text.contains("\"reads\": " + reads + ","));
+    }
+
+    private static LoadingMetrics instance() {
+        LoadingMetrics metrics = LoadingMetrics.instance;
+        assertNotNull(metrics);
+        return metrics;
+    }
+}
@@ -0,0 +1,109 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MapCapacityTest {
+    private static final Logger logger = Logger.getLogger("test");
+
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        dir = Files.createTempDirectory("capacity").toFile();
+        dir.deleteOnExit();
+    }
+
+    private File kmersFile(String name, int records) throws IOException {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[records * KmersLoadWorker.KMER_RECORD_SIZE]);
+        return file;
+    }
+
+    private static long slots(MapCapacity capacity) {
+        return 1L << (capacity.logSmallMapNumber + capacity.logSmallCapacity);
+    }
+
+    @Test
+    public void testLayout() {
+        MapCapacity small = MapCapacity.layout(0, 5, logger);
+        assertEquals(5, small.logSmallMapNumber);
+        assertEquals(MapCapacity.DEFAULT_LOG_SMALL_CAPACITY, small.logSmallCapacity);
+
+        for (long keys : new long[]{1000000, 12345678, 300000000}) {
+            MapCapacity capacity = MapCapacity.layout(keys, 5, logger);
+            assertEquals(5, capacity.logSmallMapNumber);
+            assertTrue(slots(capacity) * LongHashSet.DEFAULT_MAX_LOAD_FACTOR >= keys);
+            assertTrue(slots(capacity) / 2 * LongHashSet.DEFAULT_MAX_LOAD_FACTOR < keys);
+        }
+
+        // small maps are not enlarged beyond MAX_LOG_SMALL_CAPACITY, there are more of them instead
+        MapCapacity huge = MapCapacity.layout(1L << 36, 5, logger);
+        assertEquals(MapCapacity.MAX_LOG_SMALL_CAPACITY, huge.logSmallCapacity);
+        assertTrue(huge.logSmallMapNumber > 5);
+        assertTrue(slots(huge) * LongHashSet.DEFAULT_MAX_LOAD_FACTOR >= (1L << 36));
+    }
+
+    @Test
+    public void testPlan() {
+        MapCapacity unknown = MapCapacity.plan(-1, 10, 0, 4, 1L << 30, logger);
+        assertEquals(6, unknown.logSmallMapNumber);
+        assertEquals(MapCapacity.DEFAULT_LOG_SMALL_CAPACITY, unknown.logSmallCapacity);
+        assertEquals(4, MapCapacity.plan(-1, 10, 0, 1, 1L << 30, logger).logSmallMapNumber);
+
+        MapCapacity fits = MapCapacity.plan(10000000, 10, 0, 4, 1L << 30, logger);
+        assertEquals(MapCapacity.layout(10000000, 6, logger).logSmallCapacity, fits.logSmallCapacity);
+
+        // the budget limits the presized slots, values allocated per key are counted too
+        long budget = 64L << 20;
+        for (int keyBytes : new int[]{0, 100}) {
+            MapCapacity limited = MapCapacity.plan(1L << 30, 10, keyBytes, 4, budget, logger);
+            long keys = (long) (budget / (10 / LongHashSet.DEFAULT_MAX_LOAD_FACTOR + keyBytes));
+            assertEquals(MapCapacity.layout(keys, 6, logger).logSmallCapacity, limited.logSmallCapacity);
+            assertTrue(slots(limited) * 10 <= 2 * budget);
+        }
+    }
+
+    @Test
+    public void testPlanOffHeap() {
+        MapCapacity direct = MapCapacity.planOffHeap(1L << 40, 10, null, 4, logger);
+        assertTrue(slots(direct) * 10 <= 2 * MapCapacity.heapBudget());
+
+        MapCapacity missingDir = MapCapacity.planOffHeap(1L << 40, 10, new File(dir, "missing"), 4, logger);
+        assertEquals(MapCapacity.DEFAULT_LOG_SMALL_CAPACITY, missingDir.logSmallCapacity);
+
+        MapCapacity mapped = MapCapacity.planOffHeap(1000000, 10, dir, 4, logger);
+        assertEquals(MapCapacity.layout(1000000, 6, logger).logSmallCapacity, mapped.logSmallCapacity);
+    }
+
+    @Test
+    public void testKmersRecords() throws IOException {
+        File a = kmersFile("a.kmers.bin", 1000);
+        File b = kmersFile("b.kmers.bin", 3000);
+        File c = kmersFile("c.kmers.bin", 2000);
+        File[] files = {a, b, c};
+        assertEquals(3000, MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, 0));
+        assertEquals(0, MapCapacity.kmersRecords(new File[0], KmersLoadWorker.KMER_RECORD_SIZE, 0));
+        assertEquals(-1, MapCapacity.kmersRecords(files, KmersLoadWorker.KMER_RECORD_SIZE, 1));
+
+        File compressed = new File(dir, "d.kmers.bin");
+        compressed.deleteOnExit();
+        CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(compressed, 31, 2, 100);
+        for (int i = 0; i < 5000; i++) {
+            writer.write(i, 1);
+        }
+        writer.close();
+        assertEquals(5000, MapCapacity.kmersRecords(new File[]{a, compressed}, KmersLoadWorker.KMER_RECORD_SIZE, 0));
+
+        File stream = new File("-");
+        assertEquals(-1, MapCapacity.kmersRecords(new File[]{a, stream}, KmersLoadWorker.KMER_RECORD_SIZE, 0));
+    }
+}
@@ -0,0 +1,148 @@
+package io;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelGZIPInputStreamTest {
+    private Random rand;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+    }
+
+    /**
+     * Compressible data: random nucleotides with some repeats.
+     */
+    private byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (i > 100 && rand.nextInt(3) == 0) ? data[i - 1 - rand.nextInt(100)] : (byte) "ACGT\n".charAt(rand.nextInt(5));
+        }
+        return data;
+    }
+
+    /**
+     * Writes the data as bgzip does: independent gzip blocks with BSIZE in the extra field.
+     */
+    private byte[] bgzf(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = 0;
+        while (pos < data.length) {
+            int len = Math.min(data.length - pos, 1 + rand.nextInt(60000));
+            writeBlock(out, data, pos, len);
+            pos += len;
+        }
+        writeBlock(out, data, pos, 0);      // EOF marker block
+        return out.toByteArray();
+    }
+
+    private static void writeBlock(ByteArrayOutputStream out, byte[] data, int off, int len) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        byte[] deflated = new byte[len + 1024];
+        int dlen = 0;
+        while (!deflater.finished()) {
+            dlen += deflater.deflate(deflated, dlen, deflated.length - dlen);
+        }
+        deflater.end();
+
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        int bsize = 18 + dlen + 8 - 1;
+        byte[] header = {31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                (byte) bsize, (byte) (bsize >>> 8)};
+        out.write(header, 0, header.length);
+        out.write(deflated, 0, dlen);
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, len);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int x) {
+        for (int i = 0; i < 4; i++) {
+            out.write(x >>> (8 * i));
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 + rand.nextInt(100000)];
+        int r;
+        while ((r = in.read(buf, 0, 1 + rand.nextInt(buf.length))) >= 0) {
+            out.write(buf, 0, r);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBlockOrder() throws IOException {
+        for (int size : new int[]{0, 1, 100000, 3000000}) {
+            byte[] data = data(size);
+            byte[] compressed = bgzf(data);
+            assertTrue(ParallelGZIPInputStream.isBGZF(compressed, compressed.length));
+            for (int threads : new int[]{1, 4}) {
+                InputStream in = new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), true, threads);
+                assertArrayEquals(data, readAll(in));
+            }
+        }
+    }
+
+    @Test
+    public void testPlainGzip() throws IOException {
+        for (int size : new int[]{0, 1, 3000000}) {
+            byte[] data = data(size);
+            byte[] compressed = gzip(data);
+            assertFalse(ParallelGZIPInputStream.isBGZF(compressed, compressed.length));
+            InputStream in = new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), false, 1);
+            assertArrayEquals(data, readAll(in));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedBlock() throws IOException {
+        byte[] compressed = bgzf(data(100000));
+        compressed[100] ^= 1;
+        readAll(new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), true, 4));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedGzip() throws IOException {
+        byte[] compressed = gzip(data(3000000));
+        compressed = Arrays.copyOf(compressed, compressed.length / 2);
+        readAll(new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), false, 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailingStream() throws IOException {
+        final byte[] compressed = gzip(data(3000000));
+        InputStream failing = new ByteArrayInputStream(compressed) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos > compressed.length / 2) {
+                    throw new IllegalStateException("Broken stream");
+                }
+                return super.read(b, off, len);
+            }
+        };
+        readAll(new ParallelGZIPInputStream(failing, false, 1));   // the producer's exception is rethrown instead of hanging
+    }
+}
@@ -0,0 +1,135 @@
+package io;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ParallelKmersPrinterTest {
+    private Random rand;
+    private File dir;
+
+    private BigLong2ShortHashMap shortMap, filter1, filter2, filter3;
+    private BigLong2LongHashMap longMap;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = Files.createTempDirectory("printer").toFile();
+        dir.deleteOnExit();
+
+        shortMap = new BigLong2ShortHashMap(4, 10);
+        longMap = new BigLong2LongHashMap(4, 10);
+        filter1 = new BigLong2ShortHashMap(2, 10);
+        filter2 = new BigLong2ShortHashMap(2, 10);
+        filter3 = new BigLong2ShortHashMap(2, 10);
+        for (int i = 0; i < 50000; i++) {
+            long key = rand.nextLong();
+            int value = (rand.nextInt(100) == 0) ? 1000 + rand.nextInt(100000) : 1 + rand.nextInt(10);
+            shortMap.put(key, (short) Math.min(value, Short.MAX_VALUE));
+            longMap.put(key, value);
+            if (rand.nextInt(3) == 0) {
+                filter1.put(key, (short) (1 + rand.nextInt(3)));
+            }
+            if (rand.nextInt(3) == 0) {
+                filter2.put(key, (short) (1 + rand.nextInt(3)));
+            }
+            if (rand.nextInt(3) == 0) {
+                filter3.put(key, (short) (1 + rand.nextInt(3)));
+            }
+        }
+    }
+
+    private interface Printing {
+        long print(File outFile, File stFile, int printingThreads) throws IOException;
+    }
+
+    /**
+     * Checks that the parallel printing gives the same files as the sequential one.
+     */
+    private void check(Printing printing) throws IOException {
+        File expectedOut = new File(dir, "expected.kmers.bin"), expectedSt = new File(dir, "expected.stat.txt");
+        expectedOut.deleteOnExit();
+        expectedSt.deleteOnExit();
+        long expected = printing.print(expectedOut, expectedSt, 1);
+        assertTrue(expected > 0);
+
+        for (int threads : new int[]{2, 3, 16}) {
+            File out = new File(dir, "out.kmers.bin"), st = new File(dir, "out.stat.txt");
+            out.deleteOnExit();
+            st.deleteOnExit();
+            assertEquals(expected, printing.print(out, st, threads));
+            assertArrayEquals(Files.readAllBytes(expectedOut.toPath()), Files.readAllBytes(out.toPath()));
+            if (expectedSt.exists()) {
+                assertArrayEquals(Files.readAllBytes(expectedSt.toPath()), Files.readAllBytes(st.toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testShortMap() throws IOException {
+        for (final int threshold : new int[]{0, 3}) {
+            check(new Printing() {
+                @Override
+                public long print(File outFile, File stFile, int printingThreads) throws IOException {
+                    return IOUtils.printKmers(shortMap, threshold, outFile, stFile, false, printingThreads);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testLongMap() throws IOException {
+        for (final boolean bounded : new boolean[]{false, true}) {
+            check(new Printing() {
+                @Override
+                public long print(File outFile, File stFile, int printingThreads) throws IOException {
+                    return IOUtils.printKmers(longMap, 2, outFile, stFile, false, bounded, printingThreads);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testFilters() throws IOException {
+        check(new Printing() {
+            @Override
+            public long print(File outFile, File stFile, int printingThreads) throws IOException {
+                return IOUtils.filterAndPrintKmers(shortMap, filter1, 1, 1, outFile, printingThreads);
+            }
+        });
+        check(new Printing() {
+            @Override
+            public long print(File outFile, File stFile, int printingThreads) throws IOException {
+                return IOUtils.MultipleFiltersAndPrintKmers(shortMap, filter1, filter2, filter3, 2, outFile, stFile,
+                        printingThreads);
+            }
+        });
+    }
+
+    @Test(expected = IOException.class)
+    public void testChangedShard() throws IOException {
+        File out = new File(dir, "changed.kmers.bin");
+        out.deleteOnExit();
+        ParallelKmersPrinter.print(4, new ParallelKmersPrinter.ShardPrinter() {
+            @Override
+            public long count(int shard, int thread) {
+                return 10;
+            }
+
+            @Override
+            public void write(int shard, DataOutputStream out) throws IOException {
+                for (int i = 0; i < (shard == 2 ? 9 : 10); i++) {
+                    out.writeLong(i);
+                    out.writeShort(shard);
+                }
+            }
+        }, KmersLoadWorker.KMER_RECORD_SIZE, out, 2);
+    }
+}
@@ -0,0 +1,131 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PartitionedKmersCounterTest {
+    private static final Logger logger = Logger.getLogger("test");
+
+    private Random rand;
+    private File dir;
+    private File reads;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = Files.createTempDirectory("partitions").toFile();
+        dir.deleteOnExit();
+
+        // random genome covered by reads with errors, so that k-mers have different counts
+        char[] genome = new char[20000];
+        for (int i = 0; i < genome.length; i++) {
+            genome[i] = "ACGT".charAt(rand.nextInt(4));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            int len = 50 + rand.nextInt(100);
+            int start = rand.nextInt(genome.length - len);
+            char[] read = new String(genome, start, len).toCharArray();
+            if (rand.nextInt(5) == 0) {
+                read[rand.nextInt(len)] = rand.nextInt(10) == 0 ? 'N' : "ACGT".charAt(rand.nextInt(4));
+            }
+            sb.append(">read").append(i).append('\n').append(read).append('\n');
+        }
+        reads = file("reads.fasta");
+        Files.write(reads.toPath(), sb.toString().getBytes("US-ASCII"));
+    }
+
+    private File file(String name) {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static Map<Long, Short> expected(BigLong2ShortHashMap hm, int threshold) {
+        Map<Long, Short> expected = new HashMap<Long, Short>();
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry e = it.next();
+            if (e.getValue() > threshold) {
+                expected.put(e.getKey(), e.getValue());
+            }
+        }
+        return expected;
+    }
+
+    private static Map<Long, Short> read(File file, boolean sorted) throws IOException {
+        Map<Long, Short> res = new HashMap<Long, Short>();
+        long prev = Long.MIN_VALUE;
+        if (CompressedKmersFile.isCompressed(file)) {
+            CompressedKmersFile f = new CompressedKmersFile(file);
+            CompressedKmersFile.Reader reader = f.reader();
+            while (reader.next()) {
+                assertTrue(reader.key() > prev || res.isEmpty());
+                prev = reader.key();
+                res.put(reader.key(), (short) reader.count());
+            }
+            f.close();
+            return res;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        for (long i = 0; i < file.length() / KmersLoadWorker.KMER_RECORD_SIZE; i++) {
+            long key = in.readLong();
+            assertTrue(!sorted || key > prev || res.isEmpty());
+            prev = key;
+            assertNull(res.put(key, in.readShort()));
+        }
+        in.close();
+        return res;
+    }
+
+    @Test
+    public void testSameAsInMemory() throws IOException, ExecutionFailedException {
+        File[] files = {reads};
+        for (int k : new int[]{11, 21, 31}) {
+            BigLong2ShortHashMap hm = IOUtils.loadReads(files, k, 0, 2, logger);
+            for (int threshold : new int[]{0, 2}) {
+                Map<Long, Short> expected = expected(hm, threshold);
+                assertTrue(expected.size() > 1000);
+
+                boolean[][] modes = {{false, false}, {true, false}, {false, true}};
+                for (boolean[] mode : modes) {
+                    File outFile = file("out.kmers.bin"), stFile = file("out.stat.txt");
+                    PartitionedKmersCounter counter = new PartitionedKmersCounter(files, k, 8, 16L << 20, 2,
+                            new File(dir, "spill"), logger);
+                    assertEquals(expected.size(), counter.count(files, threshold, outFile, stFile, mode[0], mode[1]));
+                    assertEquals(hm.size(), counter.kmers());
+                    assertEquals(expected, read(outFile, mode[0]));
+                    assertTrue(stFile.length() > 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLoaderOptions() throws IOException, ExecutionFailedException {
+        File[] files = {reads};
+        Map<Long, Short> expected = expected(IOUtils.loadReads(files, 21, 0, 2, logger), 0);
+        LoaderOptions[] options = {LoaderOptions.DEFAULT.withParseReadsInChunks(false),
+                LoaderOptions.DEFAULT.withMapKmersFiles(false).withLockFreeMaps(true)};
+        for (LoaderOptions o : options) {
+            File outFile = file("out.kmers.bin"), stFile = file("out.stat.txt");
+            PartitionedKmersCounter counter = new PartitionedKmersCounter(files, 21, 8, 16L << 20, o, 2,
+                    new File(dir, "spill"), logger);
+            assertEquals(expected.size(), counter.count(files, 0, outFile, stFile, true, false));
+            assertEquals(expected, read(outFile, true));
+        }
+    }
+}
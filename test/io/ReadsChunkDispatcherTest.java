@@ -0,0 +1,209 @@
+package io;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.io.ReadersUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReadsChunkDispatcherTest {
+    private static final int[] CHUNK_SIZES = {7, 64, 1000, 1 << 20};
+
+    private Random rand;
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = Files.createTempDirectory("chunks").toFile();
+        dir.deleteOnExit();
+    }
+
+    private static class CollectingWorker extends ReadsWorker {
+        final List<String> reads = new ArrayList<String>();
+
+        @Override
+        public void process(List<Dna> list) {
+            for (Dna dna : list) {
+                reads.add(dna.toString());
+            }
+        }
+
+        @Override
+        public void processSequence(byte[] nucs, int len) {
+            char[] c = new char[len];
+            for (int i = 0; i < len; i++) {
+                c[i] = DnaTools.toChar(nucs[i]);
+            }
+            reads.add(new String(c));
+        }
+
+        List<String> readAll() {
+            while (processNextRange()) {
+            }
+            return reads;
+        }
+    }
+
+    private String sequence(int len) {
+        char[] c = new char[len];
+        for (int i = 0; i < len; i++) {
+            c[i] = (rand.nextInt(200) == 0) ? 'N' : "ACGT".charAt(rand.nextInt(4));
+        }
+        return new String(c);
+    }
+
+    /**
+     * Quality lines often start with '@' or '+', some reads have zero quality chars.
+     */
+    private String quality(int len) {
+        String chars = "@+#ABCDEFGHI";
+        char[] c = new char[len];
+        for (int i = 0; i < len; i++) {
+            c[i] = (i == 0 && rand.nextBoolean()) ? "@+".charAt(rand.nextInt(2)) : chars.charAt(rand.nextInt(chars.length()));
+            if (rand.nextInt(500) == 0) {
+                c[i] = '!';
+            }
+        }
+        return new String(c);
+    }
+
+    private int readLength() {
+        return (rand.nextInt(10) == 0) ? 100 + rand.nextInt(400) : 1 + rand.nextInt(30);     // some longer than a chunk
+    }
+
+    private String fastq(int reads, String eol) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < reads; i++) {
+            int len = readLength();
+            sb.append("@read").append(i).append(eol);
+            sb.append(sequence(len)).append(eol);
+            sb.append(rand.nextBoolean() ? "+" : "+read" + i).append(eol);
+            sb.append(quality(len)).append(eol);
+        }
+        sb.append("@last").append(eol).append("ACGT").append(eol).append("+").append(eol).append("!III");   // no last eol
+        return sb.toString();
+    }
+
+    private String fasta(int reads, String eol) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < reads; i++) {
+            sb.append(">read").append(i).append(eol);
+            int lines = 1 + rand.nextInt(3);
+            for (int j = 0; j < lines; j++) {
+                sb.append(sequence(readLength())).append(eol);
+            }
+        }
+        return sb.toString();
+    }
+
+    private File write(String name, String data) throws IOException {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        out.write(data.getBytes("US-ASCII"));
+        out.close();
+        return file;
+    }
+
+    private static List<String> expected(File file) throws IOException {
+        CollectingWorker worker = new CollectingWorker();
+        worker.setDispatcher(new ReadsDispatcher(ReadersUtils.readDnaLazy(file), 100, null));
+        return worker.readAll();
+    }
+
+    private static void check(File file) throws IOException {
+        List<String> expected = expected(file);
+        assertTrue(expected.size() > 100);
+        for (int chunkSize : CHUNK_SIZES) {
+            ReadsChunkDispatcher dispatcher = new ReadsChunkDispatcher(file, chunkSize, null);
+            CollectingWorker worker = new CollectingWorker();
+            worker.setDispatcher(dispatcher);
+            assertEquals(expected, worker.readAll());
+            assertEquals(expected.size(), dispatcher.reads());
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testFastq() throws IOException {
+        check(write("reads.fastq", fastq(300, "\n")));
+    }
+
+    @Test
+    public void testFastqCrlf() throws IOException {
+        check(write("reads_crlf.fastq", fastq(300, "\r\n")));
+    }
+
+    @Test
+    public void testFasta() throws IOException {
+        check(write("reads.fasta", fasta(300, "\n")));
+        check(write("reads_crlf.fasta", fasta(300, "\r\n")));
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        for (String eol : new String[]{"\n", "\r\n"}) {
+            File file = write("stream.fastq", fastq(300, eol));
+            byte[] data = Files.readAllBytes(file.toPath());
+            ReadsChunkDispatcher dispatcher = new ReadsChunkDispatcher(file, new ByteArrayInputStream(data),
+                    true, ReadsChunkDispatcher.zeroQualityChar(file), 2, null);
+            CollectingWorker worker = new CollectingWorker();
+            worker.setDispatcher(dispatcher);
+            assertEquals(expected(file), worker.readAll());
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testBoundaries() throws IOException {
+        for (String eol : new String[]{"\n", "\r\n"}) {
+            String data = fastq(50, eol) + eol;
+            byte[] buf = data.getBytes("US-ASCII");
+            int recordEnd = 0, lines = 0;
+            for (int len = 0; len <= buf.length; len++) {
+                if (len > 0 && buf[len - 1] == '\n' && ++lines % 4 == 0) {
+                    recordEnd = len;
+                }
+                assertEquals(recordEnd, ReadsChunkDispatcher.lastFastqBoundary(buf, len));
+            }
+
+            buf = fasta(50, eol).getBytes("US-ASCII");
+            int header = 0;
+            for (int len = 0; len <= buf.length; len++) {
+                assertEquals(header, ReadsChunkDispatcher.lastFastaBoundary(buf, len));
+                if (len < buf.length && buf[len] == '>') {
+                    header = len;
+                }
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testStreamFailure() throws IOException {
+        File file = write("failing.fastq", fastq(10, "\n"));
+        InputStream failing = new InputStream() {
+            int left = 100;
+
+            @Override
+            public int read() throws IOException {
+                if (left-- == 0) {
+                    throw new IOException("Broken stream");
+                }
+                return '@';
+            }
+        };
+        ReadsChunkDispatcher dispatcher = new ReadsChunkDispatcher(file, failing, true, (byte) '!', 2, null);
+        CollectingWorker worker = new CollectingWorker();
+        worker.setDispatcher(dispatcher);
+        worker.readAll();       // the splitter's exception is rethrown instead of hanging
+    }
+}
@@ -0,0 +1,152 @@
+package io;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class SortedKmersMergerTest {
+    private Random rand;
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = Files.createTempDirectory("merger").toFile();
+        dir.deleteOnExit();
+    }
+
+    private File plainFile(String name, long[] keys, short[] values) throws IOException {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        for (int i = 0; i < keys.length; i++) {
+            out.writeLong(keys[i]);
+            out.writeShort(values[i]);
+        }
+        out.close();
+        return file;
+    }
+
+    private File file(String name, TreeMap<Long, Short> kmers, boolean compressed) throws IOException {
+        if (compressed) {
+            File file = new File(dir, name);
+            file.deleteOnExit();
+            CompressedKmersFile.Writer writer = new CompressedKmersFile.Writer(file, 31, 2, 100);
+            for (Map.Entry<Long, Short> e : kmers.entrySet()) {
+                writer.write(e.getKey(), e.getValue());
+            }
+            writer.close();
+            return file;
+        }
+        long[] keys = new long[kmers.size()];
+        short[] values = new short[kmers.size()];
+        int i = 0;
+        for (Map.Entry<Long, Short> e : kmers.entrySet()) {
+            keys[i] = e.getKey();
+            values[i] = e.getValue();
+            i++;
+        }
+        return plainFile(name, keys, values);
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        int n = 5;
+        File[] files = new File[n];
+        TreeMap<Long, short[]> expected = new TreeMap<Long, short[]>();
+        for (int f = 0; f < n; f++) {
+            TreeMap<Long, Short> kmers = new TreeMap<Long, Short>();
+            int size = (f == 2) ? 0 : 1000 + rand.nextInt(1000);
+            for (int i = 0; i < size; i++) {
+                long key = rand.nextInt(5000) - 2500;       // many duplicate keys across files
+                short value = (short) (rand.nextInt(20) == 0 ? 20000 + rand.nextInt(10000) : 1 + rand.nextInt(10));
+                kmers.put(key, value);
+            }
+            for (Map.Entry<Long, Short> e : kmers.entrySet()) {
+                if (!expected.containsKey(e.getKey())) {
+                    expected.put(e.getKey(), new short[n]);
+                }
+                expected.get(e.getKey())[f] = e.getValue();
+            }
+            files[f] = file("kmers" + f + ".kmers.bin", kmers, f % 2 == 1);
+        }
+
+        SortedKmersMerger merger = new SortedKmersMerger(files);
+        for (Map.Entry<Long, short[]> e : expected.entrySet()) {
+            assertTrue(merger.next());
+            assertEquals((long) e.getKey(), merger.key());
+            short[] values = e.getValue();
+
+            int present = 0;
+            for (int f = 0; f < n; f++) {
+                assertEquals(values[f], merger.value(f));
+                if (values[f] != 0) {
+                    present++;
+                }
+            }
+            assertEquals(present, merger.presentNumber());
+            for (int i = 0; i < merger.presentNumber(); i++) {
+                assertTrue(values[merger.presentFile(i)] != 0);
+            }
+
+            for (int threshold : new int[]{0, 5, 25000}) {
+                for (int from = 0; from < n; from++) {
+                    for (int to = from; to <= n; to++) {
+                        int sum = 0, count = 0;
+                        for (int f = from; f < to; f++) {
+                            if (values[f] > threshold) {
+                                sum += values[f];
+                                count++;
+                            }
+                        }
+                        assertEquals((short) Math.min(sum, Short.MAX_VALUE), merger.sum(from, to, threshold));
+                        assertEquals(count, merger.count(from, to, threshold));
+                    }
+                }
+            }
+        }
+        assertFalse(merger.next());
+        assertFalse(merger.next());
+        merger.close();
+    }
+
+    @Test(expected = SortedKmersMerger.NotSortedException.class)
+    public void testNotSorted() throws IOException {
+        File sorted = plainFile("sorted.kmers.bin", new long[]{1, 2, 3, 4}, new short[]{1, 1, 1, 1});
+        File notSorted = plainFile("not_sorted.kmers.bin", new long[]{1, 3, 2, 4}, new short[]{1, 1, 1, 1});
+        SortedKmersMerger merger = new SortedKmersMerger(new File[]{sorted, notSorted});
+        try {
+            while (merger.next()) {
+            }
+        } finally {
+            merger.close();
+        }
+    }
+
+    @Test(expected = SortedKmersMerger.NotSortedException.class)
+    public void testDuplicateInFile() throws IOException {
+        File file = plainFile("duplicate.kmers.bin", new long[]{1, 2, 2}, new short[]{1, 1, 1});
+        SortedKmersMerger merger = new SortedKmersMerger(new File[]{file});
+        try {
+            while (merger.next()) {
+            }
+        } finally {
+            merger.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadLength() throws IOException {
+        File file = new File(dir, "bad.kmers.bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[15]);
+        new SortedKmersMerger(new File[]{file});
+    }
+}
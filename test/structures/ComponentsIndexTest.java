@@ -0,0 +1,155 @@
+package structures;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ComponentsIndexTest {
+    private static final Logger logger = Logger.getLogger(ComponentsIndexTest.class);
+
+    private Random rand;
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = Files.createTempDirectory("index").toFile();
+    }
+
+    @After
+    public void after() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testMinimalPerfectHash() {
+        for (int size : new int[]{0, 1, 100, 100000}) {
+            Set<Long> set = new HashSet<>();
+            while (set.size() < size) {
+                set.add(rand.nextLong());
+            }
+            long[] keys = new long[size];
+            int i = 0;
+            for (long key : set) {
+                keys[i++] = key;
+            }
+            long[] function = MinimalPerfectHash.build(keys, size);
+            OffHeapMemory memory = new OffHeapMemory(8L * function.length, null);
+            for (i = 0; i < function.length; i++) {
+                memory.putLong(8L * i, function[i]);
+            }
+            MinimalPerfectHash mph = new MinimalPerfectHash(memory, 0);
+            assertEquals(size, mph.size());
+            assertTrue(mph.bytes() * 8 < 5L * size + 64 * 64);
+
+            boolean[] used = new boolean[size];
+            for (long key : set) {
+                long index = mph.index(key);
+                assertTrue(index >= 0 && index < size);
+                assertFalse(used[(int) index]);
+                used[(int) index] = true;
+            }
+            memory.close();
+        }
+    }
+
+    @Test
+    public void testHashIsFixed() {
+        // hashes are a part of the index format, they shouldn't change
+        assertEquals(0, MinimalPerfectHash.mix(0));
+        assertEquals(-5451962507482445012L, MinimalPerfectHash.mix(1));
+        assertEquals(-8661552387678130966L, MinimalPerfectHash.mix(0x123456789abcdefL));
+    }
+
+    private List<ConnectedComponent> components(int number, int maxSize, Map<Long, Integer> expected) {
+        List<ConnectedComponent> components = new ArrayList<>();
+        for (int i = 0; i < number; i++) {
+            ConnectedComponent component = new ConnectedComponent();
+            int size = 1 + rand.nextInt(maxSize);
+            for (int j = 0; j < size; j++) {
+                long kmer = rand.nextInt(1 << 24);
+                component.add(kmer);
+                if (!expected.containsKey(kmer)) {
+                    expected.put(kmer, i + 1);
+                }
+            }
+            component.no = i + 1;
+            components.add(component);
+        }
+        return components;
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        Map<Long, Integer> expected = new HashMap<>();
+        List<ConnectedComponent> components = components(1000, 200, expected);
+        File file = new File(dir, "index.idx");
+
+        for (int bits : new int[]{0, 16, 64}) {
+            ComponentsIndex.build(components, bits, 17, file, logger);
+            ComponentsIndex index = ComponentsIndex.map(file);
+            assertEquals(expected.size(), index.size());
+            assertEquals(1000, index.components());
+            assertEquals(bits, index.fingerprintBits());
+            assertEquals(17, index.source());
+
+            Set<Long> slots = new HashSet<>();
+            for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+                long slot = index.slot(e.getKey());
+                assertTrue(slots.add(slot));
+                assertEquals(slot, index.find(e.getKey()));
+                assertEquals((int) e.getValue(), index.componentAt(slot));
+                assertEquals((int) e.getValue(), index.component(e.getKey()));
+            }
+
+            if (bits > 0) {
+                int falsePositives = 0;
+                for (long kmer = 1 << 24; kmer < (1 << 24) + 100000; kmer++) {
+                    if (index.component(kmer) != 0) {
+                        falsePositives++;
+                    }
+                }
+                assertTrue(bits == 64 ? falsePositives == 0 : falsePositives < 20);
+            }
+            index.close();
+        }
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        Map<Long, Integer> expected = new HashMap<>();
+        List<ConnectedComponent> components = components(50, 100, expected);
+        File componentsFile = new File(dir, "components.bin");
+        ConnectedComponent.saveComponents(components, componentsFile.getPath());
+        File indexFile = ComponentsIndex.indexFile(componentsFile);
+
+        ComponentsIndex index = ComponentsIndex.open(componentsFile, null, 32, logger);
+        assertTrue(indexFile.exists());
+        assertEquals(ComponentsIndex.source(componentsFile), index.source());
+        index.close();
+
+        long modified = indexFile.lastModified();
+        Thread.sleep(10);
+        index = ComponentsIndex.open(componentsFile, null, 32, logger);
+        assertEquals(modified, indexFile.lastModified());           // reused
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getValue(), index.component(e.getKey()));
+        }
+        index.close();
+
+        index = ComponentsIndex.open(componentsFile, components, 64, logger);
+        assertEquals(64, index.fingerprintBits());                  // rebuilt for other fingerprints
+        index.close();
+    }
+}
@@ -0,0 +1,48 @@
+package structures;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentBloomFilterTest {
+
+    @Test
+    public void testAddAndContains() {
+        ConcurrentBloomFilter filter = ConcurrentBloomFilter.create(10000, 0.01, 1 << 20);
+        Random rand = new Random(239);
+        long[] keys = new long[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rand.nextLong();
+            filter.add(keys[i]);
+        }
+        for (long key : keys) {
+            assertTrue(filter.mightContain(key));
+            assertTrue(filter.add(key));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(rand.nextLong())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2000);
+    }
+
+    @Test
+    public void testMaximalSize() {
+        // the filter of the maximal size isn't allocated here, it takes 8 Gb
+        assertEquals(ConcurrentBloomFilter.MAX_LOG_BITS,
+                ConcurrentBloomFilter.logBits(1L << 40, 0.01, Long.MAX_VALUE));
+        assertEquals(ConcurrentBloomFilter.MAX_LOG_BITS,
+                ConcurrentBloomFilter.logBits(1L << 40, 0.01, 16L << 30));
+        assertTrue(1 << (ConcurrentBloomFilter.MAX_LOG_BITS - 6) > 0);
+        assertEquals(ConcurrentBloomFilter.MIN_LOG_BITS, ConcurrentBloomFilter.logBits(0, 0.5, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooBig() {
+        new ConcurrentBloomFilter(ConcurrentBloomFilter.MAX_LOG_BITS + 1, 1);
+    }
+}
@@ -0,0 +1,105 @@
+package structures;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class SortedKmersTest {
+    private Random rand;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+    }
+
+    private void check(TreeSet<Long> expected, SortedKmers kmers) {
+        assertEquals(expected.size(), kmers.size());
+        long[] a = kmers.array();
+        assertEquals(expected.size(), a.length);
+        int i = 0;
+        for (long kmer : expected) {
+            assertEquals(kmer, a[i]);
+            assertEquals(kmer, kmers.get(i));
+            assertTrue(kmers.contains(kmer));
+            i++;
+        }
+    }
+
+    @Test
+    public void testAddAndContains() {
+        SortedKmers kmers = new SortedKmers();
+        TreeSet<Long> expected = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            long kmer = rand.nextInt(10000) - 5000;
+            assertEquals(!expected.contains(kmer), !kmers.contains(kmer));
+            assertEquals(expected.add(kmer), kmers.add(kmer));
+            if (i % 1000 == 0) {
+                kmers.array();          // merges added k-mers
+            }
+        }
+        check(expected, kmers);
+        assertFalse(kmers.contains(5000));
+        assertFalse(kmers.add(expected.first()));
+    }
+
+    @Test
+    public void testWrap() {
+        long[] a = new long[1000];
+        TreeSet<Long> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            a[i] = rand.nextInt(300);
+            if (i < 900) {
+                expected.add(a[i]);
+            }
+        }
+        check(expected, SortedKmers.wrap(a, 900));
+
+        long[] sorted = {1, 5, 7};
+        assertSame(sorted, SortedKmers.wrap(sorted, 3).array());
+        check(new TreeSet<>(Arrays.asList(1L, 5L)), SortedKmers.wrap(sorted, 2));
+    }
+
+    @Test
+    public void testCopy() {
+        SortedKmers kmers = SortedKmers.wrap(new long[]{3, 1, 2}, 3);
+        SortedKmers copy = kmers.copy();
+        assertTrue(copy.add(10));
+        assertTrue(kmers.add(-10));
+        assertFalse(kmers.contains(10));
+        assertFalse(copy.contains(-10));
+        assertEquals(4, kmers.size());
+        assertEquals(4, copy.size());
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        for (int size : new int[]{0, 1, 10000, 50000}) {
+            SortedKmers kmers = new SortedKmers();
+            TreeSet<Long> expected = new TreeSet<>();
+            while (expected.size() < size) {
+                long kmer = rand.nextLong();
+                expected.add(kmer);
+                kmers.add(kmer);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            kmers.write(new DataOutputStream(bytes));
+            assertEquals(8 * size, bytes.size());
+            check(expected, SortedKmers.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), size));
+
+            // k-mers written one by one in any order, as by older versions
+            bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (long kmer : expected.descendingSet()) {
+                out.writeLong(kmer);
+            }
+            out.close();
+            check(expected, SortedKmers.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), size));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactLong2BitSetHashMapTest {
+    private Random rand;
+    private Long2BitSetHashMap expected;
+    private CompactLong2BitSetHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        expected = new Long2BitSetHashMap(4, 0.75f, 200);
+        hm = new CompactLong2BitSetHashMap(4, 0.75f, 200);
+    }
+
+    @Test
+    public void testSet() {
+        assertNull(hm.set(12, 14));
+        assertNotNull(hm.set(12, 15));
+        assertTrue(hm.get(12, 14));
+        assertTrue(hm.get(12, 15));
+        assertFalse(hm.get(12, 16));
+        assertFalse(hm.get(13, 14));
+        BitSet bs = new BitSet();
+        bs.set(14);
+        bs.set(15);
+        assertEquals(bs, hm.get(12));
+        assertNull(hm.get(13));
+        assertEquals(new BitSet(), hm.getWithEmpty(13));
+
+        assertNull(hm.set(0, 199));     // free key
+        assertTrue(hm.get(0, 199));
+        assertEquals(2, hm.size());
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.get(12, 14));
+        assertFalse(hm.contains(0));
+        assertEquals(0, hm.getCardinality(12));
+        assertNull(hm.set(12, 16));
+        assertEquals(1, hm.getCardinality(12));
+    }
+
+    @Test
+    public void testSameAsLong2BitSetHashMap() {
+        fill(20000);
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+
+        for (long key = 0; key < 5000; key++) {
+            assertEquals(expected.contains(key), hm.contains(key));
+            assertEquals(expected.get(key), hm.get(key));
+            assertEquals(expected.getCardinality(key), hm.getCardinality(key));
+            int from = rand.nextInt(200);
+            int to = from + rand.nextInt(200 - from + 1);
+            assertEquals(expected.getCardinality(key, from, to), hm.getCardinality(key, from, to));
+        }
+        check(hm);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        fill(3000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        CompactLong2BitSetHashMap copy = new CompactLong2BitSetHashMap(2, 0.75f, 200);
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        check(copy);
+    }
+
+    private void fill(int n) {
+        for (int i = 0; i < n; i++) {
+            long key = rand.nextInt(5000);
+            int bit = rand.nextInt(200);
+            expected.set(key, bit);
+            hm.set(key, bit);
+        }
+    }
+
+    private void check(CompactLong2BitSetHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongBitSetEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitSetEntry e = it.next();
+            assertEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+}
@@ -0,0 +1,161 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentLong2LongHashMapTest {
+    private Random rand;
+    private ConcurrentLong2LongHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new ConcurrentLong2LongHashMap(4, 0.75f);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertEquals(-1, hm.get(12));
+        assertEquals(0, hm.getWithZero(12));
+        assertEquals(-1, hm.put(12, 5));
+        assertEquals(5, hm.put(12, 1L << 40));
+        assertEquals(1L << 40, hm.get(12));
+
+        assertEquals(-1, hm.put(0, 3));     // free key
+        assertEquals(3, hm.get(0));
+        assertTrue(hm.contains(0));
+        assertEquals(2, hm.size());
+
+        hm.put(14, -7);
+        assertEquals(-7, hm.get(14));
+        hm.put(15, ConcurrentLong2LongHashMap.MAX_VALUE);
+        hm.put(16, ConcurrentLong2LongHashMap.MIN_VALUE);
+        assertEquals(ConcurrentLong2LongHashMap.MAX_VALUE, hm.get(15));
+        assertEquals(ConcurrentLong2LongHashMap.MIN_VALUE, hm.get(16));
+
+        assertTrue(hm.add(13));
+        assertFalse(hm.add(13));
+        assertEquals(0, hm.get(13));
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.contains(12));
+        assertFalse(hm.contains(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutOutOfRange() {
+        hm.put(12, ConcurrentLong2LongHashMap.MAX_VALUE + 1);     // two upper bits of a cell are flags
+    }
+
+    @Test
+    public void testAddAndBound() {
+        assertEquals(0, hm.addAndBound(12, 1));
+        assertEquals(1, hm.addAndBound(12, 1));
+        assertEquals(2, hm.get(12));
+        hm.addAndBound(12, 1L << 40);
+        assertEquals((1L << 40) + 2, hm.get(12));
+
+        hm.put(12, ConcurrentLong2LongHashMap.MAX_VALUE - 1);
+        hm.addAndBound(12, 5);
+        assertEquals(ConcurrentLong2LongHashMap.MAX_VALUE, hm.get(12));
+        hm.put(0, ConcurrentLong2LongHashMap.MIN_VALUE + 1);
+        hm.addAndBound(0, -5);
+        assertEquals(ConcurrentLong2LongHashMap.MIN_VALUE, hm.get(0));
+
+        hm.resetValues();
+        assertEquals(0, hm.get(12));
+        assertEquals(0, hm.get(0));
+        assertEquals(2, hm.size());
+    }
+
+    @Test
+    public void testResize() {
+        Long2LongHashMap expected = new Long2LongHashMap(4, 0.75f);
+        for (int i = 0; i < 100000; i++) {
+            long key = rand.nextInt(20000);
+            long inc = rand.nextInt(1000) + 1;
+            assertEquals(expected.addAndBound(key, inc), hm.addAndBound(key, inc));
+        }
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+        assertEquals(expected.size(), check(expected, hm));
+    }
+
+    @Test
+    public void testConcurrentCounting() throws InterruptedException {
+        final int threads = 4, keys = 50000, rounds = 3;
+        final BigLong2LongHashMap bigHm = ConcurrentLong2LongHashMap.newBigMap(2, 4);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < rounds; r++) {
+                        for (int i = 0; i < keys; i++) {
+                            long key = (i * 31L + seed * 7919L) % keys;
+                            hm.addAndBound(key, 1);
+                            bigHm.addAndBound(key, 1L << 32);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(keys, hm.size());
+        assertEquals(keys, bigHm.size());
+        for (int i = 0; i < keys; i++) {
+            assertEquals(threads * rounds, hm.get(i));
+            assertEquals((long) threads * rounds << 32, bigHm.get(i));
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            hm.addAndBound(rand.nextLong(), rand.nextInt() + (1L << 40));
+        }
+        hm.put(0, 42);
+        hm.put(1, -42);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        Long2LongHashMap copy = new Long2LongHashMap();      // the formats are the same
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(hm.size(), check(copy, hm));
+
+        ConcurrentLong2LongHashMap copy2 = new ConcurrentLong2LongHashMap();
+        copy2.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(hm.size(), check(copy2, hm));
+    }
+
+    /**
+     * @return number of entries in actual, all of them are checked to be in expected
+     */
+    private static long check(Long2LongHashMap expected, Long2LongHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongLongEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongLongEntry e = it.next();
+            assertEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+        return entries;
+    }
+}
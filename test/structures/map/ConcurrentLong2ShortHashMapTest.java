@@ -0,0 +1,136 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentLong2ShortHashMapTest {
+    private Random rand;
+    private ConcurrentLong2ShortHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new ConcurrentLong2ShortHashMap(4, 0.75f);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertEquals(-1, hm.get(12));
+        assertEquals(0, hm.getWithZero(12));
+        assertEquals(-1, hm.put(12, (short) 5));
+        assertEquals(5, hm.put(12, (short) 7));
+        assertEquals(7, hm.get(12));
+
+        assertEquals(-1, hm.put(0, (short) 3));     // free key
+        assertEquals(3, hm.get(0));
+        assertTrue(hm.contains(0));
+        assertEquals(2, hm.size());
+
+        assertTrue(hm.add(13));
+        assertFalse(hm.add(13));
+        assertEquals(0, hm.get(13));
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.contains(12));
+        assertFalse(hm.contains(0));
+    }
+
+    @Test
+    public void testAddAndBound() {
+        assertEquals(0, hm.addAndBound(12, (short) 1));
+        assertEquals(1, hm.addAndBound(12, (short) 1));
+        assertEquals(2, hm.get(12));
+
+        hm.put(12, (short) (Short.MAX_VALUE - 1));
+        hm.addAndBound(12, (short) 5);
+        assertEquals(Short.MAX_VALUE, hm.get(12));
+
+        hm.resetValues();
+        assertEquals(0, hm.get(12));
+        assertEquals(1, hm.size());
+    }
+
+    @Test
+    public void testResize() {
+        Long2ShortHashMap expected = new Long2ShortHashMap(4, 0.75f);
+        for (int i = 0; i < 100000; i++) {
+            long key = rand.nextInt(20000);
+            short inc = (short) (rand.nextInt(3) + 1);
+            assertEquals(expected.addAndBound(key, inc), hm.addAndBound(key, inc));
+        }
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+        assertEquals(expected.size(), check(expected, hm));
+    }
+
+    @Test
+    public void testConcurrentCounting() throws InterruptedException {
+        final int threads = 4, keys = 50000, rounds = 3;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < rounds; r++) {
+                        for (int i = 0; i < keys; i++) {
+                            hm.addAndBound((i * 31L + seed * 7919L) % keys, (short) 1);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(keys, hm.size());
+        for (int i = 0; i < keys; i++) {
+            assertEquals(threads * rounds, hm.get(i));
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            hm.addAndBound(rand.nextLong(), (short) (rand.nextInt(100) + 1));
+        }
+        hm.put(0, (short) 42);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        Long2ShortHashMap copy = new Long2ShortHashMap();      // the formats are the same
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(hm.size(), check(copy, hm));
+
+        ConcurrentLong2ShortHashMap copy2 = new ConcurrentLong2ShortHashMap();
+        copy2.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(hm.size(), check(copy2, hm));
+    }
+
+    /**
+     * @return number of entries in actual, all of them are checked to be in expected
+     */
+    private static long check(Long2ShortHashMap expected, Long2ShortHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongShortEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry e = it.next();
+            assertEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+        return entries;
+    }
+}
@@ -0,0 +1,174 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class EliasFanoLong2ShortMapTest {
+    private Random rand;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+    }
+
+    private EliasFanoLong2ShortMap build(TreeMap<Long, Short> expected, boolean withValues) {
+        EliasFanoLong2ShortMap.Builder builder = new EliasFanoLong2ShortMap.Builder(expected.size(),
+                expected.isEmpty() ? 0 : expected.firstKey(), expected.isEmpty() ? 0 : expected.lastKey(), withValues);
+        for (Map.Entry<Long, Short> e : expected.entrySet()) {
+            builder.add(e.getKey(), e.getValue());
+        }
+        return builder.build();
+    }
+
+    private void check(TreeMap<Long, Short> expected, EliasFanoLong2ShortMap map, long range) {
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < 20000; i++) {
+            long key = (long) (rand.nextDouble() * range) - range / 2;
+            Short value = expected.get(key);
+            assertEquals(value != null, map.contains(key));
+            assertEquals(value == null ? 0 : value, map.getWithZero(key));
+        }
+        int pos = 0;
+        Iterator<MutableLongShortEntry> it = map.entryIterator();
+        for (Map.Entry<Long, Short> e : expected.entrySet()) {
+            assertTrue(it.hasNext());
+            MutableLongShortEntry entry = it.next();
+            assertEquals((long) e.getKey(), entry.getKey());
+            assertEquals((short) e.getValue(), entry.getValue());
+            assertEquals(e.getValue().shortValue(), map.get(e.getKey()));
+            assertEquals(pos, map.getPosition(e.getKey()));
+            assertEquals((long) e.getKey(), map.keyAt(pos));
+            pos++;
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testDenseAndSparseKeys() {
+        for (long range : new long[]{1000, 1L << 20, 1L << 40, Long.MAX_VALUE}) {
+            TreeMap<Long, Short> expected = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                expected.put((long) (rand.nextDouble() * range) - range / 2, (short) rand.nextInt(1000));
+            }
+            check(expected, build(expected, true), range);
+        }
+    }
+
+    @Test
+    public void testExtremeKeys() {
+        TreeMap<Long, Short> expected = new TreeMap<>();
+        expected.put(Long.MIN_VALUE, (short) 1);
+        expected.put(0L, (short) 2);
+        expected.put(Long.MAX_VALUE, (short) 3);
+        EliasFanoLong2ShortMap map = build(expected, true);
+        check(expected, map, 100);
+        assertEquals(1, map.get(Long.MIN_VALUE));
+        assertEquals(3, map.get(Long.MAX_VALUE));
+        assertEquals(-1, map.get(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testEmpty() {
+        EliasFanoLong2ShortMap map = build(new TreeMap<Long, Short>(), true);
+        assertEquals(0, map.size());
+        assertFalse(map.contains(0));
+        assertFalse(map.entryIterator().hasNext());
+    }
+
+    @Test
+    public void testBuildFromHashMap() {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(4, 4);
+        TreeMap<Long, Short> expected = new TreeMap<>();
+        for (int i = 0; i < 30000; i++) {
+            long key = rand.nextInt(1 << 24);
+            hm.addAndBound(key, (short) 1);
+            expected.put(key, hm.get(key));
+        }
+        check(expected, EliasFanoLong2ShortMap.build(hm, true), 1 << 25);
+
+        EliasFanoLong2ShortMap set = EliasFanoLong2ShortMap.build(hm, false);
+        for (long key : expected.keySet()) {
+            assertEquals(1, set.getWithZero(key));
+        }
+        assertTrue(set.memoryBytes() < 4L * expected.size());
+    }
+
+    @Test
+    public void testBuildFreeingSmallMaps() {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(3, 4);
+        TreeMap<Long, Short> expected = new TreeMap<>();
+        for (int i = 0; i < 30000; i++) {
+            long key = rand.nextLong() >> rand.nextInt(64);
+            hm.addAndBound(key, (short) (1 + rand.nextInt(5)));
+            expected.put(key, hm.get(key));
+        }
+        hm.put(0, (short) 7);
+        expected.put(0L, (short) 7);
+        hm.maps[5].reset();     // an empty run
+        for (Iterator<Map.Entry<Long, Short>> it = expected.entrySet().iterator(); it.hasNext(); ) {
+            if (hm.get(it.next().getKey()) == -1) {
+                it.remove();
+            }
+        }
+
+        EliasFanoLong2ShortMap map = EliasFanoLong2ShortMap.build(hm, true, true);
+        assertEquals(0, hm.size());
+        assertEquals(expected.size(), map.size());
+        long pos = 0;
+        for (Map.Entry<Long, Short> e : expected.entrySet()) {
+            assertEquals(e.getKey().longValue(), map.keyAt(pos));
+            assertEquals(e.getValue().shortValue(), map.valueAt(pos));
+            pos++;
+        }
+    }
+
+    @Test
+    public void testChangingValues() {
+        TreeMap<Long, Short> expected = new TreeMap<>();
+        expected.put(10L, (short) 5);
+        expected.put(20L, (short) 6);
+        EliasFanoLong2ShortMap map = build(expected, true);
+        assertEquals(5, map.put(10, (short) -5));
+        assertEquals(-5, map.get(10));
+        assertEquals(6, map.addAndBound(20, (short) 1));
+        assertEquals(7, map.get(20));
+        try {
+            map.put(15, (short) 1);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // keys can't be added
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        TreeMap<Long, Short> expected = new TreeMap<>();
+        for (int i = 0; i < 10000; i++) {
+            expected.put((long) rand.nextInt(1 << 30), (short) rand.nextInt(100));
+        }
+        EliasFanoLong2ShortMap map = build(expected, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.write(new DataOutputStream(bytes));
+
+        EliasFanoLong2ShortMap read = new EliasFanoLong2ShortMap();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        check(expected, read, 1L << 31);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedKeys() {
+        EliasFanoLong2ShortMap.Builder builder = new EliasFanoLong2ShortMap.Builder(2, 0, 10, false);
+        builder.add(5, (short) 1);
+        builder.add(3, (short) 1);
+    }
+}
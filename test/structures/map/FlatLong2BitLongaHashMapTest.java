@@ -0,0 +1,100 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlatLong2BitLongaHashMapTest {
+    private Random rand;
+    private Long2BitLongaHashMap expected;
+    private FlatLong2BitLongaHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        expected = new Long2BitLongaHashMap(4, 0.75f, 200);
+        hm = new FlatLong2BitLongaHashMap(4, 0.75f, 200);
+    }
+
+    @Test
+    public void testSet() {
+        assertNull(hm.set(12, 14));
+        assertNotNull(hm.set(12, 15));
+        assertTrue(hm.get(12, 14));
+        assertTrue(hm.get(12, 15));
+        assertFalse(hm.get(12, 16));
+        assertFalse(hm.get(13, 14));
+        assertArrayEquals(new long[]{(1L << 14) | (1L << 15), 0, 0, 0}, hm.get(12));
+        assertNull(hm.get(13));
+        assertArrayEquals(new long[1], hm.getWithEmpty(13));
+
+        assertNull(hm.set(0, 199));     // free key
+        assertTrue(hm.get(0, 199));
+        assertEquals(2, hm.size());
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.get(12, 14));
+        assertFalse(hm.contains(0));
+        assertEquals(0, hm.getCardinality(12));
+    }
+
+    @Test
+    public void testSameAsLong2BitLongaHashMap() {
+        fill(20000);
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+
+        for (long key = 0; key < 5000; key++) {
+            assertEquals(expected.contains(key), hm.contains(key));
+            assertArrayEquals(expected.get(key), hm.get(key));
+            assertEquals(expected.getCardinality(key), hm.getCardinality(key));
+            int from = rand.nextInt(200);
+            int to = from + rand.nextInt(200 - from + 1);
+            assertEquals(expected.getCardinality(key, from, to), hm.getCardinality(key, from, to));
+        }
+        check(hm);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        fill(3000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        FlatLong2BitLongaHashMap copy = new FlatLong2BitLongaHashMap();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        check(copy);
+
+        Long2BitLongaHashMap copy2 = new Long2BitLongaHashMap();     // the formats are the same
+        copy2.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (long key = 0; key < 5000; key++) {
+            assertEquals(expected.getCardinality(key), copy2.getCardinality(key));
+        }
+    }
+
+    private void fill(int n) {
+        for (int i = 0; i < n; i++) {
+            long key = rand.nextInt(5000);
+            int bit = rand.nextInt(200);
+            expected.set(key, bit);
+            hm.set(key, bit);
+        }
+    }
+
+    private void check(FlatLong2BitLongaHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongBitLongaEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitLongaEntry e = it.next();
+            assertArrayEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+}
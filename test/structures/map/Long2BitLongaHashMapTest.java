@@ -4,7 +4,10 @@ import it.unimi.dsi.fastutil.HashCommon;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -513,6 +516,49 @@ public class Long2BitLongaHashMapTest {
     }
 
 
+    @Test
+    public void testIncrementalResize() {
+        Long2BitLongaHashMap small = new Long2BitLongaHashMap(4, 0.75f, 130);
+        Map<Long, Set<Integer>> expected = new HashMap<>();
+        boolean resizing = false;
+        for (int i = 0; i < 100000; i++) {
+            long key = rand.nextInt(20000);
+            int bit = rand.nextInt(130);
+            Set<Integer> bits = expected.get(key);
+            if (bits == null) {
+                bits = new HashSet<>();
+                expected.put(key, bits);
+                assertNull(small.set(key, bit));
+            } else {
+                assertNotNull(small.set(key, bit));
+            }
+            bits.add(bit);
+            resizing |= small.data.old != null;
+
+            // keys of both tables are visible while resizing
+            long probe = rand.nextInt(20000);
+            assertEquals(expected.containsKey(probe), small.contains(probe));
+            assertEquals(expected.containsKey(probe) ? expected.get(probe).size() : 0, small.getCardinality(probe));
+        }
+        assertTrue(resizing);
+        assertEquals(expected.size(), small.size());
+
+        small.prepare();
+        assertNull(small.data.old);
+        long entries = 0;
+        Iterator<MutableLongBitLongaEntry> it = small.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitLongaEntry e = it.next();
+            for (int bit = 0; bit < 130; bit++) {
+                assertEquals(expected.get(e.getKey()).contains(bit),
+                        ((e.getValue()[bit / 64] >> (bit % 64)) & 1) == 1);
+            }
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+
+
     private static int getPositionInt(Long2BitLongaHashMap.MapData curData, long key) {
         long h = HashCommon.murmurHash3(key);
         int pos = (int)(h & (long)curData.capacityMask);
@@ -0,0 +1,98 @@
+package structures.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MapSnapshotTest {
+    private static final int SAMPLES = 40;
+
+    private Random rand;
+    private File dir;
+    private File file;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = Files.createTempDirectory("snapshot").toFile();
+        file = new File(dir, "kmers.snapshot");
+    }
+
+    @After
+    public void after() {
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testBitShortaMap() throws IOException {
+        BigLong2BitShortaHashMap hm = new BigLong2BitShortaHashMap(2, 2, false, SAMPLES);
+        Map<Long, Integer> cardinality = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            long key = (i == 0) ? 0 : rand.nextInt(10000) + 1;     // free key included
+            int bit = rand.nextInt(SAMPLES);
+            boolean had = hm.get(key, bit);
+            hm.set(key, bit);
+            if (!had) {
+                cardinality.merge(key, 1, Integer::sum);
+            }
+        }
+        MapSnapshot.write(hm, SAMPLES, 17, file);
+        assertEquals(17, MapSnapshot.source(file));
+        assertFalse(new File(dir, "kmers.snapshot.tmp").exists());
+
+        for (boolean mapped : new boolean[]{false, true}) {
+            BigLong2BitShortaHashMap restored = MapSnapshot.readBitShorta(file, mapped);
+            assertEquals(hm.size(), restored.size());
+            for (Map.Entry<Long, Integer> e : cardinality.entrySet()) {
+                assertArrayEquals(hm.get(e.getKey()), restored.get(e.getKey()));
+                assertEquals((int) e.getValue(), restored.getCardinality(e.getKey()));
+            }
+            assertFalse(restored.contains(10001));
+
+            restored.set(10001, 3);                    // map stays usable, the snapshot isn't changed
+            assertTrue(restored.get(10001, 3));
+            restored.close();
+        }
+
+        BigLong2BitShortaHashMap again = MapSnapshot.readBitShorta(file, true);
+        assertFalse(again.contains(10001));
+        again.close();
+    }
+
+    @Test
+    public void testShortMap() throws IOException {
+        BigLong2ShortHashMap hm = ConcurrentLong2ShortHashMap.newBigMap(2, 2);
+        for (int i = 0; i < 50000; i++) {
+            hm.addAndBound(rand.nextInt(20000), (short) 1);
+        }
+        MapSnapshot.write(hm, 5, file);
+
+        for (boolean mapped : new boolean[]{false, true}) {
+            BigLong2ShortHashMap restored = MapSnapshot.readShort(file, mapped);
+            assertEquals(hm.size(), restored.size());
+            for (long key = 0; key <= 20000; key++) {
+                assertEquals(hm.get(key), restored.get(key));
+            }
+            restored.addAndBound(20001, (short) 2);
+            assertEquals(2, restored.get(20001));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOtherKind() throws IOException {
+        BigLong2ShortHashMap hm = ConcurrentLong2ShortHashMap.newBigMap(1, 2);
+        hm.put(1, (short) 1);
+        MapSnapshot.write(hm, 0, file);
+        MapSnapshot.readBitShorta(file, false);
+    }
+}
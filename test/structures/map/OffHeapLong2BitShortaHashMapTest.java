@@ -0,0 +1,114 @@
+package structures.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLong2BitShortaHashMapTest {
+    private Random rand;
+    private Long2BitShortaHashMap expected;
+    private OffHeapLong2BitShortaHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        expected = new Long2BitShortaHashMap(4, 0.75f, 200);
+        hm = new OffHeapLong2BitShortaHashMap(4, 0.75f, 200, null);
+    }
+
+    @After
+    public void after() {
+        hm.close();
+    }
+
+    @Test
+    public void testSet() {
+        assertNull(hm.set(12, 14));
+        assertNotNull(hm.set(12, 15));
+        assertTrue(hm.get(12, 14));
+        assertTrue(hm.get(12, 15));
+        assertFalse(hm.get(12, 16));
+        assertFalse(hm.get(13, 14));
+        assertEquals((short) ((1 << 14) | (1 << 15)), hm.get(12)[0]);
+        assertEquals(2, hm.getCardinality(12));
+        assertNull(hm.get(13));
+        assertArrayEquals(new short[1], hm.getWithEmpty(13));
+
+        assertNull(hm.set(0, 199));     // free key
+        assertTrue(hm.get(0, 199));
+        assertEquals(2, hm.size());
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.get(12, 14));
+        assertFalse(hm.contains(0));
+        assertEquals(0, hm.getCardinality(12));
+    }
+
+    @Test
+    public void testSameAsLong2BitShortaHashMap() {
+        fill(20000);
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+
+        for (long key = 0; key < 5000; key++) {
+            assertEquals(expected.contains(key), hm.contains(key));
+            assertArrayEquals(expected.get(key), hm.get(key));
+            assertEquals(expected.getCardinality(key), hm.getCardinality(key));
+            int from = rand.nextInt(200);
+            int to = from + rand.nextInt(200 - from + 1);
+            assertEquals(expected.getCardinality(key, from, to), hm.getCardinality(key, from, to));
+        }
+        check(hm);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        fill(3000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        OffHeapLong2BitShortaHashMap copy = new OffHeapLong2BitShortaHashMap(2, 0.75f, 200, null);
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        check(copy);
+        copy.close();
+    }
+
+    @Test
+    public void testBigMap() {
+        BigLong2BitShortaHashMap big = OffHeapLong2BitShortaHashMap.newBigMap(2, 4, 200, null);
+        for (long key = 0; key < 1000; key++) {
+            big.set(key, (int) (key % 200));
+        }
+        assertEquals(1000, big.size());
+        assertTrue(big.get(999, 199));
+        assertEquals(1, big.getCardinality(999, 100, 200));
+        big.close();
+    }
+
+    private void fill(int n) {
+        for (int i = 0; i < n; i++) {
+            long key = rand.nextInt(5000);
+            int bit = rand.nextInt(200);
+            expected.set(key, bit);
+            hm.set(key, bit);
+        }
+    }
+
+    private void check(OffHeapLong2BitShortaHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongBitShortaEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitShortaEntry e = it.next();
+            assertArrayEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+}
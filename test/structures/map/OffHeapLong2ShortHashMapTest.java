@@ -0,0 +1,131 @@
+package structures.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLong2ShortHashMapTest {
+    private Random rand;
+    private OffHeapLong2ShortHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new OffHeapLong2ShortHashMap(4, 0.75f, null);
+    }
+
+    @After
+    public void after() {
+        hm.close();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertEquals(-1, hm.get(12));
+        assertEquals(0, hm.getWithZero(12));
+        assertEquals(-1, hm.put(12, (short) 5));
+        assertEquals(5, hm.put(12, (short) 7));
+        assertEquals(7, hm.get(12));
+
+        assertEquals(-1, hm.put(0, (short) 3));     // free key
+        assertEquals(3, hm.get(0));
+        assertTrue(hm.contains(0));
+        assertEquals(2, hm.size());
+
+        assertTrue(hm.add(13));
+        assertFalse(hm.add(13));
+        assertEquals(0, hm.get(13));
+
+        hm.put(13, (short) (Short.MAX_VALUE - 1));
+        hm.addAndBound(13, (short) 5);
+        assertEquals(Short.MAX_VALUE, hm.get(13));
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.contains(12));
+        assertFalse(hm.contains(0));
+    }
+
+    @Test
+    public void testSameAsLong2ShortHashMap() {
+        Long2ShortHashMap expected = new Long2ShortHashMap(4, 0.75f);
+        fill(expected, hm, 100000);
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+        check(expected, hm);
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        File dir = Files.createTempDirectory("offheap").toFile();
+        OffHeapLong2ShortHashMap mapped = new OffHeapLong2ShortHashMap(4, 0.75f, dir);
+        Long2ShortHashMap expected = new Long2ShortHashMap(4, 0.75f);
+        fill(expected, mapped, 50000);
+        check(expected, mapped);
+        assertEquals(0, dir.list().length);     // files are deleted once mapped
+        mapped.close();
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Long2ShortHashMap expected = new Long2ShortHashMap(4, 0.75f);
+        fill(expected, hm, 3000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        Long2ShortHashMap copy = new Long2ShortHashMap();      // the formats are the same
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        check(expected, copy);
+
+        OffHeapLong2ShortHashMap copy2 = new OffHeapLong2ShortHashMap(2, 0.75f, null);
+        copy2.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        check(expected, copy2);
+        copy2.close();
+    }
+
+    @Test
+    public void testBigMap() {
+        BigLong2ShortHashMap big = OffHeapLong2ShortHashMap.newBigMap(2, 4, null);
+        for (long key = 0; key < 1000; key++) {
+            big.addAndBound(key, (short) 2);
+        }
+        assertEquals(1000, big.size());
+        assertEquals(2, big.get(999));
+        for (int i = 0; i < big.maps.length; i++) {
+            ((OffHeapLong2ShortHashMap) big.maps[i]).close();
+        }
+    }
+
+    private void fill(Long2ShortHashMap expected, Long2ShortHashMap actual, int n) {
+        for (int i = 0; i < n; i++) {
+            long key = rand.nextInt(20000);
+            short inc = (short) (rand.nextInt(3) + 1);
+            assertEquals(expected.addAndBound(key, inc), actual.addAndBound(key, inc));
+        }
+    }
+
+    private static void check(Long2ShortHashMap expected, Long2ShortHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongShortEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry e = it.next();
+            assertEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+        for (long key = 0; key < 20000; key++) {
+            assertEquals(expected.get(key), actual.get(key));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TieredLong2LongHashMapTest {
+    private Random rand;
+    private TieredLong2LongHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new TieredLong2LongHashMap(4, 0.75f);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertEquals(-1, hm.get(12));
+        assertEquals(0, hm.getWithZero(12));
+        assertEquals(-1, hm.put(12, 5));
+        assertEquals(5, hm.put(12, 1000));          // promoted
+        assertEquals(1000, hm.get(12));
+        assertEquals(1000, hm.put(12, 7));          // stays in the side map
+        assertEquals(7, hm.get(12));
+        assertEquals(1, hm.overflowSize());
+
+        assertEquals(-1, hm.put(0, 300));           // free key
+        assertEquals(300, hm.get(0));
+        assertTrue(hm.contains(0));
+        assertEquals(2, hm.size());
+
+        assertTrue(hm.add(13));
+        assertFalse(hm.add(13));
+        assertEquals(0, hm.get(13));
+
+        hm.reset();
+        assertEquals(0, hm.size());
+        assertFalse(hm.contains(12));
+        assertFalse(hm.contains(0));
+        assertEquals(0, hm.overflowSize());
+    }
+
+    @Test
+    public void testAddAndBound() {
+        assertEquals(0, hm.addAndBound(12, 1));
+        assertEquals(1, hm.addAndBound(12, 1));
+        assertEquals(2, hm.get(12));
+
+        for (int i = 2; i < 100000; i++) {
+            assertEquals(i, hm.addAndBound(12, 1));
+        }
+        assertEquals(100000, hm.get(12));           // not bounded by Short.MAX_VALUE
+        assertEquals(0, hm.addAndBound(14, TieredLong2LongHashMap.INLINE_MAX));
+        assertEquals(TieredLong2LongHashMap.INLINE_MAX, hm.get(14));
+        assertEquals(1, hm.overflowSize());
+
+        hm.put(12, TieredLong2LongHashMap.MAX_VALUE - 1);
+        hm.addAndBound(12, 5);
+        assertEquals(TieredLong2LongHashMap.MAX_VALUE, hm.get(12));
+
+        hm.resetValues();
+        assertEquals(0, hm.get(12));
+        assertEquals(0, hm.get(14));
+        assertEquals(2, hm.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        hm.put(12, -1);
+    }
+
+    @Test
+    public void testResize() {
+        Long2LongHashMap expected = new Long2LongHashMap(4, 0.75f);
+        for (int i = 0; i < 300000; i++) {
+            long key = rand.nextInt(20000);
+            long inc = (rand.nextInt(50) == 0) ? rand.nextInt(1000) : rand.nextInt(3) + 1;
+            assertEquals(expected.addAndBound(key, inc), hm.addAndBound(key, inc));
+        }
+        assertEquals(expected.size(), hm.size());
+        assertTrue(hm.capacity() > 16);
+        assertTrue(hm.overflowSize() > 0);
+        assertEquals(expected.size(), check(expected, hm));
+    }
+
+    @Test
+    public void testConcurrentCounting() throws InterruptedException {
+        final int threads = 4, keys = 50000, rounds = 30;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < rounds; r++) {
+                        for (int i = 0; i < keys; i++) {
+                            long key = (i * 31L + seed * 7919L) % keys;
+                            hm.addAndBound(key, key % 100 == 0 ? 7 : 1);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(keys, hm.size());
+        for (int i = 0; i < keys; i++) {
+            assertEquals(threads * rounds * (i % 100 == 0 ? 7 : 1), hm.get(i));
+        }
+        assertEquals(keys / 100, hm.overflowSize());
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            hm.addAndBound(rand.nextLong(), rand.nextInt(300) + 1);
+        }
+        hm.put(0, 42000);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+
+        Long2LongHashMap copy = new Long2LongHashMap();         // the formats are the same
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(hm.size(), check(copy, hm));
+
+        TieredLong2LongHashMap copy2 = new TieredLong2LongHashMap();
+        copy2.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(hm.size(), check(copy2, hm));
+        assertEquals(hm.overflowSize(), copy2.overflowSize());
+    }
+
+    /**
+     * @return number of entries in actual, all of them are checked to be in expected
+     */
+    private static long check(Long2LongHashMap expected, Long2LongHashMap actual) {
+        long entries = 0;
+        Iterator<MutableLongLongEntry> it = actual.entryIterator();
+        while (it.hasNext()) {
+            MutableLongLongEntry e = it.next();
+            assertEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+        return entries;
+    }
+}